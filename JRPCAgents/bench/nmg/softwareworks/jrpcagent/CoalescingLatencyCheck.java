@@ -0,0 +1,79 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>A check of the latency promised by {@link ConnectionOptions#withWriteCoalescing}: a message that is written and flushed
+ * reaches the socket within about the maximum delay. A single thread writes and flushes one message at a time, as a thread making
+ * synchronous requests does, and waits for each to reach the underlying stream before writing the next. Since no other message
+ * is waiting, each one waits for the maximum delay and should then be written, not held for the writer task's linger.
+ * </p><p>
+ * Run with <code>java nmg.softwareworks.jrpcagent.CoalescingLatencyCheck</code>. The check is configured by the system properties
+ * check.delay (the maximum delay, in microseconds, default 50), check.messages (default 20000), check.size (the bytes of a message,
+ * default 100) and check.slack (in microseconds, default 500).
+ * </p><p>
+ * A thread that waits for the maximum delay wakes later than asked by however much the platform's timer overshoots, so the check
+ * first measures the 99th percentile of a plain {@link LockSupport#parkNanos} of the maximum delay on the same machine.
+ * It reports the mean, 99th percentile and worst latency, and exits with status 1 if the 99th percentile exceeds that of the
+ * plain park by more than the slack.
+ * </p>
+ */
+public class CoalescingLatencyCheck {
+	public static void main(String[] args) throws Exception {
+		var delay = Duration.ofNanos(Long.getLong("check.delay", 50) * 1000);
+		var messages = Integer.getInteger("check.messages", 20_000);
+		var message = new byte[Integer.getInteger("check.size", 100)];
+		var slackNanos = Long.getLong("check.slack", 500) * 1000;
+		//the checking thread sleeps until the bytes arrive, so that on a single processor it does not compete with the writer task
+		var sink = new OutputStream() {
+			private long received = 0;
+			@Override
+			public synchronized void write(int b) {received++; notifyAll();}
+			@Override
+			public synchronized void write(byte[] b, int off, int len) {received += len; notifyAll();}
+			synchronized void awaitReceived(long bytes) throws InterruptedException {
+				while (received < bytes) wait();}
+		};
+		var writers = Executors.newCachedThreadPool(r -> {
+			var t = new Thread(r, "coalescing writer");
+			t.setDaemon(true);
+			return t;
+		});
+		var parked = new long[Math.min(messages, 2000)];
+		for (int i = 0; i < parked.length; i++) {
+			var start = System.nanoTime();
+			LockSupport.parkNanos(delay.toNanos());
+			parked[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(parked);
+		var parkP99 = parked[(int)(parked.length * 0.99)];
+		var options = new ConnectionOptions().withWriteCoalescing(delay, 1 << 20);
+		var latencies = new long[messages];
+		try (var stream = new CoalescingOutputStream(sink, options, writers, "latency check")) {
+			long expected = 0;
+			for (int i = 0; i < messages; i++) {
+				var start = System.nanoTime();
+				stream.write(message);
+				stream.flush();
+				expected += message.length;
+				sink.awaitReceived(expected);
+				latencies[i] = System.nanoTime() - start;
+			}
+		}
+		var warm = Arrays.copyOfRange(latencies, Math.min(messages / 10, 1000), messages); //the first messages warm up the JIT
+		Arrays.sort(warm);
+		var mean = Arrays.stream(warm).average().orElse(0);
+		var p99 = warm[(int)(warm.length * 0.99)];
+		var max = warm[warm.length - 1];
+		System.out.printf("max delay %d us: mean %.1f us, p99 %.1f us, max %.1f us over %d messages; p99 of a plain park %.1f us%n",
+				delay.toNanos() / 1000, mean / 1000, p99 / 1000.0, max / 1000.0, warm.length, parkP99 / 1000.0);
+		if (p99 > parkP99 + slackNanos) {
+			System.out.println("FAILED: messages wait longer than the maximum delay");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+
+/**
+ * <p>Benchmarks of the JRPC codec: deserializing requests, responses and notifications with the
+ * {@link IncomingMessage.IncomingMessageDeserializer}, and serializing requests with positional and named parameters with
+ * {@link JRPCSimpleRequest#streamRequestOrNotification}. The messages are recorded payloads of the sizes an application typically
+ * exchanges with a partner.
+ * </p><p>
+ * The messages are read and written by an agent whose partner never sends anything, so the benchmarks measure only the codec,
+ * not the transport. Run with <code>java nmg.softwareworks.jrpcagent.CodecBenchmarks</code>; see {@link MicroBenchmark} for the
+ * system properties that configure a run.
+ * </p>
+ */
+public class CodecBenchmarks {
+	//an agent on a connection that sends to nowhere and reads from a partner that never writes
+	static final class BenchAgent extends JRPCAgent {
+		BenchAgent(String name) throws IOException {
+			super(new PipedInputStream(new PipedOutputStream()), OutputStream.nullOutputStream(), name);}
+	}
+
+	public record Quote(String symbol, double bid, double ask, long volume) {}
+
+	public static class Tick extends Notification {
+		public String symbol;
+		public double price;
+		public long sequence;
+		@Override
+		public void handle(Connection conn, String methodName) {}
+	}
+
+	private static final NotificationInducer tickInducer = new NotificationInducer() {
+		@Override
+		public Object getNotificationType() {return Tick.class;}
+		@Override
+		public void establishDeserializationAttributes(SerializationState ss) {}
+	};
+
+	static final String positionalRequest =
+			"{\"jsonrpc\":\"2.0\",\"id\":17,\"method\":\"lookup\",\"params\":[\"ACME\",250,true,[1.5,2.25,3.125,4.0625]]}";
+	static final String namedRequest =
+			"{\"jsonrpc\":\"2.0\",\"id\":18,\"method\":\"select\",\"params\":{\"query\":\"select symbol, bid, ask from quotes where volume > 1000\","
+			+ "\"limit\":100,\"schema\":\"market\",\"timeout\":2.5}}";
+	static final String notification =
+			"{\"jsonrpc\":\"2.0\",\"method\":\"tick\",\"params\":{\"symbol\":\"ACME\",\"price\":101.25,\"sequence\":123456789}}";
+
+	//a response whose result is an array of n quotes
+	static String response(int id, int n) {
+		var sb = new StringBuilder("{\"jsonrpc\":\"2.0\",\"id\":").append(id).append(",\"result\":[");
+		for (int i = 0; i < n; i++) {
+			if (i > 0) sb.append(',');
+			sb.append(String.format("{\"symbol\":\"S%04d\",\"bid\":%d.25,\"ask\":%d.5,\"volume\":%d}", i, 100 + i, 100 + i, 1000L * i));
+		}
+		return sb.append("]}").toString();
+	}
+
+	private static byte[] utf8(String s) {return s.getBytes(StandardCharsets.UTF_8);}
+
+	/**
+	 * Deserialize a message as a connection does, with a parser whose codec is the connection's mapper
+	 * @param mapper the connection's {@link Connection#getPartnerMapper mapper}
+	 * @param message a JSON message
+	 * @return the message
+	 * @throws IOException if the message cannot be parsed
+	 */
+	public static IncomingMessage read(JsonMapper mapper, byte[] message) throws IOException {
+		try (var parser = MessageCodec.JSON.createParser(mapper, message)) {
+			return mapper.readValue(parser, IncomingMessage.class);}
+	}
+
+	//a generator that writes to a buffer that is emptied after each message, as a connection's buffer is
+	private static final class Sink {
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+		final JsonGenerator generator;
+		Sink(JsonMapper mapper) throws IOException {generator = mapper.getFactory().createGenerator(buffer);}
+		int write(JRPCSimpleRequest<?> request, JsonMapper mapper) throws IOException {
+			generator.writeStartObject();
+			generator.writeNumberField("id", 1);
+			request.streamRequestOrNotification(generator, mapper);
+			generator.writeEndObject();
+			generator.flush();
+			var size = buffer.size();
+			buffer.reset();
+			return size;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		var bench = new MicroBenchmark();
+		try (var agent = new BenchAgent("bench")) {
+			var conn = agent.getPrimaryConnection();
+			var mapper = conn.getPartnerMapper();
+			agent.registerRequestSignature("lookup",
+					new PositionalRequestSignature(new Object[] {String.class, int.class, boolean.class, double[].class}));
+			agent.registerRequestSignature("select", new JsonObjectRequestSignature(
+					Map.of("query", String.class, "limit", int.class, "schema", String.class, "timeout", double.class),
+					List.of("query", "limit", "schema", "timeout")));
+			agent.registerNotificationInducer("tick", tickInducer);
+			var pending = new JRPCSimpleRequest<Quote[]>(false, Quote[].class, "quotes", new Object[0]);
+			pending.requestId = 1;
+			conn.addPendingRequest(pending);
+
+			var positional = utf8(positionalRequest);
+			var named = utf8(namedRequest);
+			var tick = utf8(notification);
+			var small = utf8(response(1, 1));
+			var large = utf8(response(1, 100));
+			bench.run("deserialize.request.positional", () -> read(mapper, positional));
+			bench.run("deserialize.request.named", () -> read(mapper, named));
+			bench.run("deserialize.notification", () -> read(mapper, tick));
+			bench.run("deserialize.response.1", () -> read(mapper, small));
+			bench.run("deserialize.response.100", () -> read(mapper, large));
+
+			var sink = new Sink(mapper);
+			var positionalOut = new JRPCSimpleRequest<Object>(false, Object.class, "lookup",
+					new Object[] {"ACME", 250, true, new double[] {1.5, 2.25, 3.125, 4.0625}});
+			var namedOut = new JRPCSimpleRequest<Object>(false, Object.class, "select", new NamedRequestParameters()
+					.with("query", "select symbol, bid, ask from quotes where volume > 1000")
+					.with("limit", 100).with("schema", "market").with("timeout", 2.5));
+			bench.run("serialize.request.positional", () -> sink.write(positionalOut, mapper));
+			bench.run("serialize.request.named", () -> sink.write(namedOut, mapper));
+		}
+		System.exit(0);
+	}
+}
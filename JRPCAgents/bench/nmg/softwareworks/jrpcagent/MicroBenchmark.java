@@ -0,0 +1,141 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * <p>A MicroBenchmark measures operations on the calling thread, in the manner of a JMH benchmark run in a single fork: a number
+ * of warmup iterations, whose results are discarded, then measured iterations of a fixed duration. For each operation it reports
+ * the throughput (operations per second), the mean time of an operation, the bytes allocated by an operation, and the garbage
+ * collections that ran while it was measured, so that a change to a hot path can be judged both by its speed and by its garbage.
+ * </p><p>
+ * A run is configured by system properties:
+ * </p>
+ * <ul>
+ * <li>bench.warmup: the number of warmup iterations (default 5)</li>
+ * <li>bench.iterations: the number of measured iterations (default 5)</li>
+ * <li>bench.time: the duration of an iteration, in milliseconds (default 1000)</li>
+ * <li>bench.filter: a regular expression; only the operations whose names it finds are run (default all)</li>
+ * </ul>
+ * <p>
+ * Allocation is measured with the HotSpot extension of the ThreadMXBean. On a JVM without it bytes/op is reported as -1.
+ * </p>
+ */
+public final class MicroBenchmark {
+	/**
+	 * One operation to be measured. The value it returns is consumed so that the JIT compiler cannot discard the work that made it.
+	 */
+	@FunctionalInterface
+	public interface Operation {
+		Object run() throws Exception;
+	}
+
+	/**
+	 * The measurements of one operation
+	 * @param name the operation's name
+	 * @param operations the number of operations measured
+	 * @param opsPerSecond the throughput of the measured iterations
+	 * @param nanosPerOp the mean time of an operation
+	 * @param bytesPerOp the mean bytes allocated by an operation, or -1 if allocation cannot be measured
+	 * @param gcCount the garbage collections during the measured iterations
+	 * @param gcMillis the time spent in those collections
+	 */
+	public record Result(String name, long operations, double opsPerSecond, double nanosPerOp, double bytesPerOp, long gcCount,
+			long gcMillis) {
+		@Override
+		public String toString() {
+			return String.format("%-40s %14.1f ops/s %12.1f ns/op %12.1f B/op %6d gc %6d ms", name, opsPerSecond, nanosPerOp,
+					bytesPerOp, gcCount, gcMillis);
+		}
+	}
+
+	private final int warmup = Integer.getInteger("bench.warmup", 5);
+	private final int iterations = Integer.getInteger("bench.iterations", 5);
+	private final long iterationNanos = Long.getLong("bench.time", 1000) * 1_000_000;
+	private final Pattern filter;
+	private final com.sun.management.ThreadMXBean threads;
+	private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+	private final List<Result> results = new ArrayList<>();
+	private Object sink; //the value of the last operation. A field the compiler must assume is read keeps each value alive
+
+	public MicroBenchmark() {
+		var f = System.getProperty("bench.filter");
+		filter = f == null || f.isEmpty() ? null : Pattern.compile(f);
+		var bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean hotspot && hotspot.isThreadAllocatedMemorySupported()) {
+			hotspot.setThreadAllocatedMemoryEnabled(true);
+			threads = hotspot;
+		} else threads = null;
+	}
+
+	private long allocated() {return threads == null ? 0 : threads.getCurrentThreadAllocatedBytes();}
+
+	private long[] gcTotals() {
+		long count = 0, millis = 0;
+		for (var gc : collectors) {
+			count += Math.max(0, gc.getCollectionCount());
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return new long[] {count, millis};
+	}
+
+	/**
+	 * Measure an operation that performs one operation each time it is run
+	 * @param name the name the operation is reported by
+	 * @param op the operation
+	 * @return the measurements, or null if the filter excludes the operation
+	 * @throws Exception if the operation throws one
+	 */
+	public Result run(String name, Operation op) throws Exception {return run(name, 1, op);}
+
+	/**
+	 * Measure an operation that performs several operations each time it is run, for example one that parses an array of values.
+	 * The reported measurements are per operation, not per run.
+	 * @param name the name the operation is reported by
+	 * @param opsPerRun the number of operations in one run of op
+	 * @param op the operation
+	 * @return the measurements, or null if the filter excludes the operation
+	 * @throws Exception if the operation throws one
+	 */
+	public Result run(String name, int opsPerRun, Operation op) throws Exception {
+		if (filter != null && !filter.matcher(name).find()) return null;
+		for (int i = 0; i < warmup; i++) iterate(op);
+		long runs = 0, nanos = 0, bytes = 0;
+		var gcBefore = gcTotals();
+		for (int i = 0; i < iterations; i++) {
+			var allocatedBefore = allocated();
+			var start = System.nanoTime();
+			var n = iterate(op);
+			nanos += System.nanoTime() - start;
+			bytes += allocated() - allocatedBefore;
+			runs += n;
+		}
+		var gcAfter = gcTotals();
+		var operations = runs * opsPerRun;
+		var result = new Result(name, operations, operations * 1e9 / nanos, (double)nanos / operations,
+				threads == null ? -1 : (double)bytes / operations, gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]);
+		results.add(result);
+		System.out.println(result);
+		sink = null;
+		return result;
+	}
+
+	//run op in batches, each twice the size of the last, until the iteration's time is up
+	private long iterate(Operation op) throws Exception {
+		var end = System.nanoTime() + iterationNanos;
+		long runs = 0;
+		for (int batch = 1; System.nanoTime() < end; batch = Math.min(batch << 1, 1 << 16)) {
+			for (int i = 0; i < batch; i++) sink = op.run();
+			runs += batch;
+		}
+		return runs;
+	}
+
+	/**
+	 * @return the measurements of the operations run so far
+	 */
+	public List<Result> getResults() {return results;}
+}
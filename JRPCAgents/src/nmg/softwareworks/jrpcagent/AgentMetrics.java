@@ -0,0 +1,123 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * AgentMetrics holds the {@link MethodMetrics} of an agent that keeps metrics (see {@link ConnectionOptions#withMetrics}).
+ * The metrics of a method are created the first time the agent sends or receives a message of that method. An agent keeps metrics
+ * for at most 1024 methods; the traffic of any further methods is counted together, under the method name "(other)".
+ * <p>
+ * The agent's {@link MetricsRegistry} is told of the agent the first time a message is counted once JRPCAgent's constructor has
+ * given it a primary connection. A subclass's constructor may still be running then -- a TriggerwareClient sends requests while it
+ * is constructed -- so a registry should not use more of the agent than JRPCAgent itself provides. The registry is then told of the
+ * methods and connections the agent already has, and afterwards of each new one as it comes.
+ * </p>
+ */
+public final class AgentMetrics {
+	private static final int maxMethods = 1024;
+	/**
+	 * the method name under which the traffic of methods beyond the limit is counted
+	 */
+	public static final String otherMethods = "(other)";
+	private final JRPCAgent agent;
+	private final MetricsRegistry registry;
+	private final ConcurrentHashMap<String,MethodMetrics> methods = new ConcurrentHashMap<>();
+	private volatile MethodMetrics other = null; //the metrics of "(other)", set once the limit on methods is reached
+	private volatile boolean published = false; //set, under this object's monitor, when the registry is told of the agent
+	private boolean closed = false; //guarded by this
+	private final Set<Connection> unpublished = new HashSet<>(); //open connections the registry has not been told of, guarded by this
+
+	AgentMetrics(JRPCAgent agent, MetricsRegistry registry) {
+		this.agent = agent;
+		this.registry = registry;
+	}
+
+	//the metrics of a method, created if this is the method's first message. A message whose method is unknown is not counted
+	MethodMetrics forMethod(String method) {
+		if (method == null) return null;
+		if (!published) publish();
+		var metrics = methods.get(method);
+		if (metrics != null) return metrics;
+		var overflow = other;
+		return overflow != null ? overflow : added(method);
+	}
+
+	//synchronized with publish, so the registry is told of each method exactly once
+	private synchronized MethodMetrics added(String method) {
+		if (methods.size() >= maxMethods) {
+			if (other != null) return other;
+			method = otherMethods;
+		}
+		var metrics = new MethodMetrics(method);
+		var prior = methods.putIfAbsent(method, metrics);
+		if (prior != null) metrics = prior;
+		else if (published) methodAdded(metrics);
+		if (method == otherMethods) other = metrics;
+		return metrics;
+	}
+
+	//tell the registry of the agent, unless JRPCAgent's constructor has not yet given it a primary connection
+	private synchronized void publish() {
+		if (published || closed || agent.primaryConnection == null) return;
+		published = true;
+		try {registry.agentOpened(agent, this);
+		} catch (RuntimeException e) {Logging.log(e, String.format("metrics registry could not add agent %s", agent.getName()));}
+		methods.values().forEach(this::methodAdded);
+		unpublished.forEach(this::registerConnection);
+		unpublished.clear();
+	}
+
+	private void methodAdded(MethodMetrics metrics) {
+		try {registry.methodAdded(agent, metrics);
+		} catch (RuntimeException e) {
+			Logging.log(e, String.format("metrics registry could not add method %s of agent %s", metrics.getMethod(), agent.getName()));
+		}
+	}
+
+	private void registerConnection(Connection connection) {
+		try {registry.connectionOpened(connection);
+		} catch (RuntimeException e) {Logging.log(e, String.format("metrics registry could not add connection %s", connection.getName()));}
+	}
+
+	synchronized void connectionOpened(Connection connection) {
+		if (published) registerConnection(connection);
+		else if (!closed) unpublished.add(connection);
+	}
+
+	synchronized void connectionClosed(Connection connection) {
+		if (!published) {
+			unpublished.remove(connection);
+			return;
+		}
+		try {registry.connectionClosed(connection);
+		} catch (RuntimeException e) {Logging.log(e, String.format("metrics registry could not remove connection %s", connection.getName()));}
+	}
+
+	//an agent that was never published is never told to the registry
+	synchronized void closed() {
+		if (closed) return;
+		closed = true;
+		unpublished.clear();
+		if (published)
+			try {registry.agentClosed(agent, this);
+			} catch (RuntimeException e) {Logging.log(e, String.format("metrics registry could not remove agent %s", agent.getName()));}
+	}
+
+	public JRPCAgent getAgent() {return agent;}
+	/**
+	 * @param method the name of a JRPC method
+	 * @return the metrics of that method, or null if the agent has sent or received no message of that method
+	 */
+	public MethodMetrics getMethod(String method) {return methods.get(method);}
+	/**
+	 * @return the metrics of every method the agent has sent or received a message of
+	 */
+	public List<MethodMetrics> getMethods() {return List.copyOf(methods.values());}
+
+	@Override
+	public String toString() {
+		return String.format("metrics of %d methods of agent %s", methods.size(), agent.getName());}
+}
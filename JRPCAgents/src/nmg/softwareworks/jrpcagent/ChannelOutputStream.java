@@ -0,0 +1,46 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/* An OutputStream over a non-blocking SocketChannel.  A write blocks the writing thread only when the socket's send buffer is full,
+ * and then waits for the channel's selector to report that it is writable again. Callers should buffer above this stream.
+ * When the channel carries TLS, the bytes are encrypted on their way to the channel.
+ */
+final class ChannelOutputStream extends OutputStream {
+	private final SocketChannel channel;
+	private final ChannelReactor.Registration registration;
+	private final TlsChannel tls;
+
+	ChannelOutputStream(SocketChannel channel, ChannelReactor.Registration registration, TlsChannel tls){
+		this.channel = channel;
+		this.registration = registration;
+		this.tls = tls;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte)b}, 0, 1);}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		var buffer = ByteBuffer.wrap(b, off, len);
+		if (tls != null) {
+			tls.write(buffer, registration);
+			return;
+		}
+		while (buffer.hasRemaining()) {
+			if (channel.write(buffer) == 0)
+				registration.awaitWritable();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (tls != null) tls.closeOutbound(registration);
+		registration.cancel();
+		channel.close();
+	}
+}
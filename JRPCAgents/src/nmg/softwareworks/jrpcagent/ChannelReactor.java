@@ -0,0 +1,186 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* A ChannelReactor owns the selector threads for the NIO transport.  Each connection's channel is registered with one of the
+ * selectors (round robin).  When a channel is readable, the selector thread reads whatever bytes are available and gives them to the
+ * connection, which frames them into messages and hands those to the reactor's dispatch pool. Writers normally write directly to the
+ * channel from their own thread; a selector thread is only involved when the socket's send buffer is full.
+ *
+ * The dispatch pool is a cached pool: its threads exist only while connections have messages to process.
+ * In the VIRTUAL execution mode each dispatch runs in a virtual thread instead. The selector threads are always platform threads.
+ */
+final class ChannelReactor implements Closeable{
+	private final String name;
+	private final Selecting[] selectors;
+	private final AtomicInteger nextSelector = new AtomicInteger(0);
+	private final ExecutorService dispatcher;
+	private volatile boolean closed = false;
+
+	ChannelReactor(String name, ConnectionOptions options) throws IOException {
+		this.name = name;
+		var threadCount = options.getSelectorThreads();
+		dispatcher = options.newDispatchExecutor(name);
+		selectors = new Selecting[threadCount];
+		for (int i = 0; i<threadCount; i++) {
+			selectors[i] = new Selecting(Selector.open());
+			var t = new Thread(selectors[i], String.format("%s selector %d", name, i+1));
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * @return the executor used to process messages (and notifications) arriving on connections registered with this reactor
+	 */
+	ExecutorService getDispatcher() {return dispatcher;}
+
+	/**
+	 * register a connection's channel for reading.  The channel is placed in non-blocking mode.
+	 * @param tls the TLS session over the channel, or null if the channel carries plaintext
+	 */
+	Registration register(SocketChannel channel, Connection conn, TlsChannel tls) throws IOException {
+		if (closed) throw new ClosedSelectorException();
+		channel.configureBlocking(false);
+		var selecting = selectors[Math.floorMod(nextSelector.getAndIncrement(), selectors.length)];
+		var registration = new Registration(channel, conn, tls, selecting.selector);
+		registration.key = channel.register(selecting.selector, SelectionKey.OP_READ, registration);
+		selecting.selector.wakeup();
+		return registration;
+	}
+
+	@Override
+	public void close() {
+		if (closed) return;
+		closed = true;
+		for (var s : selectors) {
+			try {s.selector.close();} catch (IOException e) {}
+		}
+		dispatcher.shutdown();
+	}
+
+	@Override
+	public String toString() {return name;}
+
+	private class Selecting implements Runnable{
+		private final Selector selector;
+		private final ByteBuffer readBuffer = ByteBuffer.allocate(64*1024);
+		Selecting(Selector selector){
+			this.selector = selector;}
+
+		@Override
+		public void run() {
+			try {
+				while (!closed)
+					selector.select(this::ready);
+			} catch (ClosedSelectorException e) { //the reactor has been closed
+			} catch (Throwable t) {
+				Logging.log(t, String.format("%s selector thread terminated", name));
+			}
+		}
+
+		private void ready(SelectionKey key) {
+			var registration = (Registration)key.attachment();
+			if (!key.isValid()) return;
+			if (key.isWritable()) registration.writable();
+			if (key.isValid() && key.isReadable()) registration.readable(readBuffer);
+		}
+	}
+
+	/* The link between a connection and the selector reading its channel */
+	final class Registration{
+		private final SocketChannel channel;
+		private final Connection conn;
+		private final TlsChannel tls;
+		private final Selector selector;
+		private volatile SelectionKey key;
+		private final Semaphore writable = new Semaphore(0);
+
+		private Registration(SocketChannel channel, Connection conn, TlsChannel tls, Selector selector) {
+			this.channel = channel;
+			this.conn = conn;
+			this.tls = tls;
+			this.selector = selector;
+		}
+
+		private void readable(ByteBuffer buffer) {
+			buffer.clear();
+			int n;
+			try {n = channel.read(buffer);
+			} catch (IOException e) {n = -1;}
+			if (n < 0) {
+				key.cancel();
+				conn.channelInputClosed();
+				return;
+			}
+			buffer.flip();
+			if (tls == null) {
+				conn.channelInput(buffer);
+				return;
+			}
+			try {
+				var plaintext = tls.unwrap(buffer);
+				if (tls.takeNeedsWrap()) dispatcher.execute(() -> tls.answerHandshake(this));
+				if (plaintext.hasRemaining()) conn.channelInput(plaintext);
+			} catch (IOException e) {
+				Logging.log(e, String.format("TLS failure on connection %s", conn.getName()));
+				key.cancel();
+				conn.channelInputClosed();
+				return;
+			}
+			if (tls.isInboundDone()) {
+				key.cancel();
+				conn.channelInputClosed();
+			}
+		}
+
+		private void writable() {
+			setInterest(SelectionKey.OP_WRITE, false);
+			writable.release();
+		}
+
+		private void setInterest(int op, boolean on) {
+			var k = key;
+			if (k == null || !k.isValid()) return;
+			try {
+				k.interestOps(on ? k.interestOps() | op : k.interestOps() & ~op);
+			} catch (CancelledKeyException e) {return;}
+			if (on) selector.wakeup();
+		}
+
+		/**
+		 * block the calling thread until the channel can accept more output.
+		 * @throws IOException if the channel is closed while waiting
+		 */
+		void awaitWritable() throws IOException {
+			writable.drainPermits();
+			setInterest(SelectionKey.OP_WRITE, true);
+			while (true) {
+				if (!channel.isOpen() || closed) throw new ClosedChannelException();
+				try {
+					if (writable.tryAcquire(100, java.util.concurrent.TimeUnit.MILLISECONDS)) return;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new java.io.InterruptedIOException("interrupted waiting to write to a channel");
+				}
+			}
+		}
+
+		/**
+		 * stop (or resume) reading from the channel. Used to apply back pressure when messages arrive faster than they are processed.
+		 */
+		void suspendReads(boolean suspend) {setInterest(SelectionKey.OP_READ, !suspend);}
+
+		void cancel() {
+			var k = key;
+			if (k != null) k.cancel();
+			writable.release(); // release any writer still waiting
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* A CoalescingOutputStream is the outbound writer stage of a connection that uses write coalescing.
+ * Threads writing messages (under the connection's output lock) only copy bytes into a pending buffer. A single writer task,
+ * borrowed from an executor while there is output, drains that buffer to the socket, so the messages written by many
+ * threads in a short interval go out in one socket write.
+ * A flush marks the end of a message: the writer waits at most maxDelay after the first unwritten flush before writing,
+ * and writes at once when flushBytes are pending.  Writers block only when highWater bytes are already pending.
+ *
+ * Since the socket is written by the writer task, a write failure is reported to the next thread that writes a message.
+ */
+final class CoalescingOutputStream extends OutputStream {
+	private final OutputStream out;
+	private final Executor writers;
+	private final String name;
+	private final long maxDelayNanos, lingerNanos;
+	private final int flushBytes, highWater;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition ready = lock.newCondition(), drained = lock.newCondition();
+	//all of the following are guarded by lock
+	private byte[] pending, spare = null;
+	private int count = 0;
+	private long due = 0; //the nanoTime by which the pending bytes must be written, or 0 if no message has been completed
+	private boolean draining = false, writing = false, closed = false;
+	private IOException failure = null;
+
+	CoalescingOutputStream(OutputStream out, ConnectionOptions options, Executor writers, String name){
+		this.out = out;
+		this.writers = writers;
+		this.name = name;
+		maxDelayNanos = options.getCoalescingDelay().toNanos();
+		lingerNanos = Math.max(maxDelayNanos, TimeUnit.MILLISECONDS.toNanos(1));
+		flushBytes = options.getCoalescingBytes();
+		highWater = Math.max(4*flushBytes, 1<<16);
+		pending = new byte[Math.max(flushBytes, 8192)];
+	}
+
+	private void ensureOpen() throws IOException {
+		if (failure != null) throw new IOException("an earlier write to the partner failed", failure);
+		if (closed) throw new IOException("stream closed");
+	}
+
+	//the caller holds lock
+	private void startDrain() {
+		if (draining) return;
+		draining = true;
+		writers.execute(this::drain);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte)b}, 0, 1);}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		lock.lock();
+		try {
+			ensureOpen();
+			while (count >= highWater) {
+				startDrain();
+				ready.signal();
+				drained.awaitUninterruptibly();
+				ensureOpen();
+			}
+			if (count + len > pending.length) {
+				var larger = new byte[Math.max(pending.length*2, count + len)];
+				System.arraycopy(pending, 0, larger, 0, count);
+				pending = larger;
+			}
+			System.arraycopy(b, off, pending, count, len);
+			count += len;
+			if (count >= flushBytes) {
+				startDrain();
+				ready.signal();
+			}
+		} finally {lock.unlock();}
+	}
+
+	/**
+	 * A flush ends a message.  The pending bytes will be written within the maximum delay.
+	 */
+	@Override
+	public void flush() throws IOException {
+		lock.lock();
+		try {
+			ensureOpen();
+			if (count == 0) return;
+			if (due == 0) {
+				due = System.nanoTime() + maxDelayNanos;
+				ready.signal(); //a writer lingering for more output waits only until the message is due
+			}
+			startDrain();
+		} finally {lock.unlock();}
+	}
+
+	private void drain() {
+		while (true) {
+			byte[] buffer;
+			int length;
+			lock.lock();
+			try {
+				if (!awaitWork()) {
+					draining = false;
+					drained.signalAll();
+					return;
+				}
+				buffer = pending;
+				length = count;
+				pending = spare != null ? spare : new byte[buffer.length];
+				spare = null;
+				count = 0;
+				due = 0;
+				writing = true;
+			} finally {lock.unlock();}
+			IOException failed = null;
+			try {
+				out.write(buffer, 0, length);
+				out.flush();
+			} catch (IOException e) {failed = e;}
+			lock.lock();
+			try {
+				writing = false;
+				spare = buffer;
+				if (failed != null) {
+					if (!closed) Logging.log(failed, String.format("failed writing to the partner of %s", name));
+					failure = failed;
+					draining = false;
+					drained.signalAll();
+					return;
+				}
+				drained.signalAll();
+			} finally {lock.unlock();}
+		}
+	}
+
+	//the caller holds lock. Returns true when the pending bytes should be written, false when this writer task should end
+	private boolean awaitWork() {
+		var lingering = false;
+		while (true) {
+			if (count == 0) {
+				if (closed || lingering) return false;
+				//linger briefly, so that steady traffic does not start a new writer task for each burst
+				lingering = awaitNanos(lingerNanos) <= 0;
+				continue;
+			}
+			if (closed || count >= flushBytes) return true;
+			if (due == 0) { //only part of a message is pending
+				if (lingering) return false;
+				lingering = awaitNanos(lingerNanos) <= 0;
+				continue;
+			}
+			var wait = due - System.nanoTime();
+			if (wait <= 0) return true;
+			awaitNanos(wait);
+		}
+	}
+
+	private long awaitNanos(long nanos) {
+		try {return ready.awaitNanos(nanos);
+		} catch (InterruptedException e) {return 0;}
+	}
+
+	/**
+	 * writes whatever is pending, then closes the underlying stream
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (closed) return;
+			closed = true;
+			if (count > 0 && failure == null) startDrain();
+			ready.signal();
+			var limit = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+			while ((count > 0 || writing) && draining) {
+				var wait = limit - System.nanoTime();
+				if (wait <= 0) break;
+				try {drained.awaitNanos(wait);
+				} catch (InterruptedException e) {break;}
+			}
+		} finally {lock.unlock();}
+		out.close();
+	}
+}
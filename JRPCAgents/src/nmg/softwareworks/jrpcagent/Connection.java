@@ -4,12 +4,25 @@ import static nmg.softwareworks.jrpcagent.JsonUtilities.*;
 
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.TreeNode;
+import com.fasterxml.jackson.core.base.ParserBase;
 
 
 import com.fasterxml.jackson.databind.json.JsonMapper;
@@ -57,9 +70,11 @@ import nmg.softwareworks.jrpcagent.annotations.JsonRPCException;
  * <li> When a request is issued on connection C, its response will be delivered on connection C</li>
  * <li> When a subscription is registered on connection C, all notifications resulting from that subscription
  * will be de delivered on connection C</li>
- * <li> The deserialization of responses and notifications takes place in the thread of connection C. There is no
+ * <li> By default the deserialization of responses and notifications takes place in the thread of connection C. There is no
  * parallel deserialization of multiple responses/notifications.  The time it takes to deserialize a response or notification
- * is linear in the volume of data in that response or notification.</li>
+ * is linear in the volume of data in that response or notification. With {@link ConnectionOptions#withParallelDeserialization parallel
+ * deserialization}, a connection whose messages are delimited before they are parsed deserializes its responses in parallel with one
+ * another, and its notifications in parallel with those of other methods.</li>
  * <li> The serialization of a request on connection C takes place in the thread issuing the request, <i>not</i> in
  * C's thread.  If multiple threads serialize requests on a single connection C, this library ensures that the serializations
  * take place sequentially. The server will receive the requests sequentially.</li>
@@ -95,6 +110,7 @@ import nmg.softwareworks.jrpcagent.annotations.JsonRPCException;
 public class Connection implements Closeable{
 		
 	private final OutputStream ostream;
+	private final CoalescingOutputStream coalescer; //the writer stage, when the agent's options call for write coalescing
 	private final InputStream istream;
 	private String name = null;
 	private final SerializationState /*serializationState,*/ deserializationState;
@@ -102,14 +118,30 @@ public class Connection implements Closeable{
 	private static final int methodNotFoundCode = -32601;
 	private static final int internalErrorCode = -32603; 
 
-		private final JsonGenerator toPartner;
-		private final JsonParser fromPartner;
+		private JsonGenerator toPartner; //replaced, with the output lock held, when a new codec is negotiated
+		private volatile MessageCodec codec = MessageCodec.JSON;
+		//the reader switches its input to these after the message being processed. They are used only by the reader
+		private MessageCodec inboundCodec = null, readerCodec = MessageCodec.JSON;
+		private boolean inboundInflate = false, inflating = false;
+		private volatile JRPCSimpleRequest<?> negotiationRequest = null; //this connection's outstanding codec or compression negotiation
+		private boolean compressing = false; //guarded by outputLock
+		private ContentLengthFraming.Output framedOutput = null; //guarded by outputLock. Set once this agent frames its messages
+		private boolean inboundFramed = false; //used only by the reader: the partner frames the messages after the one being processed
+		private volatile boolean framedInput = false; //the reader has switched to framed input
+		//serializes writers of toPartner. A Lock rather than a monitor, so that a virtual thread blocked writing does not pin its carrier
+		private final ReentrantLock outputLock = new ReentrantLock();
+		private boolean outboundLogged = false; //guarded by outputLock
+		//guarded by outputLock. While a thread negotiates, the messages of other threads are held back rather than written
+		private Thread negotiator = null;
+		private final Condition negotiationEnded = outputLock.newCondition();
+		private final ArrayDeque<Held> heldBack = new ArrayDeque<>();
+		private volatile JsonParser fromPartner; //created by the STREAM transport's reader thread
 		private boolean connected;
 		
 		public boolean busy = false;
 		private final JRPCAgent agent;
-		private final LoggingWriter lw;
-		private final LoggingReader lr;
+		private final LoggingOutputStream lw;
+		private final LoggingInputStream lr;
 		private final JsonMapper partnerMapper; //a mapper configured for JRPC
 
 		private final Thread.UncaughtExceptionHandler lastChance =  new Thread.UncaughtExceptionHandler(){
@@ -117,41 +149,97 @@ public class Connection implements Closeable{
 			public void uncaughtException(Thread t, Throwable e) {
 				Logging.log("uncaught exception of type %s in %s", e.getClass(), t);}			
 		};
-		private final Thread jrpcMessageHandler = new Thread() {
-			public void run() {try {
-				processMessagesFromPartner();} finally {try {
-					istream.close();
-				} catch (IOException e) {
-				}}}
-			@Override
-			public Thread.UncaughtExceptionHandler getUncaughtExceptionHandler() {
-				return lastChance;}
-		};
-		private final Thread jrpcNotificationHandler = new Thread() {
-			public void run() {try {
-				processNotificationsFromPartner();
-			} catch (InterruptedException e) {//hopeless at this point.
-			}}
-		};
-		private final Hashtable<Object,JRPCSimpleRequest<?>> pendingRequests = new Hashtable<>(); // key must be int or string
-
-		class NotificationQueueEntry{
-			private final Notification notification;
-			private final String notificationMethod;
-			NotificationQueueEntry(Notification notification, String notificationMethod){
-				this.notification = notification;
-				this.notificationMethod = notificationMethod;
-			}
+		//the reader thread is a platform or virtual thread, according to the agent's ExecutionMode
+		private Thread newMessageHandler() {
+			return agent.getConnectionOptions().threadBuilder().uncaughtExceptionHandler(lastChance).unstarted(() -> {
+				try {processMessagesFromPartner();
+				} finally {try {
+						istream.close();
+					} catch (IOException e) {
+					}}});
 		}
-		private final NotificationQueueEntry theFinalNotification = new NotificationQueueEntry(null,null);
-		private final LinkedBlockingQueue<NotificationQueueEntry> pendingNotifications = new LinkedBlockingQueue<>(50);
-		void enqueueNotification(Notification n, String notificationMethod) {
-			try {pendingNotifications.put(new NotificationQueueEntry(n, notificationMethod));
+		//the STREAM transport uses this thread. It is null for the NIO transport
+		private final Thread jrpcMessageHandler;
+		//the NIO transport uses these. They are null for the STREAM transport
+		private final SocketChannel channel;
+		private final TlsChannel tls; //null unless the channel carries TLS
+		private final ChannelReactor.Registration registration;
+		private final MessageFramer framer;
+		private SerialExecutor inboundMessages; //for a STREAM connection, assigned by the reader when its input becomes framed
+		private Executor dispatcher; //the agent's dispatch executor, which inboundMessages runs on
+		private final NotificationLanes notifications; //notifications waiting to be handled, on the agent's dispatch executor
+		private static final int suspendReadBacklog = 64, resumeReadBacklog = 16;
+		private final AtomicBoolean readsSuspended = new AtomicBoolean(false);
+		private final ThreadLocal<byte[]> currentInbound = new ThreadLocal<>(); //the delimited message being processed by a thread
+		private final AtomicInteger offloaded = new AtomicInteger(0); //messages routed for parallel deserialization, not yet processed
+		//with parallel deserialization, the notifications of each method are deserialized in order by an executor of their own
+		private final ConcurrentHashMap<String,SerialExecutor> notificationParsers = new ConcurrentHashMap<>();
+		private final PendingRequests pendingRequests = new PendingRequests(); //requests awaiting responses, by their int ids
+		private final Heartbeat heartbeat; //null unless the agent's options call for heartbeats
+		private final AgentMetrics metrics; //null unless the agent's options call for metrics
+		private final SpanExporter spanExporter; //null unless the agent's options call for tracing
+
+		void enqueueNotification(Notification n, String notificationMethod, TraceContext trace) {
+			try {notifications.deliver(n, notificationMethod, trace);
 			} catch (InterruptedException e) {}
 		}
+
+		/**
+		 * @return the depth of the lanes in which this connection's notifications wait to be handled, and the notifications that
+		 * overflowed them
+		 */
+		public NotificationStatistics getNotificationStatistics() {return notifications.getStatistics();}
+
+		/**
+		 * @return the round trip times of this connection's heartbeats, or null if the connection has no heartbeat
+		 */
+		public RoundTripStatistics getRoundTripStatistics() {return heartbeat == null ? null : heartbeat.getStatistics();}
+
+		/**
+		 * @return true if the partner has not answered a heartbeat on this connection within the stall timeout
+		 */
+		public boolean isStalled() {return heartbeat != null && heartbeat.isStalled();}
+
+		//the metrics of a method, or null if the agent keeps no metrics or the method is unknown
+		MethodMetrics metricsFor(String method) {return metrics == null ? null : metrics.forMethod(method);}
+
+		//true if messages of this method are traced. Heartbeats and negotiations are not
+		boolean traces(String method) {
+			return spanExporter != null && method != null && !isNegotiation(method) 
+					&& !method.equals(agent.getConnectionOptions().getHeartbeatMethod());
+		}
+
+		void exportSpan(Span span) {
+			if (!span.getContext().isSampled()) return;
+			try {spanExporter.export(span);
+			} catch (RuntimeException e) {Logging.log(e, String.format("span exporter failed for %s", span));}
+		}
+
+		//the span of a traced request ends with its response, its expiry, or the closing of its connection
+		private void endSpan(JRPCSimpleRequest<?> request, Span.Status status, int errorCode) {
+			if (request.trace != null)
+				exportSpan(new Span(request.trace, request.getMethodName(), Span.Kind.CLIENT, getName(), System.nanoTime() - request.sentAt,
+						status, errorCode));
+		}
+
+		private void metricsOpened() {
+			if (metrics != null) metrics.connectionOpened(this);}
+
+		private Heartbeat startHeartbeat() {
+			var options = agent.getConnectionOptions();
+			return options.usesHeartbeat() ? new Heartbeat(this, agent.getHeartbeatScheduler(), agent.getWriterExecutor(), options) : null;
+		}
+
+		//the heartbeat found the partner has not answered for this long
+		void stalled(Duration unanswered) {
+			Logging.log("%s: partner has not answered a heartbeat for %d ms", getName(), unanswered.toMillis());
+			if (agent.onConnectionStalled(this)) disconnect();
+		}
 		
 		protected Connection (JRPCAgent agent, InputStream istream, OutputStream ostream) throws IOException  {
 			this.agent = agent;
+			metrics = agent.getMetrics();
+			spanExporter = agent.getConnectionOptions().getSpanExporter();
 			//serializationState = new SerializationState(this);
 			deserializationState = new SerializationState(this);
 			partnerMapper = jsonMapper(deserializationState);
@@ -159,25 +247,246 @@ public class Connection implements Closeable{
 			connected = true;
 			this.ostream = ostream;
 			this.istream = istream;
-			lw = new LoggingWriter(ostream);
+			coalescer = newCoalescer(ostream);
+			lw = new LoggingOutputStream(coalescer != null ? coalescer : ostream);
 			toPartner = JsonUtilities.createStreamSerializer(partnerMapper, lw);
-			lr = new LoggingReader(istream);
-			fromPartner = JsonUtilities.createStreamDeserializer(partnerMapper, lr);
-			jrpcNotificationHandler.start();
+			lr = new LoggingInputStream(istream);
+			fromPartner = null; //creating the parser must wait for input, so the reader thread does it
+			channel = null;
+			tls = null;
+			registration = null;
+			framer = null;
+			inboundMessages = null;
+			dispatcher = null;
+			notifications = new NotificationLanes(this, agent.getDispatchExecutor(), agent.getConnectionOptions());
+			jrpcMessageHandler = newMessageHandler();
 			jrpcMessageHandler.start();
+			heartbeat = startHeartbeat();
+			metricsOpened();
 		}
-		
-		void startLogging(boolean out) {
-			if (out)  lw.setLogging(true);
-			else lr.setLogging(true);
+
+		/**
+		 * Create a connection that uses the NIO transport.  The channel is registered with the agent's selector threads,
+		 * so this connection has no threads of its own.
+		 * @param agent the agent that owns this connection
+		 * @param channel a connected SocketChannel to the partner. It will be placed in non-blocking mode.
+		 * @throws IOException if the channel cannot be registered
+		 */
+		protected Connection (JRPCAgent agent, SocketChannel channel) throws IOException  {
+			this(agent, channel, null);}
+
+		/**
+		 * Create a connection that uses the NIO transport, and runs TLS over its channel.  The TLS handshake is performed
+		 * before this constructor returns, and its duration is recorded in the agent's {@link JRPCAgent#getTlsHandshakeStatistics statistics}.
+		 * @param agent the agent that owns this connection
+		 * @param channel a connected SocketChannel to the partner, in blocking mode. It will be placed in non-blocking mode.
+		 * @param engine the SSLEngine for the connection, with its client mode set, or null for a connection without TLS.
+		 * An engine created with the partner's host and port lets the handshake resume a session from an earlier connection.
+		 * @throws IOException if the handshake fails or the channel cannot be registered
+		 */
+		protected Connection (JRPCAgent agent, SocketChannel channel, SSLEngine engine) throws IOException  {
+			this.agent = agent;
+			metrics = agent.getMetrics();
+			spanExporter = agent.getConnectionOptions().getSpanExporter();
+			deserializationState = new SerializationState(this);
+			partnerMapper = jsonMapper(deserializationState);
+			connected = true;
+			this.channel = channel;
+			var reactor = agent.getChannelReactor();
+			framer = new JsonStreamFramer();
+			dispatcher = reactor.getDispatcher();
+			inboundMessages = new SerialExecutor(dispatcher);
+			notifications = new NotificationLanes(this, dispatcher, agent.getConnectionOptions());
+			jrpcMessageHandler = null;
+			istream = null;
+			lr = null;
+			fromPartner = null;
+			if (engine == null) tls = null;
+			else {
+				tls = new TlsChannel(channel, engine);
+				agent.getTlsHandshakeStatistics().record(tls.getHandshakeNanos(), tls.isResumed());
+			}
+			registration = reactor.register(channel, this, tls);
+			ostream = new BufferedOutputStream(new ChannelOutputStream(channel, registration, tls));
+			coalescer = newCoalescer(ostream);
+			lw = new LoggingOutputStream(coalescer != null ? coalescer : ostream);
+			toPartner = JsonUtilities.createStreamSerializer(partnerMapper, lw);
+			heartbeat = startHeartbeat();
+			metricsOpened();
 		}
-		
+
+		private CoalescingOutputStream newCoalescer(OutputStream ostream) {
+			var options = agent.getConnectionOptions();
+			return options.usesWriteCoalescing() 
+					? new CoalescingOutputStream(ostream, options, agent.getWriterExecutor(), getName())
+					: null;
+		}
+
+		/**
+		 * @return true if this connection uses the NIO transport
+		 */
+		public boolean usesChannel() {return channel != null;}
+
+		/**
+		 * @return the TLS session of this connection, if it uses the NIO transport over TLS.  Otherwise null.
+		 */
+		public SSLSession getTlsSession() {return tls == null ? null : tls.getEngine().getSession();}
+
+		//called on a selector thread with bytes read from the channel
+		void channelInput(ByteBuffer input) {
+			try {
+				framer.feed(input, message -> {
+					inboundMessages.execute(() -> routeFramedMessage(message, MessageCodec.JSON, null));
+					if (!readsSuspended.get() && inboundBacklog() > suspendReadBacklog) {
+						registration.suspendReads(true);
+						readsSuspended.set(true);
+						resumeReadsIfCaughtUp(0); //the backlog may have drained before the flag was set
+					}
+				});
+			} catch (IOException e) {
+				Logging.log(e, String.format("framing failure on connection %s", getName()));
+				inboundMessages.execute(this::disconnect);
+			}
+		}
+		private int inboundBacklog() {return inboundMessages.backlog() + offloaded.get();}
+		//called whenever inbound work completes. running is the number of tasks of inboundMessages, counted in its backlog, that
+		//are the caller's own
+		private void resumeReadsIfCaughtUp(int running) {
+			if (readsSuspended.get() && inboundBacklog() - running <= resumeReadBacklog && readsSuspended.compareAndSet(true, false))
+				registration.suspendReads(false);
+		}
+
+		//called on a selector thread when the partner has closed the channel
+		void channelInputClosed() {
+			inboundMessages.execute(() -> {
+				if (!disconnecting) Logging.log("partner closed the jrpc connection %s", getName());
+				disconnect();
+			});
+		}
+
+		//called by a dispatch thread, in order, with one complete message. With parallel deserialization, a response to a pending request
+		//is handed to another dispatch thread, and a notification to the executor for its method. done, if not null, is run once the
+		//message has been processed
+		private void routeFramedMessage(byte[] message, MessageCodec messageCodec, Runnable done) {
+			Executor parser = null;
+			if (connected && agent.getConnectionOptions().usesParallelDeserialization())
+				try {parser = parserFor(message, messageCodec);
+				} catch (IOException e) {} //the message is processed in order, and its failure reported then
+			if (parser == null) {
+				try {processFramedMessage(message, messageCodec, deserializationState);
+				} finally {
+					if (done != null) done.run();
+					if (channel != null) resumeReadsIfCaughtUp(1);
+				}
+				return;
+			}
+			offloaded.incrementAndGet();
+			parser.execute(() -> {
+				try {processFramedMessage(message, messageCodec, new SerializationState(this));
+				} finally {
+					offloaded.decrementAndGet();
+					if (done != null) done.run();
+					if (channel != null) resumeReadsIfCaughtUp(0);
+				}
+			});
+			if (channel != null) resumeReadsIfCaughtUp(1);
+		}
+
+		//looks only at the top level of a message, without deserializing its values. Returns the executor that should deserialize it,
+		//or null if it must be processed in order: requests from the partner, responses to negotiations, and anything unrecognized
+		private Executor parserFor(byte[] message, MessageCodec messageCodec) throws IOException {
+			Object id = null;
+			String method = null;
+			var response = false;
+			try (var parser = messageCodec.createParser(partnerMapper, message)){
+				if (parser.nextToken() != JsonToken.START_OBJECT) return null;
+				String name;
+				while ((name = parser.nextFieldName()) != null) {
+					var token = parser.nextToken();
+					switch (name) {
+					case "id" -> id = token == JsonToken.VALUE_NUMBER_INT ? parser.getIntValue() 
+							        : token == JsonToken.VALUE_STRING ? parser.getText() : null;
+					case "method" -> method = token == JsonToken.VALUE_STRING ? parser.getText() : null;
+					case "result", "error" -> response = true;
+					default -> {}
+					}
+					if (response && id != null) break; //the rest of a response is of no interest
+					parser.skipChildren();
+				}
+			}
+			if (response && method == null) {
+				var request = pendingRequest(id);
+				return request == null || request == negotiationRequest ? null : dispatcher;
+			}
+			if (method != null && id == null)
+				return notificationParsers.computeIfAbsent(method, m -> new SerialExecutor(dispatcher));
+			return null;
+		}
+
+		//called by a dispatch thread, with one complete message, and the state for its deserialization
+		private void processFramedMessage(byte[] message, MessageCodec messageCodec, SerializationState state) {
+			if (!connected) return;
+			currentInbound.set(message);
+			bindDeserializationState(state);
+			try (var parser = messageCodec.createParser(partnerMapper, message)){
+				state.clear();
+				var im = next(parser, message.length);
+				if (Logging.capturesWire()) logIncoming(im, message, message.length, messageCodec);
+				processIncoming(im);
+			} catch (Throwable t) {
+				if (disconnecting)
+					Logging.log("clean shutdown of JRPC communications");
+				else {
+					Logging.log(t, String.format("ignoring further input on connection %s", getName()));
+					disconnect();
+				}
+			} finally {
+				currentInbound.remove();
+				bindDeserializationState(null);
+			}
+		}
+
+		//these are called, with the output lock held, before and after writing a message. The text is only captured when it will be
+		//logged or recorded
+		void startLogging(String method) {
+			outboundLogged = Logging.sampleWire(method);
+			lw.setLogging(outboundLogged || Logging.isRecordingWire());
+			lw.getCapture().reset(); //discard anything left by a message whose writing failed
+		}
+		void finishLogging(String verb) {
+			var capture = lw.getCapture();
+			if (!capture.isCapturing()) return;
+			Logging.wire(getName(), true, verb, capture.bytes(), capture.length(), outboundLogged, codec);
+			capture.reset();
+		}
+
+		private void logIncoming(IncomingJRPCMessage im, byte[] message, int length, MessageCodec messageCodec) {
+			String method = null;
+			if (im instanceof IncomingMessage m)
+				method = m.methodName != null ? m.methodName : m.request != null ? m.request.getMethodName() : null;
+			Logging.wire(getName(), false, "received", message, length, Logging.sampleWire(method), messageCodec);
+		}
+
+		/**
+		 * @param out true for the message being written, false for the message being read
+		 * @return the captured text of the message, for diagnostics. This is empty if the text was not captured.
+		 */
 		String getLoggedText(boolean out) {
-			var text =  (out) ? lw.getLoggedText(true) : lr.getLoggedText(true);
+			String text;
+			if (out) text = lw.getLoggedText(false);
+			else if (lr != null && !framedInput) text = lr.getLoggedText(false);
+			else {
+				var message = currentInbound.get();
+				text = message == null ? "" : new String(message, StandardCharsets.UTF_8);
+			}
 			return text.stripTrailing();
 		}
 		
-		SerializationState getDeserializationState(){return deserializationState;}
+		//the state for the message being deserialized by this thread
+		SerializationState getDeserializationState(){
+			var bound = boundDeserializationState();
+			return bound != null ? bound : deserializationState;
+		}
 		
 		
 		/**
@@ -199,16 +508,18 @@ public class Connection implements Closeable{
 		 */
 		public JsonGenerator getJsonGenerator () {return toPartner;}
 		/**
-		 * @return the JsonParser used to deserialize this connection's JRPC messages
+		 * @return the JsonParser used to deserialize this connection's JRPC messages. This is null for a connection
+		 * using the NIO transport, which parses each message with a parser of its own, and for a STREAM connection until
+		 * its partner's first bytes have arrived.
 		 */
 		public JsonParser getJsonParser() {return fromPartner;}
 		
-		void handleUnexpected(IncomingMessage message, String fieldname) throws IOException {
-			handleUnexpected(message,fieldname,false);}
-		void handleUnexpected(IncomingMessage message, String fieldname, boolean unexpectedField) throws IOException {
+		void handleUnexpected(JsonParser jParser, IncomingMessage message, String fieldname) throws IOException {
+			handleUnexpected(jParser, message,fieldname,false);}
+		void handleUnexpected(JsonParser jParser, IncomingMessage message, String fieldname, boolean unexpectedField) throws IOException {
 			//stream has been advanced by nextToken()
 			message.ensureUnexpected();
-			var tnode = fromPartner.readValueAsTree();
+			var tnode = jParser.readValueAsTree();
 			Logging.log("unexpected %s %s:<%s>", unexpectedField? "attribute" : "value", fieldname, tnode);
 			message.unexpected.put(fieldname, tnode);			
 		}
@@ -238,6 +549,88 @@ public class Connection implements Closeable{
 		public TypeFactory getTypeFactory() {return partnerMapper.getTypeFactory();} 
 
 		JsonGenerator getGenerator() {return toPartner;}
+
+		/**
+		 * Something that serializes one JRPC message with a JsonGenerator
+		 */
+		@FunctionalInterface
+		interface MessageSerializer {
+			void serialize(JsonGenerator jg) throws IOException;}
+
+		//a write deferred until the negotiation in progress ends
+		@FunctionalInterface
+		private interface HeldWrite {
+			void write() throws IOException;}
+		//a held write, and the request it sends, if any, which fails if the write does
+		private record Held(HeldWrite write, JRPCSimpleRequest<?> request) {}
+
+		//with the output lock held: hold back a message another thread's negotiation would otherwise put in the wrong encoding
+		private boolean holdBack(String method, String verb, MessageSerializer serializer, JRPCSimpleRequest<?> request) {
+			if (negotiator == null || negotiator == Thread.currentThread()) return false;
+			heldBack.add(new Held(() -> writeMessage(method, verb, serializer, request), request));
+			return true;
+		}
+
+		/**
+		 * Write one message to the partner. Unless the agent's options call for buffered serialization, the message is serialized
+		 * directly to the connection's generator while holding the output lock. With buffered serialization, the message is first
+		 * serialized into a pooled buffer, and the lock is held only to copy that buffer to the connection's stream.
+		 * While another thread negotiates the encoding of this connection's messages, the message is held back, and written
+		 * once the negotiation ends.
+		 * @param method the method of the message, if known, used to decide whether to log it, and to count it in the agent's metrics
+		 * @param verb the description of the message in the log
+		 * @param serializer writes the message
+		 * @return the number of bytes of the message, before any compression, or 0 if the message was held back
+		 * @throws IOException if serializing or writing fails
+		 */
+		long writeMessage(String method, String verb, MessageSerializer serializer) throws IOException {
+			return writeMessage(method, verb, serializer, null);}
+
+		/**
+		 * Write one message to the partner, as {@link #writeMessage(String, String, MessageSerializer)} does.
+		 * @param request the request the message sends, or null. If the message is held back and its write then fails,
+		 * the request is failed, since no other thread will learn of the failure.
+		 */
+		long writeMessage(String method, String verb, MessageSerializer serializer, JRPCSimpleRequest<?> request) throws IOException {
+			var methodMetrics = metricsFor(method);
+			if (!agent.getConnectionOptions().usesBufferedSerialization()) {
+				outputLock.lock();
+				try {
+					if (holdBack(method, verb, serializer, request)) return 0;
+					startLogging(method);
+					var started = methodMetrics == null ? 0 : System.nanoTime();
+					var before = lw.getWritten();
+					serializer.serialize(toPartner);
+					afterWriteMessage();
+					toPartner.flush(); //one flush per message, which a coalescing connection treats as the end of the message
+					var bytes = lw.getWritten() - before;
+					if (methodMetrics != null) methodMetrics.written(bytes, System.nanoTime() - started);
+					finishLogging(verb);
+					return bytes;
+				} finally {outputLock.unlock();}
+			}
+			var buffer = MessageBuffer.acquire();
+			try {
+				var started = methodMetrics == null ? 0 : System.nanoTime();
+				var serializedWith = codec;
+				try (var jg = serializedWith.createGenerator(partnerMapper, buffer)){
+					serializer.serialize(jg);}
+				var serializing = methodMetrics == null ? 0 : System.nanoTime() - started;
+				outputLock.lock();
+				try {
+					if (holdBack(method, verb, serializer, request)) return 0;
+					//a negotiation switched codecs since the message was serialized. With the lock held, the codec cannot change again
+					if (codec != serializedWith) return writeMessage(method, verb, serializer, request);
+					if (methodMetrics != null) methodMetrics.written(buffer.length(), serializing);
+					startLogging(method);
+					buffer.writeTo(lw);
+					afterWriteMessage();
+					lw.flush();
+					finishLogging(verb);
+				} finally {outputLock.unlock();}
+				return buffer.length();
+			} finally {buffer.release();}
+		}
 		
 		JsonParser getParser() {return fromPartner;}
 		
@@ -257,23 +650,23 @@ public class Connection implements Closeable{
 		protected void onDisconnect() {};
 		
 		private void notifyPending() {
-			for (var pair : pendingRequests.entrySet()) {
-				var request = pair.getValue();
+			pendingRequests.drain(request -> {
+				if (request.metrics != null) request.metrics.settled();
+				endSpan(request, Span.Status.CLOSED, 0);
 				request.onConnectionClosed();
-			}
-			pendingRequests.clear();//unnecessary, but hygenic
+			});
 		}
 
 		private boolean disconnecting = false;
 		private synchronized  void disconnect(){		
 			if (!connected || disconnecting) return ;
 			disconnecting = true;
+			if (heartbeat != null) heartbeat.stop();
+			if (metrics != null) metrics.connectionClosed(this);
 
-			try {pendingNotifications.put(theFinalNotification); //causes the thread to terminate
-			} catch (InterruptedException e1) {} 
 			try	{
-				istream.close();
-				ostream.close();
+				if (istream != null) istream.close();
+				lw.close(); //closes the streams beneath it. A coalescer writes what is pending before closing ostream
 				connected = false;
 				if (!agent.isShuttingDown()) {
 					notifyPending();
@@ -285,38 +678,45 @@ public class Connection implements Closeable{
 		}
 
 
-		void writeWithSerializationState(JRPCAgent agent, Object value, Map<String,TreeNode>meta)  throws IOException {
+		void writeWithSerializationState(JsonGenerator jg, JRPCAgent agent, Object value, Map<String,TreeNode>meta)  throws IOException {
 			//var old = agent.prepareSerializationState(this, meta, value);
 			IOException thrown = null;
 			try {
-				partnerMapper.writeValue(toPartner, value);
+				partnerMapper.writeValue(jg, value);
 			}catch (IOException e) {thrown = e;
 			} finally {
 				//agent.restoreSerializationState(this, old, value);
 				if (thrown != null) throw (thrown);}			
 		}
 
-		void streamResponseResultOrData(String attribute, Object value, Map<String,TreeNode>meta) throws IOException  {
+		void streamResponseResultOrData(JsonGenerator jg, String attribute, Object value, Map<String,TreeNode>meta) throws IOException  {
 			var isResult = attribute.equals("result");
 			//var agent = mapper.getConnection().getAgent();
-			toPartner.writeFieldName(attribute);
-			writeWithSerializationState(agent, value, isResult ? meta : null);
+			jg.writeFieldName(attribute);
+			writeWithSerializationState(jg, agent, value, isResult ? meta : null);
 		}
 
-		private IncomingJRPCMessage next() throws IOException {
+		//length is the size of the delimited message being parsed, or -1 if the parser reads the partner's stream
+		private IncomingJRPCMessage next(JsonParser parser, int length) throws IOException {
 			// the stream may contain notifications, responses, and requests
-			var tkn = fromPartner.nextToken();
+			var tkn = parser.nextToken();
 		    if (tkn == null)
 		    	throw new java.net.SocketException("null token indicates connection closed");
 		    switch(tkn) {
 		    	case START_OBJECT:
-		    		return partnerMapper.readValue(fromPartner, IncomingMessage.class);
+		    		var started = metrics == null ? 0 : System.nanoTime();
+		    		var from = parser instanceof ParserBase pb ? pb.getTokenCharacterOffset() : 0;
+		    		var incoming = partnerMapper.readValue(parser, IncomingMessage.class);
+		    		//the parser is at the message's closing brace
+		    		incoming.size = length >= 0 ? length : parser instanceof ParserBase pb ? pb.getTokenCharacterOffset() + 1 - from : 0;
+		    		if (metrics != null) received(incoming, System.nanoTime() - started);
+		    		return incoming;
 		    		
 		    				
 		    	case START_ARRAY:
 		    		return IncomingBatch.parseOneBatchMessage(this);
 		    	default:
-					var tnode = fromPartner.readValueAsTree();
+					var tnode = parser.readValueAsTree();
 					Logging.log("unexpected message from server starting with token %s: <%s>", tkn, tnode);
 					var message = new IncomingMessage(this);
 					message.top = tnode;
@@ -324,30 +724,43 @@ public class Connection implements Closeable{
 		    }
 		}
 
+		//a request or notification is counted under its method, a response under the method of the request it answers
+		private void received(IncomingMessage message, long nanos) {
+			var method = message.methodName != null ? message.methodName : message.request != null ? message.request.getMethodName() : null;
+			var methodMetrics = metricsFor(method);
+			if (methodMetrics == null) return;
+			methodMetrics.read(message.size, nanos);
+			if (message.methodName == null) return;
+			if (message.id != null) methodMetrics.requestReceived();
+			else methodMetrics.notificationReceived();
+		}
+
 		private void processMessagesFromPartner() {
 			Logging.log("%s is processing jrpc messages", getName());
 			try {
 				//var rdr = new InputStreamReader(new DataInputStream(sock.getInputStream()), StandardCharsets.UTF_8);
-				startLogging(false);
+				var capture = lr.getCapture();
+				lr.setLogging(Logging.capturesWire());
+				fromPartner = JsonUtilities.createStreamDeserializer(partnerMapper, lr);
 				while (true) {
 					deserializationState.clear();
-					var im = next();
+					var im = next(fromPartner, -1);
 					if (im == null) {
 						Logging.log("partner closed the jrpc connection %s", getName());
 						return; 
 					}
-					var imText = getLoggedText(false);
-					if (!imText.isBlank()) 
-						Logging.log("%s received <%s>", getName(), imText);
-					if (im instanceof IncomingMessage m) {//not a batch message
-						if (!m.isJrpcMessage()){
-							var complaint = String.format("%s received Json<%s> from its partner where a JsonRPC message was required. Closing this connection",
-									getName(), imText);
-							throw new Exception(complaint);
-						}
+					if (capture.isCapturing()) {
+						logIncoming(im, capture.bytes(), capture.length(), readerCodec);
+						capture.reset();
+					}
+					lr.setLogging(Logging.capturesWire());
+					processIncoming(im);
+					if (inboundFramed) {
+						readFrames(fromPartner);
+						return;
 					}
-					im.processMessage();
-					
+					if (inboundCodec != null || inboundInflate) 
+						fromPartner = switchInbound(fromPartner);
 				}// end while true
 			} catch (Throwable t) {
 				if (disconnecting)
@@ -360,22 +773,350 @@ public class Connection implements Closeable{
 			}
 		}
 		
-	private void processNotificationsFromPartner() throws InterruptedException {
-		while (true) {
-			var entry = pendingNotifications.take();
-			if (entry == theFinalNotification) {
-				Logging.log("notification handling is shutting down", getName());
-				return; 
+		//the partner's messages after the one just processed use a new codec, or are compressed. 
+		//Bytes the old parser has read ahead belong to them.
+		private JsonParser switchInbound(JsonParser old) throws IOException {
+			var readAhead = new ByteArrayOutputStream();
+			old.releaseBuffered(readAhead);
+			InputStream input = lr;
+			if (inboundInflate) {
+				InputStream frames = readAhead.size() == 0 ? istream : new SequenceInputStream(new ByteArrayInputStream(readAhead.toByteArray()), istream);
+				lr.setSource(new DeflateFraming.Input(frames));
+				inflating = true;
+			} else if (readAhead.size() > 0)
+				input = new SequenceInputStream(new ByteArrayInputStream(readAhead.toByteArray()), lr);
+			if (inboundCodec != null) readerCodec = inboundCodec;
+			inboundCodec = null;
+			inboundInflate = false;
+			return readerCodec.createParser(partnerMapper, input);
+		}
+
+		//The partner frames its messages after the one just processed. From here on the reader only finds the frames: it hands each
+		//message to a dispatch thread to be parsed and processed, in order, while it goes on to read the next. A frame says how its
+		//message is encoded, so the reader's input is never switched again.
+		private void readFrames(JsonParser old) throws IOException, InterruptedException {
+			var readAhead = new ByteArrayOutputStream();
+			old.releaseBuffered(readAhead);
+			lr.setLogging(false); //each message is logged when it is processed
+			var frames = new ContentLengthFraming.Input(lr, readAhead.toByteArray());
+			dispatcher = agent.getDispatchExecutor();
+			inboundMessages = new SerialExecutor(dispatcher);
+			framedInput = true;
+			var options = agent.getConnectionOptions();
+			var unprocessed = new Semaphore(suspendReadBacklog); //stop reading while too many messages wait to be processed
+			while (true) {
+				var frame = frames.next();
+				if (frame == null) {
+					channelInputClosed();
+					return;
+				}
+				unprocessed.acquire();
+				inboundMessages.execute(() -> {
+					byte[] message;
+					try {message = frame.message();
+					} catch (IOException e) {
+						Logging.log(e, String.format("invalid frame on connection %s", getName()));
+						unprocessed.release();
+						disconnect();
+						return;
+					}
+					var frameCodec = frame.contentType() == null ? null : options.findCodec(frame.contentType());
+					routeFramedMessage(message, frameCodec == null ? MessageCodec.JSON : frameCodec, unprocessed::release);
+				});
 			}
-			entry.notification.handle(this, entry.notificationMethod);
 		}
-	}
 
+		//with the output lock held, after the last message in the old codec has been written
+		private void switchOutbound(MessageCodec newCodec) throws IOException {
+			toPartner.flush();
+			toPartner = newCodec.createGenerator(partnerMapper, lw);
+			codec = newCodec;
+			if (framedOutput != null) framedOutput.setCodec(newCodec);
+		}
+
+		/**
+		 * @return the codec this connection uses for its messages
+		 */
+		public MessageCodec getCodec() {return codec;}
+
+		/**
+		 * <p>Agree with the partner on the codec to use for this connection's messages, offering the codecs of this agent's
+		 * {@link ConnectionOptions}. Messages that other threads send on this connection while negotiation is in progress are
+		 * held back, and sent in the chosen codec once it ends.
+		 * </p><p>
+		 * Negotiation is not attempted if this agent has no codecs other than JSON, or if the connection uses the NIO transport.
+		 * If the partner does not support negotiation, the connection continues to use JSON. If the partner does not answer
+		 * within the agent's request timeout (or {@link #defaultNegotiationTimeout}, if there is none), the connection is closed.
+		 * </p>
+		 * @return the codec chosen
+		 * @throws JRPCException.JRPCRequestTimeoutException if the partner did not answer in time
+		 * @throws JRPCException if a communication failure occurs
+		 */
+		public MessageCodec negotiateCodec() throws JRPCException {
+			var offered = agent.getConnectionOptions().getCodecs();
+			if (offered.isEmpty() || channel != null) return codec;
+			var names = offered.stream().map(MessageCodec::getName).toArray(String[]::new);
+			negotiate(MessageCodec.negotiationMethod, names, chosen -> {
+				var newCodec = agent.getConnectionOptions().findCodec(chosen);
+				if (newCodec == null)
+					throw new JRPCException.InternalJRPCException(String.format("partner chose an unknown codec %s", chosen));
+				if (newCodec != codec) switchOutbound(newCodec);
+			});
+			return codec;
+		}
+
+		/**
+		 * <p>Agree with the partner to compress the messages on this connection, if this agent's {@link ConnectionOptions} call for
+		 * compression. Each agent then compresses those of its messages that are at least as long as its own threshold.
+		 * Messages that other threads send on this connection while negotiation is in progress are held back until it ends.
+		 * </p><p>
+		 * Negotiation is not attempted if the connection uses the NIO transport. If the partner does not support negotiation
+		 * or does not want compression, messages are not compressed. If the partner does not answer within the agent's request
+		 * timeout (or {@link #defaultNegotiationTimeout}, if there is none), the connection is closed.
+		 * </p>
+		 * @return true if this agent's messages will be compressed
+		 * @throws JRPCException.JRPCRequestTimeoutException if the partner did not answer in time
+		 * @throws JRPCException if a communication failure occurs
+		 */
+		public boolean negotiateCompression() throws JRPCException {
+			if (!agent.getConnectionOptions().usesCompression() || channel != null) return false;
+			outputLock.lock();
+			try {if (compressing) return true;
+			} finally {outputLock.unlock();}
+			var chosen = negotiate(DeflateFraming.negotiationMethod, new String[] {DeflateFraming.algorithm}, answer -> {
+				if (DeflateFraming.algorithm.equals(answer) && !compressing) startCompressing();});
+			return DeflateFraming.algorithm.equals(chosen);
+		}
+
+		//with the output lock held, after the last uncompressed message has been written.
+		//Framed messages say whether they are compressed, so the frames need no further framing.
+		private void startCompressing() throws IOException {
+			toPartner.flush();
+			var threshold = agent.getConnectionOptions().getCompressionThreshold();
+			if (framedOutput != null) framedOutput.setCompressionThreshold(threshold);
+			else lw.setTarget(new DeflateFraming.Output(lw.getTarget(), threshold));
+			compressing = true;
+		}
+
+		/**
+		 * <p>Agree with the partner to frame the messages on this connection with a Content-Length header, if this agent's
+		 * {@link ConnectionOptions} call for {@link ConnectionOptions.Framing#CONTENT_LENGTH}. 
+		 * The reader of a framed connection pulls whole messages from the partner and has them parsed and processed on other threads.
+		 * Messages that other threads send on this connection while negotiation is in progress are held back until it ends.
+		 * </p><p>
+		 * Negotiation is not attempted if the connection uses the NIO transport. If the partner does not support negotiation
+		 * (as a Triggerware server does not), or does not want framing, the connection remains a JSON stream. If the partner
+		 * does not answer within the agent's request timeout (or {@link #defaultNegotiationTimeout}, if there is none), 
+		 * the connection is closed.
+		 * </p>
+		 * @return true if the messages of both agents will be framed
+		 * @throws JRPCException.JRPCRequestTimeoutException if the partner did not answer in time
+		 * @throws JRPCException if a communication failure occurs
+		 */
+		public boolean negotiateFraming() throws JRPCException {
+			if (!agent.getConnectionOptions().usesContentLengthFraming() || channel != null) return false;
+			outputLock.lock();
+			try {if (framedOutput != null) return true;
+			} finally {outputLock.unlock();}
+			var chosen = negotiate(ContentLengthFraming.negotiationMethod, new String[] {ContentLengthFraming.contentLength}, answer -> {
+				if (ContentLengthFraming.contentLength.equals(answer) && framedOutput == null) startFraming();});
+			return ContentLengthFraming.contentLength.equals(chosen);
+		}
+
+		/**
+		 * @return true if this agent frames the messages it sends on this connection
+		 */
+		public boolean isFramed() {
+			outputLock.lock();
+			try {return framedOutput != null;
+			} finally {outputLock.unlock();}
+		}
+
+		//with the output lock held, after the last unframed message has been written. 
+		//If the connection already compresses, the frames are compressed beneath the framing.
+		private void startFraming() throws IOException {
+			toPartner.flush();
+			framedOutput = new ContentLengthFraming.Output(lw.getTarget(), codec);
+			lw.setTarget(framedOutput);
+		}
+
+		/**
+		 * The time a negotiation waits for the partner's answer when the agent's {@link ConnectionOptions} have no request timeout
+		 */
+		public static final Duration defaultNegotiationTimeout = Duration.ofSeconds(10);
+
+		//switches this agent's output, with the output lock held, once the partner has answered a negotiation
+		@FunctionalInterface
+		private interface OutputSwitch {
+			void apply(String answer) throws IOException, JRPCException;}
+
+		//Returns the partner's answer, or null if the partner does not support the negotiation.
+		//The partner reads whatever follows the request as negotiated, so until switchOutput has been applied to the answer,
+		//the messages of other threads -- the reader's replies included -- are held back rather than blocked, then written in order.
+		//The output lock is not held while waiting for the answer, since the reader may need it. Negotiations take turns.
+		//An unanswered negotiation closes the connection, as the agents may no longer agree on the encoding. That is also how 
+		//negotiations begun by both agents at once end, since each holds back its answer to the other.
+		private String negotiate(String method, String[] offered, OutputSwitch switchOutput) throws JRPCException {
+			outputLock.lock();
+			try {
+				while (negotiator != null) negotiationEnded.awaitUninterruptibly();
+				negotiator = Thread.currentThread();
+			} finally {outputLock.unlock();}
+			try {
+				var request = new JRPCSimpleRequest<String>(false, String.class, method, new Object[] {offered});
+				var options = agent.getConnectionOptions();
+				var timeout = options.usesRequestTimeout() ? options.getRequestTimeout() : defaultNegotiationTimeout;
+				request.deadline = System.nanoTime() + timeout.toNanos();
+				negotiationRequest = request;
+				String answer;
+				try {answer = synchronousRPC(request);
+				} catch (JRPCException.JRPCRequestTimeoutException e) {
+					Logging.log("%s: partner did not answer %s, closing the connection", getName(), method);
+					close();
+					throw e;
+				} catch (JRPCException.JRPCClosedConnectionError e) {
+					throw e;
+				} catch (JRPCException e) {
+					Logging.log("%s: partner declined %s (%s)", getName(), method, e.getMessage());
+					return null;
+				} finally {negotiationRequest = null;}
+				if (answer == null) return null;
+				outputLock.lock();
+				try {switchOutput.apply(answer);
+				} catch (IOException e) {
+					throw new JRPCRuntimeException.SerializationFailure(String.format("failed to switch output after %s", method), e);
+				} finally {outputLock.unlock();}
+				return answer;
+			} finally {endNegotiation();}
+		}
+
+		//the negotiation of this thread has ended: the messages held back during it are written, in order, unless the connection has closed
+		private void endNegotiation() {
+			outputLock.lock();
+			try {
+				negotiator = null;
+				negotiationEnded.signalAll();
+				if (isClosed()) heldBack.clear();
+				Held held;
+				while ((held = heldBack.poll()) != null)
+					try {held.write().write();
+					} catch (IOException e) {
+						Logging.log(e, String.format("%s: failed to write a message held back during negotiation", getName()));
+						if (held.request() != null) writeFailed(held.request(), e);
+					}
+			} finally {outputLock.unlock();}
+		}
+
+		//the reader is attaching the partner's answer to a negotiation. The partner's next message follows the answer
+		private void prepareInboundSwitch(String method, String answer) {
+			if (ContentLengthFraming.negotiationMethod.equals(method))
+				inboundFramed = ContentLengthFraming.contentLength.equals(answer) && !framedInput;
+			else if (framedInput) return; //frames say how they are encoded
+			else if (MessageCodec.negotiationMethod.equals(method)) {
+				var newCodec = agent.getConnectionOptions().findCodec(answer);
+				if (newCodec != null && newCodec != readerCodec) inboundCodec = newCodec;
+			} else if (DeflateFraming.negotiationMethod.equals(method) && DeflateFraming.algorithm.equals(answer))
+				inboundInflate = !inflating;
+		}
+
+		static boolean isNegotiation(String method) {
+			return MessageCodec.negotiationMethod.equals(method) || DeflateFraming.negotiationMethod.equals(method)
+					|| ContentLengthFraming.negotiationMethod.equals(method);}
+
+		//the partner is negotiating a codec, compression, or framing. Unless the input is already framed, this runs on the reader thread,
+		//which switches its input once it returns. The reply, and the switch of this agent's output that follows it, 
+		//wait for any negotiation of this agent's own to end
+		private void answerNegotiation(IncomingMessage msg) throws IOException {
+			var params = msg.positionalParams;
+			var offered = params != null && params.length > 1 ? (String[])params[1] : null;
+			var options = agent.getConnectionOptions();
+			HeldWrite reply;
+			if (MessageCodec.negotiationMethod.equals(msg.methodName)) {
+				//the NIO transport frames its input as JSON text
+				var chosen = channel == null ? options.chooseCodec(offered) : MessageCodec.JSON;
+				if (chosen != readerCodec && !framedInput) inboundCodec = chosen;
+				reply = () -> {
+					streamSuccessResponse(msg, chosen.getName(), null);
+					if (chosen != codec) switchOutbound(chosen);
+				};
+			} else if (ContentLengthFraming.negotiationMethod.equals(msg.methodName)) {
+				var frame = channel == null && options.usesContentLengthFraming() && offered != null
+						&& Arrays.asList(offered).contains(ContentLengthFraming.contentLength);
+				if (frame) inboundFramed = !framedInput;
+				reply = () -> {
+					streamSuccessResponse(msg, frame ? ContentLengthFraming.contentLength : ContentLengthFraming.none, null);
+					if (frame && framedOutput == null) startFraming();
+				};
+			} else {
+				var compress = channel == null && options.usesCompression() && offered != null
+						&& Arrays.asList(offered).contains(DeflateFraming.algorithm);
+				if (compress) inboundInflate = !inflating && !framedInput;
+				reply = () -> {
+					streamSuccessResponse(msg, compress ? DeflateFraming.algorithm : DeflateFraming.none, null);
+					if (compress && !compressing) startCompressing();
+				};
+			}
+			outputLock.lock();
+			try {
+				if (negotiator != null) heldBack.add(new Held(reply, null));
+				else reply.write();
+			} finally {outputLock.unlock();}
+		}
+
+		private void processIncoming(IncomingJRPCMessage im) throws Exception {
+			if (im instanceof IncomingMessage m) {//not a batch message
+				if (!m.isJrpcMessage()){
+					var complaint = String.format("%s received Json<%s> from its partner where a JsonRPC message was required. Closing this connection",
+							getName(), m.top != null ? m.top : m);
+					throw new Exception(complaint);
+				}
+			}
+			im.processMessage();
+		}
+		
 	JRPCSimpleRequest<?> pendingRequest(Object requestId) {
 		return pendingRequests.get(requestId);	}
 	
-	void addPendingRequest(Object requestId, JRPCSimpleRequest<?> request) {
-		pendingRequests.put(requestId, request);}
+	void addPendingRequest(JRPCSimpleRequest<?> request) {
+		pendingRequests.add(request);
+		var options = agent.getConnectionOptions();
+		if (request.deadline == 0 && options.usesRequestTimeout())
+			request.deadline = System.nanoTime() + options.getRequestTimeout().toNanos();
+		if (request.deadline != 0 && !request.isAwaited()) agent.getDeadlineWheel().schedule(this, request, request.deadline);
+	}
+
+	//the request's deadline has passed. Unless its response won the race, it completes with a timeout
+	void expire(JRPCSimpleRequest<?> request) {
+		if (!pendingRequests.remove(request)) return;
+		if (request.metrics != null) request.metrics.timedOut();
+		endSpan(request, Span.Status.TIMEOUT, 0);
+		request.onExpired();
+	}
+
+	//a request whose write was held back during a negotiation could not be written after it
+	private void writeFailed(JRPCSimpleRequest<?> request, IOException e) {
+		if (unsent(request)) request.onWriteFailed(e);
+	}
+
+	//a request registered as pending could not be written. It is no longer pending; false if it had already been settled
+	boolean unsent(JRPCSimpleRequest<?> request) {
+		if (!pendingRequests.remove(request)) return false;
+		if (request.metrics != null) request.metrics.settled();
+		endSpan(request, Span.Status.ERROR, 0);
+		return true;
+	}
+
+	//the application no longer wants the response to this request
+	void abandon(JRPCSimpleRequest<?> request) {
+		if (!pendingRequests.remove(request)) return;
+		if (request.metrics != null) request.metrics.settled();
+		endSpan(request, Span.Status.CLOSED, 0);
+	}
+
+	/**
+	 * @return the number of requests sent on this connection that are awaiting responses
+	 */
+	public int getPendingRequestCount() {return pendingRequests.size();}
 	
 	void attachResponseToRequest(IncomingMessage msg) {
 		//Utilities.log("Server response: [%s]", msg);
@@ -385,13 +1126,39 @@ public class Connection implements Closeable{
 			Logging.log("response for %s but no outstanding request! Response ignored.", requestId);
 			return;
 		}
+		var event = new FlightRecorderEvents.ResponseReceived();
+		event.begin();
+		var roundTrip = System.nanoTime() - request.sentAt;
+		var errorCode = msg.responseError == null ? 0 : msg.responseError.path("code").asInt(0);
+		var methodMetrics = request.metrics;
+		if (methodMetrics != null) {
+			methodMetrics.responded(roundTrip);
+			if (msg.responseError != null) methodMetrics.errorResponse(errorCode);
+		}
 		//synchronized(request) {request.completed(msg);}
+		if (request == negotiationRequest && msg.hasResult && msg.result instanceof String answer && channel == null)
+			prepareInboundSwitch(request.getMethodName(), answer);
 		request.completed(msg);
+		endSpan(request, msg.responseError == null ? Span.Status.OK : Span.Status.ERROR, errorCode);
+		event.end();
+		if (event.shouldCommit()) {
+			event.method = request.getMethodName();
+			event.requestId = request.requestId;
+			event.connection = getName();
+			event.bytes = msg.size;
+			event.roundTrip = roundTrip;
+			event.errorCode = errorCode;
+			event.commit();
+		}
 	}
 	
 	public void processRequestMessage(IncomingMessage msg) throws IOException {
 		var rh = agent.getRequestHandler(msg.methodName);
-		if (rh == null)
+		if (rh == null && isNegotiation(msg.methodName) && msg.paramsDeserializingError == null)
+			answerNegotiation(msg);
+		else if (rh == null && Heartbeat.pingMethod.equals(msg.methodName))
+			streamSuccessResponse(msg, true, null);
+		else if (rh == null)
 			streamErrorResponse(msg.id, methodNotFoundCode, "unregistered method name", msg.methodName, null);
 		else if (msg.paramsDeserializingError != null) { //an error occurred processing the params
 			var e = msg.paramsDeserializingError;
@@ -413,60 +1180,85 @@ public class Connection implements Closeable{
 	}
 	private void executeRequest (IncomingMessage msg, RegisteredHandler rh) throws IOException {
 		if (rh.synchronous) executeRequestInternal(msg, rh);
-		/*else if (rh.useVirtualThread) {
-			Thread thread = Thread.ofVirtual().start(() -> {// same as body of run below
-			});
-		}*/
 		else {
-			agent.executorService.execute(new Runnable() {//possible place to use virtual thread for java 21+
-				@Override
-				public void run() {
-					try {
-						executeRequestInternal(msg, rh);
-					} catch (IOException e) {
-						 try{
-							 streamErrorResponse(msg, getExceptionErrorCode(e, agent.getRequestSignature(msg.methodName)), e,
-								agent.errorResponseMetaProperties(msg.request, e));
-						 }catch (Throwable t) {
-							 Logging.log("fatal error on connection",t);
-							 disconnect();
-						 }
-					}
+			Runnable handler = () -> {
+				try {
+					executeRequestInternal(msg, rh);
+				} catch (IOException e) {
+					 try{
+						 streamErrorResponse(msg, getExceptionErrorCode(e, agent.getRequestSignature(msg.methodName)), e,
+							agent.errorResponseMetaProperties(msg.request, e));
+					 }catch (Throwable t) {
+						 Logging.log("fatal error on connection",t);
+						 disconnect();
+					 }
 				}
-			});
+			};
+			if (rh.useVirtualThread && !agent.getConnectionOptions().usesVirtualThreads())
+				Thread.ofVirtual().start(handler);
+			else agent.executorService.execute(handler);
 		}
 	}
 	private void executeRequestInternal (IncomingMessage msg, RegisteredHandler rh) throws IOException {
 		var sig = agent.getRequestSignature(msg.methodName);
+		var methodMetrics = metricsFor(msg.methodName);
+		var span = traces(msg.methodName) ? childSpan(msg) : null;
+		var started = methodMetrics == null && span == null ? 0 : System.nanoTime();
 		Object result = null;
 		try {
-			//per java documentation, if the method is STATIC, the first param passed to invoke is ignored!
-			if (msg.positionalParams != null) {
-			    msg.positionalParams[0] = this;
-				result = rh.method.invoke(rh.instance,  msg.positionalParams);
-			} /*else if (msg.jsonObjectParams != null) {
-				//Logging.log("execution of server requests with named params not implemented");
-				result = rh.invoke(this, msg.jsonObjectParams);
-			}*/
+			var scope = span == null ? null : span.makeCurrent();
+			try {
+				//per java documentation, if the method is STATIC, the first param passed to invoke is ignored!
+				if (msg.positionalParams != null) {
+				    msg.positionalParams[0] = this;
+					result = rh.method.invoke(rh.instance,  msg.positionalParams);
+				} /*else if (msg.jsonObjectParams != null) {
+					//Logging.log("execution of server requests with named params not implemented");
+					result = rh.invoke(this, msg.jsonObjectParams);
+				}*/
+			} finally {if (scope != null) scope.close();} //restore the thread's previous trace context
 		}catch (Exception e) {
 			var cause =  (e instanceof InvocationTargetException ite) ? 
 					(Exception)ite.getTargetException()
 					: e;
-			streamErrorResponse(msg, getExceptionErrorCode(cause, sig), cause, agent.errorResponseMetaProperties(msg.request, cause));
+			var elapsed = System.nanoTime() - started;
+			var code = getExceptionErrorCode(cause, sig);
+			if (methodMetrics != null) methodMetrics.handled(elapsed, true);
+			if (span != null) exportSpan(new Span(span, msg.methodName, Span.Kind.SERVER, getName(), elapsed, Span.Status.ERROR, code));
+			streamErrorResponse(msg, code, cause, traced(agent.errorResponseMetaProperties(msg.request, cause), span));
 			return;
 		}
-		streamSuccessResponse(msg, result, null);		//TODO: how should an agent establish meta properties on a response?
+		var elapsed = System.nanoTime() - started;
+		if (methodMetrics != null) methodMetrics.handled(elapsed, false);
+		if (span != null) exportSpan(new Span(span, msg.methodName, Span.Kind.SERVER, getName(), elapsed, Span.Status.OK, 0));
+		//TODO: a success response carries only the trace context. How should an agent add meta properties of its own, 
+		//as errorResponseMetaProperties does for an error response?
+		streamSuccessResponse(msg, result, traced(null, span));
+	}
+
+	//the span of a handler for a traced message: a child of the partner's span, or the root of a new trace if the partner sent none
+	static TraceContext childSpan(IncomingMessage msg) {
+		var parent = TraceContext.fromMeta(msg.getMetaProperties());
+		return parent == null ? TraceContext.newRoot() : parent.newChild();
+	}
+
+	//the meta properties of a response, with the trace context of the span that produced it
+	private static Map<String,TreeNode> traced(Map<String,TreeNode> meta, TraceContext span) {
+		if (span == null) return meta;
+		var traced = meta == null ? new HashMap<String,TreeNode>() : new HashMap<>(meta);
+		traced.put(TraceContext.property, TextNode.valueOf(span.toString()));
+		return traced;
 	}
 	
-	void streamAttributeValue(String attribute, Object value) throws IOException  {
-		toPartner.writeFieldName(attribute);
-		partnerMapper.writeValue(toPartner, value);
+	void streamAttributeValue(JsonGenerator jg, String attribute, Object value) throws IOException  {
+		jg.writeFieldName(attribute);
+		partnerMapper.writeValue(jg, value);
 	}
 
-	private void streamMeta(Map<String, TreeNode> meta) throws IOException {
+	private void streamMeta(JsonGenerator jg, Map<String, TreeNode> meta) throws IOException {
 		if (meta!=null) {
 			for (var pair: meta.entrySet())
-				streamAttributeValue(pair.getKey(),  pair.getValue());
+				streamAttributeValue(jg, pair.getKey(),  pair.getValue());
 		}
 	}
 	private static Package javaLangPkg = Integer.TYPE.getPackage();
@@ -476,7 +1268,7 @@ public class Connection implements Closeable{
 		if (id instanceof Number)
 			jg.writeNumberField("id", (int)id);
 		else jg.writeStringField("id", (String)id);
-		streamMeta(responseMeta);
+		streamMeta(jg, responseMeta);
 	}
 	
 	//responseMeta is a set of propertyname/value pair to include at the top level
@@ -484,21 +1276,16 @@ public class Connection implements Closeable{
 	private void streamSuccessResponse(IncomingMessage msg, Object result, Map<String, TreeNode>responseMeta) throws IOException {
 		var id = msg.id;
 		var requestMeta = msg.getMetaProperties();
-		synchronized(toPartner) {
-			startLogging(true);
-			var jg = toPartner;//.getGenerator();
+		writeMessage(msg.methodName, "sent", jg -> {
 			jg.writeStartObject();
 			streamResponseCommon(jg, id, responseMeta);
 			if (result == null)
-				streamAttributeValue("result", jsonNull);
+				streamAttributeValue(jg, "result", jsonNull);
 			else if (javaLangPkg == result.getClass().getPackage())
-				streamAttributeValue("result", result);
-			else streamResponseResultOrData("result", result, requestMeta);
+				streamAttributeValue(jg, "result", result);
+			else streamResponseResultOrData(jg, "result", result, requestMeta);
 			jg.writeEndObject();
-			jg.flush();
-			var sent = getLoggedText(true);
-			Logging.log("%s sent  <%s>", getName(), sent);
-		}
+		});
 	}
 	
 	//responseMeta is a set of propertyname/value pair to include at the top level
@@ -507,26 +1294,21 @@ public class Connection implements Closeable{
 		//TODO: stream e itself as the data
 		streamErrorResponse(msg.id, errCode, e.getLocalizedMessage(), msg.methodName, responseMeta);}
 	private void streamErrorResponse(Object id, int errCode, String errMessage, Object data, Map<String, TreeNode> responseMeta) throws IOException {
-		synchronized(toPartner) {
-			startLogging(true);
-			var jg = toPartner;//.getGenerator();
+		writeMessage(null, "sent", jg -> {
 			jg.writeStartObject();
 			streamResponseCommon(jg, id, responseMeta);
 			jg.writeFieldName("error");
 			jg.writeStartObject();
-			streamAttributeValue("code",errCode);
-			streamAttributeValue("message",errMessage);
+			streamAttributeValue(jg, "code",errCode);
+			streamAttributeValue(jg, "message",errMessage);
 			
 			if (data == null){
 			} else if (javaLangPkg == data.getClass().getPackage())
-				streamAttributeValue("data", data);
-			else streamResponseResultOrData("data", data, null);
+				streamAttributeValue(jg, "data", data);
+			else streamResponseResultOrData(jg, "data", data, null);
 			jg.writeEndObject();
 			jg.writeEndObject();
-			jg.flush();
-			var sent = getLoggedText(true);
-			Logging.log("%s sent  <%s>", getName(), sent);
-		}
+		});
 	}
 	
 	public Object deserializeParameter(JsonParser jParser, Class<?>paramsClass) throws IOException  {
@@ -586,7 +1368,21 @@ public class Connection implements Closeable{
 	 * @throws JRPCException if the response is an error response, or if some communication failure occurs
 	 */
 	public <T> T synchronousRPC(OutboundRequest<T> req,  Object params)	throws  JRPCException {
+		return synchronousRPC(req, params, req.getTimeout());
+	}
+
+	/**
+	 * @param <T> the type of the result of this request
+	 * @param req an OutboundRequest, the template for the request to issue
+	 * @param params  either an Object[] for positional parameters or a NamedRequestParameters instance
+	 * @param timeout the time to wait for the response, or null for the timeout given by {@link ConnectionOptions#withRequestTimeout}
+	 * @return  the result value from the request
+	 * @throws JRPCException.JRPCRequestTimeoutException if the response has not arrived within the timeout
+	 * @throws JRPCException if the response is an error response, or if some communication failure occurs
+	 */
+	public <T> T synchronousRPC(OutboundRequest<T> req,  Object params, Duration timeout) throws  JRPCException {
 		var jrpcRequest = new JRPCSimpleRequest<T>(req, params);//createRequest(req, /*agent,*/ false, /*meta, resultType, method,*/ params);
+		if (timeout != null) jrpcRequest.deadline = System.nanoTime() + timeout.toNanos();
 		return  synchronousRPC(jrpcRequest);
 	}
 
@@ -598,7 +1394,8 @@ public class Connection implements Closeable{
 	 */
 	public <T> CompletableFuture<T> asynchronousRPC(OutboundRequest<T> req,  Object ...params) throws  JRPCException {
 		var jrpcRequest = new JRPCAsyncRequest<T>(req, params);//(JRPCAsyncRequest<T>)createRequest(req, /*agent,*/ true, /*meta,resultType, req.methodName,*/ params);
-		return asynchronousRPC(jrpcRequest);
+		var timeout = req.getTimeout();
+		return timeout == null ? asynchronousRPC(jrpcRequest) : asynchronousRPC(jrpcRequest, timeout);
 	}
 	
 	public void notify(String method, Object params) throws JRPCClosedConnectionError{
@@ -619,7 +1416,7 @@ public class Connection implements Closeable{
 	}*/
 	
 	private void notify(JRPCSimpleRequest<?> jrpcRequest) throws JRPCClosedConnectionError{
-		synchronized(jrpcRequest) {	postRequest(jrpcRequest);}
+		postRequest(jrpcRequest);
 	}
 	
 	/*private void asynchronousNotify(JRPCSimpleRequest<?> jrpcRequest) throws JRPCClosedConnectionError{
@@ -631,12 +1428,17 @@ public class Connection implements Closeable{
 	private <T> T synchronousRPC(JRPCSimpleRequest<T> jrpcRequest) throws  JRPCException {
 		if (jrpcRequest.isNotification()) 
 			throw new JRPCException.InternalJRPCException("internal error: synchronousRPC called on a notification");
-		synchronized(jrpcRequest) {
-			postRequest(jrpcRequest);
-			try {jrpcRequest.wait();// will be awakended by request.notify
-			} catch (InterruptedException e) {
-				throw new JRPCException.InterruptionError(e);} 
-		}
+		postRequest(jrpcRequest);
+		try {
+			if (!jrpcRequest.awaitResponse(jrpcRequest.deadline)) {
+				expire(jrpcRequest);
+				jrpcRequest.awaitResponse(0); //a response that won the race to remove the request is about to complete it
+			}
+		} catch (InterruptedException e) {
+			abandon(jrpcRequest);
+			throw new JRPCException.InterruptionError(e);}
+		if (jrpcRequest.hasExpired())
+			throw new JRPCException.JRPCRequestTimeoutException(jrpcRequest.getOutbound());
 		var response = jrpcRequest.getResponse();
 		if (response.hasResult())
 		   return jrpcRequest.handleSuccessResponse();
@@ -645,14 +1447,26 @@ public class Connection implements Closeable{
 		}
 	}
 
+	/**
+	 * @param <T> the type of the result of this request
+	 * @param jrpcRequest the request to issue
+	 * @param timeout the time the request may wait for its response. If no response has arrived by then, 
+	 *   the request is no longer pending and its future completes with a JRPCRequestTimeoutException. 
+	 *   This replaces any timeout given by {@link ConnectionOptions#withRequestTimeout}.
+	 * @return  a CompletableFuture to deliver the result of the request
+	 * @throws JRPCClosedConnectionError if this connection is closed
+	 */
+	public <T> CompletableFuture<T> asynchronousRPC(JRPCAsyncRequest<T> jrpcRequest, Duration timeout) throws JRPCClosedConnectionError {
+		jrpcRequest.deadline = System.nanoTime() + timeout.toNanos();
+		return asynchronousRPC(jrpcRequest);
+	}
+
 	public <T> CompletableFuture<T> asynchronousRPC(JRPCAsyncRequest<T> jrpcRequest) throws JRPCClosedConnectionError {
 		var ab = agent.getActiveBatch();
-		synchronized(jrpcRequest) {
-			if (ab != null)
-				ab.addPendingRequest(this, jrpcRequest);
-			else
-				postRequest(jrpcRequest);
-			}
+		if (ab != null)
+			ab.addPendingRequest(this, jrpcRequest);
+		else
+			postRequest(jrpcRequest);
 	    return jrpcRequest.getFuture();
 	}
 
@@ -677,29 +1491,30 @@ public class Connection implements Closeable{
 	}
 	
 	void postBatchRequest(Collection<JRPCSimpleRequest<?>> requests) throws IOException {
-		var jg = toPartner;
-		synchronized(jg) {
-			startLogging(true);
+		writeMessage(null, "batch request:", jg -> {
 			for (var request : requests){
 				jg.writeStartObject();
-				request.streamBatchRequestMember(toPartner, partnerMapper);
+				request.streamBatchRequestMember(jg, partnerMapper);
 				jg.writeEndObject();
-				jg.flush();
 			}
-			jg.flush();
-			var text =  getLoggedText(true);
-			if (text != null) Logging.log("%s batch request: <%s>", getAgent().getName(), text);
-		}		
+		});
 	}
 
 	void postNotification(JRPCSimpleRequest<?> notification) {
+		var methodMetrics = metricsFor(notification.getMethodName());
+		if (methodMetrics != null) methodMetrics.notificationSent();
+		if (traces(notification.getMethodName())) notification.trace = TraceContext.current();
+		var event = new FlightRecorderEvents.RequestSent();
+		event.begin();
 		try{ 
-			synchronized (toPartner) {
-				startLogging(true);
-				notification.streamNotification(toPartner, partnerMapper);
-			    toPartner.flush();
-			    var text = getLoggedText(true);
-				if (text != null) Logging.log("%s notifying: <%s>", getAgent().getName(), text);
+			var bytes = writeMessage(notification.getMethodName(), "notifying:", jg -> notification.streamNotification(jg, partnerMapper));
+			event.end();
+			if (event.shouldCommit()) {
+				event.method = notification.getMethodName();
+				event.requestId = -1;
+				event.connection = getName();
+				event.bytes = bytes;
+				event.commit();
 			}
 		}catch (IOException e)	{
 			Logging.log(e, "in postNotification");
@@ -733,17 +1548,13 @@ public class Connection implements Closeable{
 	@Override
 	public void close() {
 		disconnect();
+		if (jrpcMessageHandler == null) return; //the NIO transport has no threads of its own
 		//is there really any benefit to waiting for the threads to terminate here?
 		try {
 			jrpcMessageHandler.join(1000); 
 		} catch (InterruptedException e) {
 			// this would happen if something interrupted THIS thread while waiting for the join.
 		}
-		try {
-			jrpcNotificationHandler.join(1000); 
-		} catch (InterruptedException e) {
-			// this would happen if something interrupted THIS thread while waiting for the join.
-		}
 	}
 
 	public final boolean isClosed() {return !connected;}
@@ -0,0 +1,527 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * <p>ConnectionOptions holds the choices that determine how a {@link JRPCAgent} moves JRPC messages over the connections
+ * to its partners. An agent's options are supplied to its constructor and apply to every connection the agent creates.
+ * The default options reproduce the original behavior of this library: each connection reads from a pair of blocking
+ * streams with threads of its own.
+ * </p><p>
+ * The methods that set an option return this ConnectionOptions instance, so options can be chained:
+ * </p>
+ * <pre>new ConnectionOptions().withTransport(Transport.NIO).withSelectorThreads(2)</pre>
+ */
+public class ConnectionOptions {
+	/**
+	 * The ways a connection may read the messages arriving from its partner.
+	 */
+	public enum Transport {
+		/**
+		 * each connection has its own thread blocked reading the partner's input stream
+		 */
+		STREAM,
+		/**
+		 * connections are backed by a non-blocking SocketChannel. A small number of selector threads
+		 * multiplex the reads for all the connections of an agent, and hand complete messages to a shared pool for
+		 * dispatch. An idle connection holds no thread.
+		 * This transport requires a Socket obtained from a SocketChannel (including sockets accepted by a JRPCServer
+		 * whose ServerSocket was obtained from a ServerSocketChannel). Other sockets, such as SSL sockets,
+		 * fall back to the STREAM transport. TLS on this transport runs through an SSLEngine rather than an SSL socket.
+		 */
+		NIO
+	}
+
+	/**
+	 * The kind of threads an agent uses for its own work: reading its partners' messages, dispatching notifications,
+	 * running asynchronous request handlers, and (for a {@link JRPCServer}) accepting new clients.
+	 */
+	public enum ExecutionMode {
+		/**
+		 * platform threads. Asynchronous request handlers run in a fixed pool of 10 threads.
+		 */
+		PLATFORM,
+		/**
+		 * virtual threads. Each asynchronous request handler runs in a virtual thread of its own, so a handler that blocks
+		 * (for example, on a synchronous request to another agent) holds no platform thread.
+		 * Virtual threads are always daemon threads, so an agent's connections will not keep the JVM alive.
+		 */
+		VIRTUAL
+	}
+
+	/**
+	 * The ways the messages of a connection may be delimited.
+	 */
+	public enum Framing {
+		/**
+		 * messages are JSON values (or values of the connection's codec) written one after another. The reader finds the
+		 * end of a message by parsing it. This is what a Triggerware server expects.
+		 */
+		JSON_STREAM,
+		/**
+		 * each message is preceded by a header giving its length, as in the Language Server Protocol. The reader of the STREAM
+		 * transport can then pull whole messages with bulk reads, and hand them to other threads for parsing and processing.
+		 */
+		CONTENT_LENGTH
+	}
+
+	/**
+	 * What happens when a notification arrives for a lane that already holds as many notifications as the lane's capacity.
+	 * (Notifications wait in lanes until they are handled; see {@link ConnectionOptions#withNotificationLanes}.)
+	 */
+	public enum NotificationOverflow {
+		/**
+		 * the connection's reader waits until the lane has room. This pushes back on the partner, but while the reader waits
+		 * no other message on the connection, including a response, is processed. (With {@link #withParallelDeserialization
+		 * parallel deserialization} it is the deserialization of the method's later notifications that waits, not the reader.)
+		 */
+		BLOCK,
+		/**
+		 * the oldest notification of the same inducer waiting in the lane is discarded. Notifications of other inducers sharing
+		 * the lane are never discarded for it. If the lane holds no notification of that inducer, the lane spills.
+		 */
+		DROP_OLDEST,
+		/**
+		 * the newest notification of the same inducer waiting in the lane is combined with the arriving one by the inducer's
+		 * {@link NotificationInducer#conflate conflate} method, which by default keeps only the arriving notification.
+		 * If the lane holds no notification of that inducer, the lane spills.
+		 */
+		CONFLATE,
+		/**
+		 * the lane grows beyond its capacity, so no notification is lost. The lane's capacity then only marks the depth beyond which
+		 * notifications are counted as spilled. The memory held by a lane whose handler cannot keep up is unbounded.
+		 */
+		SPILL
+	}
+
+	private Transport transport = Transport.STREAM;
+	private int selectorThreads = 1;
+	private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+	private Duration coalescingDelay = Duration.ZERO;
+	private int coalescingBytes = 16384;
+	private boolean bufferedSerialization = false;
+	private List<MessageCodec> codecs = List.of();
+	private int compressionThreshold = 0;
+	private SSLContext sslContext = null;
+	private Framing framing = Framing.JSON_STREAM;
+	private boolean parallelDeserialization = false;
+	private int notificationLaneCapacity = 50;
+	private NotificationOverflow notificationOverflow = NotificationOverflow.SPILL;
+	private Duration requestTimeout = Duration.ZERO;
+	private Duration heartbeatInterval = Duration.ZERO, stallTimeout = Duration.ZERO;
+	private String heartbeatMethod = Heartbeat.pingMethod;
+	private MetricsRegistry metricsRegistry = null;
+	private SpanExporter spanExporter = null;
+	ChannelReactor sharedReactor = null; //set by a JRPCServer so that all of its ServerAgents share one reactor
+
+	/**
+	 * create a new ConnectionOptions with default options: STREAM transport, PLATFORM execution mode.
+	 */
+	public ConnectionOptions() {}
+
+	ConnectionOptions(ConnectionOptions other) {
+		this.transport = other.transport;
+		this.selectorThreads = other.selectorThreads;
+		this.executionMode = other.executionMode;
+		this.coalescingDelay = other.coalescingDelay;
+		this.coalescingBytes = other.coalescingBytes;
+		this.bufferedSerialization = other.bufferedSerialization;
+		this.codecs = other.codecs;
+		this.compressionThreshold = other.compressionThreshold;
+		this.sslContext = other.sslContext;
+		this.framing = other.framing;
+		this.parallelDeserialization = other.parallelDeserialization;
+		this.notificationLaneCapacity = other.notificationLaneCapacity;
+		this.notificationOverflow = other.notificationOverflow;
+		this.requestTimeout = other.requestTimeout;
+		this.heartbeatInterval = other.heartbeatInterval;
+		this.stallTimeout = other.stallTimeout;
+		this.heartbeatMethod = other.heartbeatMethod;
+		this.metricsRegistry = other.metricsRegistry;
+		this.spanExporter = other.spanExporter;
+		this.sharedReactor = other.sharedReactor;
+	}
+
+	/**
+	 * @param transport the transport to use for the connections of an agent
+	 * @return this ConnectionOptions instance
+	 */
+	public ConnectionOptions withTransport(Transport transport) {
+		if (transport == null)
+			throw new IllegalArgumentException("transport passed to ConnectionOptions.withTransport must not be null");
+		this.transport = transport;
+		return this;
+	}
+
+	/**
+	 * @param count the number of selector threads an agent will use for the NIO transport. This is ignored for the STREAM transport.
+	 * @return this ConnectionOptions instance
+	 */
+	public ConnectionOptions withSelectorThreads(int count) {
+		if (count < 1)
+			throw new IllegalArgumentException("count passed to ConnectionOptions.withSelectorThreads must be positive");
+		this.selectorThreads = count;
+		return this;
+	}
+
+	/**
+	 * @param mode the kind of threads an agent will use
+	 * @return this ConnectionOptions instance
+	 */
+	public ConnectionOptions withExecutionMode(ExecutionMode mode) {
+		if (mode == null)
+			throw new IllegalArgumentException("mode passed to ConnectionOptions.withExecutionMode must not be null");
+		this.executionMode = mode;
+		return this;
+	}
+
+	/**
+	 * <p>With write coalescing, the threads sending messages on a connection only copy the serialized messages into a buffer,
+	 * and a single writer for the connection writes them to the socket.  Messages sent by many threads in a short interval
+	 * therefore go out in one socket write rather than one each.
+	 * </p><p>
+	 * A message waits at most maxDelay before it is written. Once flushBytes are waiting they are written without further delay.
+	 * Coalescing is off by default: each message is written to the socket by the thread that sends it.
+	 * </p>
+	 * @param maxDelay the longest time a completed message may wait to be written.  Duration.ZERO turns coalescing off.
+	 * @param flushBytes the number of waiting bytes that causes an immediate write
+	 * @return this ConnectionOptions instance
+	 */
+	public ConnectionOptions withWriteCoalescing(Duration maxDelay, int flushBytes) {
+		if (maxDelay == null || maxDelay.isNegative())
+			throw new IllegalArgumentException("maxDelay passed to ConnectionOptions.withWriteCoalescing must not be null or negative");
+		if (flushBytes < 1)
+			throw new IllegalArgumentException("flushBytes passed to ConnectionOptions.withWriteCoalescing must be positive");
+		this.coalescingDelay = maxDelay;
+		this.coalescingBytes = flushBytes;
+		return this;
+	}
+
+	/**
+	 * <p>With buffered serialization, each outgoing message is serialized into a pooled buffer before the connection's output
+	 * lock is taken, and the lock is held only while the finished bytes are copied to the connection's stream.
+	 * A thread sending a large message then no longer holds up other threads sending on the same connection for the whole
+	 * time its parameters are serialized, at the cost of one extra copy of each message.
+	 * </p><p>
+	 * Buffered serialization is off by default: each message is serialized directly to the connection's stream while holding the lock.
+	 * </p>
+	 * @param buffered true to serialize messages ahead of writing them
+	 * @return this ConnectionOptions instance
+	 */
+	public ConnectionOptions withBufferedSerialization(boolean buffered) {
+		this.bufferedSerialization = buffered;
+		return this;
+	}
+
+	/**
+	 * @param codecs the codecs, besides JSON, that an agent can use for a connection, in the order the agent prefers them.
+	 * When an agent negotiates a codec with {@link Connection#negotiateCodec}, it offers these, and its partner chooses the first
+	 * of them that it can also use. JSON is always available, and is used if the agents have no other codec in common.
+	 * @return this ConnectionOptions instance
+	 */
+	public ConnectionOptions withCodecs(MessageCodec... codecs) {
+		this.codecs = List.of(codecs);
+		return this;
+	}
+
+	/**
+	 * <p>With compression, an agent and its partner agree (see {@link Connection#negotiateCompression}) to send each message
+	 * as a frame that is either stored or compressed with DEFLATE.  Messages shorter than the threshold are stored, so that
+	 * small control messages are not compressed. Large result batches and notifications, whose rows are repetitive JSON, 
+	 * usually compress several times over.
+	 * </p><p>
+	 * Compression is off by default. It applies to the STREAM transport only.
+	 * </p>
+	 * @param thresholdBytes the length, in bytes, of the shortest message to compress. 0 turns compression off.
+	 * @return this ConnectionOptions instance
+	 */
+	public ConnectionOptions withCompression(int thresholdBytes) {
+		if (thresholdBytes < 0)
+			throw new IllegalArgumentException("thresholdBytes passed to ConnectionOptions.withCompression must not be negative");
+		this.compressionThreshold = thresholdBytes;
+		return this;
+	}
+
+	/**
+	 * <p>The SSLContext supplies the sockets (for the STREAM transport) and the SSLEngines (for the NIO transport) of an agent's
+	 * TLS connections.  It also holds the cache of client sessions: a connection to a host and port that the context has
+	 * connected to before can resume the earlier session, with an abbreviated handshake, for as long as the context retains that session.
+	 * All the connections of an agent should therefore use the same context.
+	 * </p><p>
+	 * By default the connections use the default SSLContext of the JVM.
+	 * </p>
+	 * @param context the SSLContext for TLS connections, or null to use the default context
+	 * @return this ConnectionOptions instance
+	 */
+	public ConnectionOptions withSSLContext(SSLContext context) {
+		this.sslContext = context;
+		return this;
+	}
+
+	/**
+	 * <p>An agent whose framing is CONTENT_LENGTH can agree with a partner (see {@link Connection#negotiateFraming}) to frame
+	 * the messages of a connection. Each connection starts out as a JSON stream, and stays one if the partner does not agree.
+	 * </p><p>
+	 * Framing applies to the STREAM transport only.
+	 * </p>
+	 * @param framing the framing an agent proposes, or accepts, for its connections
+	 * @return this ConnectionOptions instance
+	 */
+	public ConnectionOptions withFraming(Framing framing) {
+		if (framing == null)
+			throw new IllegalArgumentException("framing passed to ConnectionOptions.withFraming must not be null");
+		this.framing = framing;
+		return this;
+	}
+
+	/**
+	 * <p>With parallel deserialization, the thread that takes the messages of a connection in order only looks at the top level of each
+	 * message to route it. The result of a response to a pending request is then deserialized on a thread of the agent's dispatch pool,
+	 * in parallel with the responses to other requests, and each notification is deserialized in order with the other notifications
+	 * of the same method, but in parallel with those of other methods. Requests from the partner, and responses to negotiations,
+	 * are still processed in order. Several large results arriving together on one connection then take about as long as the largest.
+	 * </p><p>
+	 * Parallel deserialization is off by default. It applies to connections whose messages are delimited before they are parsed:
+	 * those of the NIO transport, and framed connections (see {@link #withFraming}) of the STREAM transport.
+	 * </p>
+	 * @param parallel true to deserialize responses and notifications in parallel
+	 * @return this ConnectionOptions instance
+	 */
+	public ConnectionOptions withParallelDeserialization(boolean parallel) {
+		this.parallelDeserialization = parallel;
+		return this;
+	}
+
+	/**
+	 * <p>The notifications of a connection wait in lanes to be handled on the threads of the agent's dispatch pool. The notifications
+	 * in one lane are handled in order, one at a time, while different lanes are handled in parallel. Notifications share one lane,
+	 * and are handled in the order they arrived, unless their {@link NotificationInducer} opts in to parallel dispatch with a
+	 * {@link NotificationInducer#getDispatchKey dispatch key}; then each of its keys has a lane of its own, and a slow handler
+	 * holds up only the notifications of its own key. The inducers sharing the arrival-order lane are not isolated from one another:
+	 * a slow handler of one holds up the notifications of all of them, they count together against the lane's capacity, and
+	 * one of them using BLOCK makes the reader wait for room in a lane the others have filled. An inducer is isolated from the others
+	 * by asking for a {@link NotificationInducer#hasOwnLane lane of its own}. Except under the BLOCK policy,
+	 * the reader of a connection never waits for a notification to be handled, so responses are never held up by notification
+	 * handlers. {@link Connection#getNotificationStatistics} reports the depth of the lanes and the notifications that overflowed them.
+	 * </p><p>
+	 * By default a lane's capacity is 50 and the policy is SPILL. An inducer may choose a policy of its own with
+	 * {@link NotificationInducer#getNotificationOverflow}.
+	 * </p>
+	 * @param laneCapacity the number of notifications a lane holds before it overflows
+	 * @param overflow what to do with a notification that arrives for a full lane
+	 * @return this ConnectionOptions instance
+	 */
+	public ConnectionOptions withNotificationLanes(int laneCapacity, NotificationOverflow overflow) {
+		if (laneCapacity <= 0)
+			throw new IllegalArgumentException("laneCapacity passed to ConnectionOptions.withNotificationLanes must be positive");
+		if (overflow == null)
+			throw new IllegalArgumentException("overflow passed to ConnectionOptions.withNotificationLanes must not be null");
+		this.notificationLaneCapacity = laneCapacity;
+		this.notificationOverflow = overflow;
+		return this;
+	}
+
+	/**
+	 * <p>A request that has not been answered within the timeout expires: it is no longer pending on its connection, 
+	 * and it completes with a {@link JRPCException.JRPCRequestTimeoutException}. A response that arrives after that is ignored.
+	 * A thread waiting for the response to a synchronous request expires the request itself. The deadlines of asynchronous requests 
+	 * are kept on a timing wheel whose resolution is 10 milliseconds, turned by a thread of the agent's own. 
+	 * Dependent stages of an expired request's future that are not asynchronous run on that thread, so they should be quick.
+	 * </p><p>
+	 * By default requests do not expire. The requests issued from one template may be given a timeout with 
+	 * {@link OutboundRequest#setTimeout}, and a single request with {@link PositionalParameterRequest#execute(Duration, Connection, Object...)},
+	 * {@link NamedParameterRequest#execute(Duration, Connection, NamedRequestParameters)}, or 
+	 * {@link Connection#asynchronousRPC(JRPCAsyncRequest, Duration)}. Requests negotiating a codec, compression, or framing
+	 * expire after this timeout too, or after {@link Connection#defaultNegotiationTimeout} if there is none, and their expiry
+	 * closes the connection.
+	 * </p>
+	 * @param timeout the time a request may wait for its response.  Duration.ZERO means requests do not expire.
+	 * @return this ConnectionOptions instance
+	 */
+	public ConnectionOptions withRequestTimeout(Duration timeout) {
+		if (timeout == null || timeout.isNegative())
+			throw new IllegalArgumentException("timeout passed to ConnectionOptions.withRequestTimeout must not be null or negative");
+		this.requestTimeout = timeout;
+		return this;
+	}
+
+	/**
+	 * <p>With a heartbeat, each connection sends its partner a request at every interval, unless the last one is still unanswered,
+	 * and keeps the round trip times of the answers (see {@link Connection#getRoundTripStatistics}). Every agent answers the default
+	 * heartbeat method, rpc.ping. A partner that does not know the method answers with an error, which counts as an answer.
+	 * </p><p>
+	 * A connection whose partner has not answered a heartbeat within the stall timeout is stalled, as a half-open TCP connection would be.
+	 * Its agent's {@link JRPCAgent#onConnectionStalled} decides whether to drop it; by default it is dropped, failing its pending requests.
+	 * The heartbeats of an agent's connections are timed by one thread of the agent's own, and sent by its writer threads, so that a
+	 * connection whose writes block does not hold up the heartbeats of the others.
+	 * </p><p>
+	 * By default connections have no heartbeat.
+	 * </p>
+	 * @param interval the time between heartbeats.  Duration.ZERO means connections have no heartbeat.
+	 * @param stallTimeout the time a heartbeat may go unanswered before its connection is stalled. It must be at least the interval.
+	 * @return this ConnectionOptions instance
+	 */
+	public ConnectionOptions withHeartbeat(Duration interval, Duration stallTimeout) {
+		if (interval == null || interval.isNegative())
+			throw new IllegalArgumentException("interval passed to ConnectionOptions.withHeartbeat must not be null or negative");
+		if (!interval.isZero() && (stallTimeout == null || stallTimeout.compareTo(interval) < 0))
+			throw new IllegalArgumentException("stallTimeout passed to ConnectionOptions.withHeartbeat must be at least the interval");
+		this.heartbeatInterval = interval;
+		this.stallTimeout = interval.isZero() ? Duration.ZERO : stallTimeout;
+		return this;
+	}
+
+	/**
+	 * @param method the JRPC method of the heartbeat request, which is sent without parameters. The default is rpc.ping.
+	 * @return this ConnectionOptions instance
+	 */
+	public ConnectionOptions withHeartbeatMethod(String method) {
+		if (method == null || method.isEmpty())
+			throw new IllegalArgumentException("method passed to ConnectionOptions.withHeartbeatMethod must not be null or empty");
+		this.heartbeatMethod = method;
+		return this;
+	}
+
+	/**
+	 * <p>With a metrics registry, an agent keeps metrics for each JRPC method it sends or handles: counts of requests, notifications and
+	 * responses, the number of requests awaiting a response, histograms of the latency from sending a request to receiving its response
+	 * and of the time spent in handlers, the bytes sent and received, the time spent serializing and deserializing messages, and counts
+	 * of error responses by JRPC error code. The registry is told when the agent, each of its methods, and each of its connections
+	 * come and go, and publishes their metrics, for example as JMX MBeans (see {@link JmxMetricsRegistry}).
+	 * </p><p>
+	 * Recording metrics allocates nothing once a method has been seen. By default agents keep no metrics.
+	 * </p>
+	 * @param registry the registry for the metrics of an agent and its connections, or null for no metrics
+	 * @return this ConnectionOptions instance
+	 */
+	public ConnectionOptions withMetrics(MetricsRegistry registry) {
+		this.metricsRegistry = registry;
+		return this;
+	}
+
+	/**
+	 * <p>With tracing, an agent propagates a {@link TraceContext} with its messages, in their traceparent property. Each request it sends
+	 * carries the context of a new span, a child of the sending thread's current context. Each response it sends carries the context
+	 * of the span of the handler that produced it, and each notification the context current on the thread that sent it.
+	 * A handler of a traced request or notification runs with that context current, so the requests it sends join the trace.
+	 * </p><p>
+	 * The agent gives the exporter a {@link Span} for each request it sends, with the time until the response arrived, and for each
+	 * request and traced notification it handles, with the time its handler took. Heartbeats and negotiations are not traced.
+	 * By default agents do not trace their messages.
+	 * </p>
+	 * @param exporter the exporter for the spans of an agent's messages, or null for no tracing
+	 * @return this ConnectionOptions instance
+	 */
+	public ConnectionOptions withTracing(SpanExporter exporter) {
+		this.spanExporter = exporter;
+		return this;
+	}
+
+	public Transport getTransport() {return transport;}
+	public int getSelectorThreads() {return selectorThreads;}
+	public ExecutionMode getExecutionMode() {return executionMode;}
+	public Duration getCoalescingDelay() {return coalescingDelay;}
+	public int getCoalescingBytes() {return coalescingBytes;}
+	public List<MessageCodec> getCodecs() {return codecs;}
+	public int getCompressionThreshold() {return compressionThreshold;}
+	/**
+	 * @return the SSLContext for TLS connections, or null if the default context is to be used
+	 */
+	public SSLContext getSSLContext() {return sslContext;}
+	public Framing getFraming() {return framing;}
+	public int getNotificationLaneCapacity() {return notificationLaneCapacity;}
+	public NotificationOverflow getNotificationOverflow() {return notificationOverflow;}
+	public Duration getRequestTimeout() {return requestTimeout;}
+	public Duration getHeartbeatInterval() {return heartbeatInterval;}
+	public Duration getStallTimeout() {return stallTimeout;}
+	public String getHeartbeatMethod() {return heartbeatMethod;}
+	/**
+	 * @return the registry for the metrics of an agent and its connections, or null if agents keep no metrics
+	 */
+	public MetricsRegistry getMetricsRegistry() {return metricsRegistry;}
+	/**
+	 * @return the exporter for the spans of an agent's messages, or null if agents do not trace their messages
+	 */
+	public SpanExporter getSpanExporter() {return spanExporter;}
+
+	boolean usesWriteCoalescing() {return !coalescingDelay.isZero();}
+	boolean usesBufferedSerialization() {return bufferedSerialization;}
+	boolean usesCompression() {return compressionThreshold > 0;}
+	boolean usesContentLengthFraming() {return framing == Framing.CONTENT_LENGTH;}
+	boolean usesParallelDeserialization() {return parallelDeserialization;}
+	boolean usesRequestTimeout() {return !requestTimeout.isZero();}
+	boolean usesHeartbeat() {return !heartbeatInterval.isZero();}
+	boolean usesTracing() {return spanExporter != null;}
+
+	/**
+	 * @param name the name of a codec
+	 * @return the codec of that name among this agent's codecs, or null if there is none
+	 */
+	MessageCodec findCodec(String name) {
+		if (MessageCodec.JSON.getName().equals(name)) return MessageCodec.JSON;
+		for (var codec : codecs)
+			if (codec.getName().equals(name)) return codec;
+		return null;
+	}
+
+	/**
+	 * @param offered the names of the codecs a partner offers, in the partner's order of preference
+	 * @return the first offered codec that this agent can use, or JSON
+	 */
+	MessageCodec chooseCodec(String[] offered) {
+		if (offered != null)
+			for (var name : offered) {
+				var codec = findCodec(name);
+				if (codec != null) return codec;
+			}
+		return MessageCodec.JSON;
+	}
+
+	boolean usesVirtualThreads() {return executionMode == ExecutionMode.VIRTUAL;}
+
+	/**
+	 * @return a builder for the threads an agent starts for its connections
+	 */
+	Thread.Builder threadBuilder() {
+		return usesVirtualThreads() ? Thread.ofVirtual() : Thread.ofPlatform();}
+
+	/**
+	 * @return a new executor for running an agent's asynchronous request handlers
+	 */
+	ExecutorService newHandlerExecutor() {
+		return usesVirtualThreads() ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newFixedThreadPool(10);}
+
+	/**
+	 * @return a new executor for processing the messages that arrive on an agent's connections when they are not processed
+	 * by a reader thread of the connection's own. The dispatch pool is a cached pool: its threads exist only while connections
+	 * have messages to process. In the VIRTUAL execution mode each dispatch runs in a virtual thread instead.
+	 */
+	ExecutorService newDispatchExecutor(String name) {
+		if (usesVirtualThreads())
+			return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + " dispatch ", 1).factory());
+		return Executors.newCachedThreadPool(Thread.ofPlatform().name(name + " dispatch ", 1).daemon(true).factory());
+	}
+
+	/**
+	 * @return a new scheduler for the heartbeats of an agent's connections
+	 */
+	ScheduledExecutorService newHeartbeatScheduler(String name) {
+		var builder = usesVirtualThreads() ? Thread.ofVirtual() : Thread.ofPlatform().daemon(true);
+		return Executors.newSingleThreadScheduledExecutor(builder.name(name + " heartbeat").factory());
+	}
+
+	/**
+	 * @return a new executor for the writer tasks of an agent's connections that use write coalescing
+	 */
+	ExecutorService newWriterExecutor(String name) {
+		if (usesVirtualThreads())
+			return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + " writer ", 1).factory());
+		return Executors.newCachedThreadPool(Thread.ofPlatform().name(name + " writer ", 1).daemon(true).factory());
+	}
+}
@@ -0,0 +1,237 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/* Once two agents have agreed to frame a connection, each message on it is preceded by a header, in the manner of the
+ * Language Server Protocol:
+ *   Content-Length: <the length of the payload in bytes>\r\n
+ *   Content-Type: <the name of the message's codec>\r\n         (omitted for JSON)
+ *   Content-Encoding: deflate\r\n                                (only for a compressed payload)
+ *   \r\n
+ * followed by the payload.  Since every frame says how it is encoded, the reader of a framed connection never switches its input
+ * when codecs or compression are negotiated later; it only finds the frames, and their messages are decoded wherever they are processed.
+ * The frames lie beneath the connection's logging streams, so logged text is the message.
+ */
+final class ContentLengthFraming {
+	/**
+	 * the JRPC method used to negotiate framing. Its single positional parameter is an array of framing names;
+	 * the result is the framing chosen, or "none".
+	 */
+	static final String negotiationMethod = "rpc.framing";
+	static final String contentLength = "content-length", none = "none";
+	private static final String deflate = "deflate";
+	private static final int maxMessageLength = 1<<28, maxHeaderLength = 8192;
+
+	private ContentLengthFraming() {}
+
+	/* A frame read from the partner: the payload, and how it is encoded */
+	record Frame(byte[] payload, String contentType, boolean deflated) {
+		/**
+		 * @return the bytes of the message
+		 */
+		byte[] message() throws IOException {
+			return deflated ? inflate(payload) : payload;}
+	}
+
+	private static byte[] inflate(byte[] payload) throws IOException {
+		var inflater = new Inflater(true);
+		try {
+			inflater.setInput(payload);
+			var message = new byte[Math.max(64, payload.length*4)];
+			var n = 0;
+			while (!inflater.finished()) {
+				if (n == message.length) {
+					if (n >= maxMessageLength) throw new IOException("compressed frame is too long");
+					message = Arrays.copyOf(message, n*2);
+				}
+				var got = inflater.inflate(message, n, message.length - n);
+				if (got == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new IOException("compressed frame is truncated");
+				n += got;
+			}
+			return n == message.length ? message : Arrays.copyOf(message, n);
+		} catch (DataFormatException e) {
+			throw new IOException("invalid compressed frame", e);
+		} finally {inflater.end();}
+	}
+
+	/* The stream a connection writes to once it frames its output. A flush ends a message. It is used with the output lock held. */
+	static final class Output extends OutputStream {
+		private OutputStream out;
+		private String contentType = null; //null for JSON
+		private int threshold = 0; //the length of the shortest message to compress, or 0 if messages are not compressed
+		private Deflater deflater = null;
+		private byte[] message = new byte[8192], compressed = null;
+		private int count = 0;
+
+		Output(OutputStream out, MessageCodec codec){
+			this.out = out;
+			setCodec(codec);
+		}
+
+		OutputStream getTarget() {return out;}
+		void setTarget(OutputStream out) {this.out = out;}
+		void setCodec(MessageCodec codec) {contentType = codec == MessageCodec.JSON ? null : codec.getName();}
+		/**
+		 * compress, from now on, each message of at least thresholdBytes
+		 */
+		void setCompressionThreshold(int thresholdBytes) {
+			threshold = thresholdBytes;
+			if (deflater == null) deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte)b}, 0, 1);}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (count + len > message.length)
+				message = Arrays.copyOf(message, Math.max(message.length*2, count + len));
+			System.arraycopy(b, off, message, count, len);
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (count > 0) {
+				if (threshold > 0 && count >= threshold) {
+					var length = deflate();
+					writeHeader(length, true);
+					out.write(compressed, 0, length);
+				} else {
+					writeHeader(count, false);
+					out.write(message, 0, count);
+				}
+				count = 0;
+			}
+			out.flush();
+		}
+
+		private int deflate() {
+			deflater.reset();
+			deflater.setInput(message, 0, count);
+			deflater.finish();
+			if (compressed == null) compressed = new byte[8192];
+			var length = 0;
+			while (!deflater.finished()) {
+				if (length == compressed.length) compressed = Arrays.copyOf(compressed, length*2);
+				length += deflater.deflate(compressed, length, compressed.length - length);
+			}
+			return length;
+		}
+
+		private void writeHeader(int length, boolean deflated) throws IOException {
+			var header = new StringBuilder(64).append("Content-Length: ").append(length).append("\r\n");
+			if (contentType != null) header.append("Content-Type: ").append(contentType).append("\r\n");
+			if (deflated) header.append("Content-Encoding: ").append(deflate).append("\r\n");
+			out.write(header.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII));
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (deflater != null) deflater.end();
+			out.close();
+		}
+	}
+
+	/* Finds the frames in the input of a framed connection. Input is pulled in bulk, and each payload is read into an array of its own,
+	 * which is handed off whole for parsing.
+	 */
+	static final class Input {
+		private final InputStream in;
+		private byte[] buffer = new byte[64*1024];
+		private int position = 0, limit = 0;
+
+		/**
+		 * @param in the source of frames
+		 * @param readAhead bytes of the first frames that were already read from in
+		 */
+		Input(InputStream in, byte[] readAhead){
+			this.in = in;
+			if (readAhead.length > buffer.length) buffer = new byte[readAhead.length];
+			System.arraycopy(readAhead, 0, buffer, 0, readAhead.length);
+			limit = readAhead.length;
+		}
+
+		/**
+		 * @return the next frame, or null if the partner closed the connection between frames
+		 */
+		Frame next() throws IOException {
+			int length = -1;
+			String contentType = null;
+			var deflated = false;
+			var headerLength = 0;
+			while (true) {
+				var line = readLine(headerLength == 0);
+				if (line == null) return null;
+				headerLength += line.length() + 2;
+				if (headerLength > maxHeaderLength) throw new IOException("frame header is too long");
+				if (line.isEmpty()) {
+					if (length < 0) throw new IOException("frame header has no Content-Length");
+					break;
+				}
+				var colon = line.indexOf(':');
+				if (colon < 0) throw new IOException(String.format("invalid frame header line <%s>", line));
+				var name = line.substring(0, colon).trim();
+				var value = line.substring(colon+1).trim();
+				if (name.equalsIgnoreCase("Content-Length")) {
+					try {length = Integer.parseInt(value);
+					} catch (NumberFormatException e) {length = -1;}
+					if (length < 0 || length > maxMessageLength)
+						throw new IOException(String.format("invalid frame length %s", value));
+				} else if (name.equalsIgnoreCase("Content-Type")) contentType = value;
+				else if (name.equalsIgnoreCase("Content-Encoding")) {
+					if (!value.equalsIgnoreCase(deflate))
+						throw new IOException(String.format("unsupported frame encoding %s", value));
+					deflated = true;
+				} //other headers are ignored
+			}
+			var payload = new byte[length];
+			var n = Math.min(length, limit - position);
+			System.arraycopy(buffer, position, payload, 0, n);
+			position += n;
+			while (n < length) { //a large payload is read straight into its array
+				var got = in.read(payload, n, length - n);
+				if (got < 0) throw new EOFException("partner closed the connection within a frame");
+				n += got;
+			}
+			return new Frame(payload, contentType, deflated);
+		}
+
+		//a header line, without its line terminator. Null if the input ends before a first line begins
+		private String readLine(boolean first) throws IOException {
+			var line = new StringBuilder();
+			while (true) {
+				if (position == limit && !fill()) {
+					if (first && line.isEmpty()) return null;
+					throw new EOFException("partner closed the connection within a frame header");
+				}
+				var b = buffer[position++];
+				if (b == '\n') {
+					var end = line.length();
+					if (end > 0 && line.charAt(end-1) == '\r') line.setLength(end-1);
+					return line.toString();
+				}
+				line.append((char)(b & 0xff));
+				if (line.length() > maxHeaderLength) throw new IOException("frame header is too long");
+			}
+		}
+
+		private boolean fill() throws IOException {
+			var got = in.read(buffer, 0, buffer.length);
+			if (got <= 0) return false;
+			position = 0;
+			limit = got;
+			return true;
+		}
+	}
+}
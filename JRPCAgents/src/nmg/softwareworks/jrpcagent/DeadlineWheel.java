@@ -0,0 +1,100 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/* The deadlines of the pending asynchronous requests of an agent's connections, on a hashed timing wheel turned by one ticker thread for the agent.
+ * Each bucket of the wheel holds the deadlines that fall on its ticks, so scheduling a deadline and visiting a bucket cost the same
+ * however many requests are pending. A request that expires is removed from its connection's pending requests and completed
+ * with a JRPCRequestTimeoutException, on the ticker thread.
+ * A request answered before its deadline is not searched for; its deadline is discarded the next time the ticker visits its bucket.
+ * New deadlines wait in a queue that only the ticker drains, so the buckets themselves are never shared.
+ * The ticker parks without a timeout while no deadlines are scheduled.
+ * Synchronous requests are not scheduled here: the thread waiting for the response parks until the deadline and expires the request itself.
+ */
+final class DeadlineWheel {
+	private record Deadline(Connection connection, JRPCSimpleRequest<?> request, long tick) {}
+	private static final long tickNanos = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final int bucketCount = 512; //a power of 2. The wheel turns once in about 5 seconds.
+
+	private final long origin = System.nanoTime();
+	private final ConcurrentLinkedQueue<Deadline> arriving = new ConcurrentLinkedQueue<>();
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private final ArrayList<Deadline>[] buckets = new ArrayList[bucketCount]; //used only by the ticker
+	private final AtomicInteger scheduled = new AtomicInteger(0);
+	private final Thread ticker;
+	private long currentTick = 0; //the last tick whose bucket was visited; used only by the ticker
+	private volatile boolean stopped = false;
+
+	DeadlineWheel(String name, ConnectionOptions options) {
+		for (int i = 0; i < bucketCount; i++) buckets[i] = new ArrayList<>();
+		var builder = options.usesVirtualThreads() ? Thread.ofVirtual() : Thread.ofPlatform().daemon(true);
+		ticker = builder.name(name + " deadlines").start(this::turn);
+	}
+
+	/**
+	 * arrange for request, pending on connection, to expire at deadline unless it is answered first
+	 * @param deadline a System.nanoTime value
+	 */
+	void schedule(Connection connection, JRPCSimpleRequest<?> request, long deadline) {
+		var tick = Math.ceilDiv(deadline - origin, tickNanos);
+		arriving.add(new Deadline(connection, request, tick));
+		if (scheduled.getAndIncrement() == 0) LockSupport.unpark(ticker);
+	}
+
+	void stop() {
+		stopped = true;
+		LockSupport.unpark(ticker);
+	}
+
+	private void turn() {
+		while (!stopped) {
+			if (scheduled.get() == 0) {
+				LockSupport.park(this);
+				currentTick = (System.nanoTime() - origin) / tickNanos; //no bucket holds a deadline in the ticks that passed
+				continue;
+			}
+			var now = (System.nanoTime() - origin) / tickNanos;
+			if (now <= currentTick) {
+				LockSupport.parkNanos(this, origin + (currentTick + 1) * tickNanos - System.nanoTime());
+				continue;
+			}
+			while (currentTick < now) {
+				currentTick++;
+				admitArrivals();
+				visit(buckets[(int)(currentTick & (bucketCount - 1))]);
+			}
+		}
+	}
+
+	private void admitArrivals() {
+		Deadline deadline;
+		while ((deadline = arriving.poll()) != null) {
+			if (deadline.tick() <= currentTick) expire(deadline);
+			else buckets[(int)(deadline.tick() & (bucketCount - 1))].add(deadline);
+		}
+	}
+
+	private void visit(ArrayList<Deadline> bucket) {
+		bucket.removeIf(deadline -> {
+			if (deadline.connection().pendingRequest(deadline.request().requestId) != deadline.request()) {
+				scheduled.decrementAndGet(); //answered, abandoned, or its connection closed
+				return true;
+			}
+			if (deadline.tick() > currentTick) return false; //due on a later turn of the wheel
+			expire(deadline);
+			return true;
+		});
+	}
+
+	private void expire(Deadline deadline) {
+		scheduled.decrementAndGet();
+		try {deadline.connection().expire(deadline.request());
+		} catch (Throwable t) {
+			Logging.log(t, String.format("expiring request %d on connection %s", deadline.request().requestId, deadline.connection().getName()));
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/* Once two agents have agreed to compress a connection, each message on it travels as one frame:
+ *   a kind byte (stored or deflated), the 4 byte length of the frame's payload, and for a deflated frame the 4 byte length of the message,
+ * followed by the payload.  A message shorter than the sender's threshold is stored, so small control messages cost only the header.
+ * The frames lie beneath the connection's logging streams, so logged text is the uncompressed message.
+ */
+final class DeflateFraming {
+	/**
+	 * the JRPC method used to negotiate compression. Its single positional parameter is an array of algorithm names;
+	 * the result is the algorithm chosen, or "none".
+	 */
+	static final String negotiationMethod = "rpc.compression";
+	static final String algorithm = "deflate", none = "none";
+	private static final byte stored = 0, deflated = 1;
+	private static final int maxMessageLength = 1<<28;
+
+	private DeflateFraming() {}
+
+	/* The stream a connection writes to once it compresses its output. A flush ends a message. It is used with the output lock held. */
+	static final class Output extends OutputStream {
+		private final OutputStream out;
+		private final int threshold;
+		private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		private byte[] message = new byte[8192], compressed = new byte[8192];
+		private int count = 0;
+
+		Output(OutputStream out, int threshold){
+			this.out = out;
+			this.threshold = threshold;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte)b}, 0, 1);}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (count + len > message.length) {
+				var larger = new byte[Math.max(message.length*2, count + len)];
+				System.arraycopy(message, 0, larger, 0, count);
+				message = larger;
+			}
+			System.arraycopy(b, off, message, count, len);
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (count > 0) {
+				if (count >= threshold) writeDeflated();
+				else {
+					writeHeader(stored, count);
+					out.write(message, 0, count);
+				}
+				count = 0;
+			}
+			out.flush();
+		}
+
+		private void writeDeflated() throws IOException {
+			deflater.reset();
+			deflater.setInput(message, 0, count);
+			deflater.finish();
+			var length = 0;
+			while (!deflater.finished()) {
+				if (length == compressed.length) {
+					var larger = new byte[compressed.length*2];
+					System.arraycopy(compressed, 0, larger, 0, length);
+					compressed = larger;
+				}
+				length += deflater.deflate(compressed, length, compressed.length - length);
+			}
+			writeHeader(deflated, length);
+			writeInt(count);
+			out.write(compressed, 0, length);
+		}
+
+		private void writeHeader(byte kind, int length) throws IOException {
+			out.write(kind);
+			writeInt(length);
+		}
+
+		private void writeInt(int v) throws IOException {
+			out.write(new byte[] {(byte)(v>>>24), (byte)(v>>>16), (byte)(v>>>8), (byte)v});}
+
+		@Override
+		public void close() throws IOException {
+			deflater.end();
+			out.close();
+		}
+	}
+
+	/* The stream a connection reads from once its partner compresses its output. It delivers the messages' bytes, one frame after another */
+	static final class Input extends InputStream {
+		private final InputStream in;
+		private final Inflater inflater = new Inflater(true);
+		private byte[] frame = new byte[8192], message = new byte[8192];
+		private byte[] current = message;
+		private int position = 0, limit = 0;
+
+		Input(InputStream in){
+			this.in = in;}
+
+		@Override
+		public int read() throws IOException {
+			if (position == limit && !nextFrame()) return -1;
+			return current[position++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			if (position == limit && !nextFrame()) return -1;
+			var n = Math.min(len, limit - position);
+			System.arraycopy(current, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() {return limit - position;}
+
+		private boolean nextFrame() throws IOException {
+			int kind;
+			do {kind = in.read();
+				if (kind < 0) return false;
+				var length = readInt();
+				if (kind == stored) {
+					frame = ensure(frame, length);
+					readFully(frame, length);
+					current = frame;
+					limit = length;
+				} else if (kind == deflated) {
+					var messageLength = readInt();
+					frame = ensure(frame, length);
+					readFully(frame, length);
+					message = ensure(message, messageLength);
+					inflate(length, messageLength);
+					current = message;
+					limit = messageLength;
+				} else throw new IOException(String.format("invalid compressed frame kind %d", kind));
+				position = 0;
+			} while (limit == 0);
+			return true;
+		}
+
+		private void inflate(int length, int messageLength) throws IOException {
+			inflater.reset();
+			inflater.setInput(frame, 0, length);
+			try {
+				var n = 0;
+				while (n < messageLength && !inflater.finished()) {
+					var got = inflater.inflate(message, n, messageLength - n);
+					if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+					n += got;
+				}
+				if (n != messageLength) throw new IOException("compressed frame is truncated");
+			} catch (DataFormatException e) {
+				throw new IOException("invalid compressed frame", e);}
+		}
+
+		private static byte[] ensure(byte[] buffer, int length) throws IOException {
+			if (length < 0 || length > maxMessageLength) throw new IOException(String.format("invalid compressed frame length %d", length));
+			return length <= buffer.length ? buffer : new byte[Math.max(length, buffer.length*2)];
+		}
+
+		private int readInt() throws IOException {
+			var b = new byte[4];
+			readFully(b, 4);
+			return ((b[0] & 0xff)<<24) | ((b[1] & 0xff)<<16) | ((b[2] & 0xff)<<8) | (b[3] & 0xff);
+		}
+
+		private void readFully(byte[] b, int length) throws IOException {
+			var n = 0;
+			while (n < length) {
+				var got = in.read(b, n, length - n);
+				if (got < 0) throw new EOFException("partner closed the connection within a compressed frame");
+				n += got;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			inflater.end();
+			in.close();
+		}
+	}
+}
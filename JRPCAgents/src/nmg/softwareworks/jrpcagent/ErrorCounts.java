@@ -0,0 +1,46 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/* Counts of the error responses to the requests of one method, by their JRPC error codes. A code claims a slot of a small open-addressed
+ * table with compare-and-set the first time it is seen, so counting an error neither locks nor boxes the code. Codes that find the
+ * table full are counted together.
+ */
+final class ErrorCounts {
+	private static final int slotCount = 32; //a power of 2
+	private static final long claimed = 1L << 32; //set in a slot's key, so that code 0 can be told from an unclaimed slot
+	private final AtomicLongArray keys = new AtomicLongArray(slotCount), counts = new AtomicLongArray(slotCount);
+	private final LongAdder others = new LongAdder();
+
+	void record(int code) {
+		var key = claimed | (code & 0xffffffffL);
+		var start = (code ^ (code >>> 16)) * 0x9E3779B1;
+		for (int i = 0; i < slotCount; i++) {
+			var slot = (start + i) & (slotCount - 1);
+			var k = keys.get(slot);
+			if (k == 0 && !keys.compareAndSet(slot, 0, key)) k = keys.get(slot);
+			else if (k == 0) k = key;
+			if (k == key) {
+				counts.incrementAndGet(slot);
+				return;
+			}
+		}
+		others.increment();
+	}
+
+	//the counts of the codes seen, in code order
+	Map<Integer,Long> snapshot() {
+		var codes = new TreeMap<Integer,Long>();
+		for (int slot = 0; slot < slotCount; slot++) {
+			var k = keys.get(slot);
+			if (k != 0) codes.put((int)k, counts.get(slot));
+		}
+		return codes;
+	}
+
+	//errors whose codes found the table full
+	long getOthers() {return others.sum();}
+}
@@ -0,0 +1,81 @@
+package nmg.softwareworks.jrpcagent;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/* The JDK Flight Recorder events of the life of requests and notifications. They are enabled like any other JFR event, for example
+ * with -XX:StartFlightRecording or a recording's settings; while no recording enables them, creating and committing one costs
+ * next to nothing. An event's duration is the time spent in the step it describes: serializing and writing a request, completing
+ * a request with its response, deserializing a result, or running a notification handler.
+ */
+final class FlightRecorderEvents {
+	private FlightRecorderEvents() {}
+
+	static final String category = "JRPC";
+
+	@Name("nmg.softwareworks.jrpcagent.RequestSent")
+	@Label("JRPC Request Sent")
+	@Description("A request or notification serialized and written to a connection")
+	@Category(category)
+	@StackTrace(false)
+	static final class RequestSent extends Event {
+		@Label("Method") String method;
+		@Label("Request Id") @Description("-1 for a notification") int requestId;
+		@Label("Connection") String connection;
+		@Label("Bytes") @DataAmount long bytes;
+	}
+
+	@Name("nmg.softwareworks.jrpcagent.ResponseReceived")
+	@Label("JRPC Response Received")
+	@Description("A response matched to the request it answers, which it completes")
+	@Category(category)
+	@StackTrace(false)
+	static final class ResponseReceived extends Event {
+		@Label("Method") String method;
+		@Label("Request Id") int requestId;
+		@Label("Connection") String connection;
+		@Label("Bytes") @DataAmount long bytes;
+		@Label("Round Trip") @Description("From sending the request to matching its response") @Timespan long roundTrip;
+		@Label("Error Code") @Description("The JRPC error code of an error response, or 0") int errorCode;
+	}
+
+	@Name("nmg.softwareworks.jrpcagent.ResultDeserialized")
+	@Label("JRPC Result Deserialized")
+	@Description("The result of a response deserialized for the request it answers")
+	@Category(category)
+	@StackTrace(false)
+	static final class ResultDeserialized extends Event {
+		@Label("Method") String method;
+		@Label("Request Id") int requestId;
+		@Label("Result Type") String resultType;
+	}
+
+	@Name("nmg.softwareworks.jrpcagent.NotificationQueued")
+	@Label("JRPC Notification Queued")
+	@Description("A notification put in a lane of its connection to wait for its handler, including any wait for room in the lane")
+	@Category(category)
+	@StackTrace(false)
+	static final class NotificationQueued extends Event {
+		@Label("Method") String method;
+		@Label("Connection") String connection;
+		@Label("Depth") @Description("Notifications waiting in all the connection's lanes") int depth;
+	}
+
+	@Name("nmg.softwareworks.jrpcagent.NotificationHandled")
+	@Label("JRPC Notification Handled")
+	@Description("A notification handler run")
+	@Category(category)
+	@StackTrace(false)
+	static final class NotificationHandled extends Event {
+		@Label("Method") String method;
+		@Label("Connection") String connection;
+		@Label("Queued") @Description("The time the notification waited for its handler") @Timespan long queued;
+		@Label("Failed") boolean failed;
+	}
+}
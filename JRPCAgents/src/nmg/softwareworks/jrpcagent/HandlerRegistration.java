@@ -18,13 +18,13 @@ abstract public class HandlerRegistration {
 		final Method method;
 		final Object instance;
 		final boolean synchronous;
-		//final boolean useVirtualThread;
+		final boolean useVirtualThread;
 		//final String resultSerializationContext;
-		RegisteredHandler(Method method, boolean synchronous, /*boolean useVirtualThread,*/ Object instance){
+		RegisteredHandler(Method method, boolean synchronous, boolean useVirtualThread, Object instance){
 			this.method = method;
 			this.instance = instance;
 			this.synchronous = synchronous;
-			//useVirtualThread = useVirtualThread;
+			this.useVirtualThread = useVirtualThread;
 			//this.resultSerializationContext = resultSerializationContext;
 		}
 	}
@@ -67,8 +67,16 @@ abstract public class HandlerRegistration {
 		return getRequestSignatures().put(methodName, sig);}
 	public RequestSignature registerRequestSignature(String methodName, Method m, boolean positional, String[]parameterNames,
 			String[] ignoredParameterNames)	throws Exception {
+		return registerRequestSignature(methodName, m, positional, parameterNames, ignoredParameterNames, -1);}
+	/**
+	 * register the signature of a request from the parameters of its handling method
+	 * @param requiredParameters for positional parameters, the number a request must supply; -1 if all are required.
+	 * See {@link JsonRpcHandler#requiredParameters}
+	 */
+	public RequestSignature registerRequestSignature(String methodName, Method m, boolean positional, String[]parameterNames,
+			String[] ignoredParameterNames, int requiredParameters)	throws Exception {
 		if (methodName.isBlank()) methodName = m.getName();
-		RequestSignature sig =  positional ? new PositionalRequestSignature(m,  parameterNames, getTypeFactory())
+		RequestSignature sig =  positional ? new PositionalRequestSignature(m,  parameterNames, requiredParameters, getTypeFactory())
 										   : new JsonObjectRequestSignature(m,  parameterNames, ignoredParameterNames, getTypeFactory());
 		return registerRequestSignature(methodName, sig);
 	}
@@ -77,22 +85,22 @@ abstract public class HandlerRegistration {
 	protected Map<String, RegisteredHandler> requestHandlers = new HashMap<>();
 	public  Map<String, RegisteredHandler> getRequestHandlers(){return requestHandlers;}
 	//public void clearRequestHandlers() {getRequestHandlers().clear();}
-	private  RegisteredHandler registerRequestHandler(String methodName, Method m, boolean synchronous,  Object instance) throws Exception {
+	private  RegisteredHandler registerRequestHandler(String methodName, Method m, boolean synchronous, boolean useVirtualThread, Object instance) throws Exception {
 		validateRequestHandlerMethod(m);
 		if (methodName.isBlank()) methodName = m.getName();
 		if (Modifier.isStatic(m.getModifiers()))
 			instance = null;
 		else ; //TODO: verify that method is a method of instance
 		m.setAccessible(true);
-		var rh = new RegisteredHandler(m, synchronous, instance);
+		var rh = new RegisteredHandler(m, synchronous, useVirtualThread, instance);
 		return getRequestHandlers().put(methodName, rh);}
 	public  RegisteredHandler getRequestHandler(String method) { return getRequestHandlers().get(method);}
 	
-	public void registerRequestHandler(String methodName, RequestSignature sig, Method m, boolean synchronous, boolean useVirtualThread, //ignored, not using virutal threads
+	public void registerRequestHandler(String methodName, RequestSignature sig, Method m, boolean synchronous, boolean useVirtualThread,
 			Object instance, String resultSerializationContext) throws Exception {
 		if (methodName == null || methodName.isBlank())
 			throw new Exception(String.format("registerRequestHandler: invalid method name [%s]",methodName));
-		registerRequestHandler(methodName, m, synchronous, instance);
+		registerRequestHandler(methodName, m, synchronous, useVirtualThread, instance);
 		registerRequestSignature(methodName, sig);
 	}
 	
@@ -115,12 +123,12 @@ abstract public class HandlerRegistration {
 		try {
 			var mName = ann.methodName();
 			//var sc = ann.resultSerializationContext();
-			registerRequestHandler(mName,  method, ann.synchronous(), instance);
+			registerRequestHandler(mName,  method, ann.synchronous(), ann.useVirtualThread(), instance);
 			var pnames = ann.parameterNames();
 			if (pnames!=null && pnames.length==0) pnames = null;
 			var positional = ann.positionalParameters() && pnames == null;
 			if (ann.signatureFromMethod())
-				registerRequestSignature(mName, method, positional, pnames, ann.ignoredParameterNames());
+				registerRequestSignature(mName, method, positional, pnames, ann.ignoredParameterNames(), ann.requiredParameters());
 		} catch (Exception e) {
 			Logging.log(e, "failed to register handler");
 		}		
@@ -0,0 +1,88 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.time.Duration;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/* The heartbeat of one connection. At each beat, unless its last ping is still unanswered, the connection sends its partner a ping request,
+ * and records the round trip time when the response arrives. Any response counts, including the error response of a partner that does not
+ * know the ping method, because it shows that the partner is reading and answering this connection.
+ * A connection whose oldest unanswered ping was sent a stall timeout ago is stalled, and its agent decides whether to drop it.
+ * The beats of all an agent's connections run on the agent's heartbeat scheduler. A beat never does I/O there: writing a ping can block on
+ * a partner that has stopped reading, and so can dropping a stalled connection, so both are handed to the agent's writer executor, and
+ * the scheduler goes on to detect stalls on the agent's other connections.
+ */
+final class Heartbeat {
+	/**
+	 * the JRPC method every agent answers, unless it registers a handler of its own for it. It has no parameters, and its result is true.
+	 */
+	static final String pingMethod = "rpc.ping";
+	static final RequestSignature pingSignature = new PositionalRequestSignature(new Object[0], Boolean.class, null);
+
+	private final Connection connection;
+	private final String method;
+	private final long stallNanos;
+	private final RoundTripStatistics statistics = new RoundTripStatistics();
+	private final Executor sender; //runs the pings, and the agent's reaction to a stall
+	private final ScheduledFuture<?> beating;
+	private volatile long unansweredSince = 0; //when the oldest unanswered ping was sent, or 0 if every ping has been answered
+	private volatile boolean pinging = false, stalled = false;
+
+	Heartbeat(Connection connection, ScheduledExecutorService scheduler, Executor sender, ConnectionOptions options) {
+		this.connection = connection;
+		this.sender = sender;
+		this.method = options.getHeartbeatMethod();
+		this.stallNanos = options.getStallTimeout().toNanos();
+		var interval = options.getHeartbeatInterval().toNanos();
+		beating = scheduler.scheduleWithFixedDelay(this::beat, interval, interval, TimeUnit.NANOSECONDS);
+	}
+
+	RoundTripStatistics getStatistics() {return statistics;}
+	boolean isStalled() {return stalled;}
+	void stop() {beating.cancel(false);}
+
+	private void beat() {
+		if (connection.isClosed()) {
+			stop();
+			return;
+		}
+		var now = System.nanoTime();
+		var since = unansweredSince;
+		if (since != 0 && !stalled && now - since >= stallNanos) {
+			stalled = true;
+			statistics.stalled();
+			var unanswered = Duration.ofNanos(now - since);
+			sender.execute(() -> connection.stalled(unanswered));
+			return;
+		}
+		if (pinging) return;
+		pinging = true;
+		if (since == 0) unansweredSince = now;
+		try {sender.execute(() -> ping(now));
+		} catch (RejectedExecutionException e) {pinging = false;} //the agent has been closed
+	}
+
+	private void ping(long sent) {
+		try {
+			var ping = new JRPCAsyncRequest<Object>(Object.class, method, new Object[0]);
+			connection.asynchronousRPC(ping).whenComplete((result, failure) -> answered(sent, failure));
+		} catch (JRPCException e) {pinging = false;} //the connection has closed
+	}
+
+	private void answered(long sent, Throwable failure) {
+		pinging = false;
+		if (failure instanceof CompletionException) failure = failure.getCause();
+		//a ping that expired under the connection's request timeout, or failed because the connection closed, was not answered
+		if (failure instanceof JRPCException.JRPCRequestTimeoutException || connection.isClosed()) return;
+		statistics.record(System.nanoTime() - sent);
+		unansweredSince = 0;
+		if (stalled) {
+			stalled = false;
+			Logging.log("%s: partner answered a heartbeat again", connection.getName());
+		}
+	}
+}
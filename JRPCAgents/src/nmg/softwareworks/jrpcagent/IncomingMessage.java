@@ -42,6 +42,7 @@ public class IncomingMessage implements IncomingJRPCMessage{
 	JRPCRuntimeException resultDeserialingError = null; // while receiving a response
 	JRPCRuntimeException paramsDeserializingError = null; //while receiving a request or notification
 	Map<String, TreeNode> metaProperties = null;
+	long size = 0; //the bytes of this message, after any decompression, once it has been read
 
 	IncomingMessage(Connection conn){
 		this.conn = conn;}
@@ -193,20 +194,22 @@ public class IncomingMessage implements IncomingJRPCMessage{
 				if (jParser.currentToken() != JsonToken.START_ARRAY) {
 					invalidParams = jParser.readValueAsTree();						
 				} else {
-					boolean tooFew = false, tooMany = false;
+					boolean ended = false, tooMany = false;
 					int i = 1; //0th element reserved for the ServerConnection instance
 					for (var type : types) {
 						if (jParser.nextToken() == JsonToken.END_ARRAY) {
-							tooFew = true;
+							ended = true;
 							break; //leave for loop
 						}
 						positionalParams[i] = deserializeOneParameter(jParser, type);
 						i++;
 					}
-					if (tooFew)
-						throw new JRPCRuntimeException.DeserializationFailure(
-								"too few actual parameters supplied in a request");
-					while (jParser.nextToken() != JsonToken.END_ARRAY) {
+					if (ended) {
+						if (i - 1 < prs.getRequiredCount())
+							throw new JRPCRuntimeException.DeserializationFailure(
+									"too few actual parameters supplied in a request");
+						for (; i <= types.length; i++) positionalParams[i] = prs.omittedParameterValue(i-1);
+					} else while (jParser.nextToken() != JsonToken.END_ARRAY) {
 						tooMany = true;
 						jParser.readValueAsTree(); //parse and ignore extra param
 					}
@@ -241,7 +244,11 @@ public class IncomingMessage implements IncomingJRPCMessage{
 		    } else {
 		    	if (notification == null)
 		    		Logging.log("unrecognized notification <%s>", this);
-		    	else conn.enqueueNotification(notification, methodName);
+		    	else {
+		    		//a notification is traced only if the partner sent it with a trace context
+		    		var trace = conn.traces(methodName) ? TraceContext.fromMeta(metaProperties) : null;
+		    		conn.enqueueNotification(notification, methodName, trace == null ? null : trace.newChild());
+		    	}
 		    }
 		} else if (isResponse()) {
 			conn.attachResponseToRequest(this);
@@ -278,7 +285,7 @@ public class IncomingMessage implements IncomingJRPCMessage{
 					case "jsonrpc" ->{
 						if (jParser.nextToken() == JsonToken.VALUE_STRING && message.jsonrpc == null)
 							message.jsonrpc = jParser.getText();
-						else conn.handleUnexpected(message, propertyName);
+						else conn.handleUnexpected(jParser, message, propertyName);
 					}
 
 					case "id" ->{//could be a request or a response. Not a notification
@@ -288,14 +295,14 @@ public class IncomingMessage implements IncomingJRPCMessage{
 							if (message.id != null) {
 								firstId = false;
 								Logging.log("Multiple id fields in a single message. Only use the first one");
-							    conn.handleUnexpected(message, propertyName);
+							    conn.handleUnexpected(jParser, message, propertyName);
 							} else	if (jParser.currentToken() == JsonToken.VALUE_NUMBER_INT) {
 								message.id = jParser.getIntValue();
 							} else if (jParser.currentToken() == JsonToken.VALUE_STRING) {
 								message.id = jParser.getText();
 							} else {
 								firstId = false;
-								conn.handleUnexpected(message, propertyName);
+								conn.handleUnexpected(jParser, message, propertyName);
 							}
 							if (firstId && message.methodName == null) {//could be response or request
 								JRPCSimpleRequest<?> req = conn.pendingRequest(message.id);
@@ -330,12 +337,12 @@ public class IncomingMessage implements IncomingJRPCMessage{
 						if (jParser.nextToken() == JsonToken.START_OBJECT && message.result == null) {
 							message.responseError = jParser.readValueAsTree();
 							Logging.log("have error[%s]", message.responseError);
-						}else conn.handleUnexpected(message,propertyName);
+						}else conn.handleUnexpected(jParser, message,propertyName);
 					}
 					case "method" ->{ // could be a request or a notification
 						if (jParser.nextToken() == JsonToken.VALUE_STRING)
 							message.methodName =  jParser.getText();
-						else conn.handleUnexpected(message, propertyName);
+						else conn.handleUnexpected(jParser, message, propertyName);
 						//Logging.log("have method field");
 					}
 					case "params" ->{ // could be a request or a notification
@@ -360,7 +367,7 @@ public class IncomingMessage implements IncomingJRPCMessage{
 							}  else	message.invalidParams = jParser.readValueAsTree();
 							
 						}
-						else conn.handleUnexpected(message, propertyName);
+						else conn.handleUnexpected(jParser, message, propertyName);
 						//Logging.log("have params field");
 					}
 					default ->{
@@ -368,7 +375,7 @@ public class IncomingMessage implements IncomingJRPCMessage{
 						if (conn.getAgent().allowsInboundProperty(propertyName)) {
 							message.addMetaProperty(propertyName, jParser.readValueAsTree());
 						} else {
-							conn.handleUnexpected(message, propertyName,true);
+							conn.handleUnexpected(jParser, message, propertyName,true);
 						}
 					}
 				}
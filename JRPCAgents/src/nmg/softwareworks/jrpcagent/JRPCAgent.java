@@ -2,14 +2,21 @@ package nmg.softwareworks.jrpcagent;
 
 import java.io.*;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.net.ssl.SSLEngine;
+
 import com.fasterxml.jackson.core.TreeNode;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.*;
@@ -58,12 +65,16 @@ import com.fasterxml.jackson.databind.type.TypeFactory;
  *An agent may be created by either supplying a pair of streams to give it an initial partner or by supplying a connected
  *Socket from which the stream pair may be found.
  *</p><p>
+ *The {@link ConnectionOptions} given to the constructor choose how the agent's connections move messages and what kind of
+ *threads the agent uses. With the VIRTUAL execution mode, reading, notification dispatch and asynchronous request handlers
+ *run in virtual threads, and a thread blocked in a synchronous request holds no platform thread.
+ *</p><p>
  *An agent may be released by executing its close method.  This closes its connection(s) with its partners.
  *</p>
  */
 public abstract class JRPCAgent extends HandlerRegistration implements Closeable{
 	
-	final ExecutorService executorService = Executors.newFixedThreadPool(10);
+	final ExecutorService executorService; //runs asynchronous request handlers
 	protected final InputStream istream;
 	protected final OutputStream ostream;
 	public InputStream getInputStream() {return istream;}
@@ -182,8 +193,26 @@ public abstract class JRPCAgent extends HandlerRegistration implements Closeable
 	
 	Map<String,TreeNode> errorResponseMetaProperties(JRPCSimpleRequest<?> request, Exception e){
 		return null;}
+
+	//every agent answers codec, compression, and framing negotiation, and heartbeats, unless it registers a handler of its own for those methods
+	@Override
+	public RequestSignature getRequestSignature(String method) {
+		var sig = super.getRequestSignature(method);
+		if (sig != null) return sig;
+		if (Connection.isNegotiation(method)) return MessageCodec.negotiationSignature;
+		return Heartbeat.pingMethod.equals(method) ? Heartbeat.pingSignature : null;
+	}
 	private final InetAddress inetAddr;
 	private final Integer port;
+	private final UnixDomainSocketAddress unixAddress; //the partner's address, when it was reached through a Unix domain socket
+	private final ConnectionOptions connectionOptions;
+	private ChannelReactor ownReactor = null;
+	private ExecutorService writerExecutor = null;
+	private ExecutorService dispatchExecutor = null;
+	private DeadlineWheel deadlineWheel = null;
+	private ScheduledExecutorService heartbeatScheduler = null; //created when the first connection with a heartbeat is opened
+	private final TlsHandshakeStatistics tlsStatistics = new TlsHandshakeStatistics();
+	private volatile AgentMetrics metrics = null; //created when the primary connection is opened, if the options call for metrics
 
 	/**
 	 * Create a new JRPCAgent using the two streams provided by a Socket.
@@ -191,22 +220,219 @@ public abstract class JRPCAgent extends HandlerRegistration implements Closeable
 	 * @throws IOException if a problem arises establishing the communications channels between the agents
 	 */
 	protected JRPCAgent(Socket socket, String name) throws IOException {
-		istream = socket.getInputStream();
-		ostream = new BufferedOutputStream(socket.getOutputStream());
+		this(socket, name, new ConnectionOptions());}
+
+	/**
+	 * Create a new JRPCAgent communicating over a Socket.
+	 * @param socket the socket connected to the partner. If the options select the NIO transport and the socket was obtained from
+	 * a SocketChannel, the primary connection uses that channel. Otherwise it uses the socket's streams.
+	 * @param options the options for this agent's connections
+	 * @throws IOException if a problem arises establishing the communications channels between the agents
+	 */
+	protected JRPCAgent(Socket socket, String name, ConnectionOptions options) throws IOException {
+		this(socket, null, name, options);}
+
+	/**
+	 * Create a new JRPCAgent communicating over a Socket, using TLS through an SSLEngine if the primary connection uses the NIO transport.
+	 * @param socket the socket connected to the partner. If the options select the NIO transport and the socket was obtained from
+	 * a SocketChannel, the primary connection uses that channel. Otherwise it uses the socket's streams.
+	 * @param engine the SSLEngine for the primary connection if it uses the NIO transport, or null for a connection without TLS.
+	 * It is ignored for the STREAM transport, where TLS requires an SSLSocket.
+	 * @param options the options for this agent's connections
+	 * @throws IOException if a problem arises establishing the communications channels between the agents
+	 */
+	protected JRPCAgent(Socket socket, SSLEngine engine, String name, ConnectionOptions options) throws IOException {
+		this(socket, engine, name, options, -1, false);}
+
+	/**
+	 * Create a new JRPCAgent communicating over a Socket, as {@link #JRPCAgent(Socket, SSLEngine, String, ConnectionOptions)} does,
+	 * whose socket is an SSLSocket that has already completed its handshake.
+	 * @param handshakeNanos the time the socket's handshake took, recorded in this agent's {@link #getTlsHandshakeStatistics statistics},
+	 * or a negative number if there was no handshake to record
+	 * @param resumed true if the handshake resumed an earlier session
+	 * @throws IOException if a problem arises establishing the communications channels between the agents
+	 */
+	protected JRPCAgent(Socket socket, SSLEngine engine, String name, ConnectionOptions options, long handshakeNanos, boolean resumed)
+			throws IOException {
+		if (handshakeNanos >= 0) tlsStatistics.record(handshakeNanos, resumed);
+		connectionOptions = options;
+		executorService = options.newHandlerExecutor();
 		inetAddr = socket.getInetAddress();
 		port = socket.getPort();
-		if (!name.isBlank()) this.name = name;
-		primaryConnection = connectToPartner(istream, ostream);
+		unixAddress = null;
+		if (name != null && !name.isBlank()) this.name = name;
+		openTracing();
+		if (usesChannels() && socket.getChannel() != null) {
+			istream = null;
+			ostream = null;
+			primaryConnection = connectToPartner(socket.getChannel(), engine);
+		} else {
+			if (usesChannels())
+				Logging.log("%s: socket has no channel, using the STREAM transport", this.name);
+			istream = socket.getInputStream();
+			ostream = new BufferedOutputStream(socket.getOutputStream());
+			primaryConnection = connectToPartner(istream, ostream);
+		}
+	}
+
+	/**
+	 * Create a new JRPCAgent communicating over a SocketChannel, which may be a TCP channel or a Unix domain socket channel.
+	 * @param channel a SocketChannel connected to the partner. If the options select the NIO transport, the primary connection
+	 * uses the channel directly. Otherwise it reads and writes the channel through blocking streams.
+	 * @param options the options for this agent's connections
+	 * @throws IOException if a problem arises establishing the communications channels between the agents
+	 */
+	protected JRPCAgent(SocketChannel channel, String name, ConnectionOptions options) throws IOException {
+		connectionOptions = options;
+		executorService = options.newHandlerExecutor();
+		var remote = channel.getRemoteAddress();
+		if (remote instanceof InetSocketAddress isa) {
+			inetAddr = isa.getAddress();
+			port = isa.getPort();
+		} else {
+			inetAddr = null;
+			port = null;
+		}
+		//the channel accepted by a server on a Unix domain socket has an unnamed remote address
+		unixAddress = (remote instanceof UnixDomainSocketAddress uds && !uds.getPath().toString().isEmpty()) ? uds : null;
+		if (name != null && !name.isBlank()) this.name = name;
+		openTracing();
+		if (usesChannels()) {
+			istream = null;
+			ostream = null;
+			primaryConnection = connectToPartner(channel);
+		} else {
+			istream = Channels.newInputStream(channel);
+			ostream = new BufferedOutputStream(Channels.newOutputStream(channel));
+			primaryConnection = connectToPartner(istream, ostream);
+		}
 	}
+
+	/**
+	 * Create a new JRPCAgent connected to a partner listening on a Unix domain socket.  For a partner on the same host, 
+	 * this avoids the TCP stack. 
+	 * @param address the address where the partner (for example a {@link JRPCServer}) is listening
+	 * @param options the options for this agent's connections. Either transport may be used.
+	 * @throws IOException if a problem arises establishing the communications channels between the agents
+	 */
+	protected JRPCAgent(UnixDomainSocketAddress address, String name, ConnectionOptions options) throws IOException {
+		this(SocketChannel.open(address), name, options);}
 	
 	protected JRPCAgent(InputStream istream, OutputStream ostream, String name) throws IOException {
+		this(istream, ostream, name, new ConnectionOptions());}
+
+	/**
+	 * Create a new JRPCAgent whose primary connection uses a pair of streams. The transport option is ignored.
+	 * @param istream a stream that will read requests, responses, and notifications sent by the partner to this agent
+	 * @param ostream a stream that will send requests, responses, and notifications to the partner from this agent
+	 * @param options the options for this agent's connections
+	 * @throws IOException if a problem arises establishing the communications channels between the agents
+	 */
+	protected JRPCAgent(InputStream istream, OutputStream ostream, String name, ConnectionOptions options) throws IOException {
 		this.istream = istream;
 		this.ostream = ostream;
+		connectionOptions = options;
+		executorService = options.newHandlerExecutor();
 		inetAddr = null;
 		port = null;
+		unixAddress = null;
 		if (!name.isBlank()) this.name = name;
+		openTracing();
 		primaryConnection = connectToPartner(istream, ostream); 
 	}
+
+	/**
+	 * @return the options that govern this agent's connections
+	 */
+	public ConnectionOptions getConnectionOptions() {return connectionOptions;}
+
+	//the tracing the options call for: the partner's trace contexts are allowed on incoming messages.
+	//This runs in the constructor, so it calls nothing a subclass could override
+	private void openTracing() {
+		if (connectionOptions.usesTracing()) {
+			inboundMetaPropertyNames.add(TraceContext.property);
+			outboundMetaPropertyNames.add(TraceContext.property);
+		}
+	}
+
+	/**
+	 * @return the metrics of this agent's methods, or null if its options call for no metrics (see {@link ConnectionOptions#withMetrics})
+	 */
+	public AgentMetrics getMetrics() {
+		var result = metrics;
+		if (result != null || connectionOptions.getMetricsRegistry() == null) return result;
+		synchronized (this) {
+			if (metrics == null) metrics = new AgentMetrics(this, connectionOptions.getMetricsRegistry());
+			return metrics;
+		}
+	}
+
+	private boolean usesChannels() {
+		return connectionOptions.getTransport() == ConnectionOptions.Transport.NIO;}
+
+	/**
+	 * @return the executor that runs the writer tasks of this agent's connections that use write coalescing, and sends their heartbeats.
+	 * It is created on first use.
+	 */
+	synchronized ExecutorService getWriterExecutor() {
+		if (writerExecutor == null)
+			writerExecutor = connectionOptions.newWriterExecutor(name);
+		return writerExecutor;
+	}
+
+	/**
+	 * @return the executor whose threads parse and process the messages arriving on this agent's connections, for connections
+	 * that do not read them on a thread of their own: those using the NIO transport and those whose input is framed.
+	 * It is created on first use.
+	 */
+	synchronized ExecutorService getDispatchExecutor() throws IOException {
+		if (usesChannels()) return getChannelReactor().getDispatcher();
+		if (dispatchExecutor == null)
+			dispatchExecutor = connectionOptions.newDispatchExecutor(name);
+		return dispatchExecutor;
+	}
+
+	/**
+	 * @return the wheel on which the deadlines of requests on this agent's connections expire. It is created on first use.
+	 */
+	synchronized DeadlineWheel getDeadlineWheel() {
+		if (deadlineWheel == null)
+			deadlineWheel = new DeadlineWheel(name, connectionOptions);
+		return deadlineWheel;
+	}
+
+	synchronized ScheduledExecutorService getHeartbeatScheduler() {
+		if (heartbeatScheduler == null)
+			heartbeatScheduler = connectionOptions.newHeartbeatScheduler(name);
+		return heartbeatScheduler;
+	}
+
+	/**
+	 * react to a connection whose partner has not answered a heartbeat within the stall timeout of this agent's {@link ConnectionOptions}.
+	 * The method defined for JRPCAgent returns true, so that the connection is dropped: its pending requests fail, and it is closed as it
+	 * would be if the partner had closed it. Override this method to keep stalled connections, or to act on the stall in some other way.
+	 * A connection that is kept remains stalled until its partner answers a heartbeat.
+	 * It is invoked on the thread that sends this agent's heartbeats.
+	 * @param connection a connection that is stalled
+	 * @return true to drop the connection
+	 */
+	protected boolean onConnectionStalled(Connection connection) {return true;}
+
+	/**
+	 * @return the reactor whose selector threads read this agent's NIO connections. 
+	 * It is created on first use unless the options supply a shared one.
+	 */
+	synchronized ChannelReactor getChannelReactor() throws IOException {
+		if (connectionOptions.sharedReactor != null) return connectionOptions.sharedReactor;
+		if (ownReactor == null)
+			ownReactor = new ChannelReactor(name, connectionOptions);
+		return ownReactor;
+	}
+	
+	/**
+	 * @return the statistics of the TLS handshakes performed for this agent's connections
+	 */
+	public TlsHandshakeStatistics getTlsHandshakeStatistics() {return tlsStatistics;}
 	
 	protected final JsonMapper objectMapperForConnection(Connection c) {
 		return c.getPartnerMapper();} 
@@ -215,6 +441,10 @@ public abstract class JRPCAgent extends HandlerRegistration implements Closeable
 	 * @return the InetAddress of this agents partner, if the partner is on a network connection.
 	 */
 	public final InetAddress getNetworkAddress() {return inetAddr;}
+	/**
+	 * @return the address of this agent's partner, if this agent connected to its partner through a Unix domain socket
+	 */
+	public final UnixDomainSocketAddress getUnixDomainAddress() {return unixAddress;}
 	/**
 	 * This method creates a connection to a partner with which it may communicate using Json RPC
 	 * An subclass of JRPCAgent may override this method to return a subclass of Connection if it wishes to implement
@@ -241,6 +471,55 @@ public abstract class JRPCAgent extends HandlerRegistration implements Closeable
 		return c;
 	}
 
+	/**
+	 * This method creates a connection that uses the NIO transport to a partner with which it may communicate using Json RPC.
+	 * A subclass of JRPCAgent that overrides createConnection(InputStream, OutputStream) should override this method as well.
+	 * @param channel a SocketChannel connected to the partner
+	 * @return a new Connection instance
+	 * @throws IOException
+	 */
+	protected Connection createConnection(SocketChannel channel) throws IOException {
+		return new Connection(this, channel);	}
+
+	/**
+	 * This method creates a connection that uses the NIO transport to a partner with which it may communicate using Json RPC
+	 * This method uses createConnection to create the connection object
+	 * @param channel a SocketChannel connected to the partner
+	 * @return a new Connection instance
+	 * @throws IOException
+	 */
+	public Connection connectToPartner(SocketChannel channel) throws IOException {
+		var c = createConnection(channel);
+		addPartner(c);
+		return c;
+	}
+
+	/**
+	 * This method creates a connection that uses the NIO transport, with TLS, to a partner with which it may communicate using Json RPC.
+	 * A subclass of JRPCAgent that overrides createConnection(SocketChannel) should override this method as well.
+	 * @param channel a SocketChannel connected to the partner, in blocking mode
+	 * @param engine the SSLEngine for the connection
+	 * @return a new Connection instance
+	 * @throws IOException if the TLS handshake fails
+	 */
+	protected Connection createConnection(SocketChannel channel, SSLEngine engine) throws IOException {
+		return new Connection(this, channel, engine);	}
+
+	/**
+	 * This method creates a connection that uses the NIO transport to a partner, running TLS over the channel if an engine is supplied.
+	 * This method uses createConnection to create the connection object
+	 * @param channel a SocketChannel connected to the partner
+	 * @param engine the SSLEngine for the connection, or null
+	 * @return a new Connection instance
+	 * @throws IOException
+	 */
+	public Connection connectToPartner(SocketChannel channel, SSLEngine engine) throws IOException {
+		if (engine == null) return connectToPartner(channel);
+		var c = createConnection(channel, engine);
+		addPartner(c);
+		return c;
+	}
+
 	/**
 	 * create an additional partner connection using the same remote server that was used to create this agent.
 	 * @return a new Connection instance
@@ -249,7 +528,14 @@ public abstract class JRPCAgent extends HandlerRegistration implements Closeable
 	 */
 	@SuppressWarnings("resource")
 	public Connection connectToPartner() throws IOException {
+		if (unixAddress != null) {
+			var channel = SocketChannel.open(unixAddress);
+			if (usesChannels()) return connectToPartner(channel);
+			return connectToPartner(Channels.newInputStream(channel), new BufferedOutputStream(Channels.newOutputStream(channel)));
+		}
 		if (inetAddr == null) throw new IOException("this agent ws not created with a socket-based partner");
+		if (usesChannels())
+			return connectToPartner(SocketChannel.open(new InetSocketAddress(inetAddr, port)));
 		var sock = new Socket(inetAddr, port);
 		return connectToPartner(sock.getInputStream(), sock.getOutputStream());
 	}
@@ -337,6 +623,14 @@ public abstract class JRPCAgent extends HandlerRegistration implements Closeable
 		executorService.shutdown();
 		//primaryConnection.close();
 		allPartners.forEach((p)->p.close());
+		synchronized(this) {
+			if (ownReactor != null) ownReactor.close();
+			if (writerExecutor != null) writerExecutor.shutdown();
+			if (dispatchExecutor != null) dispatchExecutor.shutdown();
+			if (deadlineWheel != null) deadlineWheel.stop();
+			if (heartbeatScheduler != null) heartbeatScheduler.shutdownNow();
+		}
+		if (metrics != null) metrics.closed();
 	}
 
 	/**
@@ -346,13 +640,24 @@ public abstract class JRPCAgent extends HandlerRegistration implements Closeable
 	 * For convenience, many methods which need a connection object have a override that does not require the connection
 	 * parameter, but instead use the primary connection. These overrides use the primary connection
 	 * regardless of whether the agent has multiple connections, and regardless of whether the primary connection is still 
-	 * open.</p>
+	 * open.</p><p>
+	 * An agent that reconnects to its partner may make the replacement connection its primary connection.</p>
 	 */
-	protected final Connection primaryConnection;
+	protected volatile Connection primaryConnection;
 	/**
 	 * @return the primary connection of this agent
 	 */
 	public Connection getPrimaryConnection() {return primaryConnection;}
+
+	/**
+	 * make another of this agent's connections its primary connection
+	 * @param connection the new primary connection
+	 */
+	protected void setPrimaryConnection(Connection connection) {
+		if (connection == null || connection.getAgent() != this)
+			throw new IllegalArgumentException("the primary connection of an agent must be one of its own connections");
+		primaryConnection = connection;
+	}
 	
 	//public TypeFactory getTypeFactory() {return primaryConnection.getTypeFactory();}
 
@@ -362,6 +667,12 @@ public abstract class JRPCAgent extends HandlerRegistration implements Closeable
 	public <T> T execute(PositionalParameterRequest<T> request, Object...parameters ) throws JRPCException {
 		return request.execute(primaryConnection, parameters);}	
 
+	public <T> T execute(Duration timeout, NamedParameterRequest<T> request, NamedRequestParameters namedParameters) throws JRPCException {
+		return request.execute(timeout, primaryConnection, namedParameters);}
+
+	public <T> T execute(Duration timeout, PositionalParameterRequest<T> request, Object...parameters ) throws JRPCException {
+		return request.execute(timeout, primaryConnection, parameters);}
+
 	/*public <T> T mexecute(PositionalParameterRequest<T> request, Map<String, TreeNode>meta,  Object...parameters ) throws JRPCException {
 		return request.mexecute(primaryConnection, meta, parameters);}*/
 	
@@ -20,8 +20,18 @@ public class JRPCAsyncRequest<T> extends JRPCSimpleRequest<T> {
 		// so far it appears I do not need requestId at all.  It might be needed if the partner supported a "cancel" request	
 		@SuppressWarnings("unused")
 		int requestId = -1;	
+
+		//a cancelled request is no longer pending, so a response that arrives for it is ignored
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			var cancelled = super.cancel(mayInterruptIfRunning);
+			var conn = connection;
+			if (cancelled && conn != null) conn.abandon(JRPCAsyncRequest.this);
+			return cancelled;
+		}
 	}
 	private final RequestFuture future;  //can be given a timeout to derive a new CompletableFuture<T>
+	private volatile Connection connection = null; //the connection on which this request was submitted
 
 	public JRPCAsyncRequest (OutboundRequest<T> outbound, //JRPCAgent agent, Map<String, TreeNode>meta, String methodName, Object resultClass,
 			 Object parameters) {
@@ -41,11 +51,15 @@ public class JRPCAsyncRequest<T> extends JRPCSimpleRequest<T> {
 	
 	@Override
 		int submit(Connection conn) throws IOException {
+		  connection = conn;
 		  return future.requestId = super.submit(conn);}
 
 	@Override 
 	boolean isCancelled() {return future.isCancelled();}
 
+	@Override
+	boolean isAwaited() {return false;}
+
     @Override
 	public void completed(IncomingMessage  msg) {
     	if (future.isCancelled()) return;
@@ -66,6 +80,17 @@ public class JRPCAsyncRequest<T> extends JRPCSimpleRequest<T> {
     	future.completeExceptionally(new JRPCException.JRPCApplicationError (new Exception("the connection on which this request's response would be delivered has been closed.")));
 	}
     
+    @Override
+    void onWriteFailed(IOException e) {
+    	future.completeExceptionally(new JRPCRuntimeException.SerializationFailure(
+    			String.format("failed to transmit request for [%s]", getMethodName()), e));
+    }
+
+    @Override
+    void onExpired() {
+    	future.completeExceptionally(new JRPCRequestTimeoutException(getOutbound()));
+    }
+
 	public CompletableFuture<T>getFuture(){return future;}
 	
     T get() throws InterruptedException, ExecutionException {
@@ -76,7 +101,7 @@ public class JRPCAsyncRequest<T> extends JRPCSimpleRequest<T> {
     	try {
 			return (T1)future.get(millis, TimeUnit.MILLISECONDS);
 		} catch (TimeoutException e) {
-			future.cancel(false); //that will cause the agent to ignore the eventual result.
+			future.cancel(false); //that will cause the agent to ignore the eventual result, and frees the request's slot
 			throw new JRPCRequestTimeoutException(request);
 		}catch(CancellationException e) {//this is a runtime exception in java
 			throw e;
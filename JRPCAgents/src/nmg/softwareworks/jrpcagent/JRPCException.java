@@ -170,13 +170,14 @@ public abstract class JRPCException extends Exception implements JRPCProblem{
 	}
 	
 	/**
-	 * a JRPCRequestTimeoutException is thrown when an agent abandons an asynchronous request.
+	 * a JRPCRequestTimeoutException is thrown when an agent abandons an asynchronous request, or when a request's deadline passes
+	 * before its response arrives.
 	 *
 	 */
 	public static class JRPCRequestTimeoutException extends JRPCException{
 		private final OutboundRequest<?> request;
 		public JRPCRequestTimeoutException(OutboundRequest<?> request) {
-			super("agent quit waiting for a response to an asynchronous request");
+			super("agent quit waiting for a response to a request");
 			this.request = request;
 		}
 		public OutboundRequest<?> getRequest(){return request;}
@@ -19,13 +19,15 @@ class JRPCResponse<T> {
 		responseError = response.responseError;
 	}
 	JRPCResponse(JRPCSimpleRequest<T> request) {//this constructor is used when the connection on which a request is awaiting a response is closed
+		this(request, "connection closed prior to receiving response");}
+	JRPCResponse(JRPCSimpleRequest<T> request, String message) {//a response made by this agent for a request that got none
 		//this.request = request;
 		requestId = request.requestId;
 		hasResult = false;
 		result = null;
 		responseError = JsonUtilities.jnfactory.objectNode();
 		responseError.put("code", -32000);
-		responseError.put("message", "connection closed prior to receiving response");
+		responseError.put("message", message);
 	}
 	public T getResult() {return  result;}
 	public boolean hasResult() {return hasResult;}
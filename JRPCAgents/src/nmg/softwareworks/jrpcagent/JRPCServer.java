@@ -5,6 +5,11 @@ import java.net.ServerSocket;
 import java.net.Socket;
 //import java.net.Socket;
 import java.net.SocketException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
@@ -21,25 +26,89 @@ import java.util.concurrent.locks.ReentrantLock;
 public abstract class JRPCServer extends HandlerRegistration {
 	private  int serverConnectionCounter = 1;
 	final int nextConnectionIndex() {return ++serverConnectionCounter;}
-	private final ServerSocket serverSocket ;
+	private final ServerSocket serverSocket ; //null for a server listening on a Unix domain socket
+	private final ServerSocketChannel serverChannel;
 	private final String name;
 	private final Set<ServerAgent>myClients = Collections.synchronizedSet(new HashSet<>());
 	final void removeClient(ServerAgent sa) {myClients.remove(sa);}
+	private ConnectionOptions connectionOptions = new ConnectionOptions();
+	private ChannelReactor clientReactor = null;
 	protected JRPCServer(String name, ServerSocket serverSocket) {
 		this.name = name;
 		this.serverSocket = serverSocket;
+		this.serverChannel = serverSocket.getChannel();
+	}
+
+	/**
+	 * Create a server that listens on a ServerSocketChannel. For clients on the same host, the channel may be bound to a
+	 * UnixDomainSocketAddress, which avoids the TCP stack. Clients accepted on a Unix domain socket
+	 * are given to {@link #newClient(SocketChannel)}; clients accepted on a TCP channel are given to {@link #newClient(Socket)}.
+	 * @param name the name of this server
+	 * @param serverChannel a bound ServerSocketChannel
+	 * @throws IOException if the channel's address cannot be determined
+	 */
+	protected JRPCServer(String name, ServerSocketChannel serverChannel) throws IOException {
+		this.name = name;
+		this.serverChannel = serverChannel;
+		this.serverSocket = (serverChannel.getLocalAddress() instanceof UnixDomainSocketAddress) ? null : serverChannel.socket();
+	}
+
+	/**
+	 * @return the options used for the connections of this server's ServerAgents
+	 */
+	public ConnectionOptions getConnectionOptions() {return connectionOptions;}
+
+	/**
+	 * Set the options used for the connections of ServerAgents created after this call.
+	 * To use the NIO transport, this server's ServerSocket must have been obtained from a ServerSocketChannel. All of the
+	 * ServerAgents then share a single set of selector threads.
+	 * @param options the options to use
+	 */
+	public void setConnectionOptions(ConnectionOptions options) {
+		this.connectionOptions = options == null ? new ConnectionOptions() : options;}
+
+	/**
+	 * @return the options for a newly accepted client's ServerAgent
+	 * @throws IOException if the shared selector threads cannot be started
+	 */
+	synchronized ConnectionOptions clientConnectionOptions() throws IOException {
+		if (connectionOptions.getTransport() != ConnectionOptions.Transport.NIO) return connectionOptions;
+		if (clientReactor == null)
+			clientReactor = new ChannelReactor(name, connectionOptions);
+		var options = new ConnectionOptions(connectionOptions);
+		options.sharedReactor = clientReactor;
+		return options;
 	}
 	
 	abstract protected ServerAgent newClient(Socket clientSocket) throws IOException;
+
+	/**
+	 * A server that listens on a Unix domain socket must override this method to create the ServerAgent for a new client, 
+	 * typically with the ServerAgent constructor that takes a SocketChannel.
+	 * @param clientChannel the server side of the connection
+	 * @return a new ServerAgent instance
+	 * @throws IOException if the ServerAgent cannot be created
+	 */
+	protected ServerAgent newClient(SocketChannel clientChannel) throws IOException {
+		clientChannel.close();
+		throw new IOException(String.format("%s does not accept clients on a Unix domain socket", name));
+	}
 	
 	/**
-	 * @return the port on which this server listens
+	 * @return the port on which this server listens, or -1 if it listens on a Unix domain socket
+	 */
+	public int getPort() {return serverSocket == null ? -1 : serverSocket.getLocalPort();}
+	/**
+	 * @return the ServerSocket on which this server listens, or null if it listens on a Unix domain socket
 	 */
-	public int getPort() {return serverSocket.getLocalPort();}
 	public ServerSocket getSocket() {return serverSocket;}
+	/**
+	 * @return the ServerSocketChannel on which this server listens, or null if its ServerSocket was not obtained from a channel
+	 */
+	public ServerSocketChannel getChannel() {return serverChannel;}
 	public String getName() {return name;}
 	public ServerAgent clientForConnection(Connection conn) {
-		for (var client : myClients) {
+		for (var client : myClients.toArray(new ServerAgent[0])) {
 			if (client.getConnection() == conn) return client;}
 		return null;
 	}
@@ -64,30 +133,37 @@ public abstract class JRPCServer extends HandlerRegistration {
 		if (b) acceptLock.lock(); else acceptLock.unlock();
 	};
 	
+	/**
+	 * start the thread that accepts new clients
+	 * @param asDeamon true if the accepting thread should be a daemon thread. When the server's execution mode is VIRTUAL,
+	 * a daemon accepting thread is a virtual thread.
+	 * @return the accepting thread
+	 */
 	public Thread start(boolean asDeamon /*, ServerAgent agent*/) throws IOException {
-		var thread = new Thread() {//this should be a virtual thread for java21+
-			public void run() {
-				while (true) {
-					Socket clientSocket = null;
-					synchronized (acceptLock) {
-						try {
-							clientSocket = serverSocket.accept();
-						}catch(SocketException ie) {
-							return;
-						}catch (IOException e) {
-							Logging.getLogger().log(e, "ServerSocket accept failure");
-							break;
-						}
-					}
-					//if (agent!=null) myClients.add(agent);
-					try {
-						var agent = newClient(clientSocket);
-						myClients.add(agent);
-					} catch(IOException e) {
-						e = e;}
-				};
+		Runnable acceptLoop = () -> {
+			while (true) {
+				Socket clientSocket = null;
+				SocketChannel clientChannel = null;
+				try {
+					if (serverSocket != null) clientSocket = serverSocket.accept();
+					else clientChannel = serverChannel.accept();
+				}catch(SocketException | ClosedChannelException ie) {
+					return;
+				}catch (IOException e) {
+					Logging.getLogger().log(e, "ServerSocket accept failure");
+					break;
+				}
+				//if (agent!=null) myClients.add(agent);
+				try {
+					var agent = clientSocket != null ? newClient(clientSocket) : newClient(clientChannel);
+					myClients.add(agent);
+				} catch(IOException e) {
+					e = e;}
 			};
 		};
+		if (asDeamon && connectionOptions.usesVirtualThreads())
+			return Thread.ofVirtual().start(acceptLoop);
+		var thread = new Thread(acceptLoop);
 		if (asDeamon) 
 			thread.setDaemon(true);
 		thread.start();
@@ -98,7 +174,13 @@ public abstract class JRPCServer extends HandlerRegistration {
 	 * causes the JRPCServer to quit accepting new connections
 	 */
 	protected void quitListening() {
-		try{serverSocket.close();
+		try{
+			if (serverSocket != null) serverSocket.close();
+			else {
+				var address = serverChannel.getLocalAddress();
+				serverChannel.close();
+				if (address instanceof UnixDomainSocketAddress uds) Files.deleteIfExists(uds.getPath()); //the socket file outlives the channel
+			}
 		}catch(IOException e) {};
 	}
 	
@@ -106,9 +188,12 @@ public abstract class JRPCServer extends HandlerRegistration {
 	 * performs a shutdown of each of the existing clients of this JRPCServer
 	 */
 	protected void shutdownAllClients() {
-		myClients.forEach(sa -> {
+		for (var sa : myClients.toArray(new ServerAgent[0])) //a client removes itself from myClients as it closes
 			try {sa.close();
 			} catch (Throwable t) {}
-		});
+		synchronized(this) {
+			if (clientReactor != null) clientReactor.close();
+			clientReactor = null;
 		}
+	}
 }
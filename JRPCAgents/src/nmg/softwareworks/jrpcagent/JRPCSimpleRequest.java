@@ -4,6 +4,7 @@ package nmg.softwareworks.jrpcagent;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
 import com.fasterxml.jackson.core.*;
 import com.fasterxml.jackson.databind.*;
 import com.fasterxml.jackson.databind.json.JsonMapper;
@@ -32,6 +33,14 @@ public class JRPCSimpleRequest<T> {
 	private final boolean isNotification;
 	private final OutboundRequest<T> outbound;
 	int requestId = -1; //for normal requests, this field is assigned in postRequest
+	long deadline = 0; //the System.nanoTime at which this request expires if it has not been answered, or 0
+	MethodMetrics metrics = null; //the metrics of this request's method, if its agent keeps metrics
+	long sentAt = 0; //the System.nanoTime at which this request was sent
+	TraceContext trace = null; //the span of this request, or for a notification the context it carries, if its agent traces its messages
+	private volatile boolean expired = false;
+	//a synchronous caller parks until another thread sets responded and unparks it
+	private volatile boolean responded = false;
+	private volatile Thread waiter = null;
 
 	/*public JRPCSimpleRequest(OutboundRequest<T> outbound, JRPCAgent agent, String methodName, T instanceForResult, 
 			Object resultType, Object parameters) {
@@ -92,16 +101,28 @@ public class JRPCSimpleRequest<T> {
 	public Class<T> getResultClass(){return resultClass;}
 	//public boolean isServerAsynchronous() {return serverAsynchronous;}
 	boolean isCancelled() {return false;}
-	//OutboundRequest<T> getOutbound(){return outbound;}
+	OutboundRequest<T> getOutbound(){return outbound;}
 
 	int submit(Connection conn) throws IOException {
 		//tw server log is in  /home/tw/logs/jsonrpc.log
 		var agent = conn.getAgent();
 		//int requestId = -1;
+		var event = new FlightRecorderEvents.RequestSent();
+		event.begin();
+		var methodMetrics = conn.metricsFor(methodName);
 		if (!isNotification) {
 			requestId = agent.nextRequestId();
 			//if (outbound != null) outbound.requestId = requestId;
-			conn.addPendingRequest(requestId,this);
+			sentAt = System.nanoTime();
+			if (conn.traces(methodName)) trace = TraceContext.childOfCurrent();
+			if (methodMetrics != null) {
+				metrics = methodMetrics;
+				methodMetrics.requestSent();
+			}
+			conn.addPendingRequest(this);
+		} else {
+			if (methodMetrics != null) methodMetrics.notificationSent();
+			if (conn.traces(methodName)) trace = TraceContext.current();
 		}
 		/*if (request != null) {
 			var json = getRequestJsonText();
@@ -111,16 +132,24 @@ public class JRPCSimpleRequest<T> {
 				conn.writeSocket(json);
 			}
 		} else {//stream request*/
-			var jg = conn.getGenerator();
-			synchronized(jg) {
-				conn.startLogging(true);
-				streamRequest(jg, conn.getPartnerMapper());//, requestId);
-				jg.flush();
-				var text = conn.getLoggedText(true);
-				if (text != null) Logging.log("%s requesting: <%s>", agent.getName(), text);
-				conn.afterWriteMessage(); jg.flush();
+			long bytes;
+			if (isNotification) //a notification has no id
+				bytes = conn.writeMessage(methodName, "notifying:", jg -> streamNotification(jg, conn.getPartnerMapper()));
+			else try {
+				bytes = conn.writeMessage(methodName, "requesting:", jg -> streamRequest(jg, conn.getPartnerMapper()), this);//, requestId);
+			} catch (IOException e) { //the caller learns of the failure from the exception; the request must not stay pending
+				conn.unsent(this);
+				throw e;
 			}
 		//}
+		event.end();
+		if (event.shouldCommit()) {
+			event.method = methodName;
+			event.requestId = requestId;
+			event.connection = conn.getName();
+			event.bytes = bytes;
+			event.commit();
+		}
 		return requestId;
 	}
 	
@@ -148,6 +177,7 @@ public class JRPCSimpleRequest<T> {
 	void streamRequestOrNotification(JsonGenerator jg, JsonMapper mapper) throws IOException {
 		JsonUtilities.addStandardJRPCProperties(jg, getMethodName());
 		//streamMeta(jg, mapper, meta);
+		if (trace != null) jg.writeStringField(TraceContext.property, trace.toString());
 		jg.writeFieldName("params");
 		if (isPositional()){
 			jg.writeStartArray();
@@ -194,8 +224,40 @@ public class JRPCSimpleRequest<T> {
 
 	public void completed(IncomingMessage msg) {
 		this.response = new JRPCResponse<T>(msg, this);
-		synchronized(this) {notify();} //wake up thread waiting for a response
+		respond(); //wake up thread waiting for a response
+	}
+
+	private void respond() {
+		responded = true;
+		var thread = waiter;
+		if (thread != null) LockSupport.unpark(thread);
 	}
+
+	/**
+	 * block the calling thread until a response (or the closing of the connection, or expiry) completes this request.
+	 * The thread parks without holding a monitor, which would pin a virtual thread.
+	 * @param until the System.nanoTime at which to quit waiting, or 0 to wait for as long as it takes
+	 * @return false if until passed before this request was completed
+	 */
+	boolean awaitResponse(long until) throws InterruptedException {
+		waiter = Thread.currentThread();
+		while (!responded) {
+			if (until == 0) LockSupport.park(this);
+			else {
+				var remaining = until - System.nanoTime();
+				if (remaining <= 0) return false;
+				LockSupport.parkNanos(this, remaining);
+			}
+			if (Thread.interrupted()) throw new InterruptedException();
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the thread that sent this request waits for its response, and expires it itself when its deadline passes.
+	 * Otherwise the deadline is kept on the agent's deadline wheel.
+	 */
+	boolean isAwaited() {return true;}
 	
 	public Object deserializeResult(IncomingMessage response, JsonParser jParser, Connection conn) {
 		//'this' is the orginal request
@@ -203,6 +265,8 @@ public class JRPCSimpleRequest<T> {
 		
 		//var dsstate = conn.getDeserializationState();
 
+		var event = new FlightRecorderEvents.ResultDeserialized();
+		event.begin();
 		try {
 			if (resultClass != null)
 				return conn.deserializeResult(jParser, resultClass);
@@ -217,7 +281,15 @@ public class JRPCSimpleRequest<T> {
 			var consumed = conn.getLoggedText(false);
 			throw new JRPCRuntimeException.DeserializationFailure(
 					String.format("could not deserialize the result in a response.<%s>", consumed), e);
-		} 
+		} finally {
+			event.end();
+			if (event.shouldCommit()) {
+				event.method = methodName;
+				event.requestId = requestId;
+				event.resultType = resultClass != null ? resultClass.getName() : resultJType.toString();
+				event.commit();
+			}
+		}
 	}
 
 	void establishResponseDeserializationAttributes(IncomingMessage response, DeserializationContext deserializationContext) {
@@ -225,8 +297,19 @@ public class JRPCSimpleRequest<T> {
 	
 	void onConnectionClosed() { //called when the connection on which this request is awaiting a response gets closed
 		this.response = new JRPCResponse<T>(this);
-		synchronized(this) {this.notify();}		
+		respond();
+	}
+
+	void onExpired() { //called when this request's deadline passes before a response arrives
+		expired = true;
+		respond();
+	}
+
+	void onWriteFailed(IOException e) { //called when this request, held back during a negotiation, could not be written after it
+		this.response = new JRPCResponse<T>(this, String.format("failed to transmit request: %s", e.getMessage()));
+		respond();
 	}
+	boolean hasExpired() {return expired;}
 	
 	/*private static final JsonNodeFactory jnfactory = JsonNodeFactory.instance;
 	private static final MappingJsonFactory mjfactory = new MappingJsonFactory();
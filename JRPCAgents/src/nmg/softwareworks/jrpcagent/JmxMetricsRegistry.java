@@ -0,0 +1,257 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * <p>A JmxMetricsRegistry publishes the metrics of agents as MXBeans registered with an MBeanServer, the platform MBeanServer
+ * unless another is given. In the registry's domain, which is nmg.softwareworks.jrpcagent unless another is given, there are
+ * </p>
+ * <ul>
+ * <li>type=Agent,agent=<i>a</i> for each agent, described by {@link AgentMXBean}</li>
+ * <li>type=Method,agent=<i>a</i>,method=<i>m</i> for each method of each agent, described by {@link MethodMXBean}</li>
+ * <li>type=Connection,agent=<i>a</i>,connection=<i>c</i> for each open connection of each agent, described by {@link ConnectionMXBean}</li>
+ * </ul>
+ * <p>
+ * The key <i>a</i> is the agent's name followed by a number that tells apart agents of the same name, and <i>c</i> is the connection's
+ * name followed by such a number. An agent's MXBeans are unregistered when it is closed, and a connection's when it is closed.
+ * Durations are reported in microseconds.
+ * </p>
+ */
+public class JmxMetricsRegistry implements MetricsRegistry {
+	/**
+	 * The attributes of an agent's MXBean
+	 */
+	public interface AgentMXBean {
+		String getName();
+		/** @return the names of the methods the agent has sent or received messages of */
+		String[] getMethods();
+		/** @return the number of the agent's open connections */
+		int getConnections();
+		long getRequestsSent();
+		long getRequestsReceived();
+		long getInFlight();
+	}
+
+	/**
+	 * The attributes of the MXBean of one method of an agent. See {@link MethodMetrics}.
+	 */
+	public interface MethodMXBean {
+		String getMethod();
+		long getRequestsSent();
+		long getNotificationsSent();
+		long getResponses();
+		long getErrorResponses();
+		/** @return the number of error responses with each JRPC error code */
+		Map<String,Long> getErrorCounts();
+		long getTimeouts();
+		long getInFlight();
+		long getLatencyMeanMicros();
+		long getLatencyP50Micros();
+		long getLatencyP90Micros();
+		long getLatencyP99Micros();
+		long getLatencyMaxMicros();
+		long getRequestsReceived();
+		long getNotificationsReceived();
+		long getHandlerErrors();
+		long getHandlerTimeMeanMicros();
+		long getHandlerTimeP99Micros();
+		long getHandlerTimeMaxMicros();
+		long getBytesOut();
+		long getBytesIn();
+		long getMeanSerializationMicros();
+		long getMeanDeserializationMicros();
+	}
+
+	/**
+	 * The attributes of the MXBean of one open connection of an agent
+	 */
+	public interface ConnectionMXBean {
+		String getName();
+		/** @return NIO or STREAM */
+		String getTransport();
+		int getPendingRequests();
+		/** @return the number of notifications waiting to be handled. See {@link NotificationStatistics}. */
+		int getNotificationDepth();
+		int getNotificationMaxDepth();
+		long getNotificationsDelivered();
+		long getNotificationsDropped();
+		long getNotificationHandlerMeanMicros();
+		long getNotificationHandlerP99Micros();
+		long getNotificationHandlerMaxMicros();
+		boolean isStalled();
+		/** @return the mean of the recent heartbeat round trip times, or -1 if the connection has no heartbeat */
+		long getRoundTripMeanMicros();
+	}
+
+	private static long micros(Duration d) {return d.toNanos() / 1000;}
+
+	private record AgentBean(JRPCAgent agent, AgentMetrics metrics, Registered registered) implements AgentMXBean {
+		public String getName() {return agent.getName();}
+		public String[] getMethods() {return metrics.getMethods().stream().map(MethodMetrics::getMethod).sorted().toArray(String[]::new);}
+		public int getConnections() {return registered.connections.size();}
+		public long getRequestsSent() {return metrics.getMethods().stream().mapToLong(MethodMetrics::getRequestsSent).sum();}
+		public long getRequestsReceived() {return metrics.getMethods().stream().mapToLong(MethodMetrics::getRequestsReceived).sum();}
+		public long getInFlight() {return metrics.getMethods().stream().mapToLong(MethodMetrics::getInFlight).sum();}
+	}
+
+	private record MethodBean(MethodMetrics m) implements MethodMXBean {
+		public String getMethod() {return m.getMethod();}
+		public long getRequestsSent() {return m.getRequestsSent();}
+		public long getNotificationsSent() {return m.getNotificationsSent();}
+		public long getResponses() {return m.getResponses();}
+		public long getErrorResponses() {return m.getErrorResponses();}
+		public Map<String,Long> getErrorCounts() {
+			var counts = new TreeMap<String,Long>();
+			m.getErrorCounts().forEach((code, n) -> counts.put(code.toString(), n));
+			return counts;
+		}
+		public long getTimeouts() {return m.getTimeouts();}
+		public long getInFlight() {return m.getInFlight();}
+		public long getLatencyMeanMicros() {return micros(m.getLatency().getMean());}
+		public long getLatencyP50Micros() {return micros(m.getLatency().getPercentile(50));}
+		public long getLatencyP90Micros() {return micros(m.getLatency().getPercentile(90));}
+		public long getLatencyP99Micros() {return micros(m.getLatency().getPercentile(99));}
+		public long getLatencyMaxMicros() {return micros(m.getLatency().getMax());}
+		public long getRequestsReceived() {return m.getRequestsReceived();}
+		public long getNotificationsReceived() {return m.getNotificationsReceived();}
+		public long getHandlerErrors() {return m.getHandlerErrors();}
+		public long getHandlerTimeMeanMicros() {return micros(m.getHandlerTime().getMean());}
+		public long getHandlerTimeP99Micros() {return micros(m.getHandlerTime().getPercentile(99));}
+		public long getHandlerTimeMaxMicros() {return micros(m.getHandlerTime().getMax());}
+		public long getBytesOut() {return m.getBytesOut();}
+		public long getBytesIn() {return m.getBytesIn();}
+		public long getMeanSerializationMicros() {return micros(m.getMeanSerializationTime());}
+		public long getMeanDeserializationMicros() {return micros(m.getMeanDeserializationTime());}
+	}
+
+	private record ConnectionBean(Connection c) implements ConnectionMXBean {
+		public String getName() {return c.getName();}
+		public String getTransport() {return c.usesChannel() ? "NIO" : "STREAM";}
+		public int getPendingRequests() {return c.getPendingRequestCount();}
+		public int getNotificationDepth() {return c.getNotificationStatistics().getDepth();}
+		public int getNotificationMaxDepth() {return c.getNotificationStatistics().getMaxDepth();}
+		public long getNotificationsDelivered() {return c.getNotificationStatistics().getDelivered();}
+		public long getNotificationsDropped() {return c.getNotificationStatistics().getDropped();}
+		public long getNotificationHandlerMeanMicros() {return micros(c.getNotificationStatistics().getHandlerTime().getMean());}
+		public long getNotificationHandlerP99Micros() {return micros(c.getNotificationStatistics().getHandlerTime().getPercentile(99));}
+		public long getNotificationHandlerMaxMicros() {return micros(c.getNotificationStatistics().getHandlerTime().getMax());}
+		public boolean isStalled() {return c.isStalled();}
+		public long getRoundTripMeanMicros() {
+			var rtt = c.getRoundTripStatistics();
+			return rtt == null ? -1 : micros(rtt.getMean());
+		}
+	}
+
+	//the MXBeans registered for one agent
+	private static final class Registered {
+		final String key;
+		final List<ObjectName> names = new CopyOnWriteArrayList<>();
+		final Map<Connection,ObjectName> connections = new ConcurrentHashMap<>();
+		Registered(String key) {this.key = key;}
+	}
+
+	private final MBeanServer server;
+	private final String domain;
+	private final Map<JRPCAgent,Registered> agents = new ConcurrentHashMap<>();
+	private final AtomicLong sequence = new AtomicLong(0);
+
+	/**
+	 * Create a registry that publishes metrics with the platform MBeanServer, in the domain nmg.softwareworks.jrpcagent
+	 */
+	public JmxMetricsRegistry() {
+		this(ManagementFactory.getPlatformMBeanServer(), "nmg.softwareworks.jrpcagent");}
+
+	/**
+	 * @param server the MBeanServer with which to register MXBeans
+	 * @param domain the domain of their ObjectNames
+	 */
+	public JmxMetricsRegistry(MBeanServer server, String domain) {
+		if (server == null || domain == null || domain.isEmpty())
+			throw new IllegalArgumentException("JmxMetricsRegistry requires an MBeanServer and a domain");
+		this.server = server;
+		this.domain = domain;
+	}
+
+	private String key(String name) {
+		return ObjectName.quote((name == null ? "" : name) + "#" + sequence.incrementAndGet());}
+
+	private ObjectName register(Object bean, String properties) {
+		try {
+			var name = new ObjectName(domain + ":" + properties);
+			server.registerMBean(bean, name);
+			return name;
+		} catch (JMException e) {
+			Logging.log(e, String.format("could not register MXBean %s", properties));
+			return null;
+		}
+	}
+
+	private void unregister(ObjectName name) {
+		if (name == null) return;
+		try {server.unregisterMBean(name);
+		} catch (JMException e) {} //already unregistered
+	}
+
+	@Override
+	public void agentOpened(JRPCAgent agent, AgentMetrics metrics) {
+		var registered = new Registered(key(agent.getName()));
+		agents.put(agent, registered);
+		var name = register(new AgentBean(agent, metrics, registered), "type=Agent,agent=" + registered.key);
+		if (name != null) registered.names.add(name);
+	}
+
+	@Override
+	public void agentClosed(JRPCAgent agent, AgentMetrics metrics) {
+		var registered = agents.remove(agent);
+		if (registered == null) return;
+		registered.names.forEach(this::unregister);
+		registered.connections.values().forEach(this::unregister);
+	}
+
+	@Override
+	public void methodAdded(JRPCAgent agent, MethodMetrics metrics) {
+		var registered = agents.get(agent);
+		if (registered == null) return;
+		var name = register(new MethodBean(metrics),
+				"type=Method,agent=" + registered.key + ",method=" + ObjectName.quote(metrics.getMethod()));
+		if (name != null) registered.names.add(name);
+	}
+
+	@Override
+	public void connectionOpened(Connection connection) {
+		var registered = agents.get(connection.getAgent());
+		if (registered == null) return;
+		var name = register(new ConnectionBean(connection),
+				"type=Connection,agent=" + registered.key + ",connection=" + key(connection.getName()));
+		if (name != null) registered.connections.put(connection, name);
+	}
+
+	@Override
+	public void connectionClosed(Connection connection) {
+		var registered = agents.get(connection.getAgent());
+		if (registered != null) unregister(registered.connections.remove(connection));
+	}
+
+	/**
+	 * @return the names of the MXBeans this registry has registered and not yet unregistered
+	 */
+	public List<ObjectName> getRegisteredNames() {
+		var names = new ArrayList<ObjectName>();
+		for (var registered : agents.values()) {
+			names.addAll(registered.names);
+			names.addAll(registered.connections.values());
+		}
+		return names;
+	}
+}
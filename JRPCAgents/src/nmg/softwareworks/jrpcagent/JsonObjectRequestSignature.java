@@ -64,7 +64,7 @@ public class JsonObjectRequestSignature extends RequestSignature {
 	private static boolean isPrimitive(Object type) {
 		return type instanceof SimpleType st && st.isPrimitive();}
 	
-	private static Object defaultValueFor(Class<?> type) {//TODO: fix this;
+	static Object defaultValueFor(Class<?> type) {//TODO: fix this;
 		if (type == int.class) return (int)0;
 		if (type == long.class) return 0L;
 		if (type == short.class) return 0;
@@ -0,0 +1,71 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/* JsonStreamFramer frames the JSON stream protocol: messages are top level json objects (or arrays, for batches)
+ * written one after another, possibly separated by whitespace.  A message is complete when the nesting depth returns to zero
+ * outside of a string.  The structural characters are all ascii, and  UTF-8 never uses ascii byte values within a multi-byte
+ * character, so the scan can be done on the raw bytes.
+ * Anything else found at the top level is delivered as its own 'message' (up to the next whitespace or structural character)
+ * so that the parser can report it.
+ */
+final class JsonStreamFramer implements MessageFramer{
+	private static final int initialCapacity = 8192, retainedCapacity = 1<<20;
+	private byte[] pending = new byte[initialCapacity];
+	private int length = 0;
+	private int depth = 0;
+	private boolean inString = false, escaped = false, junk = false;
+
+	private void append(byte b) {
+		if (length == pending.length)
+			pending = Arrays.copyOf(pending, 2*length);
+		pending[length++] = b;
+	}
+
+	private void deliver(MessageSink sink) throws IOException {
+		var message = Arrays.copyOf(pending, length);
+		length = 0;
+		if (pending.length > retainedCapacity) pending = new byte[initialCapacity];
+		sink.message(message);
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\n' || b == '\r' || b == '\t';}
+
+	@Override
+	public void feed(ByteBuffer input, MessageSink sink) throws IOException {
+		while (input.hasRemaining()) {
+			var b = input.get();
+			if (length == 0) { //between messages
+				if (isWhitespace(b)) continue;
+				append(b);
+				if (b == '{' || b == '[') depth = 1;
+				else junk = true;
+				continue;
+			}
+			if (junk) {
+				if (isWhitespace(b) || b == '{' || b == '[') {
+					junk = false;
+					deliver(sink);
+					input.position(input.position()-1); //rescan b as the start of what follows
+				} else append(b);
+				continue;
+			}
+			append(b);
+			if (inString) {
+				if (escaped) escaped = false;
+				else if (b == '\\') escaped = true;
+				else if (b == '"') inString = false;
+			} else switch(b) {
+				case '"' -> inString = true;
+				case '{', '[' -> depth++;
+				case '}', ']' -> {
+					if (--depth == 0) deliver(sink);
+				}
+				default -> {}
+			}
+		}
+	}
+}
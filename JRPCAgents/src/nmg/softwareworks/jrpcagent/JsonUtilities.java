@@ -79,23 +79,61 @@ public class JsonUtilities {
 	static final MappingJsonFactory mjfactory =  new MappingJsonFactory();
 	//static final SimpleModule JRPCRules = new SimpleModule(); //currently empty, but should have something for messages, no?
 	public static final JsonMapper jsonMapper(SerializationState deserializationState) { 
-		var defaultDsAtts = ContextAttributes.getEmpty().withSharedAttribute("deserializationState", deserializationState);
+		var defaultDsAtts = new DeserializationAttributes(deserializationState);
 		var mapper = JsonMapper.builder(mjfactory) .enable(DeserializationFeature.FAIL_ON_NULL_FOR_PRIMITIVES)
+				//a connection flushes once, at the end of each message. A flush after each parameter would send a message in pieces,
+				//which on a TLS connection (with Nagle's algorithm) delays the end of the message until the partner acknowledges its start
+				.disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE)
 				.defaultAttributes(defaultDsAtts) //.constructorDetector(ConstructorDetector.USE_PROPERTIES_BASED)
 				.build();
 		JsonTimeUtilities.isoSerialization(mapper);
 		//mapper.registerModule(JRPCRules);
 		return mapper;
 	}
+	/* The "deserializationState" attribute of a connection's mapper is normally the connection's own state. A message deserialized
+	 * in parallel with others on the same connection has a state of its own, bound to the thread that deserializes it. Deserializers
+	 * that start a nested deserialization from the mapper get a new context with the mapper's default attributes, so the binding
+	 * is found here rather than in a per-call attribute.
+	 */
+	private static final ThreadLocal<SerializationState> boundDeserializationState = new ThreadLocal<>();
+	private static final class DeserializationAttributes extends ContextAttributes.Impl {
+		private static final long serialVersionUID = 1L;
+		private final transient SerializationState connectionState;
+		DeserializationAttributes(SerializationState connectionState) {
+			super(java.util.Collections.singletonMap("deserializationState", connectionState));
+			this.connectionState = connectionState;
+		}
+		@Override
+		public Object getAttribute(Object key) {
+			if (!"deserializationState".equals(key)) return super.getAttribute(key);
+			var bound = boundDeserializationState.get();
+			return bound != null ? bound : connectionState;
+		}
+	}
+	/**
+	 * bind the state used for the deserialization of a message by this thread
+	 * @param state the state, or null to revert to the connection's own state
+	 */
+	static void bindDeserializationState(SerializationState state) {
+		if (state == null) boundDeserializationState.remove();
+		else boundDeserializationState.set(state);
+	}
+	/**
+	 * @return the state bound by this thread for the deserialization of a message, or null
+	 */
+	static SerializationState boundDeserializationState() {return boundDeserializationState.get();}
+
 	public static void addStandardJRPCProperties(JsonGenerator jg, String methodName) throws IOException {
 		jg.writeStringField("jsonrpc", "2.0");
 		if (methodName!=null) jg.writeStringField("method", methodName);
 	}
 		
-	static JsonGenerator createStreamSerializer(JsonMapper mapper, LoggingWriter oWriter) throws IOException {
-		return mapper.createGenerator(oWriter);}
-	static JsonParser createStreamDeserializer(JsonMapper mapper, LoggingReader iReader)throws IOException {
-		var parser = mapper.createParser(iReader);
+	//the byte stream generator and parser work directly in UTF-8, with no charset encoding/decoding pass
+	static JsonGenerator createStreamSerializer(JsonMapper mapper, LoggingOutputStream ostream) throws IOException {
+		return mapper.createGenerator(ostream, JsonEncoding.UTF8);}
+	//creating the parser reads the first few bytes from istream (to detect the encoding), so this may block
+	static JsonParser createStreamDeserializer(JsonMapper mapper, LoggingInputStream istream)throws IOException {
+		var parser = mapper.createParser(istream);
 		parser.setCodec(mapper);
 		//parser.enable( JsonReadFeature.ALLOW_BACKSLASH_ESCAPING_ANY_CHARACTER);
 		return parser;
@@ -0,0 +1,112 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A LatencyHistogram counts durations in log-linear buckets: each power of 2 nanoseconds is divided into 8 buckets of equal width,
+ * so a percentile it reports is within 12.5% of the exact value. Unlike {@link RoundTripStatistics}, it describes every duration
+ * recorded since it was created. Recording a duration neither locks nor allocates, so it can be done on every message.
+ * An application may keep its own LatencyHistograms, for example of the operations it builds from several requests.
+ */
+public final class LatencyHistogram {
+	private static final int subBits = 3, subBuckets = 1 << subBits;
+	private static final int bucketCount = (63 - subBits + 1) * subBuckets; //enough for any positive long
+	private final AtomicLongArray buckets = new AtomicLongArray(bucketCount);
+	private final LongAdder count = new LongAdder(), sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong(0);
+
+	public LatencyHistogram() {}
+
+	private static int bucket(long nanos) {
+		if (nanos < subBuckets) return (int)Math.max(nanos, 0);
+		var exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		return (exponent - subBits + 1) * subBuckets + (int)((nanos >>> (exponent - subBits)) & (subBuckets - 1));
+	}
+
+	//the least duration counted in a bucket
+	private static long lowerBound(int bucket) {
+		if (bucket < subBuckets) return bucket;
+		var exponent = bucket / subBuckets + subBits - 1;
+		return (long)(subBuckets + bucket % subBuckets) << (exponent - subBits);
+	}
+
+	/**
+	 * @param nanos a duration, in nanoseconds. A negative duration is counted as 0.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		buckets.incrementAndGet(bucket(nanos));
+		count.increment();
+		sum.add(nanos);
+		if (nanos > max.get()) max.accumulateAndGet(nanos, Math::max);
+	}
+
+	/**
+	 * @return the number of durations recorded
+	 */
+	public long getCount() {return count.sum();}
+	/**
+	 * @return the sum of the durations recorded
+	 */
+	public Duration getTotal() {return Duration.ofNanos(sum.sum());}
+	/**
+	 * @return the mean of the durations recorded, or Duration.ZERO if none has been recorded
+	 */
+	public Duration getMean() {
+		var n = count.sum();
+		return n == 0 ? Duration.ZERO : Duration.ofNanos(sum.sum() / n);
+	}
+	/**
+	 * @return the longest duration recorded, or Duration.ZERO if none has been recorded
+	 */
+	public Duration getMax() {return Duration.ofNanos(max.get());}
+	/**
+	 * @param percentile a number from 0 to 100
+	 * @return the upper bound of the bucket holding the duration that this percentage of the recorded durations did not exceed,
+	 * but no more than the longest duration recorded; Duration.ZERO if none has been recorded
+	 */
+	public Duration getPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("percentile must be between 0 and 100");
+		var counts = getCounts();
+		long total = 0;
+		for (var n : counts) total += n;
+		if (total == 0) return Duration.ZERO;
+		var rank = Math.max((long)Math.ceil(percentile / 100 * total), 1);
+		long seen = 0;
+		for (int i = 0; i < bucketCount; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				var upper = i + 1 < bucketCount ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+				return Duration.ofNanos(Math.min(upper, max.get()));
+			}
+		}
+		return getMax();
+	}
+	/**
+	 * @return the number of durations in each bucket. Bucket i, for i &lt; 8, counts durations of i nanoseconds; each later bucket
+	 * counts durations from its {@link #getLowerBounds lower bound} up to the lower bound of the next.
+	 */
+	public long[] getCounts() {
+		var counts = new long[bucketCount];
+		for (int i = 0; i < bucketCount; i++) counts[i] = buckets.get(i);
+		return counts;
+	}
+	/**
+	 * @return the least duration, in nanoseconds, counted in each bucket
+	 */
+	public static long[] getLowerBounds() {
+		var bounds = new long[bucketCount];
+		for (int i = 0; i < bucketCount; i++) bounds[i] = lowerBound(i);
+		return bounds;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d recorded, mean %d us; p50 %d us, p99 %d us, max %d us", count.sum(), getMean().toNanos()/1000,
+				getPercentile(50).toNanos()/1000, getPercentile(99).toNanos()/1000, max.get()/1000);
+	}
+}
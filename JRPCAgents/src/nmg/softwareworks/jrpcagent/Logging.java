@@ -1,10 +1,24 @@
 package nmg.softwareworks.jrpcagent;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
 /**
  * <p>Logging provides static methods that let an application using this library
  * control the location and content of output produced by the logging statements within the library.
  * </p><p> A future version of this library will remove this class 
  * and use  one of the standard java configurable loggers for its logging.
+ * </p><p>
+ * Logging is filtered by {@link Level}. The level is checked before any work is done to produce a message, and the
+ * text of the JRPC messages sent and received (the WIRE level) is only captured when it will be used. With the empty logger
+ * installed, or a level below WIRE, and no wire recording, logging adds no per-message work or allocation.
+ * </p><p>
+ * Independently of the logger, the most recent messages on all connections can be recorded in a fixed-size ring buffer
+ * (held outside the java heap) and dumped on demand. See {@link #startWireRecording}.
  * </p>
  * @author nmg
  *
@@ -61,11 +75,138 @@ public class Logging {
     	else System.clearProperty("log4j.configurationFile");
     	return logger;
     }*/
-	private static ILogger emptyLogger = new ILogger() {};
-	private static ILogger logger = emptyLogger;
-	public static void log(String event){ logger.log(event);}
-	public static void log(Throwable t, String event){logger.log(t, event);}
-	public static void log(String format, Object... args) {logger.log(format, args);}
+	/**
+	 * The levels of logging output, in increasing order of detail. Logging at a level is enabled when the level is at or
+	 * below the level set by {@link Logging#setLevel}.
+	 */
+	public enum Level {
+		/** no logging output */
+		OFF,
+		/** failures, including those given a Throwable */
+		ERROR,
+		/** notable events that are not failures */
+		INFO,
+		/** the text of each JRPC message sent or received (subject to sampling) */
+		WIRE
+	}
+
+	private static final ILogger emptyLogger = new ILogger() {};
+	private static volatile ILogger logger = emptyLogger;
+	private static volatile Level level = Level.WIRE;
+	private static volatile WireRecorder wireRecorder = null;
+	private static final Map<String, Sampler> wireSampling = new ConcurrentHashMap<>();
+
+	/**
+	 * @param l a level
+	 * @return true if output at level l would be logged. This is false for every level when the empty logger is installed.
+	 */
+	public static boolean isEnabled(Level l) {
+		return logger != emptyLogger && l != Level.OFF && l.compareTo(level) <= 0;}
+
+	public static void log(String event){ if (isEnabled(Level.INFO)) logger.log(event);}
+	public static void log(Throwable t, String event){if (isEnabled(Level.ERROR)) logger.log(t, event);}
+	public static void log(String format, Object... args) {if (isEnabled(Level.INFO)) logger.log(format, args);}
+	/**
+	 * log a message whose text is only computed if the level is enabled
+	 * @param l the level of the message
+	 * @param message a supplier of the text of the message
+	 */
+	public static void log(Level l, Supplier<String> message) {if (isEnabled(l)) logger.log(message.get());}
+
+	/**
+	 * @return the current logging level. Initially this is WIRE, which logs everything.
+	 */
+	public static Level getLevel() {return level;}
+
+	/**
+	 * @param l the most detailed level of output to log
+	 * @return the level previously in effect
+	 */
+	public static Level setLevel(Level l) {
+		var previous = level;
+		level = l == null ? Level.OFF : l;
+		return previous;
+	}
+
+	/**
+	 * Log the text of only some of the messages for a JRPC method at the WIRE level.
+	 * Sampling applies to requests, notifications, and responses (whose method is that of the request).
+	 * @param method the JRPC method name
+	 * @param oneIn log one of every oneIn messages for the method. 1 logs every message (the default), 0 logs none of them.
+	 */
+	public static void setWireSampling(String method, int oneIn) {
+		if (oneIn < 0) throw new IllegalArgumentException("oneIn passed to Logging.setWireSampling must not be negative");
+		if (oneIn == 1) wireSampling.remove(method);
+		else wireSampling.put(method, new Sampler(oneIn));
+	}
+
+	private static class Sampler{
+		private final int oneIn;
+		private final AtomicLong count = new AtomicLong(0);
+		Sampler(int oneIn){this.oneIn = oneIn;}
+		boolean sample() {return oneIn != 0 && count.getAndIncrement() % oneIn == 0;}
+	}
+
+	/**
+	 * @param method the JRPC method of a message about to be sent or just received (may be null)
+	 * @return true if the text of that message should be logged at the WIRE level
+	 */
+	static boolean sampleWire(String method) {
+		if (!isEnabled(Level.WIRE)) return false;
+		if (method == null || wireSampling.isEmpty()) return true;
+		var sampler = wireSampling.get(method);
+		return sampler == null || sampler.sample();
+	}
+
+	/**
+	 * @return true if the text of messages needs to be captured as they are sent and received, either for logging or for recording.
+	 */
+	static boolean capturesWire() {
+		return wireRecorder != null || isEnabled(Level.WIRE);}
+
+	/**
+	 * @return true if messages are being recorded
+	 */
+	static boolean isRecordingWire() {return wireRecorder != null;}
+
+	/**
+	 * record (if recording is on) and log (if logText is true) the bytes of one message
+	 * @param connectionName the name of the connection on which the message was sent or received
+	 * @param outbound true for a message sent, false for one received
+	 * @param verb describes the message in the logged text
+	 */
+	static void wire(String connectionName, boolean outbound, String verb, byte[] message, int length, boolean logText, MessageCodec codec) {
+		var recorder = wireRecorder;
+		if (recorder != null) recorder.record(connectionName, outbound, message, 0, length);
+		if (!logText || length == 0) return;
+		if (codec.isBinary())
+			logger.log("%s %s <%d bytes of %s>", connectionName, verb, length, codec.getName());
+		else logger.log("%s %s <%s>", connectionName, verb, new String(message, 0, length, StandardCharsets.UTF_8).strip());
+	}
+
+	/**
+	 * Start recording the messages sent and received on all connections in a ring buffer. Recording replaces any earlier recording.
+	 * @param capacity the size of the ring buffer in bytes
+	 */
+	public static void startWireRecording(int capacity) {
+		if (capacity < 1024) throw new IllegalArgumentException("capacity passed to Logging.startWireRecording must be at least 1024");
+		wireRecorder = new WireRecorder(capacity);
+	}
+
+	/**
+	 * stop recording messages, discarding the recording.
+	 */
+	public static void stopWireRecording() {wireRecorder = null;}
+
+	/**
+	 * write the recorded messages, oldest first, one per line. Recording continues.
+	 * @param out the destination of the dump
+	 * @throws IOException if out throws an IOException
+	 */
+	public static void dumpWireRecording(Appendable out) throws IOException {
+		var recorder = wireRecorder;
+		if (recorder != null) recorder.dump(out);
+	}
 	
 	/**
 	 * @return an ILogger instance that produces no logging output
@@ -0,0 +1,47 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/* This is the stream from which messages arriving from the partner are parsed.
+ * As bytes are pulled in from the stream by the parser, they are copied to a WireCapture while capture is on.
+ * However, when messages arrive in rapid succession, the parser may pull in bytes from message N+1 before it finishes
+ * parsing message N. So what the capture holds when we report it NEED NOT actually contain a single message.
+ * When capture is off, a read costs nothing beyond the read of the underlying stream.
+ */
+class LoggingInputStream extends InputStream{
+	private InputStream in; //replaced only by the reader, when the partner starts compressing
+	private final WireCapture capture = new WireCapture();
+	LoggingInputStream (InputStream in){
+		this.in = in;}
+	
+	protected String getLoggedText(boolean reset) {
+		return capture.getText(reset);}
+
+	protected void setLogging(boolean b) {
+		capture.setCapturing(b);}
+	
+	WireCapture getCapture() {return capture;}
+
+	void setSource(InputStream in) {this.in = in;}
+
+	@Override
+	public int read() throws IOException{
+		int b = in.read();
+		if(capture.isCapturing() && b!=-1) capture.append(b);
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int offset, int length) throws IOException{
+		int howMany = in.read(b,offset,length);
+		if(capture.isCapturing() && howMany>0) capture.append(b, offset, howMany);
+		return howMany;
+	}
+
+	@Override
+	public int available() throws IOException {return in.available();}
+
+	@Override
+	public void close() throws IOException {in.close();}
+}
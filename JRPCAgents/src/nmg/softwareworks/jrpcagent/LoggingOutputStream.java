@@ -0,0 +1,49 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/* This is the stream to which a connection's JsonGenerator writes UTF-8 bytes.  While capture is on, the bytes are
+ * also copied to a WireCapture so that the text of a message can be logged after it has been written.
+ * Callers serialize their use of a LoggingOutputStream with the connection's output lock.
+ */
+class LoggingOutputStream extends OutputStream{
+	private OutputStream out; //replaced, with the output lock held, when this agent starts compressing
+	private final WireCapture capture = new WireCapture();
+	private long written = 0; //the bytes written through this stream
+	LoggingOutputStream (OutputStream out){
+		this.out = out;}
+	
+	String getLoggedText(boolean reset) {
+		return capture.getText(reset);}
+	
+	void setLogging(boolean b) {
+		capture.setCapturing(b);}
+
+	WireCapture getCapture() {return capture;}
+
+	long getWritten() {return written;}
+
+	OutputStream getTarget() {return out;}
+	void setTarget(OutputStream out) {this.out = out;}
+
+	@Override
+	public void write(byte[] b, int offset, int len) throws IOException {
+		if(capture.isCapturing()) capture.append(b, offset, len);
+		written += len;
+		out.write(b,offset,len);			
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if(capture.isCapturing()) capture.append(b);
+		written++;
+		out.write(b);			
+	}
+
+	@Override
+	public void flush() throws IOException {out.flush();}
+
+	@Override
+	public void close() throws IOException {out.close();}
+}
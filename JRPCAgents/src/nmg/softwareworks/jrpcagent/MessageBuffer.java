@@ -0,0 +1,72 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* A MessageBuffer holds one JRPC message serialized ahead of writing it, so that a connection's output lock need only be held
+ * while the finished bytes are copied to the connection's stream.
+ * MessageBuffers are pooled rather than thread-local, so that virtual threads (which come and go) can reuse them too.
+ * A buffer that has grown large for a big message is not returned to the pool.
+ */
+final class MessageBuffer extends OutputStream {
+	private static final int initialCapacity = 4096, retainedCapacity = 1<<20, poolLimit = 64;
+	private static final ConcurrentLinkedQueue<MessageBuffer> pool = new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger pooled = new AtomicInteger(0);
+
+	private byte[] bytes = new byte[initialCapacity];
+	private int count = 0;
+
+	private MessageBuffer() {}
+
+	/**
+	 * @return an empty buffer, from the pool if one is available
+	 */
+	static MessageBuffer acquire() {
+		var buffer = pool.poll();
+		if (buffer == null) return new MessageBuffer();
+		pooled.decrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * return this buffer to the pool.  The caller must not use it afterwards.
+	 */
+	void release() {
+		count = 0;
+		if (bytes.length > retainedCapacity || pooled.incrementAndGet() > poolLimit) {
+			if (bytes.length <= retainedCapacity) pooled.decrementAndGet();
+			return;
+		}
+		pool.add(this);
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(count + 1);
+		bytes[count++] = (byte)b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(count + len);
+		System.arraycopy(b, off, bytes, count, len);
+		count += len;
+	}
+
+	private void ensureCapacity(int needed) {
+		if (needed <= bytes.length) return;
+		var larger = new byte[Math.max(bytes.length*2, needed)];
+		System.arraycopy(bytes, 0, larger, 0, count);
+		bytes = larger;
+	}
+
+	int length() {return count;}
+
+	/**
+	 * copy the buffered message to a stream
+	 */
+	void writeTo(OutputStream out) throws IOException {
+		out.write(bytes, 0, count);}
+}
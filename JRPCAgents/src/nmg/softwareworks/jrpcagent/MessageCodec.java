@@ -0,0 +1,91 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+
+/**
+ * <p>A MessageCodec is the encoding a connection uses for its JRPC messages. Every connection starts out with {@link #JSON}.
+ * Other codecs wrap a Jackson JsonFactory for a binary format, for example
+ * </p>
+ * <pre>new MessageCodec("smile", new SmileFactory())</pre>
+ * <p>
+ * (SmileFactory and CBORFactory come from the jackson-dataformat-smile and jackson-dataformat-cbor libraries, which this library
+ * does not require.) Since these formats are read and written through the same streaming JsonParser and JsonGenerator api,
+ * the deserializers and serializers for JRPC messages and for the values they carry work unchanged.
+ * </p><p>
+ * An agent lists the codecs it can use with {@link ConnectionOptions#withCodecs}. Two agents agree on a codec for a connection when
+ * one of them calls {@link Connection#negotiateCodec}. A partner that does not understand the negotiation (such as a Triggerware server)
+ * answers with an error, and the connection continues to use JSON.  Negotiation applies to the STREAM transport; a connection on the
+ * NIO transport frames its input as JSON text, and always uses JSON.
+ * </p>
+ */
+public class MessageCodec {
+	/**
+	 * JSON text, encoded in UTF-8. This is the codec every connection uses until another is negotiated.
+	 */
+	public static final MessageCodec JSON = new MessageCodec("json", null);
+	/**
+	 * the JRPC method used to negotiate a codec. Its single positional parameter is an array of codec names,
+	 * in the order the requesting agent prefers them. The result is the name of the codec chosen.
+	 */
+	public static final String negotiationMethod = "rpc.codec";
+	static final RequestSignature negotiationSignature =
+			new PositionalRequestSignature(new Object[] {String[].class}, String.class, null);
+
+	private final String name;
+	private final JsonFactory factory;
+
+	/**
+	 * @param name the name by which agents negotiating a codec identify this one
+	 * @param factory the factory for the parsers and generators of this codec.  Its generators must write, and its parsers read,
+	 * a sequence of documents on a single stream.
+	 */
+	public MessageCodec(String name, JsonFactory factory) {
+		if (name == null || name.isBlank())
+			throw new IllegalArgumentException("name passed to MessageCodec must not be blank");
+		this.name = name;
+		this.factory = factory;
+	}
+
+	public String getName() {return name;}
+
+	/**
+	 * @return the factory for this codec's parsers and generators, or null for JSON, which uses the connection's own mapper
+	 */
+	public JsonFactory getFactory() {return factory;}
+
+	/**
+	 * @return true if this codec's messages are not text, so their bytes cannot be logged as text
+	 */
+	public boolean isBinary() {return factory != null && factory.canHandleBinaryNatively();}
+
+	JsonGenerator createGenerator(JsonMapper mapper, OutputStream ostream) throws IOException {
+		if (factory == null) return mapper.createGenerator(ostream, JsonEncoding.UTF8);
+		var jg = factory.createGenerator(ostream, JsonEncoding.UTF8);
+		jg.setCodec(mapper);
+		return jg;
+	}
+
+	//creating the parser may read from istream (to detect the encoding or read a format header), so this may block
+	JsonParser createParser(JsonMapper mapper, InputStream istream) throws IOException {
+		var parser = factory == null ? mapper.createParser(istream) : factory.createParser(istream);
+		parser.setCodec(mapper);
+		return parser;
+	}
+
+	JsonParser createParser(JsonMapper mapper, byte[] message) throws IOException {
+		var parser = factory == null ? mapper.createParser(message) : factory.createParser(message);
+		parser.setCodec(mapper);
+		return parser;
+	}
+
+	@Override
+	public String toString() {return name;}
+}
@@ -0,0 +1,23 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/* A MessageFramer finds the boundaries of complete JRPC messages in the bytes arriving from a partner, so that
+ * a message can be handed off for parsing only once all of it is available.
+ * Bytes are fed in as they are read from a channel.
+ */
+interface MessageFramer {
+	interface MessageSink{
+		/**
+		 * @param message a byte array holding exactly one complete message. The array is not reused by the framer.
+		 */
+		void message(byte[] message) throws IOException;
+	}
+
+	/**
+	 * consume all the remaining bytes of input, delivering each message they complete to sink.
+	 * Bytes of an incomplete message are retained until more input arrives.
+	 */
+	void feed(ByteBuffer input, MessageSink sink) throws IOException;
+}
@@ -0,0 +1,142 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * MethodMetrics describes the traffic of one JRPC method on all the connections of an agent (see {@link ConnectionOptions#withMetrics}):
+ * the requests and notifications this agent sent and received, the responses to its requests and how long they took to arrive,
+ * the time its handlers took, the bytes of the method's messages in each direction, and the time spent serializing and
+ * deserializing them. A response is counted under the method of the request it answers.
+ */
+public final class MethodMetrics {
+	private final String method;
+	private final LongAdder requestsSent = new LongAdder(), notificationsSent = new LongAdder(), responses = new LongAdder(),
+			errorResponses = new LongAdder(), timeouts = new LongAdder(), inFlight = new LongAdder(),
+			requestsReceived = new LongAdder(), notificationsReceived = new LongAdder(), handlerErrors = new LongAdder(),
+			bytesOut = new LongAdder(), bytesIn = new LongAdder(), messagesOut = new LongAdder(), messagesIn = new LongAdder(),
+			serializationNanos = new LongAdder(), deserializationNanos = new LongAdder();
+	private final LatencyHistogram latency = new LatencyHistogram(), handlerTime = new LatencyHistogram();
+	private final ErrorCounts errors = new ErrorCounts();
+
+	MethodMetrics(String method) {this.method = method;}
+
+	void requestSent() {
+		requestsSent.increment();
+		inFlight.increment();
+	}
+	void notificationSent() {notificationsSent.increment();}
+	void responded(long latencyNanos) {
+		responses.increment();
+		inFlight.decrement();
+		latency.record(latencyNanos);
+	}
+	void errorResponse(int code) {
+		errorResponses.increment();
+		errors.record(code);
+	}
+	void timedOut() {
+		timeouts.increment();
+		inFlight.decrement();
+	}
+	//a request that will get no response: it was abandoned, or its connection closed
+	void settled() {inFlight.decrement();}
+	void requestReceived() {requestsReceived.increment();}
+	void notificationReceived() {notificationsReceived.increment();}
+	void handled(long nanos, boolean failed) {
+		handlerTime.record(nanos);
+		if (failed) handlerErrors.increment();
+	}
+	void written(long bytes, long nanos) {
+		messagesOut.increment();
+		bytesOut.add(bytes);
+		serializationNanos.add(nanos);
+	}
+	void read(long bytes, long nanos) {
+		messagesIn.increment();
+		bytesIn.add(bytes);
+		deserializationNanos.add(nanos);
+	}
+
+	public String getMethod() {return method;}
+	/**
+	 * @return the number of requests of this method that this agent has sent
+	 */
+	public long getRequestsSent() {return requestsSent.sum();}
+	/**
+	 * @return the number of notifications of this method that this agent has sent
+	 */
+	public long getNotificationsSent() {return notificationsSent.sum();}
+	/**
+	 * @return the number of this agent's requests of this method that have been answered, successfully or with an error
+	 */
+	public long getResponses() {return responses.sum();}
+	/**
+	 * @return the number of this agent's requests of this method that have been answered with an error
+	 */
+	public long getErrorResponses() {return errorResponses.sum();}
+	/**
+	 * @return the number of error responses to this agent's requests of this method with each JRPC error code. Codes beyond the
+	 * 32 first seen are not included.
+	 */
+	public Map<Integer,Long> getErrorCounts() {return errors.snapshot();}
+	/**
+	 * @return the number of this agent's requests of this method that expired before they were answered
+	 */
+	public long getTimeouts() {return timeouts.sum();}
+	/**
+	 * @return the number of this agent's requests of this method that are awaiting responses
+	 */
+	public long getInFlight() {return inFlight.sum();}
+	/**
+	 * @return the time from sending each request of this method to receiving its response
+	 */
+	public LatencyHistogram getLatency() {return latency;}
+	/**
+	 * @return the number of requests of this method that this agent has received
+	 */
+	public long getRequestsReceived() {return requestsReceived.sum();}
+	/**
+	 * @return the number of notifications of this method that this agent has received
+	 */
+	public long getNotificationsReceived() {return notificationsReceived.sum();}
+	/**
+	 * @return the time this agent's handlers took for each request and notification of this method
+	 */
+	public LatencyHistogram getHandlerTime() {return handlerTime;}
+	/**
+	 * @return the number of requests of this method whose handlers threw an exception
+	 */
+	public long getHandlerErrors() {return handlerErrors.sum();}
+	/**
+	 * @return the bytes of the messages of this method that this agent has written, before any compression
+	 */
+	public long getBytesOut() {return bytesOut.sum();}
+	/**
+	 * @return the bytes of the messages of this method that this agent has read, after any decompression
+	 */
+	public long getBytesIn() {return bytesIn.sum();}
+	/**
+	 * @return the mean time to serialize a message of this method. Unless the agent uses buffered serialization, this includes
+	 * writing the message to the connection's stream.
+	 */
+	public Duration getMeanSerializationTime() {
+		var n = messagesOut.sum();
+		return n == 0 ? Duration.ZERO : Duration.ofNanos(serializationNanos.sum() / n);
+	}
+	/**
+	 * @return the mean time to deserialize a message of this method
+	 */
+	public Duration getMeanDeserializationTime() {
+		var n = messagesIn.sum();
+		return n == 0 ? Duration.ZERO : Duration.ofNanos(deserializationNanos.sum() / n);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %d requests sent (%d in flight, %d errors, %d timeouts), latency %s; %d requests and %d notifications received; %d bytes out, %d bytes in",
+				method, requestsSent.sum(), inFlight.sum(), errorResponses.sum(), timeouts.sum(), latency, requestsReceived.sum(),
+				notificationsReceived.sum(), bytesOut.sum(), bytesIn.sum());
+	}
+}
@@ -0,0 +1,40 @@
+package nmg.softwareworks.jrpcagent;
+
+/**
+ * <p>A MetricsRegistry publishes the metrics of the agents whose {@link ConnectionOptions} name it (see {@link ConnectionOptions#withMetrics}).
+ * It is told of such an agent the first time the agent counts a message once it has been constructed, and when the agent is closed.
+ * It is told when the agent first sends or receives a message of a method, and when each of the agent's connections is opened and
+ * closed; the methods and connections an agent has before the registry is told of it are reported just after it.
+ * It reads the metrics themselves when it wants them: the agent updates them as messages pass, and never calls the registry to do so.
+ * </p><p>
+ * Every method has a default that does nothing, so a registry implements only what it publishes. {@link JmxMetricsRegistry}
+ * publishes metrics as JMX MBeans. A registry may be shared by many agents, so its methods may be called from many threads.
+ * An exception thrown by a registry is logged and otherwise ignored.
+ * </p>
+ */
+public interface MetricsRegistry {
+	/**
+	 * @param agent an agent that keeps metrics, which has just counted its first message since its primary connection was opened.
+	 * The constructor of a subclass of JRPCAgent may not yet have finished.
+	 * @param metrics the agent's metrics
+	 */
+	default void agentOpened(JRPCAgent agent, AgentMetrics metrics) {}
+	/**
+	 * @param agent an agent that has been closed. An agent the registry was never told of is not reported
+	 * @param metrics the agent's metrics, which will not change again
+	 */
+	default void agentClosed(JRPCAgent agent, AgentMetrics metrics) {}
+	/**
+	 * @param agent an agent that keeps metrics
+	 * @param metrics the metrics of a method the agent has sent or received its first message of
+	 */
+	default void methodAdded(JRPCAgent agent, MethodMetrics metrics) {}
+	/**
+	 * @param connection a connection of an agent that keeps metrics, which has just been opened
+	 */
+	default void connectionOpened(Connection connection) {}
+	/**
+	 * @param connection a connection of an agent that keeps metrics, which has just been closed
+	 */
+	default void connectionClosed(Connection connection) {}
+}
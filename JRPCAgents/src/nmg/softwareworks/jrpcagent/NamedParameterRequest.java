@@ -1,5 +1,6 @@
 package nmg.softwareworks.jrpcagent;
 
+import java.time.Duration;
 import java.util.concurrent.CompletableFuture;
 import com.fasterxml.jackson.databind.JavaType;
 
@@ -66,6 +67,18 @@ public class NamedParameterRequest<T> extends OutboundRequest<T> {
 		//Object rt = /*(resultType == null) ? resultTyperef :*/ resultType;
 		return c.synchronousRPC(this, /*rt, meta, methodName,*/ namedParameters);}
 
+	/**
+	 * @param timeout the time to wait for the response, in place of this template's timeout
+	 * @param c the connection on which to send the request
+	 * @param namedParameters the parameters of the request
+	 * @return the result of the request
+	 * @throws JRPCException.JRPCRequestTimeoutException if the response has not arrived within the timeout
+	 * @throws JRPCException if the response is an error response, or if some communication failure occurs
+	 */
+	public T execute(Duration timeout, Connection c, NamedRequestParameters namedParameters) throws JRPCException {
+		if (this.validateActualParameters) validate(namedParameters);
+		return c.synchronousRPC(this, namedParameters, timeout);}
+
 	public void notify (Connection c, NamedRequestParameters namedParameters) throws JRPCException {
 		if (this.validateActualParameters) validate(namedParameters);
 		c.notify(methodName, namedParameters);}
@@ -17,4 +17,46 @@ public interface NotificationInducer {
 	Object getNotificationType();
 	//default boolean isClosed() {return false;}
 	void establishDeserializationAttributes(SerializationState ss);
+	/**
+	 * @return the policy for this inducer's notifications when its lane is full, or null to use the policy of the agent's
+	 * {@link ConnectionOptions#withNotificationLanes ConnectionOptions}. An inducer choosing BLOCK should have a lane of its own
+	 * (see {@link #hasOwnLane}), or the reader may wait for room that other inducers' notifications have taken.
+	 */
+	default ConnectionOptions.NotificationOverflow getNotificationOverflow() {return null;}
+	/**
+	 * combine two notifications of this inducer, for the CONFLATE overflow policy
+	 * @param waiting the newest notification waiting to be handled
+	 * @param arriving the notification that arrived when the lane was full
+	 * @return the notification to handle in place of both
+	 */
+	default Notification conflate(Notification waiting, Notification arriving) {return arriving;}
+	/**
+	 * <p>The notifications of inducers without a dispatch key are handled one at a time, in the order they arrived on their connection.
+	 * They share one lane (see {@link ConnectionOptions#withNotificationLanes}): a slow handler of one inducer holds up the
+	 * notifications of all of them, and they count together against the lane's capacity.
+	 * </p><p>
+	 * An inducer opts in to parallel dispatch by returning a key: its notifications with equal keys are still handled in order,
+	 * one at a time, but in parallel with the notifications of other keys and of other inducers. An inducer that returns a key
+	 * should not rely on the order in which its notifications are handled relative to other inducers'.
+	 * </p>
+	 * @param notification a notification of this inducer
+	 * @return the key that orders the notification, or null (the default) to handle it in arrival order with the notifications of
+	 * other inducers without keys
+	 */
+	default Object getDispatchKey(Notification notification) {return null;}
+	/**
+	 * An inducer with a lane of its own is isolated from the others: its notifications without a dispatch key wait in that lane,
+	 * with its own capacity, so its slow handler or overflow policy affects no other inducer, and theirs do not affect it.
+	 * They are handled in order, one at a time, but not in arrival order relative to the notifications of other inducers.
+	 * @return true to give this inducer a lane of its own, or false (the default) to share the arrival-order lane
+	 */
+	default boolean hasOwnLane() {return false;}
+	/**
+	 * An inducer whose notifications carry independent parts (such as the rows for several subscriptions) may divide each notification,
+	 * so that the parts are dispatched separately, each by its own key. When a notification is divided, {@link #getDispatchKey} is not
+	 * used, and the notification itself is not handled; each part is.
+	 * @param notification a notification of this inducer
+	 * @return the parts of the notification, by dispatch key, or null (the default) to dispatch the notification whole
+	 */
+	default java.util.Map<?, ? extends Notification> divide(Notification notification) {return null;}
 }
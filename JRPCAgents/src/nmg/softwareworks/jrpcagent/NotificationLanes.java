@@ -0,0 +1,206 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import nmg.softwareworks.jrpcagent.ConnectionOptions.NotificationOverflow;
+
+/* The notifications of a connection wait here to be handled. A lane holds notifications that must be handled in order, and is drained
+ * by a task borrowed from the agent's dispatch executor while it has notifications; it is discarded when it is empty.
+ * By default the notifications of inducers that have no dispatch key share one lane, so they are handled in the order they arrived.
+ * Inducers sharing that lane are not isolated from one another: they share its capacity, and a slow handler holds up all of them.
+ * An inducer that asks for a lane of its own is isolated, at the cost of arrival order relative to the others.
+ * Overflow policies act only on the arriving notification's own inducer, so one inducer's policy never discards another's notifications.
+ * Those of an inducer that opts in to keyed dispatch go to a lane for each of the inducer's keys, and lanes are drained in parallel.
+ * The thread that delivers a notification (the connection's reader) waits for room in a lane only under the BLOCK policy.
+ * The lanes use a ReentrantLock rather than a monitor, so that a virtual thread waiting for room does not pin its carrier.
+ */
+final class NotificationLanes {
+	private record Entry(Notification notification, String method, NotificationInducer inducer, long queuedAt, TraceContext trace) {}
+	private record LaneKey(NotificationInducer inducer, Object key) {}
+	private static final Object arrivalOrder = new Object(); //the key of the lane shared by inducers without dispatch keys or lanes of their own
+
+	private final Connection connection;
+	private final Executor executor;
+	private final int capacity;
+	private final NotificationOverflow defaultOverflow;
+	private final NotificationStatistics statistics = new NotificationStatistics();
+	private final ConcurrentHashMap<Object,Lane> lanes = new ConcurrentHashMap<>();
+
+	NotificationLanes(Connection connection, Executor executor, ConnectionOptions options) {
+		this.connection = connection;
+		this.executor = executor;
+		this.capacity = options.getNotificationLaneCapacity();
+		this.defaultOverflow = options.getNotificationOverflow();
+	}
+
+	NotificationStatistics getStatistics() {return statistics;}
+
+	//trace is the span of the notification's handler, or null if the notification is not traced
+	void deliver(Notification notification, String method, TraceContext trace) throws InterruptedException {
+		var inducer = notification.getInducer();
+		var now = System.nanoTime();
+		if (inducer == null) {
+			offer(arrivalOrder, new Entry(notification, method, null, now, trace));
+			return;
+		}
+		var parts = inducer.divide(notification);
+		if (parts != null) {
+			for (var part : parts.entrySet())
+				offer(new LaneKey(inducer, part.getKey()), new Entry(part.getValue(), method, inducer, now, trace));
+			return;
+		}
+		var key = inducer.getDispatchKey(notification);
+		var lane = key != null ? new LaneKey(inducer, key) : inducer.hasOwnLane() ? new LaneKey(inducer, null) : arrivalOrder;
+		offer(lane, new Entry(notification, method, inducer, now, trace));
+	}
+
+	private void offer(Object key, Entry entry) throws InterruptedException {
+		var event = new FlightRecorderEvents.NotificationQueued();
+		event.begin();
+		while (true) {
+			var lane = lanes.computeIfAbsent(key, Lane::new);
+			if (lane.offer(entry)) break;
+			//the lane emptied and was discarded after it was found; a new one takes its place
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.method = entry.method();
+			event.connection = connection.getName();
+			event.depth = statistics.getDepth();
+			event.commit();
+		}
+	}
+
+	private NotificationOverflow overflow(NotificationInducer inducer) {
+		var chosen = inducer == null ? null : inducer.getNotificationOverflow();
+		return chosen == null ? defaultOverflow : chosen;
+	}
+
+	private final class Lane implements Runnable {
+		private final Object key;
+		private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition room = lock.newCondition();
+		private boolean scheduled = false, discarded = false; //guarded by lock
+
+		Lane(Object key){
+			this.key = key;
+			statistics.laneOpened();
+		}
+
+		//false if this lane has been discarded
+		boolean offer(Entry entry) throws InterruptedException {
+			lock.lock();
+			try {
+				if (discarded) return false;
+				if (entries.size() >= capacity)
+					switch (overflow(entry.inducer())) {
+					case BLOCK -> {
+						statistics.blocked();
+						while (entries.size() >= capacity) room.await();
+						if (discarded) return false; //the lane drained and was discarded while the reader waited
+					}
+					case DROP_OLDEST -> dropOldest(entry);
+					case CONFLATE -> entry = conflate(entry);
+					case SPILL -> statistics.spilled();
+					}
+				statistics.queued();
+				entries.addLast(entry);
+				if (!scheduled) {
+					scheduled = true;
+					try {executor.execute(this);
+					} catch (RejectedExecutionException e) { //the agent has been closed
+						scheduled = false;
+						statistics.dropped();
+						entries.removeLast();
+					}
+				}
+				return true;
+			} finally {lock.unlock();}
+		}
+
+		//discard the oldest waiting entry of the arriving entry's inducer, leaving the entries of other inducers sharing the lane alone.
+		//If there is none, the lane spills.
+		private void dropOldest(Entry arriving) {
+			var waiting = entries.iterator();
+			while (waiting.hasNext())
+				if (waiting.next().inducer() == arriving.inducer()) {
+					waiting.remove();
+					statistics.dropped();
+					return;
+				}
+			statistics.spilled();
+		}
+
+		//combine the arriving entry with the newest waiting entry of the same inducer. If there is none, the lane spills.
+		private Entry conflate(Entry arriving) {
+			var waiting = entries.descendingIterator();
+			while (waiting.hasNext()) {
+				var entry = waiting.next();
+				if (entry.inducer() == arriving.inducer()) {
+					waiting.remove();
+					statistics.conflated();
+					var combined = arriving.inducer() == null ? arriving.notification()
+							: arriving.inducer().conflate(entry.notification(), arriving.notification());
+					return new Entry(combined, arriving.method(), arriving.inducer(), entry.queuedAt(), arriving.trace());
+				}
+			}
+			statistics.spilled();
+			return arriving;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Entry entry;
+				lock.lock();
+				try {
+					entry = entries.pollFirst();
+					if (entry == null) {
+						scheduled = false;
+						discarded = true;
+						lanes.remove(key, this);
+						statistics.laneClosed();
+						return;
+					}
+					room.signalAll();
+				} finally {lock.unlock();}
+				statistics.dequeued();
+				var event = new FlightRecorderEvents.NotificationHandled();
+				event.begin();
+				var started = System.nanoTime();
+				var failed = false;
+				var trace = entry.trace();
+				try {
+					var scope = trace == null ? null : trace.makeCurrent();
+					try {entry.notification().handle(connection, entry.method());
+					} finally {if (scope != null) scope.close();} //restore the dispatch thread's previous trace context
+				} catch (Throwable t) {
+					failed = true;
+					Logging.log(t, String.format("notification handler for %s failed on connection %s", entry.method(), connection.getName()));
+				} finally {
+					var elapsed = System.nanoTime() - started;
+					statistics.handled(elapsed);
+					var metrics = connection.metricsFor(entry.method());
+					if (metrics != null) metrics.handled(elapsed, failed);
+					if (trace != null) 
+						connection.exportSpan(new Span(trace, entry.method(), Span.Kind.CONSUMER, connection.getName(), elapsed,
+								failed ? Span.Status.ERROR : Span.Status.OK, 0));
+					event.end();
+					if (event.shouldCommit()) {
+						event.method = entry.method();
+						event.connection = connection.getName();
+						event.queued = started - entry.queuedAt();
+						event.failed = failed;
+						event.commit();
+					}
+				}
+			}
+		}
+	}
+}
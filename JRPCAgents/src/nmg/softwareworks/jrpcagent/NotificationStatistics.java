@@ -0,0 +1,87 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NotificationStatistics describes the notifications of one connection that are waiting to be handled, and those that
+ * overflowed the lanes they wait in (see {@link ConnectionOptions#withNotificationLanes}). A depth that keeps growing, or a count
+ * of dropped notifications that keeps rising, means a notification handler cannot keep up with its partner.
+ */
+public final class NotificationStatistics {
+	private final AtomicInteger depth = new AtomicInteger(0), maxDepth = new AtomicInteger(0), lanes = new AtomicInteger(0);
+	private final AtomicLong delivered = new AtomicLong(0), handled = new AtomicLong(0), dropped = new AtomicLong(0),
+			conflated = new AtomicLong(0), spilled = new AtomicLong(0), blocked = new AtomicLong(0);
+	private final LatencyHistogram handlerTime = new LatencyHistogram();
+
+	NotificationStatistics() {}
+
+	void queued() {
+		delivered.incrementAndGet();
+		maxDepth.accumulateAndGet(depth.incrementAndGet(), Math::max);
+	}
+	void dequeued() {depth.decrementAndGet();}
+	void handled(long nanos) {
+		handled.incrementAndGet();
+		handlerTime.record(nanos);
+	}
+	void dropped() {
+		dropped.incrementAndGet();
+		depth.decrementAndGet();
+	}
+	void conflated() {
+		conflated.incrementAndGet();
+		depth.decrementAndGet();
+	}
+	void spilled() {spilled.incrementAndGet();}
+	void blocked() {blocked.incrementAndGet();}
+	void laneOpened() {lanes.incrementAndGet();}
+	void laneClosed() {lanes.decrementAndGet();}
+
+	/**
+	 * @return the number of notifications waiting to be handled, in all lanes
+	 */
+	public int getDepth() {return depth.get();}
+	/**
+	 * @return the greatest number of notifications that have waited to be handled at one time
+	 */
+	public int getMaxDepth() {return maxDepth.get();}
+	/**
+	 * @return the number of lanes that have notifications waiting or being handled
+	 */
+	public int getActiveLanes() {return lanes.get();}
+	/**
+	 * @return the number of notifications that have arrived
+	 */
+	public long getDelivered() {return delivered.get();}
+	/**
+	 * @return the number of notifications whose handlers have returned
+	 */
+	public long getHandled() {return handled.get();}
+	/**
+	 * @return the time the handlers of the connection's notifications took
+	 */
+	public LatencyHistogram getHandlerTime() {return handlerTime;}
+	/**
+	 * @return the number of notifications discarded by the DROP_OLDEST policy, or because the connection's agent was closed
+	 */
+	public long getDropped() {return dropped.get();}
+	/**
+	 * @return the number of notifications combined with others by the CONFLATE policy
+	 */
+	public long getConflated() {return conflated.get();}
+	/**
+	 * @return the number of notifications queued beyond a lane's capacity by the SPILL policy
+	 */
+	public long getSpilled() {return spilled.get();}
+	/**
+	 * @return the number of times the connection's reader waited for room in a lane, under the BLOCK policy
+	 */
+	public long getBlocked() {return blocked.get();}
+
+	@Override
+	public String toString() {
+		return String.format("%d notifications waiting in %d lanes (max %d); %d delivered, %d handled, %d dropped, %d conflated, %d spilled, %d blocked",
+				depth.get(), lanes.get(), maxDepth.get(), delivered.get(), handled.get(), dropped.get(), conflated.get(), spilled.get(), blocked.get());
+	}
+}
@@ -1,5 +1,7 @@
 package nmg.softwareworks.jrpcagent;
 
+import java.time.Duration;
+
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JavaType;
 
@@ -24,6 +26,7 @@ abstract class OutboundRequest<T> {
 	//protected final boolean serverAsynchronous;
 	//protected final Map<String, TreeNode>meta;
 	protected boolean validateActualParameters = false;
+	private volatile Duration timeout = null;
 	/**
 	 * @param classz  the type that is the result of the request
 	 * @param meta extra key-value pairs to serialize in the request. The keys must not be standard jrpc keys.
@@ -74,6 +77,20 @@ abstract class OutboundRequest<T> {
 	 * @return the Class that is the static type of result returned by this ServerRequest
 	 */
 	public Class<T> getResultClass(){return resultType;}
+
+	/**
+	 * @param timeout the time that requests issued from this template wait for their responses, unless a request is given
+	 * a timeout of its own. null means the timeout given by {@link ConnectionOptions#withRequestTimeout} is used.
+	 */
+	public void setTimeout(Duration timeout) {
+		if (timeout != null && (timeout.isNegative() || timeout.isZero()))
+			throw new IllegalArgumentException("timeout passed to OutboundRequest.setTimeout must be positive");
+		this.timeout = timeout;
+	}
+	/**
+	 * @return the time that requests issued from this template wait for their responses, or null if it is not set
+	 */
+	public Duration getTimeout() {return timeout;}
 	
 	//Object getdeserializationAdvice(){return deserializationAdvice;}
 	
@@ -0,0 +1,78 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/* The requests of a connection that are awaiting responses, keyed by their int ids. An agent numbers its requests consecutively,
+ * so a request lives in the slot its id selects in a ring of slots, claimed and released with compare-and-set.
+ * Looking up a response's request neither locks nor boxes the id.
+ * A request whose slot is still held by an older request that has not been answered goes into an overflow map instead;
+ * the map is consulted only while it holds requests.
+ * Ids that are not ints (a partner may answer with a string id) never match a request of this agent.
+ */
+final class PendingRequests {
+	private static final int slotCount = 4096; //a power of 2
+	private final AtomicReferenceArray<JRPCSimpleRequest<?>> slots = new AtomicReferenceArray<>(slotCount);
+	private final ConcurrentHashMap<Integer,JRPCSimpleRequest<?>> overflow = new ConcurrentHashMap<>();
+	private final AtomicInteger overflowed = new AtomicInteger(0), size = new AtomicInteger(0);
+
+	private static int slot(int id) {return id & (slotCount - 1);}
+
+	void add(JRPCSimpleRequest<?> request) {
+		size.incrementAndGet();
+		if (slots.compareAndSet(slot(request.requestId), null, request)) return;
+		overflowed.incrementAndGet();
+		overflow.put(request.requestId, request);
+	}
+
+	JRPCSimpleRequest<?> get(Object id) {
+		if (!(id instanceof Integer requestId)) return null;
+		var request = slots.get(slot(requestId));
+		if (request != null && request.requestId == requestId) return request;
+		return overflowed.get() == 0 ? null : overflow.get(requestId);
+	}
+
+	/**
+	 * @return the request with this id, which is no longer pending, or null if no request with this id was pending
+	 */
+	JRPCSimpleRequest<?> remove(Object id) {
+		if (!(id instanceof Integer requestId)) return null;
+		var request = slots.get(slot(requestId));
+		if (request != null && request.requestId == requestId)
+			return remove(request) ? request : null;
+		if (overflowed.get() == 0) return null;
+		request = overflow.get(requestId);
+		return request != null && remove(request) ? request : null;
+	}
+
+	/**
+	 * @return true if the request was pending, and this call removed it. Only one caller removes a request: the reader attaching
+	 *  a response to it, the deadline wheel expiring it, or the application abandoning it.
+	 */
+	boolean remove(JRPCSimpleRequest<?> request) {
+		boolean removed = slots.compareAndSet(slot(request.requestId), request, null);
+		if (!removed && overflowed.get() > 0 && overflow.remove(request.requestId, request)) {
+			overflowed.decrementAndGet();
+			removed = true;
+		}
+		if (removed) size.decrementAndGet();
+		return removed;
+	}
+
+	/**
+	 * @return the number of requests awaiting responses
+	 */
+	int size() {return size.get();}
+
+	//removes every pending request, passing each to action
+	void drain(Consumer<JRPCSimpleRequest<?>> action) {
+		for (int i = 0; i < slotCount; i++) {
+			var request = slots.get(i);
+			if (request != null && remove(request)) action.accept(request);
+		}
+		for (var request : overflow.values())
+			if (remove(request)) action.accept(request);
+	}
+}
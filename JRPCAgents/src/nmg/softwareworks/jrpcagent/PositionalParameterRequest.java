@@ -1,5 +1,6 @@
 package nmg.softwareworks.jrpcagent;
 
+import java.time.Duration;
 import java.util.concurrent.CompletableFuture;
 import com.fasterxml.jackson.databind.JavaType;
 
@@ -51,6 +52,18 @@ public class PositionalParameterRequest<T> extends OutboundRequest<T> {
 		if (this.validateActualParameters) validate(positionalParameters);
 		return c.synchronousRPC(this, positionalParameters);}
 
+	/**
+	 * @param timeout the time to wait for the response, in place of this template's timeout
+	 * @param c the connection on which to send the request
+	 * @param positionalParameters the parameters of the request
+	 * @return the result of the request
+	 * @throws JRPCException.JRPCRequestTimeoutException if the response has not arrived within the timeout
+	 * @throws JRPCException if the response is an error response, or if some communication failure occurs
+	 */
+	public T execute(Duration timeout, Connection c, Object ...positionalParameters) throws JRPCException {
+		if (this.validateActualParameters) validate(positionalParameters);
+		return c.synchronousRPC(this, positionalParameters, timeout);}
+
 	/*public T mexecute(Connection c, Map<String, TreeNode>meta, Object ...positionalParameters) throws JRPCException{
 		return mexecute(null,c,meta, positionalParameters);}
 
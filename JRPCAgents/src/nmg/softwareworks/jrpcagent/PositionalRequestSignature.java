@@ -2,18 +2,22 @@ package nmg.softwareworks.jrpcagent;
 
 import java.lang.reflect.Method;
 
+import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.type.TypeFactory;
 
 class PositionalRequestSignature extends RequestSignature {
 	protected final Object[] positionalParameterTypes; // each element is either a Class, a TypeReference, or a JavaType
+	private final int requiredCount; // the leading parameters a request must supply. The others are optional
 	PositionalRequestSignature(Object[] paramsType, Object resultType, Class<?>[]exceptionTypes){
 		super(resultType, exceptionTypes);
 		positionalParameterTypes = paramsType;
+		requiredCount = paramsType.length;
 		//TODO: validate the elements
 	}
 	PositionalRequestSignature(Object[] paramsType){
 		super();
 		positionalParameterTypes = paramsType;
+		requiredCount = paramsType.length;
 		//TODO: validate the elements
 	}
 
@@ -21,6 +25,9 @@ class PositionalRequestSignature extends RequestSignature {
 		this(m, parameterNames, TypeFactory.defaultInstance());}
 
 	PositionalRequestSignature(Method m, String[]parameterNames, TypeFactory tf){
+		this(m, parameterNames, -1, tf);}
+
+	PositionalRequestSignature(Method m, String[]parameterNames, int requiredParameters, TypeFactory tf){
 		super(tf.constructType(m.getAnnotatedReturnType().getType()), m.getExceptionTypes());
 		logInterfaceWarning(m.getReturnType(), m);
 		var types = new Object[m.getParameterCount()-1];
@@ -35,7 +42,15 @@ class PositionalRequestSignature extends RequestSignature {
 			i++;
 		}
 		positionalParameterTypes = types;
+		requiredCount = requiredParameters < 0 ? types.length : Math.min(requiredParameters, types.length);
 	}
 	
+	int getRequiredCount() {return requiredCount;}
+	//the value of an optional parameter that a request omits: null, or the default value of a primitive type
+	Object omittedParameterValue(int index) {
+		return positionalParameterTypes[index] instanceof JavaType jt && jt.isPrimitive() ?
+				JsonObjectRequestSignature.defaultValueFor(jt.getRawClass()) : null;
+	}
+
 	public Object[] getParameterTypes() {return positionalParameterTypes;}
 }
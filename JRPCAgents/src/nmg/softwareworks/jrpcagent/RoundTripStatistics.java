@@ -0,0 +1,102 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * RoundTripStatistics describes the round trip times of the heartbeats of one connection (see {@link ConnectionOptions#withHeartbeat}).
+ * The minimum, maximum, mean, percentiles and histogram describe the most recent heartbeats only, so that they follow the partner's
+ * latency as it changes; the counts cover the life of the connection.
+ */
+public final class RoundTripStatistics {
+	private static final int windowSize = 256; //the number of recent round trips described
+	private static final int bucketCount = 32;
+	private final long[] window = new long[windowSize]; //guarded by lock
+	private int next = 0, held = 0; //guarded by lock
+	private final ReentrantLock lock = new ReentrantLock();
+	private final AtomicLong count = new AtomicLong(0), stalls = new AtomicLong(0), lastNanos = new AtomicLong(0);
+
+	RoundTripStatistics() {}
+
+	void record(long nanos) {
+		count.incrementAndGet();
+		lastNanos.set(nanos);
+		lock.lock();
+		try {
+			window[next] = nanos;
+			next = (next + 1) % windowSize;
+			if (held < windowSize) held++;
+		} finally {lock.unlock();}
+	}
+
+	void stalled() {stalls.incrementAndGet();}
+
+	private long[] recent() {
+		lock.lock();
+		try {return Arrays.copyOf(window, held);
+		} finally {lock.unlock();}
+	}
+
+	/**
+	 * @return the number of heartbeats answered
+	 */
+	public long getCount() {return count.get();}
+	/**
+	 * @return the number of times the connection has stalled: a heartbeat went unanswered for the stall timeout
+	 */
+	public long getStalls() {return stalls.get();}
+	/**
+	 * @return the round trip time of the most recent heartbeat, or Duration.ZERO if none has been answered
+	 */
+	public Duration getLast() {return Duration.ofNanos(lastNanos.get());}
+	/**
+	 * @return the shortest recent round trip time, or Duration.ZERO if no heartbeat has been answered
+	 */
+	public Duration getMin() {return getPercentile(0);}
+	/**
+	 * @return the longest recent round trip time, or Duration.ZERO if no heartbeat has been answered
+	 */
+	public Duration getMax() {return getPercentile(100);}
+	/**
+	 * @return the mean of the recent round trip times, or Duration.ZERO if no heartbeat has been answered
+	 */
+	public Duration getMean() {
+		var samples = recent();
+		return samples.length == 0 ? Duration.ZERO : Duration.ofNanos(Arrays.stream(samples).sum()/samples.length);
+	}
+	/**
+	 * @param percentile a number from 0 to 100
+	 * @return the recent round trip time that this percentage of recent heartbeats did not exceed, or Duration.ZERO if no heartbeat
+	 * has been answered
+	 */
+	public Duration getPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("percentile must be between 0 and 100");
+		var samples = recent();
+		if (samples.length == 0) return Duration.ZERO;
+		Arrays.sort(samples);
+		var rank = (int)Math.ceil(percentile / 100 * samples.length);
+		return Duration.ofNanos(samples[Math.max(rank - 1, 0)]);
+	}
+	/**
+	 * @return the number of recent round trips in each bucket of a histogram. Bucket 0 counts round trips shorter than 2 microseconds,
+	 * and bucket i, for i &gt; 0, counts those from 2<sup>i</sup> up to 2<sup>i+1</sup> microseconds. The last bucket also counts longer round trips.
+	 */
+	public long[] getHistogram() {
+		var buckets = new long[bucketCount];
+		for (var nanos : recent()) {
+			var micros = nanos / 1000;
+			var bucket = micros < 2 ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+			buckets[Math.min(bucket, bucketCount - 1)]++;
+		}
+		return buckets;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d round trips, last %d us; recent p50 %d us, p99 %d us, max %d us; %d stalls", count.get(),
+				lastNanos.get()/1000, getPercentile(50).toNanos()/1000, getPercentile(99).toNanos()/1000, getMax().toNanos()/1000, stalls.get());
+	}
+}
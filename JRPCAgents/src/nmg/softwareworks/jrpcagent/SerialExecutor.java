@@ -0,0 +1,53 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* A SerialExecutor runs the tasks given to it one at a time, in the order they were submitted, on threads
+ * borrowed from an underlying executor.  No thread is held while there are no tasks.
+ * This is how a connection on the NIO transport keeps its messages (and its notifications) in order without
+ * a thread of its own.
+ */
+final class SerialExecutor implements Executor {
+	private final Executor underlying;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	private final AtomicInteger backlog = new AtomicInteger(0);
+
+	SerialExecutor(Executor underlying) {
+		this.underlying = underlying;}
+
+	@Override
+	public void execute(Runnable task) {
+		backlog.incrementAndGet();
+		tasks.add(task);
+		schedule();
+	}
+
+	/**
+	 * @return the number of tasks submitted that have not yet completed
+	 */
+	int backlog() {return backlog.get();}
+
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true))
+			underlying.execute(this::drain);
+	}
+
+	private void drain() {
+		try {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				try {task.run();
+				} catch (Throwable t) {
+					Logging.log(t, "uncaught exception in a serially executed task");
+				} finally {backlog.decrementAndGet();}
+			}
+		} finally {
+			scheduled.set(false);
+			if (!tasks.isEmpty()) schedule(); //a task arrived after the last poll
+		}
+	}
+}
@@ -2,6 +2,7 @@ package nmg.softwareworks.jrpcagent;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
 
 /**
@@ -30,12 +31,25 @@ public abstract class ServerAgent extends JRPCAgent{
 	 * @throws IOException if a problem arises establishing the communications channels between the ServerAgent and its partner
 	 */
 	public ServerAgent(JRPCServer server, Socket socket, String name) throws IOException{
-		super(socket, name);
+		super(socket, name, server.clientConnectionOptions());
 		this.server = server;
 		this.index = server.nextConnectionIndex();
 		//server.onNewNetworkClient(this);
 	}
 	
+	/**
+	 * @param server The JRPCServer whose behavior this agent implements
+	 * @param channel The connection that identifies the partner agent of this ServerAgent, such as a channel accepted on
+	 * a Unix domain socket
+	 * @param name A name for this agent. This can be null. The agent name may be assigned later with setName()
+	 * @throws IOException if a problem arises establishing the communications channels between the ServerAgent and its partner
+	 */
+	public ServerAgent(JRPCServer server, SocketChannel channel, String name) throws IOException{
+		super(channel, name, server.clientConnectionOptions());
+		this.server = server;
+		this.index = server.nextConnectionIndex();
+	}
+	
 	public Connection getConnection() {return super.getPrimaryConnection();}
 	
 	/**
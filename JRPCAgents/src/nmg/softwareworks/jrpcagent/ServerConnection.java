@@ -1,6 +1,7 @@
 package nmg.softwareworks.jrpcagent;
 
 import java.io.*;
+import java.nio.channels.SocketChannel;
 
 
 /**
@@ -25,4 +26,8 @@ public class ServerConnection extends Connection {
 		super(sa, istream, ostream);
 		initialize(sa);
 	}
+	protected ServerConnection(ServerAgent sa, SocketChannel channel) throws IOException {
+		super(sa, channel);
+		initialize(sa);
+	}
 }
@@ -0,0 +1,72 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * A Span is one timed step of a distributed trace, given to a {@link SpanExporter} when it ends. An agent that traces its messages
+ * (see {@link ConnectionOptions#withTracing}) ends a CLIENT span for each request it sends, when the response arrives, the request
+ * expires, or its connection closes; a SERVER span for each request it handles, when its handler returns; and a CONSUMER span for
+ * each traced notification it handles.
+ */
+public final class Span {
+	public enum Kind {CLIENT, SERVER, CONSUMER}
+	/**
+	 * How a span ended. A CLIENT span whose request was answered with an error, or a SERVER or CONSUMER span whose handler threw
+	 * an exception, ended with ERROR.
+	 */
+	public enum Status {OK, ERROR, TIMEOUT, CLOSED}
+
+	private final TraceContext context;
+	private final String method, connection;
+	private final Kind kind;
+	private final Instant start;
+	private final Duration duration;
+	private final Status status;
+	private final int errorCode;
+
+	Span(TraceContext context, String method, Kind kind, String connection, long durationNanos, Status status, int errorCode) {
+		this.context = context;
+		this.method = method;
+		this.kind = kind;
+		this.connection = connection;
+		this.duration = Duration.ofNanos(durationNanos);
+		this.start = Instant.now().minus(duration);
+		this.status = status;
+		this.errorCode = errorCode;
+	}
+
+	/**
+	 * @return the trace context of this span: its trace id, span id, and parent span id
+	 */
+	public TraceContext getContext() {return context;}
+	public String getTraceId() {return context.getTraceId();}
+	public String getSpanId() {return context.getSpanId();}
+	/**
+	 * @return the id of this span's parent, or null for the root span of a trace, or a span whose parent was made by the partner
+	 */
+	public String getParentSpanId() {return context.getParentSpanId();}
+	/**
+	 * @return the JRPC method of the request or notification
+	 */
+	public String getMethod() {return method;}
+	public Kind getKind() {return kind;}
+	/**
+	 * @return the name of the connection the request or notification was sent or received on
+	 */
+	public String getConnection() {return connection;}
+	public Instant getStart() {return start;}
+	public Duration getDuration() {return duration;}
+	public Status getStatus() {return status;}
+	/**
+	 * @return the JRPC error code of the error response that ended a CLIENT span, or the error code of the response to a SERVER span
+	 * whose handler failed; 0 otherwise
+	 */
+	public int getErrorCode() {return errorCode;}
+
+	@Override
+	public String toString() {
+		return String.format("%s span %s %s on %s: %d us, %s%s", kind, method, context, connection, duration.toNanos()/1000, status,
+				errorCode == 0 ? "" : " " + errorCode);
+	}
+}
@@ -0,0 +1,17 @@
+package nmg.softwareworks.jrpcagent;
+
+/**
+ * A SpanExporter receives the {@link Span spans} of an agent that traces its messages (see {@link ConnectionOptions#withTracing}),
+ * for example to send them to a tracing system. It is called on the thread that ended the span: the connection's reader or dispatch
+ * thread for a CLIENT span, or the handler's thread. It should return quickly, handing spans to a thread of its own for any slow work.
+ * An exception thrown by an exporter is logged and otherwise ignored.
+ */
+@FunctionalInterface
+public interface SpanExporter {
+	void export(Span span);
+
+	/**
+	 * @return an exporter that writes each span to this library's log
+	 */
+	static SpanExporter toLog() {return span -> Logging.log("%s", span);}
+}
@@ -0,0 +1,208 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/* A TlsChannel runs TLS over a SocketChannel used by the NIO transport, through an SSLEngine.
+ * The handshake is done while the channel is still in blocking mode, before it is registered with a selector.
+ * After that the selector thread unwraps whatever bytes it reads, and writers wrap their output under a lock of their own.
+ * (An SSLEngine allows a wrap and an unwrap to proceed at the same time.)
+ * Handshake messages that arrive after the initial handshake and need an answer (such as a key update) are answered
+ * by a dispatch task rather than on the selector thread, since the selector thread must never wait for the channel to be writable.
+ */
+final class TlsChannel {
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+	//serializes wraps, and the writes of their output. A Lock rather than a monitor, so that a virtual thread waiting for the channel
+	//to be writable does not pin its carrier
+	private final ReentrantLock wrapLock = new ReentrantLock();
+	private ByteBuffer netIn, appIn, netOut; //netIn and netOut hold encrypted bytes, appIn plaintext
+	private boolean delivered = false; //appIn has been flipped and handed to the connection
+	private volatile boolean needsWrap = false;
+	private final long handshakeNanos;
+	private final boolean resumed;
+
+	/**
+	 * perform the handshake on a channel
+	 * @param channel a connected channel, in blocking mode
+	 * @param engine an engine whose client mode has been set
+	 * @throws IOException if the handshake fails
+	 */
+	TlsChannel(SocketChannel channel, SSLEngine engine) throws IOException {
+		this.channel = channel;
+		this.engine = engine;
+		var session = engine.getSession();
+		netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+		netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+		appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+		var startMillis = System.currentTimeMillis();
+		var start = System.nanoTime();
+		handshake();
+		handshakeNanos = System.nanoTime() - start;
+		resumed = TlsHandshakeStatistics.isResumed(engine.getSession(), startMillis);
+	}
+
+	long getHandshakeNanos() {return handshakeNanos;}
+	boolean isResumed() {return resumed;}
+	SSLEngine getEngine() {return engine;}
+
+	private void handshake() throws IOException {
+		engine.beginHandshake();
+		var empty = ByteBuffer.allocate(0);
+		while (true) {
+			switch (engine.getHandshakeStatus()) {
+			case NEED_WRAP:
+				netOut.clear();
+				var wrapped = engine.wrap(empty, netOut);
+				if (wrapped.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+					break;
+				}
+				netOut.flip();
+				while (netOut.hasRemaining()) channel.write(netOut);
+				if (wrapped.getStatus() == SSLEngineResult.Status.CLOSED)
+					throw new SSLException("partner closed the connection during the TLS handshake");
+				break;
+			case NEED_UNWRAP:
+			case NEED_UNWRAP_AGAIN:
+				netIn.flip();
+				SSLEngineResult unwrapped;
+				try {unwrapped = engine.unwrap(netIn, appIn);
+				} finally {netIn.compact();}
+				switch (unwrapped.getStatus()) {
+				case BUFFER_UNDERFLOW:
+					netIn = ensureRoom(netIn, engine.getSession().getPacketBufferSize());
+					if (channel.read(netIn) < 0)
+						throw new EOFException("partner closed the connection during the TLS handshake");
+					break;
+				case BUFFER_OVERFLOW:
+					appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+					break;
+				case CLOSED:
+					throw new SSLException("partner closed the connection during the TLS handshake");
+				default:
+				}
+				break;
+			case NEED_TASK:
+				runTasks();
+				break;
+			default: //FINISHED or NOT_HANDSHAKING
+				return;
+			}
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null) task.run();
+	}
+
+	/**
+	 * Called on the selector thread with the bytes read from the channel.
+	 * @param input encrypted bytes
+	 * @return the plaintext they contain, ready to be read. It must be consumed before the next call.
+	 */
+	ByteBuffer unwrap(ByteBuffer input) throws IOException {
+		if (delivered) {
+			appIn.clear();
+			delivered = false;
+		}
+		netIn = ensureRoom(netIn, input.remaining());
+		netIn.put(input);
+		netIn.flip();
+		try {
+			loop: while (netIn.hasRemaining()) {
+				var result = engine.unwrap(netIn, appIn);
+				switch (result.getStatus()) {
+				case BUFFER_OVERFLOW:
+					appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+					continue;
+				case BUFFER_UNDERFLOW: //a partial record remains
+				case CLOSED:
+					break loop;
+				default:
+				}
+				if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) runTasks();
+				if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) needsWrap = true;
+			}
+		} finally {netIn.compact();}
+		appIn.flip();
+		delivered = true;
+		return appIn;
+	}
+
+	/**
+	 * @return true if the partner has ended the TLS session
+	 */
+	boolean isInboundDone() {return engine.isInboundDone();}
+
+	/**
+	 * @return true, once, if a message read from the partner requires an answer. The answer is sent by {@link #answerHandshake}.
+	 */
+	boolean takeNeedsWrap() {
+		if (!needsWrap) return false;
+		needsWrap = false;
+		return true;
+	}
+
+	void answerHandshake(ChannelReactor.Registration registration) {
+		try {write(ByteBuffer.allocate(0), registration);
+		} catch (IOException e) {
+			Logging.log(e, "failed to answer a TLS handshake message");}
+	}
+
+	/**
+	 * encrypt all of src and write it to the channel
+	 */
+	void write(ByteBuffer src, ChannelReactor.Registration registration) throws IOException {
+		wrapLock.lock();
+		try {
+			do {
+				netOut.clear();
+				var result = engine.wrap(src, netOut);
+				switch (result.getStatus()) {
+				case BUFFER_OVERFLOW:
+					netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+					continue;
+				case CLOSED:
+					if (src.hasRemaining()) throw new SSLException("the TLS session has been closed");
+					break;
+				default:
+				}
+				if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) runTasks();
+				netOut.flip();
+				while (netOut.hasRemaining())
+					if (channel.write(netOut) == 0) registration.awaitWritable();
+			} while (src.hasRemaining() || engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP);
+		} finally {wrapLock.unlock();}
+	}
+
+	/**
+	 * send the TLS close_notify to the partner, if the channel will still take it
+	 */
+	void closeOutbound(ChannelReactor.Registration registration) {
+		engine.closeOutbound();
+		try {write(ByteBuffer.allocate(0), registration);
+		} catch (IOException e) {}
+	}
+
+	private static ByteBuffer ensureRoom(ByteBuffer buffer, int room) {
+		if (buffer.remaining() >= room) return buffer;
+		var larger = ByteBuffer.allocate(Math.max(buffer.capacity()*2, buffer.position() + room));
+		buffer.flip();
+		return larger.put(buffer);
+	}
+
+	private static ByteBuffer enlarge(ByteBuffer buffer, int sessionSize) {
+		var larger = ByteBuffer.allocate(Math.max(buffer.capacity()*2, sessionSize));
+		buffer.flip();
+		return larger.put(buffer);
+	}
+}
@@ -0,0 +1,74 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSession;
+
+/**
+ * TlsHandshakeStatistics accumulates the TLS handshakes performed for an agent's connections, distinguishing full handshakes
+ * from those that resumed a session negotiated earlier. A resumed handshake skips the key exchange and the verification of the partner's
+ * certificate, so when many connections are opened at once (for example after a server restarts) a low proportion of resumed handshakes
+ * shows where the time goes.
+ */
+public final class TlsHandshakeStatistics {
+	private final AtomicLong full = new AtomicLong(0), resumed = new AtomicLong(0),
+			totalNanos = new AtomicLong(0), maxNanos = new AtomicLong(0), lastNanos = new AtomicLong(0);
+
+	TlsHandshakeStatistics() {}
+
+	/**
+	 * @param session the session established by a handshake
+	 * @param startMillis the wall clock time at which the handshake began
+	 * @return true if the handshake resumed a session that existed before it began
+	 */
+	public static boolean isResumed(SSLSession session, long startMillis) {
+		return session.getCreationTime() < startMillis;}
+
+	/**
+	 * record a completed handshake. The connections of the NIO transport record their own handshakes; a subclass of JRPCAgent
+	 * that creates SSLSockets for its connections records theirs with this method.
+	 * @param nanos the duration of the handshake
+	 * @param wasResumed true if the handshake resumed an earlier session
+	 */
+	public void record(long nanos, boolean wasResumed) {
+		(wasResumed ? resumed : full).incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		maxNanos.accumulateAndGet(nanos, Math::max);
+		lastNanos.set(nanos);
+	}
+
+	/**
+	 * @return the number of handshakes that established a new session
+	 */
+	public long getFullHandshakes() {return full.get();}
+	/**
+	 * @return the number of handshakes that resumed an earlier session
+	 */
+	public long getResumedHandshakes() {return resumed.get();}
+	/**
+	 * @return the total time spent in handshakes
+	 */
+	public Duration getTotalTime() {return Duration.ofNanos(totalNanos.get());}
+	/**
+	 * @return the time taken by the slowest handshake
+	 */
+	public Duration getMaxTime() {return Duration.ofNanos(maxNanos.get());}
+	/**
+	 * @return the time taken by the most recent handshake
+	 */
+	public Duration getLastTime() {return Duration.ofNanos(lastNanos.get());}
+	/**
+	 * @return the average time taken by a handshake, or Duration.ZERO if there have been none
+	 */
+	public Duration getAverageTime() {
+		var count = full.get() + resumed.get();
+		return count == 0 ? Duration.ZERO : Duration.ofNanos(totalNanos.get()/count);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d full and %d resumed TLS handshakes, average %d us, max %d us", full.get(), resumed.get(),
+				getAverageTime().toNanos()/1000, maxNanos.get()/1000);
+	}
+}
@@ -0,0 +1,155 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import com.fasterxml.jackson.core.TreeNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+/**
+ * <p>A TraceContext identifies one span of a distributed trace: the trace it belongs to, the span itself, and the span's parent.
+ * Agents whose options call for tracing (see {@link ConnectionOptions#withTracing}) carry trace contexts between partners in the
+ * traceparent property of JRPC messages, written as a W3C traceparent: 00-<i>trace id</i>-<i>span id</i>-<i>flags</i>.
+ * </p><p>
+ * Each thread has a current trace context. A request sent by a tracing agent is a new span, a child of the sending thread's current
+ * context, or the root of a new trace if the thread has none. While a handler runs for a traced request or notification, the
+ * handler's span is the current context of its thread, so the requests the handler sends belong to the same trace.
+ * An application may make a context current itself, with {@link #makeCurrent}.
+ * </p>
+ */
+public final class TraceContext {
+	/**
+	 * the property of JRPC messages that carries a trace context
+	 */
+	public static final String property = "traceparent";
+	private static final ThreadLocal<TraceContext> current = new ThreadLocal<>();
+	private static final char[] hexDigits = "0123456789abcdef".toCharArray();
+	private static final int sampledFlag = 1;
+
+	private final long traceHigh, traceLow, spanId, parentSpanId;
+	private final int flags;
+	private String text = null; //the traceparent, once it has been written
+
+	private TraceContext(long traceHigh, long traceLow, long spanId, long parentSpanId, int flags) {
+		this.traceHigh = traceHigh;
+		this.traceLow = traceLow;
+		this.spanId = spanId;
+		this.parentSpanId = parentSpanId;
+		this.flags = flags;
+	}
+
+	private static long nonZero() {
+		long id;
+		do {id = ThreadLocalRandom.current().nextLong();} while (id == 0);
+		return id;
+	}
+
+	/**
+	 * @return the root span of a new, sampled trace
+	 */
+	public static TraceContext newRoot() {
+		return new TraceContext(ThreadLocalRandom.current().nextLong(), nonZero(), nonZero(), 0, sampledFlag);}
+
+	/**
+	 * @return a new span of this context's trace, whose parent is this context's span
+	 */
+	public TraceContext newChild() {
+		return new TraceContext(traceHigh, traceLow, nonZero(), spanId, flags);}
+
+	/**
+	 * @return the current trace context of the calling thread, or null if it has none
+	 */
+	public static TraceContext current() {return current.get();}
+
+	//a new span that is a child of the calling thread's current context, or the root of a new trace
+	static TraceContext childOfCurrent() {
+		var parent = current.get();
+		return parent == null ? newRoot() : parent.newChild();
+	}
+
+	/**
+	 * A Scope restores, when it is closed, the trace context that was current before {@link TraceContext#makeCurrent} replaced it.
+	 */
+	public interface Scope extends AutoCloseable {
+		@Override
+		void close();
+	}
+
+	/**
+	 * Make this context the calling thread's current context until the returned scope is closed.
+	 * <pre>try (var scope = context.makeCurrent()) {...}</pre>
+	 * @return a scope that restores the thread's previous context
+	 */
+	public Scope makeCurrent() {
+		var previous = current.get();
+		current.set(this);
+		return () -> current.set(previous);
+	}
+
+	/**
+	 * @param traceparent a W3C traceparent
+	 * @return the trace context it describes, or null if it is not a traceparent of version 00 with non-zero ids
+	 */
+	public static TraceContext parse(String traceparent) {
+		if (traceparent == null || traceparent.length() != 55 || !traceparent.startsWith("00-")
+				|| traceparent.charAt(35) != '-' || traceparent.charAt(52) != '-')
+			return null;
+		try {
+			var high = Long.parseUnsignedLong(traceparent, 3, 19, 16);
+			var low = Long.parseUnsignedLong(traceparent, 19, 35, 16);
+			var span = Long.parseUnsignedLong(traceparent, 36, 52, 16);
+			var flags = Integer.parseInt(traceparent, 53, 55, 16);
+			if ((high == 0 && low == 0) || span == 0) return null;
+			//the partner's span is the parent of any span made from this context, and its own parent is unknown here
+			return new TraceContext(high, low, span, 0, flags);
+		} catch (NumberFormatException e) {return null;}
+	}
+
+	//the trace context in the meta properties of an incoming message, or null if there is none
+	static TraceContext fromMeta(Map<String,TreeNode> meta) {
+		return meta != null && meta.get(property) instanceof TextNode text ? parse(text.textValue()) : null;}
+
+	/**
+	 * @return the trace id, as 32 hexadecimal digits
+	 */
+	public String getTraceId() {return toString().substring(3, 35);}
+	/**
+	 * @return the span id, as 16 hexadecimal digits
+	 */
+	public String getSpanId() {return toString().substring(36, 52);}
+	/**
+	 * @return the id of the parent span, as 16 hexadecimal digits, or null if this span's parent is not known here
+	 */
+	public String getParentSpanId() {
+		if (parentSpanId == 0) return null;
+		var digits = new char[16];
+		hex(parentSpanId, digits, 0);
+		return new String(digits);
+	}
+	/**
+	 * @return true if the spans of this trace should be exported
+	 */
+	public boolean isSampled() {return (flags & sampledFlag) != 0;}
+
+	private static void hex(long value, char[] into, int at) {
+		for (int i = 15; i >= 0; i--, value >>>= 4)
+			into[at + i] = hexDigits[(int)(value & 0xf)];
+	}
+
+	/**
+	 * @return this context as a W3C traceparent
+	 */
+	@Override
+	public String toString() {
+		var written = text;
+		if (written != null) return written;
+		var chars = new char[55];
+		chars[0] = chars[1] = '0';
+		chars[2] = chars[35] = chars[52] = '-';
+		hex(traceHigh, chars, 3);
+		hex(traceLow, chars, 19);
+		hex(spanId, chars, 36);
+		chars[53] = hexDigits[(flags >> 4) & 0xf];
+		chars[54] = hexDigits[flags & 0xf];
+		return text = new String(chars);
+	}
+}
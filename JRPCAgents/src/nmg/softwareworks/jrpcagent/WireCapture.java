@@ -0,0 +1,49 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/* A WireCapture accumulates the bytes of the messages passing through a LoggingInputStream or LoggingOutputStream
+ * while capture is turned on.  The bytes are decoded (as UTF-8) only when the captured text is requested.
+ */
+final class WireCapture {
+	private static final int initialCapacity = 256, retainedCapacity = 1028;
+	private byte[] captured = new byte[initialCapacity];
+	private int count = 0;
+	private boolean capturing = false;
+
+	boolean isCapturing() {return capturing;}
+
+	void setCapturing(boolean b) {
+		if (b == capturing) return;
+		count = 0;
+		capturing = b;
+	}
+
+	void append(byte[] b, int offset, int length) {
+		if (count + length > captured.length)
+			captured = Arrays.copyOf(captured, Math.max(2*captured.length, count + length));
+		System.arraycopy(b, offset, captured, count, length);
+		count += length;
+	}
+
+	void append(int b) {
+		if (count == captured.length)
+			captured = Arrays.copyOf(captured, 2*count);
+		captured[count++] = (byte)b;
+	}
+
+	byte[] bytes() {return captured;}
+	int length() {return count;}
+
+	void reset() {
+		count = 0;
+		if (captured.length > retainedCapacity) captured = new byte[initialCapacity];
+	}
+
+	String getText(boolean reset) {
+		var text = new String(captured, 0, count, StandardCharsets.UTF_8);
+		if (reset) reset();
+		return text;
+	}
+}
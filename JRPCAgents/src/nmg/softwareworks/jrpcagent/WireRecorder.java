@@ -0,0 +1,95 @@
+package nmg.softwareworks.jrpcagent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* A WireRecorder keeps the most recent messages sent and received, across all connections, in a fixed-size ring
+ * held outside the java heap.  When the ring is full, the oldest messages are discarded to make room.
+ * Recording a message copies its bytes into the ring and allocates nothing.
+ *
+ * Each record in the ring is:  int recordLength, long epochMillis, byte direction, short nameLength, the chars of the
+ * connection name, then the bytes of the message.  recordLength counts everything after itself.
+ */
+final class WireRecorder {
+	private static final int fixedHeader = 8 + 1 + 2; //millis, direction, nameLength
+	private final ByteBuffer ring;
+	private final int capacity;
+	private final ReentrantLock lock = new ReentrantLock();
+	private int head = 0, tail = 0, used = 0, records = 0;
+
+	WireRecorder(int capacity) {
+		this.capacity = capacity;
+		ring = ByteBuffer.allocateDirect(capacity);
+	}
+
+	void record(String connectionName, boolean outbound, byte[] message, int offset, int length) {
+		var nameLength = Math.min(connectionName == null ? 0 : connectionName.length(), 64);
+		var header = 4 + fixedHeader + 2*nameLength;
+		if (header >= capacity) return;
+		length = Math.min(length, capacity - header); //a message too large for the ring is truncated
+		var size = header + length;
+		lock.lock();
+		try {
+			while (capacity - used < size) discardOldest();
+			putInt(size - 4);
+			putLong(System.currentTimeMillis());
+			put((byte)(outbound ? 1 : 0));
+			putShort((short)nameLength);
+			for (int i = 0; i < nameLength; i++) putShort((short)connectionName.charAt(i));
+			var first = Math.min(length, capacity - tail);
+			ring.put(tail, message, offset, first);
+			ring.put(0, message, offset + first, length - first);
+			tail = (tail + length) % capacity;
+			used += size;
+			records++;
+		} finally {lock.unlock();}
+	}
+
+	/**
+	 * write the recorded messages, oldest first, to out
+	 */
+	void dump(Appendable out) throws IOException {
+		lock.lock();
+		try {
+			var position = head;
+			for (int r = 0; r < records; r++) {
+				var size = getInt(position);
+				var p = position + 4;
+				var millis = getLong(p); p += 8;
+				var outbound = get(p) == 1; p += 1;
+				var nameLength = getShort(p); p += 2;
+				var name = new StringBuilder(nameLength);
+				for (int i = 0; i < nameLength; i++, p += 2) name.append((char)getShort(p));
+				var messageLength = size - fixedHeader - 2*nameLength;
+				var message = new byte[messageLength];
+				for (int i = 0; i < messageLength; i++) message[i] = get(p + i);
+				out.append(String.format("%s %s %s <%s>%n", Instant.ofEpochMilli(millis), name, outbound ? "sent" : "received",
+						new String(message, StandardCharsets.UTF_8)));
+				position = (position + 4 + size) % capacity;
+			}
+		} finally {lock.unlock();}
+	}
+
+	private void discardOldest() {
+		var size = getInt(head) + 4;
+		head = (head + size) % capacity;
+		used -= size;
+		records--;
+	}
+
+	// the primitive accessors wrap around the end of the ring
+	private byte get(int position) {return ring.get(position % capacity);}
+	private void put(byte b) {
+		ring.put(tail, b);
+		tail = (tail + 1) % capacity;
+	}
+	private int getShort(int position) {return ((get(position) & 0xff) << 8) | (get(position+1) & 0xff);}
+	private void putShort(short s) {put((byte)(s >> 8)); put((byte)s);}
+	private int getInt(int position) {return (getShort(position) << 16) | getShort(position+2);}
+	private void putInt(int i) {putShort((short)(i >> 16)); putShort((short)i);}
+	private long getLong(int position) {return ((long)getInt(position) << 32) | (getInt(position+4) & 0xffffffffL);}
+	private void putLong(long l) {putInt((int)(l >> 32)); putInt((int)l);}
+}
@@ -79,8 +79,22 @@ public @interface JsonRpcHandler {
 	 */
     String[] ignoredParameterNames() default {};
 
+	/**
+	 * @return for a handler of requests with positional parameters, the number of leading parameters a request must supply.
+	 * The remaining parameters of the annotated method are optional, as they are in a {@link nmg.softwareworks.jrpcagent.PositionalParameterRequest}
+	 * whose minimum count is less than its maximum. An optional parameter a request omits is passed to the method as null,
+	 * or as the default value of a primitive type. -1, the default, means that every parameter is required.
+	 */
+    int requiredParameters() default -1;
+
 	/**
 	 * @return false if the handler should handle each request in a separate thread
 	 */
     boolean synchronous() default true;
+
+	/**
+	 * @return true if an asynchronous handler should run in a virtual thread even when the agent's
+	 * execution mode is PLATFORM. Ignored when synchronous is true.
+	 */
+    boolean useVirtualThread() default false;
 }
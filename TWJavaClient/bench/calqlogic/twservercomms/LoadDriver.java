@@ -0,0 +1,452 @@
+package calqlogic.twservercomms;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import calqlogic.twservercomms.TriggerwareClient.TriggerwareClientException;
+import nmg.softwareworks.jrpcagent.ConnectionOptions;
+import nmg.softwareworks.jrpcagent.JRPCException;
+import nmg.softwareworks.jrpcagent.LatencyHistogram;
+
+/**
+ * <p>A LoadDriver runs a closed-loop load against a TW server, for soak tests and for finding the load at which a TriggerwareClient
+ * stops scaling. It opens a number of clients, each with a {@link ConnectionPool} of a number of connections, and runs a number of
+ * workers for each client. A worker issues an operation, waits for it to complete, and issues the next, so the load is set by the
+ * number of workers rather than by a rate. Each operation is chosen at random, by configured weights, from:
+ * </p>
+ * <ul>
+ * <li>query: an ad hoc query executed with {@link QueryStatement#executeQuery}, whose rows are all fetched. Its statement has one of
+ * the configured {@link QueryStatement#setFetchSize fetch sizes}, which, for an ad hoc query, also limits the number of its rows</li>
+ * <li>prepared: a result set of the worker's {@link PreparedQuery}, created with a random parameter and one of the configured
+ * {@link PreparedQuery#setFetchSize fetch sizes}, whose rows are all fetched, a batch at a time</li>
+ * <li>poll: an on-demand poll of the worker's {@link PolledQuery}, which completes when its delta arrives</li>
+ * </ul>
+ * <p>
+ * Meanwhile each client has subscriptions, singly and in a {@link BatchSubscription}, spread over its connections, whose
+ * notifications arrive at whatever rate the server sends them.
+ * </p><p>
+ * At each interval the driver reports the throughput and latency percentiles of each operation, the rate of notifications, and the
+ * garbage collection pauses and heap of the process. At the end it reports the same over the run that followed the warmup, the
+ * growth of the heap that survives collections, and the notifications that waited in, or were dropped from, each client's
+ * connections. Latency that rises as the run goes on, a heap that keeps growing, and notifications that queue up or are dropped
+ * are the regressions a soak run is meant to find.
+ * </p><p>
+ * A run is configured by system properties:
+ * </p>
+ * <ul>
+ * <li>load.host and load.port: the TW server. If load.port is not given, the server is an in-process {@link StandInServer}
+ * configured by its {@link StandInServer#withSystemProperties system properties}. Its rows carry the time they were made, so the
+ * latency of subscription notifications is reported too</li>
+ * <li>load.nio: true to use the NIO transport (default false)</li>
+ * <li>load.clients: the number of clients (default 2)</li>
+ * <li>load.connections: the number of connections of each client (default 2)</li>
+ * <li>load.workers: the number of workers of each client (default 4)</li>
+ * <li>load.mix: the weights of the operations (default query=4,prepared=2,poll=1). An operation given no weight is not run</li>
+ * <li>load.fetchSizes: the fetch sizes of ad hoc and prepared queries, each measured separately (default 10,25,100)</li>
+ * <li>load.subscriptions: the number of single subscriptions of each client (default 4)</li>
+ * <li>load.batched: the number of subscriptions in the batch subscription of each client (default 4)</li>
+ * <li>load.think: the time a worker waits between operations, in milliseconds (default 0)</li>
+ * <li>load.warmup, load.duration and load.interval: the durations of the warmup, of the measured run that follows it, and of the
+ * intervals between reports, in seconds (defaults 10, 60 and 10)</li>
+ * <li>load.query, load.preparedQuery, load.subscription and load.schema: the query of ad hoc and polled queries, the query of
+ * prepared queries, whose one parameter is given an integer from 0 to 99, the triggering condition of subscriptions, and the schema
+ * of all of them. Against a TW server they must suit its data; the stand-in answers any query</li>
+ * </ul>
+ * <p>
+ * Run with <code>java calqlogic.twservercomms.LoadDriver</code>. It exits with status 1 if any operation failed.
+ * </p>
+ */
+public class LoadDriver {
+	//the latencies of one kind of operation, in the current interval and in the run after the warmup
+	private static final class Measure {
+		final String name;
+		volatile LatencyHistogram interval = new LatencyHistogram(), run = new LatencyHistogram();
+		final LongAdder errors = new LongAdder();
+		long reportedErrors = 0, runErrors = 0; //the errors at the last report, and at the start of the run
+		volatile String lastError = null;
+		Measure(String name) {this.name = name;}
+		void record(long nanos) {
+			interval.record(nanos);
+			run.record(nanos);
+		}
+		void failed(Exception e) {
+			errors.increment();
+			lastError = e.toString();
+		}
+		//the latencies of the interval that ends now. A duration recorded as it ends may be counted in either interval
+		LatencyHistogram endInterval() {
+			var ended = interval;
+			interval = new LatencyHistogram();
+			return ended;
+		}
+		long intervalErrors() {
+			var e = errors.sum();
+			var n = e - reportedErrors;
+			reportedErrors = e;
+			return n;
+		}
+		void startRun() {
+			run = new LatencyHistogram();
+			runErrors = errors.sum();
+		}
+	}
+
+	private enum Kind {QUERY, PREPARED, POLL}
+	//an operation a worker may choose, with the weight of its choice
+	private record Workload(Kind kind, Integer fetchSize, double weight, Measure measure) {}
+
+	//a subscription that counts its notifications, and measures their latency when its rows carry the time they were made
+	private final class LoadSubscription extends Subscription<Object[]> {
+		LoadSubscription(String condition, String schema) {super(Object[].class, condition, schema);}
+		@Override
+		public void handleNotification(Object[] row) {
+			var now = System.nanoTime();
+			notificationsReceived.increment();
+			if (timestamped) notifications.record(now - ((Number)row[row.length - 1]).longValue());
+		}
+	}
+
+	//a polled query whose poll completes when its delta arrives
+	private static final class LoadPoll extends PolledQuery<Object[]> {
+		private final Semaphore deltas = new Semaphore(0);
+		private volatile String error = null;
+		LoadPoll(TriggerwareConnection connection, String query, String schema) throws JRPCException {
+			super(connection, Object[].class, query, schema, new PolledQueryControlParameters(true, false, null));}
+		@Override
+		public void handleSuccess(RowsDelta<Object[]> delta, Instant timeStamp) {deltas.release();}
+		@Override
+		public void handleError(String message, Instant timeStamp) {
+			error = message;
+			deltas.release();
+		}
+		void pollAndWait() throws Exception {
+			deltas.drainPermits(); //the delta of an earlier poll that timed out
+			error = null;
+			poll();
+			if (!deltas.tryAcquire(deltaTimeout.toNanos(), TimeUnit.NANOSECONDS))
+				throw new TimeoutException(String.format("no delta arrived within %d seconds of a poll", deltaTimeout.toSeconds()));
+			if (error != null) throw new TriggerwareClientException(error);
+		}
+	}
+
+	private static final Duration deltaTimeout = Duration.ofSeconds(30);
+	private static final double MB = 1024 * 1024;
+
+	private final String host = System.getProperty("load.host");
+	private final Integer port = Integer.getInteger("load.port");
+	private final boolean nio = Boolean.getBoolean("load.nio");
+	private final int clientCount = Integer.getInteger("load.clients", 2);
+	private final int connectionCount = Integer.getInteger("load.connections", 2);
+	private final int workerCount = Integer.getInteger("load.workers", 4);
+	private final int subscriptionCount = Integer.getInteger("load.subscriptions", 4);
+	private final int batchedCount = Integer.getInteger("load.batched", 4);
+	private final long thinkMillis = Long.getLong("load.think", 0);
+	private final long warmupNanos = TimeUnit.SECONDS.toNanos(Long.getLong("load.warmup", 10));
+	private final long durationNanos = TimeUnit.SECONDS.toNanos(Long.getLong("load.duration", 60));
+	private final long intervalNanos = TimeUnit.SECONDS.toNanos(Math.max(1, Long.getLong("load.interval", 10)));
+	private final String query = System.getProperty("load.query", "select * from t");
+	private final String preparedQuery = System.getProperty("load.preparedQuery", "select * from t where id > ?");
+	private final String subscription = System.getProperty("load.subscription", "select * from t");
+	private final String schema = System.getProperty("load.schema");
+
+	private final List<Workload> workloads = new ArrayList<>();
+	private final double totalWeight;
+	private final Measure notifications = new Measure("notification"), gcPauses = new Measure("gc pause");
+	private final LongAdder notificationsReceived = new LongAdder(), rowsFetched = new LongAdder();
+	private long runRows = 0, runReceived = 0; //the rows fetched and notifications received when the run started
+	private final List<long[]> heapSamples = new ArrayList<>(); //the seconds since the run started, and the heap after collections
+	private volatile long heapAfterGc = 0;
+	private volatile boolean running = true;
+	private boolean timestamped = false;
+	private StandInServer standIn = null;
+	private final List<TriggerwareClient> clients = new ArrayList<>();
+	private final List<Subscription<?>> subscriptions = new ArrayList<>();
+	private final List<BatchSubscription> batches = new ArrayList<>();
+
+	public LoadDriver() {
+		double weight = 0;
+		for (var entry : System.getProperty("load.mix", "query=4,prepared=2,poll=1").split(",")) {
+			var parts = entry.split("=");
+			if (parts.length != 2)
+				throw new IllegalArgumentException(String.format("load.mix entry '%s' is not of the form operation=weight", entry));
+			var kind = Kind.valueOf(parts[0].trim().toUpperCase());
+			var w = Double.parseDouble(parts[1].trim());
+			if (w <= 0) continue;
+			var name = kind.name().toLowerCase();
+			if (kind == Kind.POLL) workloads.add(new Workload(kind, null, w, new Measure(name)));
+			else {
+				var sizes = System.getProperty("load.fetchSizes", "10,25,100").split(",");
+				for (var size : sizes) {
+					var fetchSize = Integer.valueOf(size.trim());
+					workloads.add(new Workload(kind, fetchSize, w / sizes.length, new Measure(name + "/" + fetchSize)));
+				}
+			}
+			weight += w;
+		}
+		if (workloads.isEmpty() && subscriptionCount + batchedCount == 0)
+			throw new IllegalArgumentException("load.mix gives no operation a weight, and there are no subscriptions");
+		totalWeight = weight;
+	}
+
+	private void listenToCollections() {
+		for (var gc : ManagementFactory.getGarbageCollectorMXBeans())
+			if (gc instanceof NotificationEmitter emitter)
+				emitter.addNotificationListener((n, handback) -> {
+					if (!n.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) return;
+					var info = GarbageCollectionNotificationInfo.from((CompositeData)n.getUserData());
+					var name = info.getGcName();
+					if (name.contains("Concurrent") || name.endsWith("Cycles")) return; //a concurrent cycle is not a pause
+					gcPauses.record(TimeUnit.MILLISECONDS.toNanos(info.getGcInfo().getDuration()));
+					long after = 0;
+					for (var usage : info.getGcInfo().getMemoryUsageAfterGc().values()) after += usage.getUsed();
+					heapAfterGc = after;
+				}, null, null);
+	}
+
+	private void open() throws Exception {
+		var address = host == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(host);
+		var serverPort = port;
+		if (serverPort == null) {
+			standIn = StandInServer.open().withSystemProperties()
+					.withRows(List.of(new StandInServer.Column("id", "bigint"), new StandInServer.Column("name", "casesensitive"),
+							new StandInServer.Column("made", "bigint")), i -> new Object[] {i, "row " + i, System.nanoTime()});
+			if (nio) standIn.setConnectionOptions(new ConnectionOptions().withTransport(ConnectionOptions.Transport.NIO));
+			standIn.start(true);
+			serverPort = standIn.getPort();
+			timestamped = true;
+		}
+		for (int c = 0; c < clientCount; c++) {
+			var name = "load " + c;
+			var client = nio
+					? new TriggerwareClient(name, address, serverPort, false, new ConnectionOptions().withTransport(ConnectionOptions.Transport.NIO))
+					: new TriggerwareClient(name, address, serverPort);
+			clients.add(client);
+			var connections = client.openConnectionPool(connectionCount, connectionCount, ConnectionPool.Routing.LEAST_OUTSTANDING)
+					.getConnections();
+			for (int s = 0; s < subscriptionCount; s++) {
+				var sub = new LoadSubscription(subscription, schema);
+				sub.activate(connections.get(s % connections.size()));
+				subscriptions.add(sub);
+			}
+			if (batchedCount > 0) {
+				var batch = new BatchSubscription();
+				for (int s = 0; s < batchedCount; s++) batch.addSubscription(new LoadSubscription(subscription, schema));
+				batch.activate(connections.get(connections.size() - 1));
+				batches.add(batch);
+			}
+		}
+	}
+
+	private Workload choose(ThreadLocalRandom random) {
+		var r = random.nextDouble(totalWeight);
+		for (var workload : workloads) {
+			r -= workload.weight();
+			if (r < 0) return workload;
+		}
+		return workloads.get(workloads.size() - 1);
+	}
+
+	private void fetchAll(TWResultSet<?> rs) throws Exception {
+		try {
+			long n = 0;
+			while (rs.next()) {
+				rs.get();
+				n++;
+			}
+			rowsFetched.add(n);
+		} finally {rs.close();}
+	}
+
+	//run operations until the run ends. A worker's prepared and polled queries are created when it first chooses them
+	private void work(TriggerwareClient client, int index) {
+		var random = ThreadLocalRandom.current();
+		PreparedQuery<Object[]> prepared = null;
+		LoadPoll polled = null;
+		try {
+			while (running && !workloads.isEmpty()) {
+				var workload = choose(random);
+				try {
+					switch (workload.kind()) {
+						case QUERY -> {
+							var start = System.nanoTime();
+							var statement = new QueryStatement(client);
+							statement.setFetchSize(workload.fetchSize());
+							try {fetchAll(statement.executeQuery(Object[].class, query, schema));
+							} finally {statement.close();}
+							workload.measure().record(System.nanoTime() - start);
+						}
+						case PREPARED -> {
+							if (prepared == null) prepared = new PreparedQuery<>(client, Object[].class, preparedQuery, schema, null);
+							var start = System.nanoTime();
+							prepared.setFetchSize(workload.fetchSize());
+							fetchAll(prepared.setParameter(1, random.nextInt(100)).createResultset());
+							workload.measure().record(System.nanoTime() - start);
+						}
+						case POLL -> {
+							if (polled == null) {
+								var connections = client.getConnectionPool().getConnections();
+								polled = new LoadPoll(connections.get(index % connections.size()), query, schema);
+								polled.register();
+							}
+							var start = System.nanoTime();
+							polled.pollAndWait();
+							workload.measure().record(System.nanoTime() - start);
+						}
+					}
+				} catch (Exception e) {workload.measure().failed(e);}
+				if (thinkMillis > 0) Thread.sleep(thinkMillis);
+			}
+		} catch (InterruptedException e) {
+		} finally {
+			if (prepared != null) prepared.close();
+			if (polled != null) polled.close();
+		}
+	}
+
+	private static String millis(Duration d) {return String.format("%.2f", d.toNanos() / 1e6);}
+
+	private static String latencies(LatencyHistogram h) {
+		return String.format("%9s %9s %9s %9s %9s", millis(h.getPercentile(50)), millis(h.getPercentile(90)),
+				millis(h.getPercentile(99)), millis(h.getPercentile(99.9)), millis(h.getMax()));
+	}
+
+	private void report(String title, double seconds, boolean whole, long rows, long received) {
+		System.out.printf("%-24s %12s %9s %9s %9s %9s %9s %8s%n", title, "per second", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms",
+				"max ms", "errors");
+		for (var workload : workloads) {
+			var m = workload.measure();
+			var h = whole ? m.run : m.endInterval();
+			System.out.printf("  %-22s %12.1f %s %8d%n", m.name, h.getCount() / seconds, latencies(h),
+					whole ? m.errors.sum() - m.runErrors : m.intervalErrors());
+		}
+		var n = whole ? notifications.run : notifications.endInterval();
+		if (timestamped) System.out.printf("  %-22s %12.1f %s%n", "notifications", received / seconds, latencies(n));
+		else System.out.printf("  %-22s %12.1f%n", "notifications", received / seconds);
+		System.out.printf("  %-22s %12.1f%n", "rows fetched", rows / seconds);
+		var gc = whole ? gcPauses.run : gcPauses.endInterval();
+		var heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+		System.out.printf("  gc: %d pauses, %s ms in all, p99 %s ms, max %s ms; heap %.1f MB in use, %.1f MB after the last collection%n",
+				gc.getCount(), millis(gc.getTotal()), millis(gc.getPercentile(99)), millis(gc.getMax()), heap / MB, heapAfterGc / MB);
+	}
+
+	//the least-squares slope of the heap after collections, in bytes per second
+	private double heapGrowth() {
+		var n = heapSamples.size();
+		if (n < 2) return 0;
+		double sx = 0, sy = 0, sxx = 0, sxy = 0;
+		for (var sample : heapSamples) {
+			sx += sample[0];
+			sy += sample[1];
+			sxx += (double)sample[0] * sample[0];
+			sxy += (double)sample[0] * sample[1];
+		}
+		var d = n * sxx - sx * sx;
+		return d == 0 ? 0 : (n * sxy - sx * sy) / d;
+	}
+
+	private void summarize(long failures) {
+		var seconds = durationNanos / 1e9;
+		report(String.format("run of %.0fs", seconds), seconds, true, rowsFetched.sum() - runRows, notificationsReceived.sum() - runReceived);
+		if (heapSamples.size() >= 3)
+			System.out.printf("  heap after collections: %.1f MB at the start of the run, %.1f MB at its end, growing %.1f MB an hour%n",
+					heapSamples.get(0)[1] / MB, heapSamples.get(heapSamples.size() - 1)[1] / MB, heapGrowth() * 3600 / MB);
+		for (var client : clients) {
+			var pool = client.getConnectionPool();
+			long delivered = 0, dropped = 0;
+			int maxDepth = 0;
+			for (var connection : pool.getConnections()) {
+				var stats = connection.getNotificationStatistics();
+				delivered += stats.getDelivered();
+				dropped += stats.getDropped();
+				maxDepth = Math.max(maxDepth, stats.getMaxDepth());
+			}
+			System.out.printf("  %s: %d connections, %d notifications delivered, %d dropped, at most %d waiting%n", client.getName(),
+					pool.size(), delivered, dropped, maxDepth);
+		}
+		for (var workload : workloads)
+			if (workload.measure().lastError != null)
+				System.out.printf("  %s failed %d times; the last failure: %s%n", workload.measure().name, workload.measure().errors.sum(),
+						workload.measure().lastError);
+		if (failures > 0) System.out.printf("%d operations failed%n", failures);
+	}
+
+	/**
+	 * Open the clients, run the load, report on it, and close the clients
+	 * @return the number of operations that failed
+	 * @throws Exception if a client cannot be opened, or its subscriptions activated
+	 */
+	public long run() throws Exception {
+		listenToCollections();
+		open();
+		var workers = new ArrayList<Thread>();
+		for (int c = 0; c < clients.size(); c++)
+			for (int w = 0; w < workerCount; w++) {
+				var client = clients.get(c);
+				var index = w;
+				workers.add(Thread.ofPlatform().name(String.format("load worker %d.%d", c, w)).daemon(true).start(() -> work(client, index)));
+			}
+		System.out.printf("%d clients with %d connections, %d workers and %d subscriptions each, against %s%n", clientCount,
+				connectionCount, workerCount, subscriptionCount + batchedCount,
+				standIn == null ? String.format("%s:%d", host == null ? "localhost" : host, port) : "an in-process stand-in");
+
+		var start = System.nanoTime();
+		var runStart = start + warmupNanos;
+		var end = runStart + durationNanos;
+		long last = start, lastRows = 0, lastReceived = 0;
+		while (last < end) {
+			var next = Math.min(last + intervalNanos, end);
+			if (last < runStart && next > runStart) next = runStart;
+			var wait = next - System.nanoTime();
+			if (wait > 0) Thread.sleep(Duration.ofNanos(wait));
+			var now = System.nanoTime();
+			var rows = rowsFetched.sum();
+			var received = notificationsReceived.sum();
+			var warming = last < runStart;
+			report(String.format("%s %ds", warming ? "warmup" : "run", TimeUnit.NANOSECONDS.toSeconds(now - (warming ? start : runStart))),
+					(now - last) / 1e9, false, rows - lastRows, received - lastReceived);
+			if (!warming && heapAfterGc > 0) heapSamples.add(new long[] {TimeUnit.NANOSECONDS.toSeconds(now - runStart), heapAfterGc});
+			if (warming && now >= runStart) {
+				for (var workload : workloads) workload.measure().startRun();
+				notifications.startRun();
+				gcPauses.startRun();
+				runRows = rows;
+				runReceived = received;
+			}
+			last = now;
+			lastRows = rows;
+			lastReceived = received;
+		}
+
+		running = false;
+		for (var worker : workers) worker.join(deltaTimeout.toMillis());
+		long failures = 0;
+		for (var workload : workloads) failures += workload.measure().errors.sum() - workload.measure().runErrors;
+		summarize(failures);
+		for (var sub : subscriptions)
+			try {sub.deactivate();
+			} catch (JRPCException e) {}
+		for (var batch : batches)
+			try {batch.deactivate();
+			} catch (JRPCException e) {}
+		for (var client : clients) client.close();
+		if (standIn != null) standIn.close();
+		return failures;
+	}
+
+	public static void main(String[] args) throws Exception {
+		var failures = new LoadDriver().run();
+		System.exit(failures > 0 ? 1 : 0);
+	}
+}
@@ -0,0 +1,148 @@
+package calqlogic.twservercomms;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+
+import calqlogic.twservercomms.AbstractQuery.SignatureElement;
+import nmg.softwareworks.jrpcagent.CodecBenchmarks;
+import nmg.softwareworks.jrpcagent.JRPCException;
+import nmg.softwareworks.jrpcagent.JsonUtilities;
+import nmg.softwareworks.jrpcagent.MicroBenchmark;
+import nmg.softwareworks.jrpcagent.SerializationState;
+
+/**
+ * <p>Benchmarks of parsing the rows a TW server sends: {@link BatchRows} deserialized by a row signature and as FOL rows,
+ * {@link TWBuiltInTypes#parseOneValue} for each column type, and the {@link BatchNotification} of a batch subscription.
+ * The rows are recorded payloads in the form a TW server serializes them.
+ * </p><p>
+ * The batch notification benchmark needs a TriggerwareClient. Its server is a {@link StandInServer}, and its subscriptions are
+ * registered with the client without being sent to the server, so that the server never triggers them.
+ * Run with <code>java calqlogic.twservercomms.RowParsingBenchmarks</code>; see {@link MicroBenchmark} for the system properties
+ * that configure a run.
+ * </p>
+ */
+public class RowParsingBenchmarks {
+	static final SignatureElement[] signature = {
+			new SignatureElement("id", "int"), new SignatureElement("account", "bigint"), new SignatureElement("amount", "double"),
+			new SignatureElement("name", "casesensitive"), new SignatureElement("opened", "date"),
+			new SignatureElement("updated", "timestamp")};
+
+	//n rows of the signature above
+	static String rows(int n) {
+		var sb = new StringBuilder("[");
+		for (int i = 0; i < n; i++) {
+			if (i > 0) sb.append(',');
+			sb.append(String.format("[%d,%d,%d.75,\"customer %d\",\"2023-%02d-%02d\",\"2024-03-%02dT10:15:%02d.123456Z\"]",
+					i, 9_000_000_000L + i, 1000 + i, i, 1 + i % 12, 1 + i % 28, 1 + i % 28, i % 60));
+		}
+		return sb.append(']').toString();
+	}
+
+	//n values of one column type, as an array
+	static String values(String type, int n) {
+		var sb = new StringBuilder("[");
+		for (int i = 0; i < n; i++) {
+			if (i > 0) sb.append(',');
+			sb.append(switch (type) {
+				case "tinyint" -> Integer.toString(i % 128);
+				case "smallint" -> Integer.toString(i * 100);
+				case "int" -> Integer.toString(i * 100_000);
+				case "bigint" -> Long.toString(9_000_000_000L * i);
+				case "anyint" -> "123456789012345678901234567890";
+				case "float", "double" -> i + ".375";
+				case "casesensitive" -> "\"value " + i + "\"";
+				case "date" -> String.format("\"2023-%02d-%02d\"", 1 + i % 12, 1 + i % 28);
+				case "time", "interval" -> Long.toString(3_600_000_000L + i);
+				case "timestamp" -> String.format("\"2024-03-%02dT10:15:%02d.123456Z\"", 1 + i % 28, i % 60);
+				case "json" -> "{\"k\":" + i + ",\"v\":[1,2]}";
+				default -> i % 2 == 0 ? Integer.toString(i) : "\"text " + i + "\"";
+			});
+		}
+		return sb.append(']').toString();
+	}
+
+	private static byte[] utf8(String s) {return s.getBytes(StandardCharsets.UTF_8);}
+
+	//rows are parsed, as a connection parses them, by a parser whose codec is the mapper
+	private static Object parseRows(JsonMapper mapper, byte[] rows) throws IOException {
+		try (var parser = mapper.createParser(rows)) {
+			parser.setCodec(mapper);
+			return mapper.readValue(parser, BatchRows.class);
+		}
+	}
+
+	//parse every value of an array of values of one type
+	private static Object parseValues(JsonMapper mapper, byte[] values, Class<?> type) throws IOException {
+		Object last = null;
+		try (var parser = mapper.createParser(values)) {
+			parser.setCodec(mapper);
+			parser.nextToken();
+			while (parser.nextToken() != JsonToken.END_ARRAY)
+				last = TWBuiltInTypes.parseOneValue(parser, type, false);
+		}
+		return last;
+	}
+
+	//a subscription registered with its client, but not with the server
+	private static final class BenchSubscription extends Subscription<Object[]> {
+		BenchSubscription() {super(Object[].class, "true", null);}
+		@Override
+		protected void registerWithTW(TriggerwareConnection connection) throws JRPCException {}
+		@Override
+		public void handleNotification(Object[] row) {}
+	}
+
+	static String batchNotification(String method, BenchSubscription[] subscriptions, int tuples) {
+		var sb = new StringBuilder("{\"jsonrpc\":\"2.0\",\"method\":\"").append(method).append("\",\"params\":{\"update#\":17,\"matches\":{");
+		for (int s = 0; s < subscriptions.length; s++) {
+			if (s > 0) sb.append(',');
+			sb.append('"').append(subscriptions[s].notificationTag).append("\":[");
+			for (int i = 0; i < tuples; i++) {
+				if (i > 0) sb.append(',');
+				sb.append(String.format("[%d,\"item %d\",%d.5]", i, i, i));
+			}
+			sb.append(']');
+		}
+		return sb.append("}}}").toString();
+	}
+
+	public static void main(String[] args) throws Exception {
+		var bench = new MicroBenchmark();
+		var state = new SerializationState(null);
+		var mapper = JsonUtilities.jsonMapper(state);
+		var rows = utf8(rows(100));
+		state.put("rowSignature", signature);
+		bench.run("batchrows.signature.100", () -> parseRows(mapper, rows));
+		state.clear();
+		state.put("FOL", true);
+		bench.run("batchrows.fol.100", () -> parseRows(mapper, rows));
+		state.clear();
+
+		var count = 64;
+		for (var type : new String[] {"tinyint", "smallint", "int", "bigint", "anyint", "float", "double", "casesensitive", "date", "time",
+				"timestamp", "interval", "json", ""}) {
+			var values = utf8(values(type, count));
+			var javaType = TWBuiltInTypes.classFromName(type);
+			bench.run("parseOneValue." + (type.isEmpty() ? "any" : type), count, () -> parseValues(mapper, values, javaType));
+		}
+
+		var standIn = StandInServer.open();
+		standIn.start(true);
+		var client = new TriggerwareClient("bench", InetAddress.getLoopbackAddress(), standIn.getPort());
+		try {
+			var subscriptions = new BenchSubscription[] {new BenchSubscription(), new BenchSubscription()};
+			var batch = new BatchSubscription(subscriptions);
+			batch.activate(client);
+			var connMapper = client.getPrimaryConnection().getPartnerMapper();
+			var notification = utf8(batchNotification(batch.getDispatchString(), subscriptions, 50));
+			bench.run("batchnotification.2x50", () -> CodecBenchmarks.read(connMapper, notification));
+		} finally {
+			client.close();
+			standIn.close();
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,576 @@
+package calqlogic.twservercomms;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+import nmg.softwareworks.jrpcagent.Connection;
+import nmg.softwareworks.jrpcagent.JRPCException;
+import nmg.softwareworks.jrpcagent.JRPCServer;
+import nmg.softwareworks.jrpcagent.Logging;
+import nmg.softwareworks.jrpcagent.NamedRequestParameters;
+import nmg.softwareworks.jrpcagent.ServerAgent;
+import nmg.softwareworks.jrpcagent.annotations.JsonRpcHandler;
+
+/**
+ * <p>A StandInServer is an in-process stand-in for a TW server, for load and latency testing of a TriggerwareClient without a
+ * TW server or a network. It implements the requests the client makes: ad hoc and prepared queries, with their result sets fetched
+ * in batches or streamed in notifications; subscriptions, singly and in batches; polled and scheduled queries; and the runtime and
+ * set-global-default requests. It does not interpret a query: every query has the same answer, of a configured number of rows
+ * made by a {@link RowGenerator} for a configured signature.
+ * </p><p>
+ * Notifications are sent at a configured rate. At each tick every active subscription is triggered with one row, every scheduled
+ * polled query is polled, and every result set that is streaming its rows sends its next batch. A polled query's answer is a window
+ * of rows that moves by a configured number of rows at each poll, so each delta deletes and adds that many rows.
+ * Every response can be delayed by a configured latency, with random jitter, to model a remote server. Requests are handled in
+ * virtual threads, so a delayed response does not hold up the others.
+ * </p><p>
+ * Run with <code>java calqlogic.twservercomms.StandInServer [port]</code> to serve clients in other processes. The server is
+ * configured by the system properties standin.rows, standin.delta, standin.rate (notifications per second), standin.latency and
+ * standin.jitter (milliseconds).
+ * </p>
+ */
+public class StandInServer extends JRPCServer implements Closeable {
+	/**
+	 * One column of the signature of the answer to a query
+	 * @param attribute the column's name
+	 * @param type the name of the column's TW type
+	 */
+	public record Column(String attribute, String type) {}
+
+	/**
+	 * A RowGenerator makes the rows of the answers to queries. The rows of an answer have indices from 0. A subscription's row
+	 * is made with the index of the update that triggered it, and a polled query's rows with their positions in its moving window.
+	 */
+	@FunctionalInterface
+	public interface RowGenerator {
+		Object[] row(long index);
+	}
+
+	public static final List<Column> defaultSignature =
+			List.of(new Column("id", "bigint"), new Column("name", "casesensitive"), new Column("amount", "double"));
+	public static final RowGenerator defaultRows = i -> new Object[] {i, "row " + i, i + 0.5};
+
+	@JsonPropertyOrder({"count", "tuples", "exhausted"})
+	record Batch(int count, List<Object[]> tuples, boolean exhausted) {}
+	@JsonPropertyOrder({"handle", "signature", "batch"}) //the client must have the signature to parse the batch
+	record QueryResult(Integer handle, List<Column> signature, Batch batch) {}
+	@JsonPropertyOrder({"handle", "batch"})
+	record ResultSetResult(Integer handle, Batch batch) {}
+	record PreparedQueryRegistration(int handle, List<Column> inputSignature, List<Column> signature, boolean usesNamedParameters) {}
+	record SubscriptionRegistration(List<Column> signature) {}
+	record PolledQueryRegistration(int handle, List<Column> signature) {}
+
+	/* A result set of the answer to a query. It is fetched in batches, or streams its rows in notifications, each
+	 * of at most rowLimit rows, until notifyLimit rows have been sent or the rows are exhausted.
+	 */
+	private final class Cursor {
+		final Connection connection;
+		final long end;
+		long next = 0;
+		String method = null;
+		Integer rowLimit, notifyLimit;
+		long notified;
+		Cursor(Connection connection, int size) {
+			this.connection = connection;
+			this.end = size;
+		}
+		//a batch of at most limit rows; null for all the remaining rows. A batch asked for no rows is not known to be exhausted
+		synchronized Batch next(Integer limit) {
+			var n = (int)(limit == null ? end - next : Math.min(limit, end - next));
+			var tuples = rows(next, n);
+			next += n;
+			return new Batch(n, tuples, next >= end && (limit == null || limit > 0));
+		}
+		synchronized void stream(String method, Integer rowLimit, Integer notifyLimit) {
+			this.method = method;
+			this.rowLimit = rowLimit;
+			this.notifyLimit = notifyLimit;
+			notified = 0;
+		}
+		//the next notification of a streaming result set, or null if it is not streaming
+		synchronized NamedRequestParameters push(int handle) {
+			if (method == null) return null;
+			Integer limit = rowLimit;
+			if (notifyLimit != null) limit = (int)Math.min(limit == null ? Integer.MAX_VALUE : limit, notifyLimit - notified);
+			var batch = next(limit);
+			notified += batch.count();
+			if (notifyLimit != null && notified >= notifyLimit) method = null; //until the client asks for more
+			return new NamedRequestParameters().with("handle", handle).with("count", batch.count()).with("tuples", batch.tuples())
+					.with("exhausted", batch.exhausted());
+		}
+		synchronized String getMethod() {return method;}
+	}
+
+	private record SubscriptionKey(Connection connection, String label) {}
+	private record ActiveSubscription(Connection connection, String label, String method, boolean combine) {}
+	private record BatchKey(Connection connection, String method) {}
+	private record Prepared(Connection connection) {}
+
+	private final class Polled {
+		final Connection connection;
+		final String method;
+		final boolean scheduled, reportUnchanged, reportInitial;
+		boolean polled = false;
+		long offset = 0;
+		Polled(Connection connection, String method, boolean scheduled, boolean reportUnchanged, boolean reportInitial) {
+			this.connection = connection;
+			this.method = method;
+			this.scheduled = scheduled;
+			this.reportUnchanged = reportUnchanged;
+			this.reportInitial = reportInitial;
+		}
+		//the notification of a poll, or null if the poll found no change and unchanged polls are not reported
+		synchronized NamedRequestParameters poll(int handle) {
+			List<Object[]> added, deleted;
+			if (!polled) {
+				added = reportInitial ? rows(0, resultSize) : List.of();
+				deleted = List.of();
+				polled = true;
+			} else {
+				var d = deltaSize;
+				if (d == 0 && !reportUnchanged) return null;
+				deleted = rows(offset, d);
+				added = rows(offset + resultSize, d);
+				offset += d;
+			}
+			return new NamedRequestParameters().with("handle", handle).with("timestamp", Instant.now().toString())
+					.with("delta", Map.of("added", added, "deleted", deleted));
+		}
+	}
+
+	private volatile List<Column> signature = defaultSignature;
+	private volatile RowGenerator generator = defaultRows;
+	private volatile int resultSize = 100, deltaSize = 10;
+	private volatile long latencyNanos = 0, jitterNanos = 0, tickNanos = 100_000_000;
+	private final long startNanos = System.nanoTime();
+	private final AtomicInteger handles = new AtomicInteger();
+	private final AtomicLong updates = new AtomicLong(), requests = new AtomicLong(), notifications = new AtomicLong(),
+			rowsSent = new AtomicLong();
+	private final Map<Integer, Cursor> resultSets = new ConcurrentHashMap<>();
+	private final Map<Integer, Prepared> preparedQueries = new ConcurrentHashMap<>();
+	private final Map<SubscriptionKey, ActiveSubscription> subscriptions = new ConcurrentHashMap<>();
+	private final Map<Integer, Polled> polledQueries = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+		var thread = new Thread(r, "tw stand-in notifications");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private ScheduledFuture<?> ticks = null;
+	private boolean handlersRegistered = false; //guarded by this
+	private final ReentrantLock notifying = new ReentrantLock(); //held while a tick sends its notifications
+
+	/**
+	 * @param serverChannel a bound channel on which the server listens for clients, either on a TCP port or a Unix domain socket.
+	 * The server registers its request handlers, and accepts clients, once it is {@link #start started}.
+	 * @throws IOException if the channel's address cannot be determined
+	 */
+	public StandInServer(ServerSocketChannel serverChannel) throws IOException {
+		super("tw stand-in", serverChannel);
+	}
+
+	/**
+	 * @return a stand-in listening on an ephemeral port of the loopback address. It accepts clients once it is {@link #start started}.
+	 * @throws IOException if the port cannot be bound
+	 */
+	public static StandInServer open() throws IOException {
+		return new StandInServer(ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)));}
+
+	/* A response written after a latency would otherwise wait for the acknowledgement of the one before it, which the client
+	 * delays by tens of milliseconds; that stall belongs to the stand-in, not to the client under test
+	 */
+	@Override
+	protected ServerAgent newClient(Socket clientSocket) throws IOException {
+		clientSocket.setTcpNoDelay(true);
+		return new ServerAgent(this, clientSocket, "tw stand-in client") {};}
+
+	@Override
+	protected ServerAgent newClient(SocketChannel clientChannel) throws IOException {
+		if (!(clientChannel.getLocalAddress() instanceof UnixDomainSocketAddress)) clientChannel.socket().setTcpNoDelay(true);
+		return new ServerAgent(this, clientChannel, "tw stand-in client") {};}
+
+	/**
+	 * register the request handlers, and start accepting clients and sending notifications
+	 */
+	@Override
+	public Thread start(boolean asDaemon) throws IOException {
+		registerHandlers();
+		schedule();
+		return super.start(asDaemon);
+	}
+
+	//the handlers are registered here rather than in the constructor, so that a subclass is fully constructed when they are
+	private synchronized void registerHandlers() {
+		if (handlersRegistered) return;
+		registerHandlers(StandInServer.class, this);
+		handlersRegistered = true;
+	}
+
+	private synchronized void schedule() {
+		if (ticker.isShutdown()) return;
+		if (ticks != null) ticks.cancel(false);
+		ticks = ticker.scheduleAtFixedRate(this::tick, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * stop accepting clients and sending notifications
+	 */
+	@Override
+	public void close() {
+		ticker.shutdownNow();
+		quitListening();
+		shutdownAllClients();
+	}
+
+	/**
+	 * Set the answer to every query
+	 * @param signature the columns of a row
+	 * @param generator makes the rows, each with a value for each column
+	 * @return this StandInServer
+	 */
+	public StandInServer withRows(List<Column> signature, RowGenerator generator) {
+		if (signature == null || generator == null)
+			throw new IllegalArgumentException("signature and generator passed to StandInServer.withRows must not be null");
+		this.signature = List.copyOf(signature);
+		this.generator = generator;
+		return this;
+	}
+
+	/**
+	 * @param rows the number of rows in the answer to a query, and in the window of a polled query (default 100)
+	 * @return this StandInServer
+	 */
+	public StandInServer withResultSize(int rows) {
+		if (rows < 0)
+			throw new IllegalArgumentException("rows passed to StandInServer.withResultSize must not be negative");
+		resultSize = rows;
+		return this;
+	}
+
+	/**
+	 * @param rows the number of rows each poll of a polled query deletes and adds (default 10)
+	 * @return this StandInServer
+	 */
+	public StandInServer withDeltaSize(int rows) {
+		if (rows < 0)
+			throw new IllegalArgumentException("rows passed to StandInServer.withDeltaSize must not be negative");
+		deltaSize = rows;
+		return this;
+	}
+
+	/**
+	 * @param perSecond the notifications per second sent for each active subscription, scheduled polled query, and streaming
+	 * result set (default 10)
+	 * @return this StandInServer
+	 */
+	public StandInServer withNotificationRate(double perSecond) {
+		if (!(perSecond > 0 && perSecond <= 1e6))
+			throw new IllegalArgumentException("perSecond passed to StandInServer.withNotificationRate must be positive, and at most 1e6");
+		tickNanos = (long)(1e9 / perSecond);
+		synchronized(this) {
+			if (ticks != null) schedule();
+		}
+		return this;
+	}
+
+	/**
+	 * @param latency the delay before each response (default none)
+	 * @return this StandInServer
+	 */
+	public StandInServer withLatency(Duration latency) {return withLatency(latency, Duration.ZERO);}
+
+	/**
+	 * @param latency the least delay before each response
+	 * @param jitter the greatest random delay added to the latency of each response
+	 * @return this StandInServer
+	 */
+	public StandInServer withLatency(Duration latency, Duration jitter) {
+		if (latency == null || latency.isNegative() || jitter == null || jitter.isNegative())
+			throw new IllegalArgumentException("latency and jitter passed to StandInServer.withLatency must not be null or negative");
+		latencyNanos = latency.toNanos();
+		jitterNanos = jitter.toNanos();
+		return this;
+	}
+
+	/**
+	 * Configure this server from the system properties standin.rows (the result size, default 100), standin.delta (the delta size,
+	 * default 10), standin.rate (notifications per second, default 10), standin.latency and standin.jitter (milliseconds, default 0)
+	 * @return this StandInServer
+	 */
+	public StandInServer withSystemProperties() {
+		return withResultSize(Integer.getInteger("standin.rows", 100))
+				.withDeltaSize(Integer.getInteger("standin.delta", 10))
+				.withNotificationRate(Double.parseDouble(System.getProperty("standin.rate", "10")))
+				.withLatency(Duration.ofMillis(Long.getLong("standin.latency", 0)), Duration.ofMillis(Long.getLong("standin.jitter", 0)));
+	}
+
+	/**
+	 * @return the number of requests this server has handled
+	 */
+	public long getRequestCount() {return requests.get();}
+	/**
+	 * @return the number of notifications this server has sent
+	 */
+	public long getNotificationCount() {return notifications.get();}
+	/**
+	 * @return the number of rows this server has sent, in responses and notifications
+	 */
+	public long getRowCount() {return rowsSent.get();}
+
+	private List<Object[]> rows(long from, int n) {
+		var rows = new ArrayList<Object[]>(n);
+		var g = generator;
+		for (int i = 0; i < n; i++) rows.add(g.row(from + i));
+		rowsSent.addAndGet(n);
+		return rows;
+	}
+
+	//count a request, and wait out the latency of its response
+	private void respond() {
+		requests.incrementAndGet();
+		var delay = latencyNanos + (jitterNanos == 0 ? 0 : ThreadLocalRandom.current().nextLong(jitterNanos + 1));
+		if (delay > 0)
+			try {Thread.sleep(Duration.ofNanos(delay));
+			} catch (InterruptedException e) {Thread.currentThread().interrupt();}
+	}
+
+	private void notify(Connection connection, String method, NamedRequestParameters params) {
+		try {
+			connection.notify(method, params);
+			notifications.incrementAndGet();
+		} catch (JRPCException e) {} //the connection closed. Its state is discarded at the next tick
+	}
+
+	private Cursor resultSet(Connection connection, int handle) {
+		var rs = resultSets.get(handle);
+		if (rs == null || rs.connection != connection)
+			throw new IllegalArgumentException(String.format("no open resultset has handle %d", handle));
+		return rs;
+	}
+
+	private void checkPrepared(Connection connection, int handle) {
+		var pq = preparedQueries.get(handle);
+		if (pq == null || pq.connection() != connection)
+			throw new IllegalArgumentException(String.format("no prepared query has handle %d", handle));
+	}
+
+	//a new result set, with its first batch
+	private ResultSetResult openResultSet(Connection connection, Integer limit) {
+		var rs = new Cursor(connection, resultSize);
+		var batch = rs.next(limit);
+		Integer handle = null;
+		if (!batch.exhausted()) {
+			handle = handles.incrementAndGet();
+			resultSets.put(handle, rs);
+		}
+		return new ResultSetResult(handle, batch);
+	}
+
+	/* Remove a subscription, polled query or result set once the notifications being sent for it have been sent. A client forgets
+	 * the notification method when the request that removes it is answered, so no notification may follow that response.
+	 */
+	private <K> void remove(Map<K,?> state, K key) {
+		notifying.lock();
+		try {state.remove(key);
+		} finally {notifying.unlock();}
+	}
+
+	private void tick() {
+		notifying.lock();
+		try {
+			resultSets.values().removeIf(rs -> rs.connection.isClosed());
+			preparedQueries.values().removeIf(pq -> pq.connection().isClosed());
+			subscriptions.values().removeIf(s -> s.connection().isClosed());
+			polledQueries.values().removeIf(pq -> pq.connection.isClosed());
+
+			var update = updates.incrementAndGet();
+			var batches = new LinkedHashMap<BatchKey, Map<String,Object>>();
+			for (var s : subscriptions.values()) {
+				var tuple = rows(update, 1).get(0);
+				if (s.combine())
+					batches.computeIfAbsent(new BatchKey(s.connection(), s.method()), k -> new LinkedHashMap<>())
+						.put(s.label(), List.<Object[]>of(tuple));
+				else notify(s.connection(), s.method(),
+						new NamedRequestParameters().with("label", s.label()).with("update#", update).with("tuple", tuple));
+			}
+			batches.forEach((key, matches) ->
+				notify(key.connection(), key.method(), new NamedRequestParameters().with("update#", update).with("matches", matches)));
+
+			polledQueries.forEach((handle, pq) -> {
+				if (!pq.scheduled) return;
+				var params = pq.poll(handle);
+				if (params != null) notify(pq.connection, pq.method, params);
+			});
+			resultSets.forEach((handle, rs) -> {
+				var method = rs.getMethod();
+				var params = rs.push(handle);
+				if (params == null) return;
+				if ((Boolean)params.get("exhausted")) resultSets.remove(handle);
+				notify(rs.connection, method, params);
+			});
+		} catch (Throwable t) {Logging.log(t, "tw stand-in failed to send its notifications");
+		} finally {notifying.unlock();}
+	}
+
+	@JsonRpcHandler(methodName = "execute-query", synchronous = false, useVirtualThread = true,
+			parameterNames = {"query", "language", "namespace", "check-update", "limit", "timelimit"})
+	public QueryResult executeQuery(Connection c, String query, String language, String namespace, Boolean checkUpdate,
+			Integer limit, Double timelimit) {
+		respond();
+		var result = openResultSet(c, limit);
+		return new QueryResult(result.handle(), signature, result.batch());
+	}
+
+	@JsonRpcHandler(methodName = "next-resultset-batch", synchronous = false, useVirtualThread = true, requiredParameters = 2)
+	public Batch nextResultSetBatch(Connection c, int handle, Integer limit, Double timelimit) {
+		respond();
+		var batch = resultSet(c, handle).next(limit);
+		if (batch.exhausted()) resultSets.remove(handle);
+		return batch;
+	}
+
+	@JsonRpcHandler(methodName = "close-resultset", synchronous = false, useVirtualThread = true)
+	public void closeResultSet(Connection c, int handle) {
+		respond();
+		remove(resultSets, handle);
+	}
+
+	@JsonRpcHandler(methodName = "next-resultset-incremental", synchronous = false, useVirtualThread = true,
+			parameterNames = {"handle", "method", "limit", "notify-limit", "notify-timelimit"})
+	public void nextResultSetIncremental(Connection c, int handle, String method, Integer limit, Integer notifyLimit,
+			Double notifyTimelimit) {
+		respond();
+		resultSet(c, handle).stream(method, limit, notifyLimit);
+	}
+
+	@JsonRpcHandler(methodName = "prepare-query", synchronous = false, useVirtualThread = true,
+			parameterNames = {"query", "namespace", "language", "parameter-types"})
+	public PreparedQueryRegistration prepareQuery(Connection c, String query, String namespace, String language, Object parameterTypes) {
+		respond();
+		var inputs = new ArrayList<Column>();
+		if (parameterTypes instanceof Map<?,?> named)
+			named.forEach((name, type) -> inputs.add(new Column(name.toString(), type == null ? "" : type.toString())));
+		else if (parameterTypes instanceof List<?> positional)
+			for (var type : positional) inputs.add(new Column("?" + (inputs.size() + 1), type == null ? "" : type.toString()));
+		else //undeclared parameters are the ?s of the query, each of any type
+			query.chars().filter(ch -> ch == '?').forEach(ch -> inputs.add(new Column("?" + (inputs.size() + 1), "")));
+		var handle = handles.incrementAndGet();
+		preparedQueries.put(handle, new Prepared(c));
+		return new PreparedQueryRegistration(handle, inputs, signature, parameterTypes instanceof Map);
+	}
+
+	@JsonRpcHandler(methodName = "release-query", synchronous = false, useVirtualThread = true)
+	public void releaseQuery(Connection c, int handle) {
+		respond();
+		preparedQueries.remove(handle);
+	}
+
+	@JsonRpcHandler(methodName = "create-resultset", synchronous = false, useVirtualThread = true,
+			parameterNames = {"handle", "inputs", "limit", "timelimit", "check-update"})
+	public ResultSetResult createResultSet(Connection c, int handle, Object inputs, Integer limit, Double timelimit,
+			Boolean checkUpdate) {
+		respond();
+		checkPrepared(c, handle);
+		return openResultSet(c, limit);
+	}
+
+	@JsonRpcHandler(methodName = "create-resultset-incremental", synchronous = false, useVirtualThread = true,
+			parameterNames = {"handle", "inputs", "method", "limit", "timelimit", "notify-limit", "notify-timelimit"})
+	public ResultSetResult createResultSetIncremental(Connection c, int handle, Object inputs, String method, Integer limit,
+			Double timelimit, Integer notifyLimit, Double notifyTimelimit) {
+		respond();
+		checkPrepared(c, handle);
+		var result = openResultSet(c, 0);
+		resultSets.get(result.handle()).stream(method, limit, notifyLimit);
+		return result;
+	}
+
+	@JsonRpcHandler(methodName = "subscribe", synchronous = false, useVirtualThread = true,
+			parameterNames = {"query", "language", "namespace", "label", "method", "combine"})
+	public SubscriptionRegistration subscribe(Connection c, String query, String language, String namespace, String label,
+			String method, Boolean combine) {
+		respond();
+		subscriptions.put(new SubscriptionKey(c, label), new ActiveSubscription(c, label, method, Boolean.TRUE.equals(combine)));
+		return new SubscriptionRegistration(signature);
+	}
+
+	@JsonRpcHandler(methodName = "unsubscribe", synchronous = false, useVirtualThread = true,
+			parameterNames = {"query", "language", "namespace", "label", "method", "combine"})
+	public void unsubscribe(Connection c, String query, String language, String namespace, String label, String method,
+			Boolean combine) {
+		respond();
+		remove(subscriptions, new SubscriptionKey(c, label));
+	}
+
+	@JsonRpcHandler(methodName = "create-polled-query", synchronous = false, useVirtualThread = true,
+			parameterNames = {"query", "language", "namespace", "method", "schedule", "report-noops", "delay-schedule",
+					"report-initial", "limit", "timelimit"})
+	public PolledQueryRegistration createPolledQuery(Connection c, String query, String language, String namespace, String method,
+			Object schedule, Boolean reportNoops, Boolean delaySchedule, String reportInitial, Integer limit, Double timelimit) {
+		respond();
+		var handle = handles.incrementAndGet();
+		polledQueries.put(handle, new Polled(c, method, schedule != null, Boolean.TRUE.equals(reportNoops),
+				"with delta".equals(reportInitial)));
+		return new PolledQueryRegistration(handle, signature);
+	}
+
+	@JsonRpcHandler(methodName = "poll-now", synchronous = false, useVirtualThread = true, requiredParameters = 1)
+	public void pollNow(Connection c, int handle, Double timelimit) {
+		respond();
+		var pq = polledQueries.get(handle);
+		if (pq == null || pq.connection != c)
+			throw new IllegalArgumentException(String.format("no polled query has handle %d", handle));
+		var params = pq.poll(handle);
+		if (params != null) notify(c, pq.method, params);
+	}
+
+	@JsonRpcHandler(methodName = "close-polled-query", synchronous = false, useVirtualThread = true)
+	public void closePolledQuery(Connection c, int handle) {
+		respond();
+		remove(polledQueries, handle);
+	}
+
+	//the run time and gc time of this process, in microseconds, and the bytes of its heap in use
+	@JsonRpcHandler(methodName = "runtime", synchronous = false, useVirtualThread = true)
+	public long[] runtime(Connection c) {
+		respond();
+		long gcMillis = 0;
+		for (var gc : ManagementFactory.getGarbageCollectorMXBeans()) gcMillis += Math.max(0, gc.getCollectionTime());
+		var heap = Runtime.getRuntime();
+		return new long[] {(System.nanoTime() - startNanos) / 1000, gcMillis * 1000, heap.totalMemory() - heap.freeMemory()};
+	}
+
+	@JsonRpcHandler(methodName = "set-global-default", synchronous = false, useVirtualThread = true,
+			parameterNames = {"language", "sql-mode", "sql-namespace"})
+	public void setGlobalDefault(Connection c, String language, String sqlMode, String sqlNamespace) {respond();}
+
+	public static void main(String[] args) throws Exception {
+		var port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+		var server = new StandInServer(ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port)))
+				.withSystemProperties();
+		System.out.println("tw stand-in listening on port " + server.getPort());
+		server.start(false);
+	}
+}
@@ -5,7 +5,6 @@ import java.util.*;
 
 import com.fasterxml.jackson.core.*;
 import com.fasterxml.jackson.databind.DeserializationContext;
-import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 //import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
@@ -99,7 +98,8 @@ public class BatchNotification  extends Notification{
 				throws IOException, JsonProcessingException {
 			//should deserialize the params property value of a batch subscription notification
 			var mapper = (ObjectMapper)jParser.getCodec();//twConnection.getPartnerMapper();
-			var token = jParser.nextToken();
+			//a deserializer is called positioned at the start of the params value
+			var token = jParser.hasToken(JsonToken.START_OBJECT) ? JsonToken.START_OBJECT : jParser.nextToken();
 			if (token != JsonToken.START_OBJECT) {
 				var ignore = jParser.readValueAsTree();
 				Logging.log("serialization error for a BatchNotification -- non object %s", ignore);
@@ -114,10 +114,13 @@ public class BatchNotification  extends Notification{
 					Logging.log("unexpected end of BatchNotification on input stream");
 					return null;
 				}
+				//readValueAsTree positioned at a field name would read the rest of the object, so other fields are skipped
 				switch(fieldname) {
-					case "update#" -> jParser.readValueAsTree();
 					case "matches" -> parseMatches(jParser, mapper, ctxt,  bn.notifications);
-					default -> jParser.readValueAsTree();
+					default -> {
+						jParser.nextToken();
+						jParser.skipChildren();
+					}
 				}
 			}
 			return bn;
@@ -141,30 +144,23 @@ public class BatchNotification  extends Notification{
 					if (token == JsonToken.END_OBJECT) break;
 					throw new IOException("unexpected end of BatchNotification matches on input stream");
 				}
-				var inducer = (Subscription<?>)twClient.getNotificationInducer(fieldname);
-				//if (! (inducer instanceof Subscription<?>))	inducer = null;
-				var tupleType = inducer==null? null :inducer.getNotificationType(); //the type for a tuple
-				if (tupleType == null) { // unregistered
+				if (!(twClient.getNotificationInducer(fieldname) instanceof Subscription<?> subscription)) { // unregistered
 					 jParser.readValueAsTree(); // consume the tuples
 					throw new JRPCRuntimeException.UnknownMethodFailure(fieldname);
 				}
-				var subscription = (Subscription<?>)inducer;
-				MappingIterator<?> mi = null;
-				//var notificationsForSubscription = new ArrayList<SubscriptionNotification<?>>();
-				//JavaType tuplesType = null;
-				if (subscription.rowClass != null)
-					mi = mapper.readValues(jParser, subscription.rowClass);
-					//tuplesType = tf.constructParametricType(ArrayList.class, (Class<?>) tupleType);
-				/*else if (subscription.tupleTypeRef != null)
-					mi = mapper.readValues(jParser, subscription.tupleTypeRef);
-					//tuplesType = tf.constructParametricType(ArrayList.class, tf.constructType((TypeReference<?>) tupleType));
-				*/ else 
-					mi = mapper.readValues(jParser, subscription.rowJType);
-					//tuplesType = tf.constructParametricType(ArrayList.class, (JavaType) tupleType);
+				//the tuples are read one at a time: a MappingIterator would take the parser positioned at the start of the array
+				//for a sequence of arrays, and close it when it is done
+				token = jParser.nextToken();
+				if (token != JsonToken.START_ARRAY) {
+					var ignore = jParser.readValueAsTree();
+					throw new IOException(String.format("serialization error for a BatchNotification -- tuples are not an array %s", ignore));
+				}
 				var tuples = new ArrayList<Object>();
-				while (mi.hasNext()) {
-					tuples.add(mi.next());}
-				mi.close();
+				while ((token = jParser.nextToken()) != JsonToken.END_ARRAY) {
+					if (token == null) throw new IOException("unexpected end of BatchNotification tuples on input stream");
+					tuples.add(subscription.rowClass != null ? mapper.readValue(jParser, subscription.rowClass)
+							: mapper.readValue(jParser, subscription.rowJType));
+				}
 				notifications.put(subscription, tuples);
 			}
 		}
@@ -8,6 +8,7 @@ import java.util.HashMap;
 import com.fasterxml.jackson.core.JacksonException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.base.ParserBase;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -154,7 +155,17 @@ class BatchRows<T>{
 			var rslt = new BatchRows<T>();
 			@SuppressWarnings("unchecked")
 			var rowBeanConstructor = (Constructor<T>)dsstate.get("rowBeanConstructor");
+			var event = new ResultSetEvents.RowsParsed();
+			event.begin();
+			var from = jParser instanceof ParserBase pb ? pb.getTokenCharacterOffset() : 0;
 			rslt.parseRows(jParser, sig, rowBeanConstructor, false);
+			event.end();
+			if (event.shouldCommit()) {
+				event.rows = rslt.rows.size();
+				event.columns = sig.length; //0 for FOL rows, whose width is not known
+				event.bytes = jParser instanceof ParserBase pb ? pb.getTokenCharacterOffset() + 1 - from : 0;
+				event.commit();
+			}
 			//@SuppressWarnings("unused")
 			//var tkn = jParser.currentToken(); //should be end_array //MOVE THIS to parseRows FOR STREAMING PARSER!
 			return rslt;
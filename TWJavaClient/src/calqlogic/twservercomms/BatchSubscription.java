@@ -1,9 +1,16 @@
 package calqlogic.twservercomms;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import calqlogic.twservercomms.Subscription.SubscriptionException;
+import nmg.softwareworks.jrpcagent.Connection;
 import nmg.softwareworks.jrpcagent.JRPCException;
+import nmg.softwareworks.jrpcagent.Notification;
 import nmg.softwareworks.jrpcagent.NotificationInducer;
 import nmg.softwareworks.jrpcagent.SerializationState;
 
@@ -41,9 +48,11 @@ import nmg.softwareworks.jrpcagent.SerializationState;
  * <li> override the (@link Subscription#handleNotificationFromBatch handleNotificationFromBatch} method of some/all of the 
  * subscriptions in the BatchSubscription</li>
  * </ul>
- * The handling of a notification from the BatchSubscription is carried out in the notification handling thread of the connection
- * on which the BatchSubscription was activated.  Any division of labor across threads, or attempt to free that thread to handle
- * later-arriving notifications, must be accomplished by code in method overrides.
+ * The notifications from a BatchSubscription are handled one at a time, in the order they arrive on the connection on which the
+ * BatchSubscription was activated, together with the notifications of the subscriptions, polled queries and result controllers that do
+ * not use parallel dispatch.  With {@link #setParallelDispatch parallel dispatch} the rows for each member subscription are passed to
+ * its {@link Subscription#handleNotificationFromBatch handleNotificationFromBatch}, in parallel with those of the other members, and
+ * {@link #handleNotification} is not called; a handler that must see all the members' rows of a transaction together should not use it.
  */
 public class BatchSubscription implements NotificationInducer{
 
@@ -97,8 +106,10 @@ public class BatchSubscription implements NotificationInducer{
 			throw new SubscriptionException("attempt to add an already active subscription to a BatchSubscription", subscription);
 		subscriptions.add(subscription);
 		subscription.partOfBatch = this;
-		if (subscribedOn != null) // activate immediately
+		if (subscribedOn != null) {// activate immediately
+			subscribedOn.getAgent().registerNotificationInducer(subscription.notificationTag, subscription);
 			subscription.registerWithTW(subscribedOn);
+		}
 	}
 	
 	public void activate(TriggerwareClient client) throws SubscriptionException, JRPCException {
@@ -108,9 +119,39 @@ public class BatchSubscription implements NotificationInducer{
 			if (subscribedOn == connection) return; //noop
 			throw new SubscriptionException("attempt to activate a batch subscription on a second connection");
 		}
-		connection.getAgent().registerNotificationInducer(notificationTag, this);
-		for (var subscription : subscriptions) 
-			subscription.registerWithTW(subscribedOn);
+		var client = connection.getAgent();
+		client.registerNotificationInducer(notificationTag, this);
+		//the tuples of each member are labelled in the batch's notifications by the member's own tag
+		for (var subscription : subscriptions) {
+			client.registerNotificationInducer(subscription.notificationTag, subscription);
+			subscription.registerWithTW(connection);
+		}
+		subscribedOn = connection;
+		connection.addRegistration(this, this::reregister, () -> abandoned(connection));
+	}
+
+	//subscribe every member again on a connection replacing the one this batch was active on
+	private synchronized CompletableFuture<?> reregister(TriggerwareConnection connection) throws JRPCException {
+		var lost = subscribedOn;
+		var members = new ArrayList<CompletableFuture<?>>(subscriptions.size());
+		for (var subscription : subscriptions)
+			members.add(subscription.resubscribe(connection));
+		return CompletableFuture.allOf(members.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+			synchronized(this) {
+				if (subscribedOn != lost) return; //abandoned, or deactivated, while it was being restored
+				subscribedOn = connection;
+				connection.addRegistration(this, this::reregister, () -> abandoned(connection));
+			}
+		});
+	}
+
+	//this batch could not be restored after its connection was lost. It is inactive, and may be activated again
+	private synchronized void abandoned(TriggerwareConnection lost) {
+		if (subscribedOn != lost) return;
+		subscribedOn = null;
+		var client = lost.getAgent();
+		for (var subscription : subscriptions) client.unregisterNotificationInducer(subscription.notificationTag);
+		client.unregisterNotificationInducer(notificationTag);
 	}
 
 	/**
@@ -128,8 +169,13 @@ public class BatchSubscription implements NotificationInducer{
 	 */
 	public synchronized void deactivate() throws  JRPCException {
 		if (subscribedOn == null) return;
-		for (var subscription : subscriptions) subscription.unregisterWithTw();
-		subscribedOn.getAgent().unregisterNotificationInducer(notificationTag);
+		subscribedOn.removeRegistration(this);
+		var client = subscribedOn.getAgent();
+		for (var subscription : subscriptions) {
+			subscription.unregisterWithTw(subscribedOn);
+			client.unregisterNotificationInducer(subscription.notificationTag);
+		}
+		client.unregisterNotificationInducer(notificationTag);
 		subscribedOn = null;
 	}
 	
@@ -146,6 +192,39 @@ public class BatchSubscription implements NotificationInducer{
 	}
 
 
+	private volatile boolean parallelDispatch = false;
+	/**
+	 * Opt in to parallel dispatch, dividing each notification among the member subscriptions (see {@link NotificationInducer#divide}).
+	 * @param parallel true to divide this BatchSubscription's notifications among its members
+	 */
+	public void setParallelDispatch(boolean parallel) {parallelDispatch = parallel;}
+	/**
+	 * @return true if this BatchSubscription's notifications are divided among its members
+	 */
+	public boolean isParallelDispatch() {return parallelDispatch;}
+
+	@Override
+	public Map<?, ? extends Notification> divide(Notification notification) {
+		if (!parallelDispatch || !(notification instanceof BatchNotification batch)) return null;
+		var parts = new HashMap<Subscription<?>, MemberRows>();
+		for (var subBatch : batch.getNotifications().entrySet())
+			parts.put(subBatch.getKey(), new MemberRows(subBatch.getKey(), subBatch.getValue()));
+		return parts;
+	}
+
+	//the rows of a BatchNotification for one member subscription
+	private static class MemberRows extends Notification {
+		private final Subscription<?> subscription;
+		private final Collection<?> rows;
+		MemberRows(Subscription<?> subscription, Collection<?> rows){
+			this.subscription = subscription;
+			this.rows = rows;
+		}
+		@Override
+		public void handle(Connection conn, String methodName) {
+			subscription.handleBatchNotifications(rows);}
+	}
+
 	@Override
 	public void establishDeserializationAttributes(SerializationState ss) {
 		// TODO Auto-generated method stub
@@ -0,0 +1,153 @@
+package calqlogic.twservercomms;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import nmg.softwareworks.jrpcagent.ConnectionOptions;
+import nmg.softwareworks.jrpcagent.Logging;
+
+/**
+ * <p>A ConnectionPool holds several connections from a {@link TriggerwareClient} to its server, and chooses one of them for each
+ * stateless request the client issues, and for each {@link QueryStatement} and {@link PreparedQuery} created for the client.
+ * A pool is opened with {@link TriggerwareClient#openConnectionPool}. The client's primary connection is its first member.
+ * </p><p>
+ * The pool opens its minimum number of connections at once. It opens another, up to its maximum, when the connection it would choose
+ * already has requests awaiting responses. Connections are never closed by the pool, because objects that hold state on the
+ * server are tied to the connection they were created on: a QueryStatement, its {@link TWResultSet TWResultSets},
+ * a PreparedQuery, and subscriptions and polled queries all keep using that connection for as long as they live.
+ * </p><p>
+ * A connection that has closed is no longer healthy, and leaves the pool. One that is stalled is passed over until its partner
+ * answers a heartbeat again. If no member is healthy and no connection can be opened,
+ * the pool chooses the primary connection, so that requests fail as they would without a pool. When the client has a
+ * {@link ReconnectPolicy}, the connection that replaces a lost member joins the pool.
+ * </p>
+ */
+public class ConnectionPool {
+	/**
+	 * how a pool chooses among its healthy connections
+	 */
+	public enum Routing {
+		/**
+		 * choose the connection with the fewest requests awaiting responses.  A connection held up by a slow request is avoided.
+		 */
+		LEAST_OUTSTANDING,
+		/**
+		 * choose each connection in turn
+		 */
+		ROUND_ROBIN
+	}
+
+	private final TriggerwareClient client;
+	private final int minSize, maxSize;
+	private final Routing routing;
+	private final CopyOnWriteArrayList<TriggerwareConnection> members = new CopyOnWriteArrayList<>();
+	private final AtomicInteger turn = new AtomicInteger(0);
+	private final ReentrantLock growing = new ReentrantLock(); //held while a connection is being opened
+
+	ConnectionPool(TriggerwareClient client, int minSize, int maxSize, Routing routing) {
+		if (minSize < 1 || maxSize < minSize)
+			throw new IllegalArgumentException("a connection pool's sizes must satisfy 1 <= minSize <= maxSize");
+		if (routing == null)
+			throw new IllegalArgumentException("routing of a connection pool must not be null");
+		this.client = client;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.routing = routing;
+		if (!client.getPrimaryConnection().isClosed()) members.add(client.getPrimaryConnection());
+		while (members.size() < minSize && grow(true) != null);
+	}
+
+	public int getMinSize() {return minSize;}
+	public int getMaxSize() {return maxSize;}
+	public Routing getRouting() {return routing;}
+	/**
+	 * @return the connections now in this pool
+	 */
+	public List<TriggerwareConnection> getConnections() {return List.copyOf(members);}
+	/**
+	 * @return the number of connections now in this pool
+	 */
+	public int size() {return members.size();}
+
+	/**
+	 * @param connection a connection of this pool's client
+	 * @return true if requests may be routed to the connection: it is open, and not stalled (see {@link ConnectionOptions#withHeartbeat})
+	 */
+	public boolean isHealthy(TriggerwareConnection connection) {return !connection.isClosed() && !connection.isStalled();}
+
+	/**
+	 * @return the connection on which to issue a request, or create a stateful object
+	 */
+	public TriggerwareConnection acquire() {
+		var chosen = choose();
+		if (chosen == null || members.size() < minSize || (chosen.getPendingRequestCount() > 0 && members.size() < maxSize)) {
+			var opened = grow(chosen == null);
+			if (opened != null) return opened;
+			if (chosen == null) chosen = choose(); //another thread may have opened one
+		}
+		return chosen == null ? client.getPrimaryConnection() : chosen;
+	}
+
+	private TriggerwareConnection choose() {
+		var connections = members.toArray(new TriggerwareConnection[0]);
+		int n = connections.length;
+		if (n == 0) return null;
+		if (routing == Routing.ROUND_ROBIN) {
+			int start = Math.floorMod(turn.getAndIncrement(), n);
+			for (int i = 0; i < n; i++) {
+				var c = connections[(start + i) % n];
+				if (isHealthy(c)) return c;
+				if (c.isClosed()) members.remove(c);
+			}
+			return null;
+		}
+		TriggerwareConnection least = null;
+		int leastPending = Integer.MAX_VALUE;
+		for (var c : connections) {
+			if (!isHealthy(c)) {
+				if (c.isClosed()) members.remove(c);
+				continue;
+			}
+			var pending = c.getPendingRequestCount();
+			if (pending < leastPending) {
+				least = c;
+				leastPending = pending;
+				if (pending == 0) break;
+			}
+		}
+		return least;
+	}
+
+	//open a connection unless the pool is full. Unless the caller must have one, it does not wait for another thread that is opening one.
+	private TriggerwareConnection grow(boolean wait) {
+		if (wait) growing.lock();
+		else if (!growing.tryLock()) return null;
+		try {
+			if (members.size() >= maxSize) return null;
+			var connection = client.newConnection();
+			client.initializeConnection(connection, client.getPrimaryConnection().getDefaultSchema());
+			members.add(connection);
+			return connection;
+		} catch (IOException e) {
+			Logging.log(e, String.format("%s could not open a pooled connection", client.getName()));
+			return null;
+		} finally {growing.unlock();}
+	}
+
+	void connectionClosed(TriggerwareConnection connection) {members.remove(connection);}
+
+	//a connection the client opened to replace one it lost joins the pool, unless the pool has since grown full
+	void connectionOpened(TriggerwareConnection connection) {
+		growing.lock();
+		try {
+			if (members.size() < maxSize && !members.contains(connection)) members.add(connection);
+		} finally {growing.unlock();}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s pool of %d connections (%d..%d)", routing, members.size(), minSize, maxSize);}
+}
@@ -56,6 +56,19 @@ public abstract class NotificationResultController<T> implements NotificationInd
 
 	public Object getNotificationType() {return notificationType;}
 
+	private volatile boolean parallelDispatch = false;
+	/**
+	 * Opt in to parallel dispatch (see {@link NotificationInducer#getDispatchKey}).
+	 * @param parallel true to handle this controller's notifications in parallel with others
+	 */
+	public void setParallelDispatch(boolean parallel) {parallelDispatch = parallel;}
+	/**
+	 * @return true if this controller's notifications are handled in parallel with others
+	 */
+	public boolean isParallelDispatch() {return parallelDispatch;}
+	@Override
+	public Object getDispatchKey(Notification notification) {return parallelDispatch ? this : null;}
+
 	@Override
 	public void establishDeserializationAttributes(SerializationState ss) {
 		ss.put("rowSignature", rowSignature);
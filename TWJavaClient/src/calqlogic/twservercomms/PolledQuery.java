@@ -3,6 +3,7 @@ package calqlogic.twservercomms;
 import java.lang.reflect.Constructor;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
 
 import com.fasterxml.jackson.annotation.*;
 import com.fasterxml.jackson.databind.JavaType;
@@ -57,6 +58,7 @@ public abstract class PolledQuery<T> extends AbstractQuery<T> {
 	protected boolean hasSucceeded = false;
 	//protected final PreparedQuery<T> preparedQuery;
 	protected SignatureElement[]outputSignature = null;
+	private volatile boolean parallelDispatch = false;
 
 	/**
 	 *PolledQueryControlParameters contains values that give the client some control over the reporting of the changes
@@ -296,6 +298,8 @@ public abstract class PolledQuery<T> extends AbstractQuery<T> {
 		}
 		PolledQuery<T> getQuery() {return pq;}
 		@Override
+		public Object getDispatchKey(Notification notification) {return pq.parallelDispatch ? pq : null;}
+		@Override
 		public void establishDeserializationAttributes(SerializationState ss) {
 			ss.put("rowSignature", signature);
 			if (rowConstructor != null)
@@ -325,6 +329,16 @@ public abstract class PolledQuery<T> extends AbstractQuery<T> {
 		}
 	}
 
+	/**
+	 * Opt in to parallel dispatch (see {@link NotificationInducer#getDispatchKey}).
+	 * @param parallel true to handle this polled query's notifications in parallel with others
+	 */
+	public void setParallelDispatch(boolean parallel) {parallelDispatch = parallel;}
+	/**
+	 * @return true if this polled query's notifications are handled in parallel with others
+	 */
+	public boolean isParallelDispatch() {return parallelDispatch;}
+
 	protected synchronized void registered(PolledQueryRegistration pqResult, TriggerwareConnection connection){
 		recordRegistration(connection, pqResult.handle);
 		signatureTypes = pqResult.typeSignature();
@@ -332,6 +346,24 @@ public abstract class PolledQuery<T> extends AbstractQuery<T> {
 		signatureNames = pqResult.attributeNames();
 		connection.getAgent().registerNotificationInducer(notificationMethod, 
 			new PolledQueryNotificationInducer<T>(rowClass, this, pqResult.signature, rowConstructor));
+		connection.addRegistration(this, this::reregister, () -> abandoned(connection));
+	}
+
+	//this polled query could not be created again after its connection was lost. It is closed
+	private synchronized void abandoned(TriggerwareConnection lost) {
+		if (closed || connection != lost) return;
+		closed = true;
+		lost.getAgent().unregisterNotificationInducer(notificationMethod);
+	}
+
+	//create this polled query again on a connection replacing its own
+	CompletableFuture<?> reregister(TriggerwareConnection c) throws JRPCException {
+		var request = new JRPCAsyncRequest<PolledQueryRegistration>(new PolledQueryRequest<T>(rowConstructor), getCreateParameters());
+		return c.asynchronousRPC(request).thenAccept(pqResult -> {
+			synchronized(this) {
+				if (!closed) registered(pqResult, c);
+			}
+		});
 	}
 	
 	//static PolledQuery<?> fromHandle(int handle, TriggerwareConnection conn) {
@@ -400,6 +432,13 @@ public abstract class PolledQuery<T> extends AbstractQuery<T> {
 		else pollRequest.execute(connection, twHandle, timeout.toSeconds());
 	}
 	
+	//an on-demand poll that does not wait for the server's acknowledgement
+	synchronized CompletableFuture<Void> pollAsynchronously() throws JRPCException {
+		var timeout = (controls == null)? null : controls.pollTimeout;
+		var params = timeout == null ? new Object[] {twHandle} : new Object[] {twHandle, timeout.toSeconds()};
+		return connection.asynchronousRPC(new JRPCAsyncRequest<Void>(pollRequest, params));
+	}
+
 	private static PositionalParameterRequest<Void> releasePolledQueryRequest =
 			new PositionalParameterRequest<Void>(Void.TYPE, "close-polled-query", 1, 1);
 			
@@ -425,6 +464,7 @@ public abstract class PolledQuery<T> extends AbstractQuery<T> {
 	public synchronized void close() {
 		if (closed) return;// false;
 		try {
+			connection.removeRegistration(this);
 			releasePolledQueryRequest.execute(connection, twHandle);
 			closed = true;
 			connection.getAgent().unregisterNotificationInducer(notificationMethod);
@@ -2,6 +2,7 @@ package calqlogic.twservercomms;
 
 import java.lang.reflect.Constructor;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import com.fasterxml.jackson.annotation.*;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JavaType;
@@ -140,8 +141,8 @@ public class PreparedQuery<T> extends AbstractQuery<T> implements Statement{
 	}
 
 	/**
-	 * create a PreparedQuery using SQL syntax and register it for use on a client's primary connection
-	 * @param client the client on whose primary connection the query will be used
+	 * create a PreparedQuery using SQL syntax and register it for use on a client's primary connection, or on a connection chosen by the client's {@link ConnectionPool}
+	 * @param client the client on whose connection the query will be used
 	 * @param rowClass the row type of the result of the PreparedQuery
 	 * @param query  the sql query containing input placeholders
 	 * @param schema the default schema for the query
@@ -149,11 +150,11 @@ public class PreparedQuery<T> extends AbstractQuery<T> implements Statement{
 	 * @throws JRPCException if the server refuses the request to create a prepared query for the query/schema values supplied.
 	 */
 	public PreparedQuery(TriggerwareClient client, Class<T> rowClass, String query, String schema, ParameterDeclarations parameterDeclarations) throws JRPCException{
-		this (client.getPrimaryConnection(), rowClass, query, Language.SQL, schema, parameterDeclarations );}
+		this (client.acquireConnection(), rowClass, query, Language.SQL, schema, parameterDeclarations );}
 	
 	/**
-	 * create a PreparedQuery  register it for use on a client's primary connection
-	 * @param client the client on whose primary connection the query will be used
+	 * create a PreparedQuery  register it for use on a client's primary connection, or on a connection chosen by the client's {@link ConnectionPool}
+	 * @param client the client on whose connection the query will be used
 	 * @param rowClass the row type of the result of the PreparedQuery
 	 * @param query  the sql query containing input placeholders
 	 * @param language the appropriate members of  {@link Language} for the query
@@ -162,7 +163,7 @@ public class PreparedQuery<T> extends AbstractQuery<T> implements Statement{
 	 * @throws JRPCException if the server refuses the request to create a prepared query for the query/schema values supplied.
 	 */
 	public PreparedQuery(TriggerwareClient client, Class<T> rowClass, String query, String language, String schema, ParameterDeclarations parameterDeclarations) throws JRPCException{
-		this (client.getPrimaryConnection(), rowClass, query, language, schema, parameterDeclarations );}
+		this (client.acquireConnection(), rowClass, query, language, schema, parameterDeclarations );}
 
 	/**
 	 * create a PreparedQuery and register it for use on a connection
@@ -268,7 +269,7 @@ public class PreparedQuery<T> extends AbstractQuery<T> implements Statement{
 			PreparedQuery<T>clone = (PreparedQuery<T>)this.clone();
 			clone.paramsByIndex = paramsByIndex.clone();
 			clone.connection = c;
-			connection.addPreparedQuery(clone);
+			c.addRegistration(clone, clone::reregister, () -> clone.abandoned(c));
 			//tell TW to give us a handle for clone, using what it knows about this.twHandle
 			//clone.twHandle = handle obtained from tw
 			return clone;
@@ -277,16 +278,36 @@ public class PreparedQuery<T> extends AbstractQuery<T> implements Statement{
 		}
 	}
 	
-	private  void register(TriggerwareConnection connection) throws JRPCException {
+	private NamedRequestParameters registrationParameters() {
 		var params = new NamedRequestParameters().with("query", query).with("namespace", schema).with("language", language);
 		if (parameterDeclarations != null)		params = params.with("parameter-types", parameterDeclarations);
-		var pqresult = (PreparedQueryRegistration)connection.synchronousRPC(PreparedQueryRegistration.class,  "prepare-query", params);
+		return params;
+	}
+	private  void register(TriggerwareConnection connection) throws JRPCException {
+		var pqresult = (PreparedQueryRegistration)connection.synchronousRPC(PreparedQueryRegistration.class,  "prepare-query", registrationParameters());
+		fetchSize = ((TriggerwareClient)(connection.getAgent())).getDefaultFetchSize();
 		registered(pqresult, connection);
 	}
+	//prepare this query again on a connection replacing its own. The signatures, parameter values, and fetch size are unchanged.
+	private CompletableFuture<?> reregister(TriggerwareConnection c) throws JRPCException {
+		var request = new JRPCAsyncRequest<PreparedQueryRegistration>(PreparedQueryRegistration.class, "prepare-query", registrationParameters());
+		return c.asynchronousRPC(request).thenAccept(pqResult -> {
+			synchronized(this) {
+				if (closed) return;
+				connection = c;
+				recordRegistration(c, pqResult.handle);
+				c.addRegistration(this, this::reregister, () -> abandoned(c));
+			}
+		});
+	}
+	//this query could not be prepared again after its connection was lost. It is closed
+	private synchronized void abandoned(TriggerwareConnection lost) {
+		if (closed || connection != lost) return;
+		closed = true;
+	}
 	private void registered(PreparedQueryRegistration pqResult, TriggerwareConnection connection) {;
 		recordRegistration(connection, pqResult.handle);
-		connection.addPreparedQuery(this);
-		fetchSize = ((TriggerwareClient)(connection.getAgent())).getDefaultFetchSize();
+		connection.addRegistration(this, this::reregister, () -> abandoned(connection));
 		inputSignatureTypes = pqResult.inputTypeSignature();
 		inputSignatureTypeNames = pqResult.inputTypeNames();
 		outputSignature = pqResult.rowSignature;
@@ -466,7 +487,7 @@ public class PreparedQuery<T> extends AbstractQuery<T> implements Statement{
 				throw new TriggerwareClientException("cannot execute a prepared query without setting all the parameters");
 
 			var timeout = (qrl == null) ? null :qrl.getTimeout();
-			var rcl = qrl.getRowCountLimit();
+			var rcl = (qrl == null) ? null : qrl.getRowCountLimit();
 			Integer fetchSize = this.fetchSize;
 			if (fetchSize == null)  fetchSize = rcl;
 			if (fetchSize != null && rcl != null && rcl<fetchSize) fetchSize = rcl;
@@ -497,7 +518,7 @@ public class PreparedQuery<T> extends AbstractQuery<T> implements Statement{
 		}
 		else 
 			eqresult = connection.synchronousRPC(crsResultType, null, "create-resultset", params);*/
-		return new TWResultSet<T>(rowConstructor, connection, crResult.handle, fetchSize, qrl.getRowCountLimit(), outputSignature, crResult.batch.getRows());
+		return new TWResultSet<T>(rowConstructor, connection, crResult.handle, fetchSize, qrl == null ? null : qrl.getRowCountLimit(), outputSignature, crResult.batch.getRows());
 	}
 	
 	/**  obtain a resultset for this prepared query, providing no resource limits
@@ -519,8 +540,8 @@ public class PreparedQuery<T> extends AbstractQuery<T> implements Statement{
 			//for (var rs : outstanding) rs.close();
 			//outstanding.clear();
 			closed = true;
+			connection.removeRegistration(this);
 			releaseQueryRequest.execute(connection, twHandle);
-			connection.removePreparedQuery(this);
 			//return true;
 		} catch (JRPCException e) {
 		   Logging.log("error closing a PreparedQuery <%s>", e.getMessage());
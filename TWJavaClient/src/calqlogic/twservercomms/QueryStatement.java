@@ -31,11 +31,11 @@ public class QueryStatement implements Statement{
 	private final TypeFactory typeFactory;
 	
 	/**
-	 * create a new query statement on a clients primary connection
+	 * create a new query statement on a client's primary connection, or on a connection chosen by the client's {@link ConnectionPool}
 	 * @param client the client that will use this QueryStatement
 	 */
 	public QueryStatement(TriggerwareClient client) {
-		this(client.getPrimaryConnection());}
+		this(client.acquireConnection());}
 
 	/**
 	 * create a new query statement
@@ -301,7 +301,7 @@ optional:
 		if (qrl!=null) params.with("limit", qrl.rowCountLimit).with("timelimit", qrl.timeout);
 		var eqresult = (ResultSetResult<T>)connection.synchronousRPC(eqNPR, params);
 		//eqresult.setRowConstructor(eqNPR.rowConstructor);
-		var rs = new TWResultSet<T>(eqNPR.rowConstructor, connection, eqresult.handle, fetchSize, qrl.rowCountLimit,  eqresult.rowSignature, eqresult.batch.getRows());
+		var rs = new TWResultSet<T>(eqNPR.rowConstructor, connection, eqresult.handle, fetchSize, qrl == null ? null : qrl.rowCountLimit,  eqresult.rowSignature, eqresult.batch.getRows());
 		eqresult.setResultSet(rs);
 		resultSet = rs;
 		return rs;
@@ -0,0 +1,86 @@
+package calqlogic.twservercomms;
+
+import java.time.Duration;
+
+/**
+ * <p>A ReconnectPolicy tells a {@link TriggerwareClient} to replace a connection that its server closes, or that fails, with a new one.
+ * A policy is given to a client with {@link TriggerwareClient#setReconnectPolicy}; a client has no policy by default, and does not reconnect.
+ * </p><p>
+ * The first attempt to reconnect is made at once. Each attempt that fails doubles the delay before the next, from the initial delay up to
+ * the maximum delay. Once connected, the client registers again, on the new connection, the prepared queries, subscriptions, batch
+ * subscriptions and polled queries that were registered on the lost connection. The registration requests are pipelined: a window of
+ * them is sent without waiting for responses, and the next window is sent when the responses to the first have arrived.
+ * A registration whose response has not arrived within the reregistration timeout is counted as failed, so a server that does not
+ * answer cannot hold up reconnection. An object whose registration failed, or that was registered on a connection the client gave up
+ * replacing, is made inactive, and is passed to {@link TriggerwareClient#onRegistrationsLost}.
+ * </p><p>
+ * The methods that set a choice return this ReconnectPolicy instance, so choices can be chained:
+ * </p>
+ * <pre>new ReconnectPolicy().withBackoff(Duration.ofMillis(50), Duration.ofSeconds(10)).withMaxAttempts(20)</pre>
+ */
+public class ReconnectPolicy {
+	private Duration initialDelay = Duration.ofMillis(100), maxDelay = Duration.ofSeconds(30);
+	private int maxAttempts = 0;
+	private int reregistrationWindow = 64;
+	private Duration reregistrationTimeout = Duration.ofSeconds(30);
+
+	public ReconnectPolicy() {}
+
+	/**
+	 * @param initialDelay the delay after the first failed attempt to reconnect
+	 * @param maxDelay the longest delay between attempts
+	 * @return this ReconnectPolicy instance
+	 */
+	public ReconnectPolicy withBackoff(Duration initialDelay, Duration maxDelay) {
+		if (initialDelay == null || maxDelay == null || initialDelay.isNegative() || initialDelay.isZero() || maxDelay.compareTo(initialDelay) < 0)
+			throw new IllegalArgumentException("delays passed to ReconnectPolicy.withBackoff must satisfy 0 < initialDelay <= maxDelay");
+		this.initialDelay = initialDelay;
+		this.maxDelay = maxDelay;
+		return this;
+	}
+
+	/**
+	 * @param maxAttempts the number of attempts to make before giving up, or 0 to keep trying until the client is closed
+	 * @return this ReconnectPolicy instance
+	 */
+	public ReconnectPolicy withMaxAttempts(int maxAttempts) {
+		if (maxAttempts < 0)
+			throw new IllegalArgumentException("maxAttempts passed to ReconnectPolicy.withMaxAttempts must not be negative");
+		this.maxAttempts = maxAttempts;
+		return this;
+	}
+
+	/**
+	 * @param window the number of registration requests sent on a new connection before waiting for their responses
+	 * @return this ReconnectPolicy instance
+	 */
+	public ReconnectPolicy withReregistrationWindow(int window) {
+		if (window < 1)
+			throw new IllegalArgumentException("window passed to ReconnectPolicy.withReregistrationWindow must be positive");
+		this.reregistrationWindow = window;
+		return this;
+	}
+
+	/**
+	 * @param timeout the time a registration request sent on a new connection may wait for its response before it is counted as failed
+	 * @return this ReconnectPolicy instance
+	 */
+	public ReconnectPolicy withReregistrationTimeout(Duration timeout) {
+		if (timeout == null || timeout.isNegative() || timeout.isZero())
+			throw new IllegalArgumentException("timeout passed to ReconnectPolicy.withReregistrationTimeout must be positive");
+		this.reregistrationTimeout = timeout;
+		return this;
+	}
+
+	public Duration getInitialDelay() {return initialDelay;}
+	public Duration getMaxDelay() {return maxDelay;}
+	public int getMaxAttempts() {return maxAttempts;}
+	public int getReregistrationWindow() {return reregistrationWindow;}
+	public Duration getReregistrationTimeout() {return reregistrationTimeout;}
+
+	@Override
+	public String toString() {
+		return String.format("reconnect after %s..%s, %s attempts, window %d, timeout %s", initialDelay, maxDelay,
+				maxAttempts == 0 ? "unlimited" : Integer.toString(maxAttempts), reregistrationWindow, reregistrationTimeout);
+	}
+}
@@ -0,0 +1,19 @@
+package calqlogic.twservercomms;
+
+import java.util.concurrent.CompletableFuture;
+
+import nmg.softwareworks.jrpcagent.JRPCException;
+
+/* How an object that holds state on a Triggerware server registers that state again on a replacement for the connection it was
+ * registered on. The registration requests are sent without waiting for their responses, so that a client restoring many objects
+ * can pipeline them; the object records its new handle, signature, and connection when the responses arrive.
+ */
+@FunctionalInterface
+interface Reregistration {
+	/**
+	 * @param connection the connection replacing the one that was lost
+	 * @return a future completed once the object is registered on connection
+	 * @throws JRPCException if a request cannot be sent on connection
+	 */
+	CompletableFuture<?> reregister(TriggerwareConnection connection) throws JRPCException;
+}
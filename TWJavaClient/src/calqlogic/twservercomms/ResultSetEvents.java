@@ -0,0 +1,39 @@
+package calqlogic.twservercomms;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/* The JDK Flight Recorder events of result sets, in the same category as the request and notification events of the jrpcagent library:
+ * the parsing of each batch of rows, and each round trip that asks the server for another batch of a TWResultSet.
+ */
+final class ResultSetEvents {
+	private ResultSetEvents() {}
+
+	@Name("calqlogic.twservercomms.RowsParsed")
+	@Label("Triggerware Rows Parsed")
+	@Description("A batch of rows deserialized from a response")
+	@Category("JRPC")
+	@StackTrace(false)
+	static final class RowsParsed extends Event {
+		@Label("Rows") int rows;
+		@Label("Columns") int columns;
+		@Label("Bytes") @DataAmount long bytes;
+	}
+
+	@Name("calqlogic.twservercomms.ResultSetPulse")
+	@Label("Triggerware Result Set Pulse")
+	@Description("A request for the next batch of rows of a result set, and its response")
+	@Category("JRPC")
+	@StackTrace(false)
+	static final class ResultSetPulse extends Event {
+		@Label("Handle") int handle;
+		@Label("Fetch Size") int fetchSize;
+		@Label("Rows") int rows;
+		@Label("Exhausted") boolean exhausted;
+	}
+}
@@ -1,5 +1,7 @@
 package calqlogic.twservercomms;
 
+import java.util.concurrent.CompletableFuture;
+
 import calqlogic.twservercomms.TriggerwareClient.TriggerwareClientException;
 import nmg.softwareworks.jrpcagent.JRPCException;
 import nmg.softwareworks.jrpcagent.NamedRequestParameters;
@@ -88,6 +90,18 @@ public abstract class ScheduledQuery<T> extends PolledQuery<T> {
 	protected NamedRequestParameters getCreateParametersPrepared() {
 		return super.getCreateParametersPrepared().with("schedule", schedule).with("delay-schedule", true);}*/
 	
+	//a scheduled query's schedule starts with its first poll, so one that was active is polled once it is created again
+	@Override
+	CompletableFuture<?> reregister(TriggerwareConnection c) throws JRPCException {
+		return super.reregister(c).thenCompose(registered -> {
+			synchronized(this) {
+				if (!active || closed) return CompletableFuture.<Void>completedFuture(null);
+				try {return pollAsynchronously();
+				} catch (JRPCException e) {return CompletableFuture.<Void>failedFuture(e);}
+			}
+		});
+	}
+
 	@SuppressWarnings("unused")
 	private boolean hasBeenPolled = false; // does not seem useful under current tw protocol
 	@Override
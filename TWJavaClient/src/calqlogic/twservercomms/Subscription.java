@@ -1,6 +1,7 @@
 package calqlogic.twservercomms;
 
 import java.lang.reflect.Constructor;
+import java.util.concurrent.CompletableFuture;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
@@ -246,6 +247,19 @@ public abstract class Subscription<T> implements NotificationInducer{
 	}*/
 	
 	private String getDispatchString() {return notificationTag;}
+
+	private volatile boolean parallelDispatch = false;
+	/**
+	 * Opt in to parallel dispatch (see {@link NotificationInducer#getDispatchKey}). This has no effect on a member of a BatchSubscription.
+	 * @param parallel true to handle this subscription's notifications in parallel with others
+	 */
+	public void setParallelDispatch(boolean parallel) {parallelDispatch = parallel;}
+	/**
+	 * @return true if this subscription's notifications are handled in parallel with others
+	 */
+	public boolean isParallelDispatch() {return parallelDispatch;}
+	@Override
+	public Object getDispatchKey(Notification notification) {return parallelDispatch ? this : null;}
 	
 	//Object getrowSignature(){return rowSignature;}
 	/**
@@ -311,6 +325,7 @@ public abstract class Subscription<T> implements NotificationInducer{
 		try {
 			registerWithTW(connection);
 			subscribedOn = connection;
+			connection.addRegistration(this, this::reregister, () -> abandoned(connection));
 		}catch(JRPCException e) {
 			client.unregisterNotificationInducer(notificationTag);
 			deserializationType = null;
@@ -327,12 +342,15 @@ public abstract class Subscription<T> implements NotificationInducer{
 	public void deactivate() throws SubscriptionException, JRPCException {
 		if (partOfBatch != null)
 			throw new SubscriptionException("attempt to deactivate a subscription as an individual subscription when it is part of a batch", this);
-		unregisterWithTw();
-		subscribedOn.getAgent().unregisterNotificationInducer(notificationTag);		
+		var connection = subscribedOn;
+		if (connection == null) return;
+		connection.removeRegistration(this);
+		unregisterWithTw(connection);
+		connection.getAgent().unregisterNotificationInducer(notificationTag);		
 	}
 
-	void unregisterWithTw() throws JRPCException {
-		unsubscribeRequest.execute(subscribedOn, namedParameters);
+	void unregisterWithTw(TriggerwareConnection connection) throws JRPCException {
+		unsubscribeRequest.execute(connection, namedParameters);
 		subscribedOn = null;
 	}
 	
@@ -343,6 +361,30 @@ public abstract class Subscription<T> implements NotificationInducer{
 		signature = ssignature.signature;
 	}
 
+	//subscribe again, with the parameters of the last registration, on a connection replacing the one this subscription was active on
+	CompletableFuture<?> resubscribe(TriggerwareConnection connection) throws JRPCException {
+		var request = new JRPCAsyncRequest<SSignature>(subscribeRequest, namedParameters);
+		return connection.asynchronousRPC(request).thenAccept(ssignature -> signature = ssignature.signature);
+	}
+
+	private CompletableFuture<?> reregister(TriggerwareConnection connection) throws JRPCException {
+		var lost = subscribedOn;
+		return resubscribe(connection).thenRun(() -> {
+			synchronized(this) {
+				if (subscribedOn != lost) return; //abandoned, or deactivated, while it was being restored
+				subscribedOn = connection;
+				connection.addRegistration(this, this::reregister, () -> abandoned(connection));
+			}
+		});
+	}
+
+	//this subscription could not be restored after its connection was lost. It is inactive, and may be activated again
+	private synchronized void abandoned(TriggerwareConnection lost) {
+		if (subscribedOn != lost) return;
+		subscribedOn = null;
+		lost.getAgent().unregisterNotificationInducer(notificationTag);
+	}
+
 	/**
 	 * handleNotification is called to respond to a triggering of the subscription's condition. Any instantiable subclass 
 	 * of Subscription must implement this method.  The method may not throw any <em>checked</em> exceptions. If a handleNotification
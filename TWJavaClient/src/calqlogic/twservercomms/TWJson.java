@@ -1,7 +1,6 @@
 package calqlogic.twservercomms;
 
 import java.io.IOException;
-import java.io.OutputStream;
 
 import com.fasterxml.jackson.core.*;
 import com.fasterxml.jackson.databind.*;
@@ -37,10 +36,9 @@ public class TWJson {
 	 }*/
 	 
 	 public static void serializeJsonValue(TWJson twjson, JsonGenerator gen) throws IOException {
-		 if (twjson == null) {
-			 var target = (OutputStream)gen.getOutputTarget();
-			 target.write('"'); target.write(sqlNullSerialization.getBytes()); target.write('"'); 
-		 } else ((ObjectMapper)gen.getCodec()).writeTree(gen, twjson.getActualJsonValue());
+		 if (twjson == null) 
+			 gen.writeString(sqlNullSerialization); //writing to the generator's target directly would bypass its buffer
+		 else ((ObjectMapper)gen.getCodec()).writeTree(gen, twjson.getActualJsonValue());
 	 }
 
 
@@ -312,19 +312,33 @@ public class TWResultSet<T> implements  AutoCloseable{
 				this.close(); // don't ask for more,just close the resultset
 				return null;
 		}
-		if (timeout==null) 
-			return(Batch<T>)connection.synchronousRPC(nrsPPR, new Object[] {handle, pulseFetchSize});
-			
-		var future = connection.asynchronousRPC(nrsPPR, new Object[] {handle, pulseFetchSize, timeout});
+		var event = new ResultSetEvents.ResultSetPulse();
+		event.begin();
+		Batch<T> received = null;
 		try {
-			return (Batch<T>)JRPCAsyncRequest.executeWithTimeout(nrsPPR, future, (long)(timeout*1000));
-		} catch (JRPCRequestTimeoutException e) {
-			future.cancel(false); //that will cause the agent to ignore the eventual result.
-			throw e;
-		}catch(CancellationException e) {//this is a runtime exception in java
-			throw e;
-		}catch (InterruptedException | ExecutionException  e) {
-			return null;
+			if (timeout==null) 
+				return received = (Batch<T>)connection.synchronousRPC(nrsPPR, new Object[] {handle, pulseFetchSize});
+				
+			var future = connection.asynchronousRPC(nrsPPR, new Object[] {handle, pulseFetchSize, timeout});
+			try {
+				return received = (Batch<T>)JRPCAsyncRequest.executeWithTimeout(nrsPPR, future, (long)(timeout*1000));
+			} catch (JRPCRequestTimeoutException e) {
+				future.cancel(false); //that will cause the agent to ignore the eventual result.
+				throw e;
+			}catch(CancellationException e) {//this is a runtime exception in java
+				throw e;
+			}catch (InterruptedException | ExecutionException  e) {
+				return null;
+			}
+		} finally {
+			event.end();
+			if (event.shouldCommit()) {
+				event.handle = handle;
+				event.fetchSize = pulseFetchSize;
+				event.rows = received == null || received.getRows() == null ? 0 : received.getRows().size();
+				event.exhausted = received == null || received.isExhausted();
+				event.commit();
+			}
 		}
 	}
 
@@ -2,11 +2,19 @@ package calqlogic.twservercomms;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonPropertyOrder;
@@ -22,7 +30,8 @@ import nmg.softwareworks.jrpcagent.JRPCException.JRPCClosedConnectionError;
  *<p>A TriggerwareClient is a {@link JRPCAgent} that provides one or more connections to a single Triggerware server.
  *The TriggerwareClient constructor establishes an initial ('primary') connection to the TW server, whose identity is
  *determined by host/port parameters of the constructor. This connection is special only in that many APIs in this library
- *having a TriggerwareClient parameter need to access one of its connections.  These APIs use the primary connection.
+ *having a TriggerwareClient parameter need to access one of its connections.  These APIs use the primary connection,
+ *unless the client has opened a {@link ConnectionPool} with {@link #openConnectionPool}; then they use a connection chosen by the pool.
  *</p><p>
  *TriggerwareClient contains methods for issuing  specific requests that are supported by any Triggerware server.
  *Classes that extend TriggerwareClient for specific applications will implement their own application-specific
@@ -32,6 +41,10 @@ import nmg.softwareworks.jrpcagent.JRPCException.JRPCClosedConnectionError;
  *A TriggerwareClient can also manage {@link Subscription Subscriptions}. By subscribing to certain kinds of changes, the
  *client arranges to be notified when these changes occur in the data accessible to the server.  This capability also relies
  *on natively implemented code that must be added to a Triggerware server.
+ *</p><p>
+ *A client given a {@link ReconnectPolicy} replaces a connection that is lost, and registers again on the replacement the
+ *prepared queries, subscriptions and polled queries that were registered on the lost connection. QueryStatements and their
+ *result sets are not restored.
  *</p>
  */
 public class TriggerwareClient extends JRPCAgent{
@@ -42,9 +55,6 @@ public class TriggerwareClient extends JRPCAgent{
 		mapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
 		return mapper;
 	}*/
-	private static SSLSocketFactory sslSocketFactory =
-            (SSLSocketFactory)SSLSocketFactory.getDefault();
-	
 	private Integer defaultFetchSize = 10;
 
 	//final static Map<String, TreeNode> serverAsynchronousMap = new HashMap<String, TreeNode>(1);
@@ -101,11 +111,19 @@ public class TriggerwareClient extends JRPCAgent{
 	private final int twServerPort;
 	private final InetAddress twHost;
 	private final boolean useSSL;
+	private final UnixDomainSocketAddress twSocketAddress; //null unless the server was reached through a Unix domain socket
 	
 	/**
-	 * @return the network address used by this TriggerwareClient to connect to a server.
+	 * @return the network address used by this TriggerwareClient to connect to a server, or null if this client
+	 * connects to its server through a Unix domain socket.
 	 */
-	public InetSocketAddress getServerAddress() {return new InetSocketAddress(twHost, twServerPort);}
+	public InetSocketAddress getServerAddress() {
+		return twSocketAddress == null ? new InetSocketAddress(twHost, twServerPort) : null;}
+	/**
+	 * @return the address used by this TriggerwareClient to connect to a server: an InetSocketAddress or a UnixDomainSocketAddress
+	 */
+	public SocketAddress getServerSocketAddress() {
+		return twSocketAddress == null ? getServerAddress() : twSocketAddress;}
 	
 	/**
 	 * create a new client and establish an initial connection to the TW server
@@ -117,11 +135,59 @@ public class TriggerwareClient extends JRPCAgent{
 	public TriggerwareClient(String name, InetAddress twHost, int twServerPort) throws IOException {
 		this(name, twHost, twServerPort, false);}
 	
-	static final SSLSocket createSSLSocket(InetAddress host, int port) throws  IOException {
-		var sock = (SSLSocket)sslSocketFactory.createSocket(host, port);
-		sock.setUseClientMode(true);
-		sock.startHandshake();
-		return sock;
+	/* The socket for a new connection to a TW server. For TLS on the NIO transport, the SSLEngine to use on the socket's channel;
+	 * for TLS on the STREAM transport, the time taken by the SSLSocket's handshake, which can only be recorded once the client exists.
+	 */
+	private record Endpoint(Socket socket, SSLEngine engine, long handshakeNanos, boolean resumed) {}
+
+	private static Endpoint openEndpoint(InetAddress host, int port, boolean useSSL, ConnectionOptions options) throws IOException {
+		var nio = options.getTransport() == ConnectionOptions.Transport.NIO;
+		if (!useSSL) return new Endpoint(nio ? openChannel(host, port).socket() : new Socket(host, port), null, -1, false);
+		if (nio) return new Endpoint(openChannel(host, port).socket(), createSSLEngine(host, port, options), -1, false);
+		var startMillis = System.currentTimeMillis();
+		var start = System.nanoTime();
+		var sock = createSSLSocket(host, port, options);
+		return new Endpoint(sock, null, System.nanoTime() - start, TlsHandshakeStatistics.isResumed(sock.getSession(), startMillis));
+	}
+
+	private static InetSocketAddress serverAddress(InetAddress host, int port) {
+		return new InetSocketAddress(host == null ? InetAddress.getLoopbackAddress() : host, port);}
+
+	private static SocketChannel openChannel(InetAddress host, int port) throws IOException {
+		return SocketChannel.open(serverAddress(host, port));}
+
+	private static SSLContext sslContext(ConnectionOptions options) throws IOException {
+		if (options.getSSLContext() != null) return options.getSSLContext();
+		try {return SSLContext.getDefault();
+		} catch (java.security.NoSuchAlgorithmException e) {
+			throw new IOException("no default SSLContext is available", e);}
+	}
+
+	//The SSLContext caches client sessions by the host and port given here, so a later connection to the same server resumes the session.
+	//The host is named by the text it was created from, which avoids a reverse lookup of an address.
+	//If the handshake fails, the socket is closed
+	@SuppressWarnings("resource")
+	static final SSLSocket createSSLSocket(InetAddress host, int port, ConnectionOptions options) throws  IOException {
+		var address = serverAddress(host, port);
+		var plain = new Socket(address.getAddress(), port);
+		Socket sock = plain;
+		try {
+			var ssl = (SSLSocket)sslContext(options).getSocketFactory().createSocket(plain, address.getHostString(), port, true);
+			sock = ssl; //closing it closes plain too
+			ssl.setUseClientMode(true);
+			ssl.startHandshake();
+			return ssl;
+		} catch (IOException | RuntimeException e) {
+			try {sock.close();
+			} catch (IOException ce) {e.addSuppressed(ce);}
+			throw e;
+		}
+	}
+
+	static final SSLEngine createSSLEngine(InetAddress host, int port, ConnectionOptions options) throws IOException {
+		var engine = sslContext(options).createSSLEngine(serverAddress(host, port).getHostString(), port);
+		engine.setUseClientMode(true);
+		return engine;
 	}
 	/**
 	 * create a new client and establish an initial connection to the TW server
@@ -134,30 +200,204 @@ public class TriggerwareClient extends JRPCAgent{
 	 */
 	public TriggerwareClient(String name, InetAddress twHost, int twServerPort, boolean useSSL) 
 			throws IOException {
-		super(useSSL ? createSSLSocket(twHost, twServerPort) : new Socket(twHost, twServerPort), name);
+		this(name, twHost, twServerPort, useSSL, new ConnectionOptions());}
+
+	/**
+	 * create a new client and establish an initial connection to the TW server
+	 * @param name is a name for this client.  The name is used in log file entries. 
+	 * @param twHost the host where the TW server is listening. Null may be used to designate the loopback host.
+	 * @param twServerPort the port number where the TW server is listening.
+	 * @param useSSL make a connection that uses SSL for communicating over the socket.
+	 * @param options the options for all connections made by this client. On the NIO transport, SSL connections run TLS through an SSLEngine.
+	 * The options' SSLContext (if any) is used for SSL connections, and its session cache lets the client's further connections
+	 * resume the session of an earlier one. The handshakes are recorded in the client's {@link #getTlsHandshakeStatistics statistics}.
+	 * @throws IOException when a problem occurs establishing a connection to the designated host and port
+	 */
+	public TriggerwareClient(String name, InetAddress twHost, int twServerPort, boolean useSSL, ConnectionOptions options) 
+			throws IOException {
+		this(name, twHost, twServerPort, useSSL, options, openEndpoint(twHost, twServerPort, useSSL, options));}
+
+	private TriggerwareClient(String name, InetAddress twHost, int twServerPort, boolean useSSL, ConnectionOptions options,
+			Endpoint endpoint) throws IOException {
+		super(endpoint.socket(), endpoint.engine(), name, options, endpoint.handshakeNanos(), endpoint.resumed());
 		this.twHost = twHost;
 		this.twServerPort = twServerPort;
 		this.addOutboundProperties("asynchronous");
 		//this.setName(name);
 		this.useSSL = useSSL;
+		this.twSocketAddress = null;
 		establishTWCommunications();
 		//getObjectMapper().registerModule(new BatchNotification.DeserializationModule(this));
 	}
+
+	/**
+	 * create a new client and establish an initial connection to a TW server on the same host, through a Unix domain socket.
+	 * This avoids the TCP stack for a server deployed alongside the client.
+	 * @param name is a name for this client.  The name is used in log file entries. 
+	 * @param twSocketAddress the address where the TW server is listening
+	 * @param options the options for all connections made by this client. Either transport may be used.
+	 * @throws IOException when a problem occurs establishing a connection to the designated address
+	 */
+	public TriggerwareClient(String name, UnixDomainSocketAddress twSocketAddress, ConnectionOptions options) throws IOException {
+		super(twSocketAddress, name, options);
+		this.twHost = null;
+		this.twServerPort = -1;
+		this.addOutboundProperties("asynchronous");
+		this.useSSL = false;
+		this.twSocketAddress = twSocketAddress;
+		establishTWCommunications();
+	}
 	
 	/**
 	 * @return the primary connection of this TriggerwareClient
 	 */
 	public TriggerwareConnection getPrimaryConnection () { return (TriggerwareConnection) primaryConnection; }
 
+	private volatile ConnectionPool connectionPool = null;
+	/**
+	 * Open a pool of connections to this client's server. Once it is open, the requests this client issues without naming a 
+	 * connection, and the QueryStatements and PreparedQueries created for this client, use a connection chosen by the pool 
+	 * rather than the primary connection. Subscriptions and polled queries activated for this client still use the primary connection.
+	 * A client has at most one pool; opening another replaces it, but does not close the connections of the first.
+	 * @param minSize the number of connections the pool opens at once, including the primary connection
+	 * @param maxSize the largest number of connections the pool opens
+	 * @param routing how the pool chooses a connection
+	 * @return the pool
+	 */
+	public ConnectionPool openConnectionPool(int minSize, int maxSize, ConnectionPool.Routing routing) {
+		var pool = new ConnectionPool(this, minSize, maxSize, routing);
+		connectionPool = pool;
+		return pool;
+	}
+	/**
+	 * @return this client's connection pool, or null if it has none
+	 */
+	public ConnectionPool getConnectionPool() {return connectionPool;}
+
+	/**
+	 * @return the connection for a request that does not name one: a connection chosen by this client's pool, 
+	 * or the primary connection if the client has no pool
+	 */
+	public TriggerwareConnection acquireConnection() {
+		var pool = connectionPool;
+		return pool == null ? getPrimaryConnection() : pool.acquire();
+	}
+
+	private volatile ReconnectPolicy reconnectPolicy = null;
+	/**
+	 * @param policy how this client replaces a connection that is lost, or null (the default) if it does not
+	 */
+	public void setReconnectPolicy(ReconnectPolicy policy) {reconnectPolicy = policy;}
+	/**
+	 * @return how this client replaces a connection that is lost, or null if it does not
+	 */
+	public ReconnectPolicy getReconnectPolicy() {return reconnectPolicy;}
+
+	void connectionClosed(TriggerwareConnection connection) {
+		var pool = connectionPool;
+		if (pool != null) pool.connectionClosed(connection);
+		var policy = reconnectPolicy;
+		var reconnect = policy != null && !connection.isClosedByClient() && !isShuttingDown();
+		if (!reconnect) connection.takeRegistrations();
+		onTWCommunicationsLost(connection);
+		if (reconnect) {
+			var builder = getConnectionOptions().getExecutionMode() == ConnectionOptions.ExecutionMode.VIRTUAL ? Thread.ofVirtual()
+					: Thread.ofPlatform().daemon(true);
+			builder.name(getName() + " reconnect").start(() -> reconnect(connection, policy));
+		}
+	}
+
+	private void reconnect(TriggerwareConnection lost, ReconnectPolicy policy) {
+		var delay = policy.getInitialDelay();
+		TriggerwareConnection replacement = null;
+		for (int attempt = 1; replacement == null; attempt++) {
+			if (isShuttingDown()) return;
+			try {replacement = newConnection();
+			} catch (IOException e) {
+				if (policy.getMaxAttempts() > 0 && attempt >= policy.getMaxAttempts()) {
+					Logging.log(e, String.format("%s gave up reconnecting after %d attempts", getName(), attempt));
+					var abandoned = new ArrayList<Object>();
+					for (var registration : lost.takeRegistrations()) {
+						registration.abandon().run();
+						abandoned.add(registration.owner());
+					}
+					if (!abandoned.isEmpty()) onRegistrationsLost(lost, abandoned);
+					return;
+				}
+				try {Thread.sleep(delay);
+				} catch (InterruptedException ie) {return;}
+				delay = delay.multipliedBy(2);
+				if (delay.compareTo(policy.getMaxDelay()) > 0) delay = policy.getMaxDelay();
+			}
+		}
+		initializeConnection(replacement, lost.getDefaultSchema());
+		if (primaryConnection == lost) setPrimaryConnection(replacement);
+		var pool = connectionPool;
+		if (pool != null) pool.connectionOpened(replacement);
+		var abandoned = reregister(lost.takeRegistrations(), replacement, policy.getReregistrationWindow(),
+				policy.getReregistrationTimeout());
+		if (!abandoned.isEmpty()) onRegistrationsLost(lost, abandoned);
+		onTWCommunicationsRestored(lost, replacement);
+	}
+
+	//send the registration requests in windows, waiting for the responses to each window before sending the next.
+	//A registration not answered within the timeout counts as failed; a copy of its future is timed, so the registration's own is untouched.
+	//The owner of a failed registration is made inactive. Returns those owners
+	private List<Object> reregister(Collection<TriggerwareConnection.Registration> registrations, TriggerwareConnection connection,
+			int window, Duration timeout) {
+		var started = System.nanoTime();
+		var failed = Collections.synchronizedList(new ArrayList<Object>());
+		var inflight = new ArrayList<CompletableFuture<?>>(window);
+		for (var registration : registrations) {
+			try {
+				var response = registration.reregistration().reregister(connection).copy()
+						.orTimeout(timeout.toNanos(), TimeUnit.NANOSECONDS);
+				inflight.add(response.handle((registered, t) -> {
+					if (t == null) return null;
+					if (t instanceof TimeoutException)
+						Logging.log("%s gave up restoring a registration on %s after %s", getName(), connection.getName(), timeout);
+					else Logging.log(t, String.format("%s could not restore a registration on %s", getName(), connection.getName()));
+					registration.abandon().run();
+					failed.add(registration.owner());
+					return null;
+				}));
+			} catch (JRPCException e) {
+				Logging.log(e, String.format("%s could not restore a registration on %s", getName(), connection.getName()));
+				registration.abandon().run();
+				failed.add(registration.owner());
+			}
+			if (inflight.size() >= window) {
+				CompletableFuture.allOf(inflight.toArray(new CompletableFuture<?>[0])).join();
+				inflight.clear();
+			}
+		}
+		CompletableFuture.allOf(inflight.toArray(new CompletableFuture<?>[0])).join();
+		Logging.log("%s restored %d of %d registrations on %s in %d ms", getName(), registrations.size() - failed.size(),
+				registrations.size(), connection.getName(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+		return failed;
+	}
+
 	private boolean tWCommsInitialized = false;
 	private synchronized void establishTWCommunications() throws IOException  {
 		if (tWCommsInitialized )return ;
-		try {
-			setSqlDefaults(null, "case-insensitive");
-		} catch (JRPCException e) {
-			Logging.log(e, "failed to set sql case mode");}		 
+		var primary = getPrimaryConnection();
+		initializeConnection(primary, primary.getDefaultSchema());
 		tWCommsInitialized = true;
 	}
+
+	/* The server keeps the sql defaults, and the client keeps the default schema, for each connection. A connection opened after the
+	 * primary one -- by a ConnectionPool, or to replace a lost connection -- is given the same state, so that a request behaves
+	 * the same whichever connection it is sent on.
+	 */
+	void initializeConnection(TriggerwareConnection connection, String schema) {
+		connection.setDefaultSchema(schema);
+		var params = new NamedRequestParameters().with("sql-mode", sqlMode);
+		var namespace = sqlNamespace;
+		if (namespace != null) params.with("sql-namespace", namespace);
+		try {setSqlDefaultsRequest.execute(connection, params);
+		} catch (JRPCException e) {
+			Logging.log(e, String.format("failed to set sql defaults on %s", connection.getName()));}
+	}
 	
 	/**
 	 * react to the loss of communications with the Triggerware server on a connection.
@@ -171,6 +411,28 @@ public class TriggerwareClient extends JRPCAgent{
 	 * @param connection -- the connection which is now closed.
 	 */
 	protected void onTWCommunicationsLost(Connection connection) {};
+
+	/**
+	 * react to the replacement of a lost connection under this client's {@link ReconnectPolicy}.
+	 * The method defined for TriggerwareClient does nothing.
+	 * It is invoked on the client's reconnect thread, after the registrations of the lost connection have been restored, or have failed,
+	 * on the replacement. If the lost connection was the primary connection, the replacement is now the primary connection.
+	 * @param lost the connection that was lost
+	 * @param replacement the connection that replaces it
+	 */
+	protected void onTWCommunicationsRestored(TriggerwareConnection lost, TriggerwareConnection replacement) {};
+
+	/**
+	 * react to objects whose server-side state was lost with a connection and could not be restored under this client's
+	 * {@link ReconnectPolicy}, because re-registering them failed or timed out, or because reconnecting gave up.
+	 * Each object has been made inactive: a Subscription or BatchSubscription may be activated again, and a PolledQuery or
+	 * PreparedQuery is closed and must be created again.
+	 * The method defined for TriggerwareClient does nothing. It is invoked on the client's reconnect thread, before
+	 * {@link #onTWCommunicationsRestored}.
+	 * @param lost the connection that was lost
+	 * @param owners the Subscriptions, BatchSubscriptions, PolledQueries and PreparedQueries that were made inactive
+	 */
+	protected void onRegistrationsLost(TriggerwareConnection lost, List<Object> owners) {};
 	
 	/**
 	 * @return <code>true</code> if communications with the TW server have been established, <code>false</code> otherwise.
@@ -181,14 +443,36 @@ public class TriggerwareClient extends JRPCAgent{
 	 * @return a newly created connection to this client's TW server
 	 * @throws IOException if a new connection cannot be established
 	 */
+	@SuppressWarnings("resource")
 	protected synchronized TriggerwareConnection newConnection() throws IOException  {
-		return new TriggerwareConnection(this, useSSL ? createSSLSocket(twHost, twServerPort)
-				: new Socket(twHost,twServerPort));}
+		if (twSocketAddress != null) {
+			var channel = SocketChannel.open(twSocketAddress);
+			if (getConnectionOptions().getTransport() == ConnectionOptions.Transport.NIO)
+				return new TriggerwareConnection(this, channel);
+			return new TriggerwareConnection(this, Channels.newInputStream(channel), new BufferedOutputStream(Channels.newOutputStream(channel)));
+		}
+		var options = getConnectionOptions();
+		if (options.getTransport() == ConnectionOptions.Transport.NIO)
+			return new TriggerwareConnection(this, openChannel(twHost, twServerPort),
+					useSSL ? createSSLEngine(twHost, twServerPort, options) : null);
+		if (!useSSL) return new TriggerwareConnection(this, new Socket(twHost,twServerPort));
+		var endpoint = openEndpoint(twHost, twServerPort, true, options);
+		getTlsHandshakeStatistics().record(endpoint.handshakeNanos(), endpoint.resumed());
+		return new TriggerwareConnection(this, endpoint.socket());
+	}
 	
 	@Override
 	public Connection connectToPartner(InputStream istream, OutputStream ostream) throws IOException {
 		return new TriggerwareConnection(this,  istream, ostream);}
 
+	@Override
+	public Connection connectToPartner(SocketChannel channel) throws IOException {
+		return new TriggerwareConnection(this,  channel);}
+
+	@Override
+	public Connection connectToPartner(SocketChannel channel, SSLEngine engine) throws IOException {
+		return new TriggerwareConnection(this,  channel, engine);}
+
 	JsonMapper getObjectMapper(Connection conn) {return conn.getPartnerMapper();}
 
 	/**
@@ -277,7 +561,7 @@ public class TriggerwareClient extends JRPCAgent{
 	 * @return the current TWRuntimeMeasure reported by the TW server.
 	 * @throws JRPCException if the server rejects the request
 	 */
-	public TWRuntimeMeasure runtime() throws JRPCException { return runtimeRequest.execute(primaryConnection);}
+	public TWRuntimeMeasure runtime() throws JRPCException { return runtimeRequest.execute(acquireConnection());}
 	/*public TWRuntimeMeasure runtime(Connection c) throws JRPCException { 
 		c = checkConnectionValid(c);
 		return runtimeRequest.execute(c);
@@ -287,11 +571,24 @@ public class TriggerwareClient extends JRPCAgent{
 	static NamedParameterRequest<Void> setSqlDefaultsRequest =
 			new NamedParameterRequest<Void>(Void.TYPE,  "set-global-default",
 					null, new String[] {"language", "sql-mode", "sql-namespace"});
+	private volatile String sqlMode = "case-insensitive", sqlNamespace = null; //the sql defaults given to each connection
+	/**
+	 * Set the server's sql defaults on this client's primary connection and on every connection of its pool. Connections opened
+	 * later are given the same defaults.
+	 * @param schema the default sql namespace, or null to leave it unchanged
+	 * @param mode the sql mode, or null to leave it unchanged
+	 * @throws JRPCException if the server rejects the request on one of the connections
+	 */
 	public void setSqlDefaults(String schema, String mode) throws JRPCException {
 		var params = new NamedRequestParameters();
-		if(mode != null) params.with("sql-mode", mode);
-		if (schema != null) params.with("sql-namespace", schema);
-		setSqlDefaultsRequest.execute(primaryConnection, params);}
+		if(mode != null) params.with("sql-mode", sqlMode = mode);
+		if (schema != null) params.with("sql-namespace", sqlNamespace = schema);
+		var primary = primaryConnection;
+		setSqlDefaultsRequest.execute(primary, params);
+		var pool = connectionPool;
+		if (pool != null)
+			for (var member : pool.getConnections())
+				if (member != primary && !member.isClosed()) setSqlDefaultsRequest.execute(member, params);}
 	
 	//Movedto SCM
 	/*static PositionalParameterRequest<String> validationRequest = 
@@ -331,11 +628,11 @@ public class TriggerwareClient extends JRPCAgent{
 
 	
 	/**
-	 * create a QueryStatement for use on this client's primary connection
+	 * create a QueryStatement for use on this client's primary connection, or on a connection chosen by its pool
 	 * @return a new QueryStatement
 	 */
 	public QueryStatement createQuery() {
-		return new QueryStatement((TriggerwareConnection)this.primaryConnection);	}
+		return new QueryStatement(acquireConnection());	}
 	
 	/**
 	 * create a QueryStatement 
@@ -346,7 +643,7 @@ public class TriggerwareClient extends JRPCAgent{
 		return new QueryStatement(connection);	}
 
 	public <T> T synchronousRPCP(Class<T>classz,  String method, Object ...params) throws  JRPCException {
-		return synchronousRPCP(primaryConnection, classz,   method, params);}
+		return synchronousRPCP(acquireConnection(), classz,   method, params);}
 	
 	public <T> T synchronousRPCP(Connection connection, Class<T>classz, String method, Object ...params) throws  JRPCException {
 		return connection.synchronousRPC(classz,  method, params);}
@@ -357,7 +654,7 @@ public class TriggerwareClient extends JRPCAgent{
 		
 
 	public <T> T synchronousRPCN(Class<T>classz, String method, NamedRequestParameters params) throws JRPCException {
-		return synchronousRPCN(primaryConnection, classz,   method, params);	}
+		return synchronousRPCN(acquireConnection(), classz,   method, params);	}
 	/*public <T> T synchronousRPCN(Connection conn, Class<T>classz,  String method, NamedRequestParameters params) throws JRPCException {
 		return conn.synchronousRPC(classz, method, params);	}*/
 	/**
@@ -393,7 +690,7 @@ public class TriggerwareClient extends JRPCAgent{
 	public <T> CompletableFuture<T> asynchronousRPCP(String method, Class<T>classz, Object ...params) throws JRPCClosedConnectionError  {
 		//var jrpcRequest = (JRPCAsyncRequest<T>)createRequestP(this, true, false, classz, null, method, params);
 		//return primaryConnection.asynchronousRPC(jrpcRequest);
-		return asynchronousRPCP(method, classz, null, params);
+		return asynchronousRPCP(acquireConnection(), method, classz, params);
 	}
 
 	/**
@@ -414,7 +711,7 @@ public class TriggerwareClient extends JRPCAgent{
 			throws JRPCClosedConnectionError {
 		var jrpcRequest = //(JRPCAsyncRequest<T>)createRequest(this, true, resultType, method, params);
 					      new JRPCAsyncRequest<T>(resultType, method, params);
-		return primaryConnection.asynchronousRPC(jrpcRequest);
+		return acquireConnection().asynchronousRPC(jrpcRequest);
 	}
 	/**
 	 * Issue a client-asynchronous request to this clients TW server, creating a new object for the result.
@@ -477,7 +774,7 @@ public class TriggerwareClient extends JRPCAgent{
 	 * @throws JRPCClosedConnectionError if this client's primary connection is closed
 	 */
 	public <T> CompletableFuture<T> asynchronousRPCN(String method, Class<T>classz, NamedRequestParameters params) throws JRPCClosedConnectionError {
-		return asynchronousRPCN(method, classz,  params);}
+		return acquireConnection().asynchronousRPC(new JRPCAsyncRequest<T>(classz, method, params));}
 
 	/**
 	 * Issue a client-asynchronous/server-asynchronous request to this clients TW server. Use this client's primary connection.
@@ -508,7 +805,7 @@ public class TriggerwareClient extends JRPCAgent{
 			NamedRequestParameters params) throws JRPCClosedConnectionError {
 		var jrpcRequest = //(JRPCAsyncRequest<T>)createRequest(resultType, method, params);
 						  new JRPCAsyncRequest<T>(resultType, method, params);
-		return primaryConnection.asynchronousRPC(jrpcRequest);
+		return acquireConnection().asynchronousRPC(jrpcRequest);
 	}
 
 	/**
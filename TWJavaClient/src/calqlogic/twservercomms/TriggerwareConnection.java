@@ -2,7 +2,13 @@ package calqlogic.twservercomms;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.HashSet;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ssl.SSLEngine;
+
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import nmg.softwareworks.jrpcagent.Connection;
 
@@ -14,12 +20,27 @@ import nmg.softwareworks.jrpcagent.Connection;
 public class TriggerwareConnection extends Connection{
 
 	private String defaultSchema = null;
-	private HashSet<PreparedQuery<?>>myPreparedQueries = new HashSet<>();
-	boolean addPreparedQuery(PreparedQuery<?> pq){
-		return myPreparedQueries.add(pq);}
-	boolean removePreparedQuery(PreparedQuery<?> pq) {
-		return myPreparedQueries.remove(pq);}
-	
+	//the objects holding state on the server that were registered on this connection, for the client to restore if it reconnects
+	private final ConcurrentHashMap<Object,Registration> registrations = new ConcurrentHashMap<>();
+	//abandon makes the owner inactive, when its state cannot be restored on a replacement for this connection
+	record Registration(Object owner, Reregistration reregistration, Runnable abandon) {}
+	void addRegistration(Object owner, Reregistration reregistration, Runnable abandon) {
+		registrations.put(owner, new Registration(owner, reregistration, abandon));}
+	void removeRegistration(Object owner) {
+		registrations.remove(owner);}
+	Collection<Registration> takeRegistrations() {
+		var taken = new ArrayList<Registration>(registrations.size());
+		for (var owner : registrations.keySet()) {
+			var registration = registrations.remove(owner);
+			if (registration != null) taken.add(registration);
+		}
+		return taken;
+	}
+	private volatile boolean closedByClient = false;
+	/**
+	 * @return true if this connection was closed by its client, rather than lost
+	 */
+	boolean isClosedByClient() {return closedByClient;}
 
 	/*private HashSet<View<?>>myViews = new HashSet<>();
 	boolean addView(View<?> v){
@@ -47,6 +68,19 @@ public class TriggerwareConnection extends Connection{
 	TriggerwareConnection(TriggerwareClient twClient, InputStream istream, OutputStream ostream) throws IOException {
 		super(twClient, istream, ostream);
 		this.twClient = twClient;
+		initialize();
+	}
+
+	TriggerwareConnection(TriggerwareClient twClient, SocketChannel channel) throws IOException {
+		this(twClient, channel, null);}
+
+	TriggerwareConnection(TriggerwareClient twClient, SocketChannel channel, SSLEngine engine) throws IOException {
+		super(twClient, channel, engine);
+		this.twClient = twClient;
+		initialize();
+	}
+
+	private void initialize() {
 		defaultSchema = twClient.getDefaultSchema();
 		var sm = new SimpleModule();
 		sm.addDeserializer(BatchNotification.class, new BatchNotification.BatchNotificationDeserializer(this));
@@ -58,10 +92,14 @@ public class TriggerwareConnection extends Connection{
 	 */
 	public TriggerwareClient getClient() {return twClient;}
 
+	@Override
+	public void close() {
+		closedByClient = true;
+		super.close();
+	}
+
 	@Override
 	protected void onDisconnect() {
-		myPreparedQueries.clear();
-		//myPolledQueries.clear();
-		twClient.onTWCommunicationsLost(this);}
+		twClient.connectionClosed(this);}
 
 }